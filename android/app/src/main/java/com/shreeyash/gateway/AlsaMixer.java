@@ -0,0 +1,574 @@
+package com.shreeyash.gateway;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mixer controls of sound card 0, driven through a root helper that keeps
+ * the ALSA control device open (src/main/jni/mixer_helper.c).
+ *
+ * The helper is started once through su and then answers one line per
+ * request over an abstract local socket, so a routing change is a socket
+ * round trip instead of a tinymix fork per control. A batch of changes is
+ * written at once and answered at once. Controls are addressed by the id
+ * from a name index loaded once, on first use.
+ *
+ * If the helper is not packaged or does not come up, the same calls fall
+ * back to tinymix on the shared RootShell.
+ */
+public final class AlsaMixer {
+    private static final String TAG = "AlsaMixer";
+
+    private static final String HELPER = "libmixerhelper.so";
+    private static final String SOCKET_NAME = "gsmgateway.mixer";
+    private static final int CARD = 0;
+
+    private static final long CONNECT_TIMEOUT_MS = 1000;
+    private static final long CONNECT_POLL_MS = 50;
+    private static final int IO_TIMEOUT_MS = 2000;
+    private static final long RETRY_INTERVAL_MS = 30000;
+
+    private static AlsaMixer shared;
+
+    /**
+     * One entry of the control index
+     */
+    public static final class Control {
+        public final int id;
+        public final String name;
+        public final String type;   // BOOL, INT, ENUM, ... as tinymix prints it
+        public final int count;     // number of values (channels)
+
+        Control(int id, String name, String type, int count) {
+            this.id = id;
+            this.name = name;
+            this.type = type;
+            this.count = count;
+        }
+    }
+
+    // Helper process
+    private String helperPath;
+    private int clientUid;
+    private LocalSocket socket;
+    private BufferedReader in;
+    private OutputStream out;
+    private long helperRetryAt;
+
+    // Control index: by name in id order, and substring lookups already answered
+    private Map<String, Control> index;
+    private final Map<String, Control> lookups = new HashMap<>();
+    private static final Control MISSING = new Control(-1, "", "", 0);
+
+    private AlsaMixer() {}
+
+    /**
+     * The process-wide mixer
+     */
+    public static synchronized AlsaMixer shared() {
+        if (shared == null) {
+            shared = new AlsaMixer();
+        }
+        return shared;
+    }
+
+    /**
+     * Locate the helper; until this is called only tinymix is used
+     */
+    public synchronized void init(Context context) {
+        ApplicationInfo info = context.getApplicationInfo();
+        helperPath = new File(info.nativeLibraryDir, HELPER).getPath();
+        clientUid = info.uid;
+    }
+
+    // ==================== CONTROL INDEX ====================
+
+    /**
+     * @return every control name, in id order
+     */
+    public synchronized List<String> controlNames() {
+        return new ArrayList<>(indexLocked().keySet());
+    }
+
+    /**
+     * Check if a control exists (case-insensitive partial match)
+     */
+    public boolean hasControl(String pattern) {
+        return findControl(pattern) != null;
+    }
+
+    /**
+     * @return the control named pattern, else the first whose name contains
+     *         it (case-insensitive), or null
+     */
+    public synchronized String findControl(String pattern) {
+        Control control = lookupLocked(pattern);
+        return control != null ? control.name : null;
+    }
+
+    private Control lookupLocked(String pattern) {
+        Map<String, Control> controls = indexLocked();
+        Control control = controls.get(pattern);
+        if (control != null) {
+            return control;
+        }
+        control = lookups.get(pattern);
+        if (control == null) {
+            control = MISSING;
+            String patternLower = pattern.toLowerCase();
+            for (Control c : controls.values()) {
+                if (c.name.toLowerCase().contains(patternLower)) {
+                    control = c;
+                    break;
+                }
+            }
+            if (!controls.isEmpty()) {
+                lookups.put(pattern, control);
+            }
+        }
+        return control != MISSING ? control : null;
+    }
+
+    /**
+     * The index, loaded on first use from the discovery cache or else from
+     * the mixer; an empty result is retried next time
+     */
+    private Map<String, Control> indexLocked() {
+        if (index != null) {
+            return index;
+        }
+        Map<String, Control> controls = AudioDiscoveryCache.shared().controls();
+        if (controls != null) {
+            index = controls;
+            Log.i(TAG, "Loaded " + controls.size() + " mixer controls from cache");
+            return controls;
+        }
+
+        long start = System.currentTimeMillis();
+        if (connectLocked()) {
+            try {
+                controls = listFromHelperLocked();
+            } catch (IOException e) {
+                disconnectLocked(e);
+            }
+        }
+        if (controls == null) {
+            controls = listFromTinymix();
+        }
+        if (!controls.isEmpty()) {
+            index = controls;
+            Log.i(TAG, "Indexed " + controls.size() + " mixer controls in " +
+                       (System.currentTimeMillis() - start) + "ms");
+            AudioDiscoveryCache.shared().putControls(controls);
+        }
+        return controls;
+    }
+
+    private Map<String, Control> listFromHelperLocked() throws IOException {
+        sendLocked(Collections.singletonList("LIST"));
+        Map<String, Control> controls = new LinkedHashMap<>();
+        String line;
+        while ((line = in.readLine()) != null && !line.equals("END")) {
+            // "<id>\t<type>\t<count>\t<name>"
+            String[] parts = line.split("\t", 4);
+            if (parts.length == 4) {
+                try {
+                    Control c = new Control(Integer.parseInt(parts[0]), parts[3], parts[1],
+                                            Integer.parseInt(parts[2]));
+                    controls.putIfAbsent(c.name, c);
+                } catch (NumberFormatException e) {
+                    // not a control line
+                }
+            }
+        }
+        if (line == null) {
+            throw new IOException("mixer helper closed");
+        }
+        return controls;
+    }
+
+    private static Map<String, Control> listFromTinymix() {
+        Map<String, Control> controls = new LinkedHashMap<>();
+        String output = RootShell.shared().exec("tinymix");
+        if (output == null) {
+            Log.e(TAG, "tinymix not available or no root access");
+            return controls;
+        }
+
+        // Format on Qualcomm: "ctl_num\ttype\tnum\tname\tvalue"
+        // Example: "392	BOOL	2	MultiMedia1 Mixer VOC_REC_DL             Off Off"
+        for (String line : output.split("\n")) {
+            String[] parts = line.split("\t");
+            if (parts.length < 4) {
+                continue;
+            }
+            int id;
+            int count;
+            try {
+                id = Integer.parseInt(parts[0].trim());
+                count = Integer.parseInt(parts[2].trim());
+            } catch (NumberFormatException e) {
+                continue;  // header or error line
+            }
+            // Name may have the value trailing after several spaces
+            String name = parts[3].trim();
+            int valueStart = name.indexOf("  ");
+            if (valueStart > 0) {
+                name = name.substring(0, valueStart).trim();
+            }
+            if (!name.isEmpty()) {
+                controls.putIfAbsent(name, new Control(id, name, parts[1].trim(), count));
+            }
+        }
+        return controls;
+    }
+
+    // ==================== VALUES ====================
+
+    /**
+     * Set one control and read it back
+     *
+     * @return true if the value was accepted
+     */
+    public boolean set(String control, String value) {
+        return apply(Collections.singletonMap(control, value)) > 0;
+    }
+
+    /**
+     * Set several controls to one value
+     *
+     * @return how many took effect
+     */
+    public int apply(List<String> controls, String value) {
+        Map<String, String> values = new LinkedHashMap<>();
+        for (String control : controls) {
+            values.put(control, value);
+        }
+        return apply(values);
+    }
+
+    /**
+     * Set controls in map order, all in one round trip, each read back
+     *
+     * @return how many took effect
+     */
+    public synchronized int apply(Map<String, String> values) {
+        if (values.isEmpty()) {
+            return 0;
+        }
+        if (connectLocked()) {
+            try {
+                return applyHelperLocked(values);
+            } catch (IOException e) {
+                disconnectLocked(e);
+            }
+        }
+        return applyTinymix(values);
+    }
+
+    /**
+     * Set controls without waiting on a shell; with the helper this is as
+     * quick as apply(), without it the tinymix commands are posted
+     */
+    public synchronized void post(Map<String, String> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        if (connectLocked()) {
+            try {
+                applyHelperLocked(values);
+                return;
+            } catch (IOException e) {
+                disconnectLocked(e);
+            }
+        }
+        List<String> commands = new ArrayList<>(values.size());
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            commands.add(tinymix(entry.getKey(), entry.getValue()));
+        }
+        RootShell.shared().post(commands);
+    }
+
+    public void post(String control, String value) {
+        post(Collections.singletonMap(control, value));
+    }
+
+    /**
+     * @return the current value of a control (tinymix's listing of it
+     *         without the helper), or null
+     */
+    public synchronized String get(String control) {
+        if (connectLocked()) {
+            Control c = indexLocked().get(control);
+            if (c == null) {
+                return null;
+            }
+            try {
+                String reply = requestLocked(Collections.singletonList("GET " + c.id)).get(0);
+                return reply.startsWith("OK ") ? reply.substring(3) : null;
+            } catch (IOException e) {
+                disconnectLocked(e);
+            }
+        }
+        return RootShell.shared().exec("tinymix '" + control + "' 2>/dev/null | head -1");
+    }
+
+    /**
+     * Current values of several controls in one round trip
+     *
+     * @return value by control name; empty without the helper, since
+     *         tinymix's text format varies too much between versions to
+     *         compare against
+     */
+    public synchronized Map<String, String> getAll(Collection<String> controls) {
+        Map<String, String> values = new LinkedHashMap<>();
+        if (!connectLocked()) {
+            return values;
+        }
+        List<String> names = new ArrayList<>(controls.size());
+        List<String> requests = new ArrayList<>(controls.size());
+        for (String control : controls) {
+            Control c = indexLocked().get(control);
+            if (c != null) {
+                names.add(control);
+                requests.add("GET " + c.id);
+            }
+        }
+        if (requests.isEmpty()) {
+            return values;
+        }
+        try {
+            List<String> replies = requestLocked(requests);
+            for (int i = 0; i < replies.size(); i++) {
+                if (replies.get(i).startsWith("OK ")) {
+                    values.put(names.get(i), replies.get(i).substring(3));
+                }
+            }
+        } catch (IOException e) {
+            disconnectLocked(e);
+            values.clear();
+        }
+        return values;
+    }
+
+    private int applyHelperLocked(Map<String, String> values) throws IOException {
+        Map<String, String> known = new LinkedHashMap<>();
+        List<String> requests = new ArrayList<>(values.size());
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            Control c = indexLocked().get(entry.getKey());
+            if (c == null) {
+                Log.d(TAG, "Mixer control not found: " + entry.getKey());
+                continue;
+            }
+            known.put(c.name, entry.getValue());
+            requests.add("SET " + c.id + " " + entry.getValue());
+        }
+        if (requests.isEmpty()) {
+            return 0;
+        }
+
+        List<String> replies = requestLocked(requests);
+        int applied = 0;
+        int i = 0;
+        for (Map.Entry<String, String> entry : known.entrySet()) {
+            String reply = replies.get(i++);
+            if (reply.startsWith("OK")) {
+                Log.d(TAG, "Mixer OK: " + entry.getKey() + " = " + reply.substring(2).trim());
+                applied++;
+            } else {
+                Log.w(TAG, "Mixer FAILED: " + entry.getKey() + " = " + entry.getValue() +
+                           " (" + reply + ")");
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Each set followed by a read-back, all in a single root shell batch
+     */
+    private static int applyTinymix(Map<String, String> values) {
+        List<String> commands = new ArrayList<>(values.size() * 2);
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            commands.add(tinymix(entry.getKey(), entry.getValue()));
+            commands.add("tinymix '" + entry.getKey() + "'");
+        }
+        List<RootShell.Result> results = RootShell.shared().execBatch(commands);
+        if (results == null) {
+            Log.w(TAG, "Mixer FAILED (no root shell): " + values);
+            return 0;
+        }
+
+        int applied = 0;
+        int i = 0;
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            String control = entry.getKey();
+            String value = entry.getValue();
+            String result = results.get(i++).output.toLowerCase();
+            String verify = results.get(i++).output;
+
+            // Verify the setting took effect
+            if (verify.contains(value)) {
+                Log.d(TAG, "Mixer OK: " + control + " = " + value);
+                applied++;
+            } else if (!result.contains("error") && !result.contains("invalid")) {
+                // Some controls report numeric values differently
+                Log.d(TAG, "Mixer set (unverified): " + control + " = " + value);
+                applied++;
+            } else {
+                Log.w(TAG, "Mixer FAILED: " + control + " = " + value);
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * tinymix command line; per-channel numbers go as separate arguments
+     */
+    static String tinymix(String control, String value) {
+        if (value.matches("-?\\d+( +-?\\d+)+")) {
+            return "tinymix '" + control + "' " + value;
+        }
+        return "tinymix '" + control + "' '" + value + "'";
+    }
+
+    // ==================== HELPER PROCESS ====================
+
+    /**
+     * @return true once connected to the helper, starting it if needed
+     */
+    private boolean connectLocked() {
+        if (socket != null) {
+            return true;
+        }
+        if (helperPath == null || System.currentTimeMillis() < helperRetryAt) {
+            return false;
+        }
+        if (!new File(helperPath).exists()) {
+            Log.w(TAG, "Mixer helper not packaged, using tinymix");
+            helperRetryAt = Long.MAX_VALUE;
+            return false;
+        }
+
+        if (!tryConnectLocked()) {
+            Log.i(TAG, "Starting mixer helper...");
+            RootShell.shared().post(helperPath + " " + SOCKET_NAME + " " + clientUid + " " + CARD + " &");
+            long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+            while (!tryConnectLocked()) {
+                if (System.currentTimeMillis() >= deadline) {
+                    Log.w(TAG, "Mixer helper did not start, using tinymix");
+                    helperRetryAt = System.currentTimeMillis() + RETRY_INTERVAL_MS;
+                    return false;
+                }
+                try {
+                    Thread.sleep(CONNECT_POLL_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        Log.i(TAG, "Mixer helper connected");
+        return true;
+    }
+
+    private boolean tryConnectLocked() {
+        LocalSocket s = new LocalSocket();
+        try {
+            s.connect(new LocalSocketAddress(SOCKET_NAME, LocalSocketAddress.Namespace.ABSTRACT));
+            // Any app can bind an abstract name; only trust a helper running as root
+            int peerUid = s.getPeerCredentials().getUid();
+            if (peerUid != 0) {
+                Log.e(TAG, "Mixer socket held by uid " + peerUid + ", not the root helper");
+                closeQuietly(s);
+                return false;
+            }
+            s.setSoTimeout(IO_TIMEOUT_MS);
+            in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            out = s.getOutputStream();
+            socket = s;
+            return true;
+        } catch (IOException e) {
+            closeQuietly(s);
+            return false;
+        }
+    }
+
+    /**
+     * Write requests at once, then read one reply line per request
+     */
+    private List<String> requestLocked(List<String> requests) throws IOException {
+        sendLocked(requests);
+        List<String> replies = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            String line = in.readLine();
+            if (line == null) {
+                throw new IOException("mixer helper closed");
+            }
+            replies.add(line);
+        }
+        return replies;
+    }
+
+    private void sendLocked(List<String> requests) throws IOException {
+        StringBuilder sb = new StringBuilder(requests.size() * 48);
+        for (String request : requests) {
+            sb.append(request).append('\n');
+        }
+        out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private void disconnectLocked(IOException cause) {
+        Log.w(TAG, "Mixer helper lost: " + cause.getMessage());
+        closeQuietly(socket);
+        socket = null;
+        in = null;
+        out = null;
+        helperRetryAt = System.currentTimeMillis() + RETRY_INTERVAL_MS;
+    }
+
+    /**
+     * Stop the helper; the next call starts it again
+     */
+    public synchronized void close() {
+        if (socket == null) {
+            return;
+        }
+        try {
+            sendLocked(Collections.singletonList("QUIT"));
+        } catch (IOException e) {
+            // already gone
+        }
+        closeQuietly(socket);
+        socket = null;
+        in = null;
+        out = null;
+        helperRetryAt = 0;
+        Log.i(TAG, "Mixer helper stopped");
+    }
+
+    private static void closeQuietly(LocalSocket s) {
+        try {
+            s.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.shreeyash.gateway;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * On-disk cache of what audio discovery finds on this device: the mixer
+ * control index, the PCM device map, the chosen capture device and the
+ * Qualcomm platform.
+ *
+ * Entries are keyed by ro.board.platform and ro.build.fingerprint, so an
+ * OTA (or a backup restored on another phone) starts discovery afresh;
+ * otherwise service startup and the first call read them from here
+ * instead of running tinymix and probing /proc/asound and /dev/snd.
+ */
+final class AudioDiscoveryCache {
+    private static final String TAG = "AudioDiscoveryCache";
+
+    private static final String FILE_NAME = "audio_discovery.json";
+    private static final int VERSION = 1;
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_KEY = "key";
+    private static final String KEY_QUALCOMM_PLATFORM = "qualcommPlatform";
+    private static final String KEY_CONTROLS = "controls";
+    private static final String KEY_PCM_DEVICES = "pcmDevices";
+    private static final String KEY_CAPTURE_DEVICE = "captureDevice";
+
+    private static AudioDiscoveryCache shared;
+
+    private File file;
+    private String boardPlatform;
+    private JSONObject data;   // loaded on first use, empty when stale
+
+    private AudioDiscoveryCache() {}
+
+    static synchronized AudioDiscoveryCache shared() {
+        if (shared == null) {
+            shared = new AudioDiscoveryCache();
+        }
+        return shared;
+    }
+
+    /**
+     * Locate the cache file; until this is called nothing is cached
+     */
+    synchronized void init(Context context) {
+        file = new File(context.getCacheDir(), FILE_NAME);
+    }
+
+    // ==================== ENTRIES ====================
+
+    /**
+     * @return ro.board.platform in lower case, read once per process, or
+     *         "unknown"
+     */
+    synchronized String boardPlatform() {
+        if (boardPlatform == null) {
+            String platform = RootShell.shared().exec("getprop ro.board.platform");
+            if (platform == null) {
+                return "unknown";  // no root yet, ask again next time
+            }
+            platform = platform.trim().toLowerCase();
+            boardPlatform = platform.isEmpty() ? "unknown" : platform;
+        }
+        return boardPlatform;
+    }
+
+    /**
+     * @return the cached QualcommPlatform name, or null
+     */
+    synchronized String qualcommPlatform() {
+        String name = loadLocked().optString(KEY_QUALCOMM_PLATFORM, null);
+        return name != null && !name.isEmpty() ? name : null;
+    }
+
+    synchronized void putQualcommPlatform(String name) {
+        putLocked(KEY_QUALCOMM_PLATFORM, name);
+    }
+
+    /**
+     * @return the cached control index by name in id order, or null
+     */
+    synchronized Map<String, AlsaMixer.Control> controls() {
+        JSONArray array = loadLocked().optJSONArray(KEY_CONTROLS);
+        if (array == null || array.length() == 0) {
+            return null;
+        }
+        Map<String, AlsaMixer.Control> controls = new LinkedHashMap<>();
+        for (int i = 0; i < array.length(); i++) {
+            // [id, type, count, name]
+            JSONArray entry = array.optJSONArray(i);
+            if (entry == null) {
+                return null;
+            }
+            AlsaMixer.Control c = new AlsaMixer.Control(entry.optInt(0, -1), entry.optString(3),
+                                                        entry.optString(1), entry.optInt(2, 0));
+            controls.put(c.name, c);
+        }
+        return controls;
+    }
+
+    synchronized void putControls(Map<String, AlsaMixer.Control> controls) {
+        JSONArray array = new JSONArray();
+        for (AlsaMixer.Control c : controls.values()) {
+            array.put(new JSONArray().put(c.id).put(c.type).put(c.count).put(c.name));
+        }
+        putLocked(KEY_CONTROLS, array);
+    }
+
+    /**
+     * @return PCM device number to its /proc/asound/pcm line, or null
+     */
+    synchronized Map<Integer, String> pcmDevices() {
+        JSONObject object = loadLocked().optJSONObject(KEY_PCM_DEVICES);
+        if (object == null) {
+            return null;
+        }
+        Map<Integer, String> devices = new TreeMap<>();
+        for (Iterator<String> it = object.keys(); it.hasNext(); ) {
+            String device = it.next();
+            try {
+                devices.put(Integer.parseInt(device), object.optString(device));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return devices;
+    }
+
+    synchronized void putPcmDevices(Map<Integer, String> devices) {
+        JSONObject object = new JSONObject();
+        try {
+            for (Map.Entry<Integer, String> entry : devices.entrySet()) {
+                object.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+        } catch (JSONException e) {
+            return;
+        }
+        putLocked(KEY_PCM_DEVICES, object);
+    }
+
+    /**
+     * @return the cached PCM capture device, or -1
+     */
+    synchronized int captureDevice() {
+        return loadLocked().optInt(KEY_CAPTURE_DEVICE, -1);
+    }
+
+    synchronized void putCaptureDevice(int device) {
+        putLocked(KEY_CAPTURE_DEVICE, device);
+    }
+
+    // ==================== FILE ====================
+
+    private JSONObject loadLocked() {
+        if (data != null) {
+            return data;
+        }
+        String platform = boardPlatform();
+        if (file == null || platform.equals("unknown")) {
+            return new JSONObject();  // cannot tell builds apart: neither read nor write
+        }
+        String key = platform + "|" + Build.FINGERPRINT;
+        JSONObject loaded = null;
+        if (file.exists()) {
+            try {
+                loaded = new JSONObject(read(file));
+            } catch (IOException | JSONException e) {
+                Log.w(TAG, "Discovery cache unreadable: " + e.getMessage());
+            }
+        }
+
+        if (loaded != null && loaded.optInt(KEY_VERSION, 0) == VERSION &&
+            key.equals(loaded.optString(KEY_KEY))) {
+            Log.i(TAG, "Using cached audio discovery for " + key);
+            data = loaded;
+        } else {
+            if (loaded != null) {
+                Log.i(TAG, "Audio discovery cache is for another build, rediscovering");
+            }
+            data = new JSONObject();
+            try {
+                data.put(KEY_VERSION, VERSION);
+                data.put(KEY_KEY, key);
+            } catch (JSONException e) {
+                // not with string keys
+            }
+        }
+        return data;
+    }
+
+    private void putLocked(String name, Object value) {
+        JSONObject object = loadLocked();
+        if (object != data) {
+            return;
+        }
+        try {
+            object.put(name, value);
+        } catch (JSONException e) {
+            return;
+        }
+
+        // Write a sibling and rename, so a crash never leaves half a file
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            out.write(object.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write discovery cache: " + e.getMessage());
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.w(TAG, "Could not replace discovery cache");
+            tmp.delete();
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buf = new byte[(int) file.length()];
+            int n = 0;
+            while (n < buf.length) {
+                int r = in.read(buf, n, buf.length - n);
+                if (r < 0) {
+                    break;
+                }
+                n += r;
+            }
+            return new String(buf, 0, n, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -2,6 +2,10 @@ package com.shreeyash.gateway;
 
 import android.util.Log;
 
+import com.shreeyash.gateway.codec.G711Codec;
+import com.shreeyash.gateway.rtp.CallQuality;
+import com.shreeyash.gateway.rtp.TelephoneEvent;
+
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
@@ -30,6 +34,12 @@ public class CallSession {
     private String sipCallId;
     private String remoteRtpAddress;
     private int remoteRtpPort;
+    private int payloadType = G711Codec.PAYLOAD_TYPE_PCMU;  // Negotiated in SDP
+    private int dtmfPayloadType = TelephoneEvent.PAYLOAD_TYPE;  // -1 if not negotiated
+    private int ptime = G711Codec.DEFAULT_PTIME;  // Packetization we send at (ms)
+
+    // Media quality from RTCP, updated while bridged
+    private volatile CallQuality mediaQuality;
 
     // State management - thread-safe
     private final Object stateLock = new Object();
@@ -323,6 +333,64 @@ public class CallSession {
         }
     }
 
+    /**
+     * Negotiated RTP audio payload type (0 = PCMU, 8 = PCMA)
+     */
+    public int getPayloadType() {
+        synchronized (stateLock) {
+            return payloadType;
+        }
+    }
+
+    public void setPayloadType(int payloadType) {
+        synchronized (stateLock) {
+            this.payloadType = payloadType;
+        }
+    }
+
+    /**
+     * Negotiated RFC 4733 telephone-event payload type, -1 if not negotiated
+     */
+    public int getDtmfPayloadType() {
+        synchronized (stateLock) {
+            return dtmfPayloadType;
+        }
+    }
+
+    public void setDtmfPayloadType(int dtmfPayloadType) {
+        synchronized (stateLock) {
+            this.dtmfPayloadType = dtmfPayloadType;
+        }
+    }
+
+    /**
+     * Negotiated RTP packetization time in ms
+     */
+    public int getPtime() {
+        synchronized (stateLock) {
+            return ptime;
+        }
+    }
+
+    public void setPtime(int ptime) {
+        synchronized (stateLock) {
+            this.ptime = ptime;
+        }
+    }
+
+    // ==================== Media Quality ====================
+
+    /**
+     * Latest RTCP metrics (jitter, loss, RTT), or null before the bridge starts
+     */
+    public CallQuality getMediaQuality() {
+        return mediaQuality;
+    }
+
+    public void setMediaQuality(CallQuality mediaQuality) {
+        this.mediaQuality = mediaQuality;
+    }
+
     // ==================== Convenience Methods ====================
 
     public boolean isIncomingGSM() {
@@ -392,6 +460,12 @@ public class CallSession {
             sb.append("  rtpActive: ").append(rtpActive).append("\n");
             sb.append("  sipCallId: ").append(sipCallId).append("\n");
             sb.append("  remoteRtp: ").append(remoteRtpAddress).append(":").append(remoteRtpPort).append("\n");
+            sb.append("  payloadType: ").append(payloadType).append("\n");
+            sb.append("  dtmfPayloadType: ").append(dtmfPayloadType).append("\n");
+            sb.append("  ptime: ").append(ptime).append("\n");
+            if (mediaQuality != null) {
+                sb.append("  mediaQuality: ").append(mediaQuality).append("\n");
+            }
             sb.append("  duration: ").append(getDuration()).append("ms\n");
             if (endReason != null) {
                 sb.append("  endReason: ").append(endReason).append("\n");
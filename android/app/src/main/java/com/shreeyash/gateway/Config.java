@@ -2,12 +2,17 @@ package com.shreeyash.gateway;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.shreeyash.gateway.codec.G711Codec;
+import com.shreeyash.gateway.sip.SipTransport;
 
 /**
  * Configuration manager for GSM-SIP Gateway
  * Direct SIP registration with PBX (no Asterisk middleware)
  */
 public class Config {
+    private static final String TAG = "Config";
     private static final String PREFS_NAME = "gateway_config";
 
     // Default PBX settings
@@ -23,11 +28,14 @@ public class Config {
     // SharedPreferences keys
     private static final String KEY_PBX_HOST = "pbx_host";
     private static final String KEY_PBX_PORT = "pbx_port";
+    private static final String KEY_PBX_TRANSPORT = "pbx_transport";
     private static final String KEY_SIM1_USER = "sim1_user";
     private static final String KEY_SIM1_PASS = "sim1_pass";
     private static final String KEY_SIM2_USER = "sim2_user";
     private static final String KEY_SIM2_PASS = "sim2_pass";
     private static final String KEY_LOCAL_IP = "local_ip";
+    private static final String KEY_SIM1_PTIME = "sim1_ptime";
+    private static final String KEY_SIM2_PTIME = "sim2_ptime";
 
     private SharedPreferences prefs;
 
@@ -104,6 +112,59 @@ public class Config {
         setSIPPassword(simSlot, password);
     }
 
+    /**
+     * Get the SIP transport to the PBX: UDP (default), TCP or TLS
+     */
+    public String getPBXTransport() {
+        String transport = prefs.getString(KEY_PBX_TRANSPORT, SipTransport.UDP);
+        return isSupportedTransport(transport) ? transport : SipTransport.UDP;
+    }
+
+    /**
+     * Set the SIP transport to the PBX
+     *
+     * @return false if the value is not UDP, TCP or TLS
+     */
+    public boolean setPBXTransport(String transport) {
+        if (transport == null || !isSupportedTransport(transport.toUpperCase())) {
+            Log.w(TAG, "Rejecting unsupported SIP transport " + transport);
+            return false;
+        }
+        prefs.edit().putString(KEY_PBX_TRANSPORT, transport.toUpperCase()).apply();
+        return true;
+    }
+
+    private static boolean isSupportedTransport(String transport) {
+        return SipTransport.UDP.equals(transport) || SipTransport.TCP.equals(transport) ||
+               SipTransport.TLS.equals(transport);
+    }
+
+    /**
+     * Get RTP packetization time (ms) for a SIM's trunk: 10, 20, 30 or 40.
+     * Longer packets halve the packet rate on congested uplinks, shorter
+     * ones cut latency on a LAN.
+     */
+    public int getPtime(int simSlot) {
+        String key = (simSlot == 1) ? KEY_SIM1_PTIME : KEY_SIM2_PTIME;
+        int ptime = prefs.getInt(key, G711Codec.DEFAULT_PTIME);
+        return G711Codec.isSupportedPtime(ptime) ? ptime : G711Codec.DEFAULT_PTIME;
+    }
+
+    /**
+     * Set RTP packetization time for a SIM's trunk
+     *
+     * @return false if the value is not 10, 20, 30 or 40
+     */
+    public boolean setPtime(int simSlot, int ptime) {
+        if (!G711Codec.isSupportedPtime(ptime)) {
+            Log.w(TAG, "Rejecting unsupported ptime " + ptime + "ms for SIM" + simSlot);
+            return false;
+        }
+        String key = (simSlot == 1) ? KEY_SIM1_PTIME : KEY_SIM2_PTIME;
+        prefs.edit().putInt(key, ptime).apply();
+        return true;
+    }
+
     /**
      * Get local IP address (for SDP)
      */
@@ -156,11 +217,13 @@ public class Config {
         StringBuilder sb = new StringBuilder();
         sb.append("GSM-SIP Gateway Configuration:\n\n");
         sb.append("PBX: ").append(getPBXHost() != null ? getPBXHost() : "Not configured");
-        sb.append(":").append(getPBXPort()).append("\n");
+        sb.append(":").append(getPBXPort()).append(" (").append(getPBXTransport()).append(")\n");
         sb.append("Local IP: ").append(getLocalIP() != null ? getLocalIP() : "Auto-detect").append("\n");
         sb.append("Local SIP Port: ").append(LOCAL_SIP_PORT).append("\n\n");
-        sb.append("SIM1: ").append(getSIPUsername(1)).append(" (RTP: ").append(RTP_PORT_SIM1).append(")\n");
-        sb.append("SIM2: ").append(getSIPUsername(2)).append(" (RTP: ").append(RTP_PORT_SIM2).append(")\n\n");
+        sb.append("SIM1: ").append(getSIPUsername(1)).append(" (RTP: ").append(RTP_PORT_SIM1)
+          .append(", ptime ").append(getPtime(1)).append("ms)\n");
+        sb.append("SIM2: ").append(getSIPUsername(2)).append(" (RTP: ").append(RTP_PORT_SIM2)
+          .append(", ptime ").append(getPtime(2)).append("ms)\n\n");
         sb.append("Status: ").append(isConfigured() ? "Ready" : "Incomplete").append("\n");
         return sb.toString();
     }
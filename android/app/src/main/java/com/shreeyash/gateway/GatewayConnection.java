@@ -37,6 +37,8 @@ public class GatewayConnection extends Connection {
         void onConnectionDisconnected(GatewayConnection connection, DisconnectCause cause);
         void onConnectionHeld(GatewayConnection connection);
         void onConnectionUnheld(GatewayConnection connection);
+        void onConnectionPlayDtmfTone(GatewayConnection connection, char digit);
+        void onConnectionStopDtmfTone(GatewayConnection connection);
     }
 
     public GatewayConnection(Direction direction, String phoneNumber, int simSlot) {
@@ -196,12 +198,18 @@ public class GatewayConnection extends Connection {
     @Override
     public void onPlayDtmfTone(char c) {
         Log.i(TAG, "DTMF: " + c);
-        // TODO: Send DTMF to SIP or GSM as appropriate
+        // Forwarded to the PBX as RFC 4733 telephone-events
+        if (listener != null) {
+            listener.onConnectionPlayDtmfTone(this, c);
+        }
     }
 
     @Override
     public void onStopDtmfTone() {
         Log.i(TAG, "DTMF stop");
+        if (listener != null) {
+            listener.onConnectionStopDtmfTone(this);
+        }
     }
 
     /**
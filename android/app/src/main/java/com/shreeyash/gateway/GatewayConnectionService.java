@@ -54,6 +54,9 @@ public class GatewayConnectionService extends ConnectionService {
         void onOutgoingCall(GatewayConnection connection);
         void onCallAnswered(GatewayConnection connection);
         void onCallEnded(GatewayConnection connection, DisconnectCause cause);
+        void onPlayDtmfTone(GatewayConnection connection, char digit);
+        void onStopDtmfTone(GatewayConnection connection);
+        void onCallHeld(GatewayConnection connection, boolean held);
     }
 
     public static void setServiceListener(ConnectionServiceListener listener) {
@@ -210,11 +213,31 @@ public class GatewayConnectionService extends ConnectionService {
             @Override
             public void onConnectionHeld(GatewayConnection conn) {
                 Log.i(TAG, "Connection held: " + conn.getPhoneNumber());
+                if (serviceListener != null) {
+                    serviceListener.onCallHeld(conn, true);
+                }
             }
 
             @Override
             public void onConnectionUnheld(GatewayConnection conn) {
                 Log.i(TAG, "Connection unheld: " + conn.getPhoneNumber());
+                if (serviceListener != null) {
+                    serviceListener.onCallHeld(conn, false);
+                }
+            }
+
+            @Override
+            public void onConnectionPlayDtmfTone(GatewayConnection conn, char digit) {
+                if (serviceListener != null) {
+                    serviceListener.onPlayDtmfTone(conn, digit);
+                }
+            }
+
+            @Override
+            public void onConnectionStopDtmfTone(GatewayConnection conn) {
+                if (serviceListener != null) {
+                    serviceListener.onStopDtmfTone(conn);
+                }
             }
         });
 
@@ -292,10 +315,32 @@ public class GatewayConnectionService extends ConnectionService {
             }
 
             @Override
-            public void onConnectionHeld(GatewayConnection conn) {}
+            public void onConnectionHeld(GatewayConnection conn) {
+                if (serviceListener != null) {
+                    serviceListener.onCallHeld(conn, true);
+                }
+            }
+
+            @Override
+            public void onConnectionUnheld(GatewayConnection conn) {
+                if (serviceListener != null) {
+                    serviceListener.onCallHeld(conn, false);
+                }
+            }
+
+            @Override
+            public void onConnectionPlayDtmfTone(GatewayConnection conn, char digit) {
+                if (serviceListener != null) {
+                    serviceListener.onPlayDtmfTone(conn, digit);
+                }
+            }
 
             @Override
-            public void onConnectionUnheld(GatewayConnection conn) {}
+            public void onConnectionStopDtmfTone(GatewayConnection conn) {
+                if (serviceListener != null) {
+                    serviceListener.onStopDtmfTone(conn);
+                }
+            }
         });
 
         // Store connection
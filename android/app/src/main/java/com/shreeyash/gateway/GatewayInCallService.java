@@ -436,6 +436,52 @@ public class GatewayInCallService extends InCallService {
         return null;
     }
 
+    /**
+     * Start a DTMF tone on the active GSM call (sent to the network as
+     * signalling, so the far end gets a clean digit)
+     * @return true if an active call was found
+     */
+    public boolean playDtmfTone(int simSlot, char digit) {
+        CallInfo info = getActiveCall(simSlot);
+        if (info == null) {
+            Log.w(TAG, "No active call on SIM" + simSlot + " for DTMF '" + digit + "'");
+            return false;
+        }
+        try {
+            info.call.playDtmfTone(digit);
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to play DTMF: " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Stop the DTMF tone started by {@link #playDtmfTone(int, char)}
+     */
+    public boolean stopDtmfTone(int simSlot) {
+        CallInfo info = getActiveCall(simSlot);
+        if (info == null) {
+            return false;
+        }
+        try {
+            info.call.stopDtmfTone();
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to stop DTMF: " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private CallInfo getActiveCall(int simSlot) {
+        for (CallInfo info : activeCalls.values()) {
+            if (info.simSlot == simSlot && info.state == Call.STATE_ACTIVE) {
+                return info;
+            }
+        }
+        return null;
+    }
+
     /**
      * Disconnect a call
      */
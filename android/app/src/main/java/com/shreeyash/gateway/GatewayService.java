@@ -7,6 +7,9 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.media.AudioManager;
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
 import android.net.Uri;
 import android.net.wifi.WifiManager;
 import android.os.Build;
@@ -21,7 +24,11 @@ import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 
+import com.shreeyash.gateway.rtp.CallQuality;
+import com.shreeyash.gateway.rtp.DtmfReceiver;
 import com.shreeyash.gateway.sip.SIPClient;
+import com.shreeyash.gateway.sip.SipResolver;
+import com.shreeyash.gateway.sip.UdpDnsResolver;
 
 import java.lang.reflect.Method;
 import java.net.Inet4Address;
@@ -29,11 +36,10 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Main gateway service - manages dual SIM GSM-to-SIP gateway
@@ -82,18 +88,28 @@ public class GatewayService extends Service implements SIPClient.SIPEventListene
     // SIP Call to SIM slot mapping
     private Map<String, Integer> callIdToSimSlot;
 
+    // Background work (root shell, telecom calls, timer expiry)
+    private ExecutorService scheduler;
+
+    // Per-SIM timers on the shared wheel, created once and re-armed for each call.
+    // Expiry only hands off to the scheduler thread; the wheel thread must not block.
+    private final TimingWheel timers = TimingWheel.shared();
+
     // Call setup timeout management
     private static final long CALL_SETUP_TIMEOUT_MS = 60000; // 60 seconds
-    private ScheduledExecutorService scheduler;
-    private Map<Integer, ScheduledFuture<?>> callSetupTimers;
+    private Map<Integer, TimingWheel.Timeout> callSetupTimers;
 
-    // Audio path maintenance (prevents mixer path reset)
-    private static final long AUDIO_REFRESH_INTERVAL_MS = 3000; // 3 seconds
-    private Map<Integer, ScheduledFuture<?>> audioRefreshTimers = new HashMap<>();
+    // Call quality display (RTCP metrics in the notification while bridged)
+    private static final long QUALITY_REFRESH_INTERVAL_MS = 5000; // matches RTCP report interval
+    private Map<Integer, TimingWheel.Timeout> qualityRefreshTimers;
 
     // Active GatewayConnections (from ConnectionService - gives us audio control)
     private Map<Integer, GatewayConnection> activeGatewayConnections;
 
+    // Follows the default network so SRV/NAPTR lookups use its name servers
+    private ConnectivityManager.NetworkCallback networkCallback;
+    private List<InetAddress> dnsServers;
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -106,6 +122,12 @@ public class GatewayService extends Service implements SIPClient.SIPEventListene
         // Initialize configuration
         config = new Config(this);
 
+        // Mixer and voice PCM access through the root helpers packaged with
+        // the app, and audio discovery results cached across restarts
+        AlsaMixer.shared().init(this);
+        AudioDiscoveryCache.shared().init(this);
+        PcmHelper.shared().init(this);
+
         // Detect and set local IP if not configured
         String localIp = getLocalIpAddress();
         if (localIp != null) {
@@ -132,10 +154,18 @@ public class GatewayService extends Service implements SIPClient.SIPEventListene
         activeSessions = new HashMap<>();
         callIdToSimSlot = new HashMap<>();
         callSetupTimers = new HashMap<>();
+        qualityRefreshTimers = new HashMap<>();
         activeGatewayConnections = new HashMap<>();
 
-        // Initialize scheduler for timeouts (MUST be before audioFocusListener)
-        scheduler = Executors.newSingleThreadScheduledExecutor();
+        // Initialize scheduler for background work (MUST be before audioFocusListener)
+        scheduler = Executors.newSingleThreadExecutor();
+        for (int sim = 1; sim <= 2; sim++) {
+            final int slot = sim;
+            Runnable setupTimeout = () -> onCallSetupTimeout(slot);
+            Runnable qualityRefresh = () -> refreshQuality(slot);
+            callSetupTimers.put(sim, new TimingWheel.Timeout(() -> scheduler.execute(setupTimeout)));
+            qualityRefreshTimers.put(sim, new TimingWheel.Timeout(() -> scheduler.execute(qualityRefresh)));
+        }
 
         // Initialize audio focus listener (needs scheduler to be initialized)
         audioFocusListener = focusChange -> {
@@ -175,7 +205,9 @@ public class GatewayService extends Service implements SIPClient.SIPEventListene
         // - Capture: VOC_REC_DL → MultiMedia1 → tinycap → RTP
         // - Injection: RTP → tinyplay → MultiMedia2 → Incall_Music
         for (int sim = 1; sim <= 2; sim++) {
-            audioBridges.put(sim, new NativePCMAudioBridge(Config.getRTPPort(sim)));
+            NativePCMAudioBridge audioBridge = new NativePCMAudioBridge(Config.getRTPPort(sim));
+            audioBridge.setDtmfListener(new GsmDtmfForwarder(sim));
+            audioBridges.put(sim, audioBridge);
             audioRouters.put(sim, new RootAudioRouter(sim));
         }
         Log.i(TAG, "Audio bridges initialized with NativePCMAudioBridge (direct ALSA)");
@@ -272,6 +304,30 @@ public class GatewayService extends Service implements SIPClient.SIPEventListene
                 activeGatewayConnections.remove(simSlot);
                 handleGSMCallEnded(simSlot);
             }
+
+            @Override
+            public void onPlayDtmfTone(GatewayConnection connection, char digit) {
+                NativePCMAudioBridge audioBridge = audioBridges.get(connection.getSimSlot());
+                if (audioBridge != null && audioBridge.isRunning()) {
+                    audioBridge.startDtmf(digit);
+                }
+            }
+
+            @Override
+            public void onStopDtmfTone(GatewayConnection connection) {
+                NativePCMAudioBridge audioBridge = audioBridges.get(connection.getSimSlot());
+                if (audioBridge != null && audioBridge.isRunning()) {
+                    audioBridge.stopDtmf();
+                }
+            }
+
+            @Override
+            public void onCallHeld(GatewayConnection connection, boolean held) {
+                NativePCMAudioBridge audioBridge = audioBridges.get(connection.getSimSlot());
+                if (audioBridge != null && audioBridge.isRunning()) {
+                    audioBridge.setLocalHold(held);
+                }
+            }
         });
 
         // Acquire wakelock
@@ -309,6 +365,9 @@ public class GatewayService extends Service implements SIPClient.SIPEventListene
         }
         Log.i(TAG, "Local IP: " + localIp);
 
+        configureResolver();
+        watchNetwork();
+
         // Start SIP client for SIM1 (always start to listen for incoming)
         if (simManager.isSimActive(1)) {
             startSIPClient(1, pbxHost, pbxPort, localIp);
@@ -336,7 +395,8 @@ public class GatewayService extends Service implements SIPClient.SIPEventListene
         // Each SIM gets its own SIP port
         int localSipPort = config.getLocalSIPPort() + (simSlot - 1) * 2;
 
-        SIPClient client = new SIPClient(pbxHost, pbxPort, username, password, localIp, localSipPort);
+        SIPClient client = new SIPClient(pbxHost, pbxPort, username, password, localIp, localSipPort,
+                                         config.getPtime(simSlot), config.getPBXTransport());
         client.setEventListener(new SIPClientListener(simSlot));
 
         if (client.start()) {
@@ -347,6 +407,39 @@ public class GatewayService extends Service implements SIPClient.SIPEventListene
         }
     }
 
+    /**
+     * Plays DTMF digits received from the PBX (RFC 4733) on the GSM call.
+     * Bridge callbacks arrive on the media thread, so the telecom calls
+     * are made from the scheduler.
+     */
+    private class GsmDtmfForwarder implements DtmfReceiver.Listener {
+        private final int simSlot;
+
+        GsmDtmfForwarder(int simSlot) {
+            this.simSlot = simSlot;
+        }
+
+        @Override
+        public void onDtmfStart(char digit) {
+            scheduler.execute(() -> {
+                GatewayInCallService inCallService = GatewayInCallService.getInstance();
+                if (inCallService == null || !inCallService.playDtmfTone(simSlot, digit)) {
+                    Log.w(TAG, "SIM" + simSlot + " could not forward DTMF '" + digit + "' to GSM call");
+                }
+            });
+        }
+
+        @Override
+        public void onDtmfEnd(char digit, int durationMs) {
+            scheduler.execute(() -> {
+                GatewayInCallService inCallService = GatewayInCallService.getInstance();
+                if (inCallService != null) {
+                    inCallService.stopDtmfTone(simSlot);
+                }
+            });
+        }
+    }
+
     /**
      * SIP event listener wrapper for each SIM
      */
@@ -384,6 +477,11 @@ public class GatewayService extends Service implements SIPClient.SIPEventListene
         public void onCallEnded(SIPClient.SIPCall sipCall) {
             handleSIPCallEnded(simSlot, sipCall);
         }
+
+        @Override
+        public void onMediaChanged(SIPClient.SIPCall sipCall) {
+            handleSIPMediaChanged(simSlot, sipCall);
+        }
     }
 
     @Override
@@ -520,6 +618,9 @@ public class GatewayService extends Service implements SIPClient.SIPEventListene
             session.setSipCallId(sipCall.callId);
             session.setRemoteRtpAddress(sipCall.remoteRtpAddress);
             session.setRemoteRtpPort(sipCall.remoteRtpPort);
+            session.setPayloadType(sipCall.payloadType);
+            session.setDtmfPayloadType(sipCall.dtmfPayloadType);
+            session.setPtime(sipCall.ptime);
             activeSessions.put(simSlot, session);
             callIdToSimSlot.put(sipCall.callId, simSlot);
 
@@ -715,6 +816,9 @@ public class GatewayService extends Service implements SIPClient.SIPEventListene
             session.setSipAnswered(true);
             session.setRemoteRtpAddress(sipCall.remoteRtpAddress);
             session.setRemoteRtpPort(sipCall.remoteRtpPort);
+            session.setPayloadType(sipCall.payloadType);
+            session.setDtmfPayloadType(sipCall.dtmfPayloadType);
+            session.setPtime(sipCall.ptime);
             session.setState(CallSession.CallState.SIP_ANSWERED);
 
             // For INCOMING_GSM: PBX answered, need to answer the GSM call
@@ -949,6 +1053,9 @@ public class GatewayService extends Service implements SIPClient.SIPEventListene
 
         // Configure and start Native PCM Audio Bridge
         audioBridge.setRemoteAddress(remoteAddr, remotePort);
+        audioBridge.setPayloadType(session.getPayloadType());
+        audioBridge.setDtmfPayloadType(session.getDtmfPayloadType());
+        audioBridge.setPtime(session.getPtime());
 
         if (!audioBridge.start()) {
             Log.e(TAG, "Failed to start audio bridge for SIM" + simSlot);
@@ -967,6 +1074,7 @@ public class GatewayService extends Service implements SIPClient.SIPEventListene
         session.setState(CallSession.CallState.BRIDGED);
 
         updateNotification("Active: SIM" + simSlot + " <-> " + session.getCallerNumber());
+        startQualityRefreshTimer(simSlot);
         Log.i(TAG, "Call fully bridged: " + session);
     }
 
@@ -1010,6 +1118,39 @@ public class GatewayService extends Service implements SIPClient.SIPEventListene
         endCallInternal(simSlot, "SIP_HANGUP");
     }
 
+    /**
+     * re-INVITE or UPDATE from the PBX (hold, music-on-hold, transfer):
+     * point the running bridge at the new media instead of restarting it
+     */
+    private void handleSIPMediaChanged(int simSlot, SIPClient.SIPCall sipCall) {
+        NativePCMAudioBridge audioBridge;
+        synchronized (sessionLock) {
+            CallSession session = activeSessions.get(simSlot);
+            if (session == null || !sipCall.callId.equals(session.getSipCallId())) {
+                Log.w(TAG, "No session for SIP media change on SIM" + simSlot);
+                return;
+            }
+            session.setRemoteRtpAddress(sipCall.remoteRtpAddress);
+            session.setRemoteRtpPort(sipCall.remoteRtpPort);
+            session.setPayloadType(sipCall.payloadType);
+            session.setDtmfPayloadType(sipCall.dtmfPayloadType);
+            audioBridge = audioBridges.get(simSlot);
+        }
+
+        if (audioBridge == null || !audioBridge.isRunning()) {
+            // Not bridged yet: startRTPBridgeInternal picks up the new address and codec
+            return;
+        }
+        String host = sipCall.remoteRtpAddress;
+        int port = sipCall.remoteRtpPort;
+        int payloadType = sipCall.payloadType;
+        int dtmfPayloadType = sipCall.dtmfPayloadType;
+        boolean send = sipCall.direction.canSend();
+        boolean receive = sipCall.direction.canReceive();
+        // updateMedia may resolve a host name: keep it off the SIP thread
+        scheduler.execute(() -> audioBridge.updateMedia(host, port, payloadType, dtmfPayloadType, send, receive));
+    }
+
     /**
      * End a complete call session - public entry point
      */
@@ -1049,11 +1190,14 @@ public class GatewayService extends Service implements SIPClient.SIPEventListene
 
             // Cancel setup timer
             cancelCallSetupTimer(simSlot);
+            cancelQualityRefreshTimer(simSlot);
 
             // Stop Native PCM Audio Bridge
             NativePCMAudioBridge audioBridge = audioBridges.get(simSlot);
             if (audioBridge != null && audioBridge.isRunning()) {
                 audioBridge.stop();
+                session.setMediaQuality(audioBridge.getCallQuality());
+                Log.i(TAG, "SIM" + simSlot + " call quality: " + session.getMediaQuality());
             }
 
             // Stop RootAudioRouter (restores normal audio paths)
@@ -1162,21 +1306,8 @@ public class GatewayService extends Service implements SIPClient.SIPEventListene
      * Start a timer that will end the call if it doesn't complete setup
      */
     private void startCallSetupTimer(int simSlot) {
-        cancelCallSetupTimer(simSlot);  // Cancel any existing timer
-
-        ScheduledFuture<?> timer = scheduler.schedule(() -> {
-            synchronized (sessionLock) {
-                CallSession session = activeSessions.get(simSlot);
-                if (session != null && !session.isBridged() && !session.isEnding()) {
-                    Log.e(TAG, "Call setup timeout on SIM" + simSlot + " - state: " + session.getState());
-                    // Release lock before calling endCallInternal
-                }
-            }
-            // Always call endCallInternal - it will check if session still exists
-            endCallInternal(simSlot, "SETUP_TIMEOUT");
-        }, CALL_SETUP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-
-        callSetupTimers.put(simSlot, timer);
+        // Re-arming moves any pending deadline
+        timers.schedule(callSetupTimers.get(simSlot), CALL_SETUP_TIMEOUT_MS);
         Log.d(TAG, "Started call setup timer for SIM" + simSlot + " (" + CALL_SETUP_TIMEOUT_MS + "ms)");
     }
 
@@ -1184,13 +1315,53 @@ public class GatewayService extends Service implements SIPClient.SIPEventListene
      * Cancel the call setup timer
      */
     private void cancelCallSetupTimer(int simSlot) {
-        ScheduledFuture<?> timer = callSetupTimers.remove(simSlot);
-        if (timer != null) {
-            timer.cancel(false);
+        TimingWheel.Timeout timer = callSetupTimers.get(simSlot);
+        if (timer != null && timer.cancel()) {
             Log.d(TAG, "Cancelled call setup timer for SIM" + simSlot);
         }
     }
 
+    private void onCallSetupTimeout(int simSlot) {
+        boolean stuck;
+        synchronized (sessionLock) {
+            CallSession session = activeSessions.get(simSlot);
+            stuck = session != null && !session.isBridged() && !session.isEnding();
+            if (stuck) {
+                Log.e(TAG, "Call setup timeout on SIM" + simSlot + " - state: " + session.getState());
+            }
+        }
+        // Expiry is handed to this thread, so the call may have bridged meanwhile
+        if (stuck) {
+            // Lock released before calling endCallInternal
+            endCallInternal(simSlot, "SETUP_TIMEOUT");
+        }
+    }
+
+    /**
+     * Refresh the notification with RTCP call quality while bridged
+     */
+    private void startQualityRefreshTimer(int simSlot) {
+        timers.schedule(qualityRefreshTimers.get(simSlot), QUALITY_REFRESH_INTERVAL_MS);
+    }
+
+    private void cancelQualityRefreshTimer(int simSlot) {
+        TimingWheel.Timeout timer = qualityRefreshTimers.get(simSlot);
+        if (timer != null) {
+            timer.cancel();
+        }
+    }
+
+    private void refreshQuality(int simSlot) {
+        synchronized (sessionLock) {
+            CallSession session = activeSessions.get(simSlot);
+            if (session == null || !session.isBridged()) {
+                return;  // call ended while the timer was firing
+            }
+        }
+        updateNotification(getStatusSummary());
+        timers.schedule(qualityRefreshTimers.get(simSlot), QUALITY_REFRESH_INTERVAL_MS);
+    }
+
     // ==================== AUDIO CONTROL ====================
 
     /**
@@ -1408,6 +1579,58 @@ public class GatewayService extends Service implements SIPClient.SIPEventListene
         return null;
     }
 
+    /**
+     * Point the shared SIP resolver at the active network's name servers,
+     * needed for SRV/NAPTR lookups of the PBX host
+     */
+    private void configureResolver() {
+        LinkProperties link = null;
+        try {
+            ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+            Network network = cm != null ? cm.getActiveNetwork() : null;
+            link = network != null ? cm.getLinkProperties(network) : null;
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot read DNS servers: " + e.getMessage());
+        }
+        configureResolver(link);
+    }
+
+    private synchronized void configureResolver(LinkProperties link) {
+        List<InetAddress> servers = link != null ? link.getDnsServers() : Collections.emptyList();
+        if (servers.equals(dnsServers)) {
+            return;  // link change that left DNS alone: keep the cache
+        }
+        dnsServers = servers;
+        SipResolver.shared().setDnsResolver(new UdpDnsResolver(servers));
+        Log.i(TAG, "DNS servers: " + servers);
+    }
+
+    /**
+     * Re-point the resolver when the default network or its DNS servers
+     * change; answers cached from the old network are dropped with it
+     */
+    private void watchNetwork() {
+        if (networkCallback != null) {
+            return;
+        }
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm == null) {
+            return;
+        }
+        networkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onLinkPropertiesChanged(Network network, LinkProperties link) {
+                configureResolver(link);
+            }
+        };
+        try {
+            cm.registerDefaultNetworkCallback(networkCallback);
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot watch network changes: " + e.getMessage());
+            networkCallback = null;
+        }
+    }
+
     /**
      * Get status summary for notification
      */
@@ -1439,6 +1662,16 @@ public class GatewayService extends Service implements SIPClient.SIPEventListene
                 for (CallSession session : activeSessions.values()) {
                     sb.append("SIM").append(session.getSimSlot()).append(": ");
                     sb.append(session.isBridged() ? "Active" : "Connecting");
+
+                    // Per-call RTCP metrics, so a degrading SIM/cell stands out
+                    NativePCMAudioBridge audioBridge = audioBridges.get(session.getSimSlot());
+                    if (session.isBridged() && audioBridge != null && audioBridge.isRunning()) {
+                        CallQuality quality = audioBridge.getCallQuality();
+                        session.setMediaQuality(quality);
+                        if (quality != null) {
+                            sb.append(" (").append(quality.toShortString()).append(")");
+                        }
+                    }
                 }
             }
         }
@@ -1473,16 +1706,30 @@ public class GatewayService extends Service implements SIPClient.SIPEventListene
 
         // Stop SIP clients
         stopSIPClients();
+        if (networkCallback != null) {
+            ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+            if (cm != null) {
+                cm.unregisterNetworkCallback(networkCallback);
+            }
+            networkCallback = null;
+        }
 
         // Stop all audio bridges
         for (NativePCMAudioBridge audioBridge : audioBridges.values()) {
             audioBridge.stop();
         }
 
-        // Close persistent root shell
-        RootAudioRouter.closePersistentShell();
+        // Stop the mixer helper, then close persistent root shell
+        AlsaMixer.shared().close();
+        RootShell.shared().close();
 
-        // Shutdown scheduler
+        // Cancel timers and shut down scheduler
+        for (TimingWheel.Timeout timer : callSetupTimers.values()) {
+            timer.cancel();
+        }
+        for (TimingWheel.Timeout timer : qualityRefreshTimers.values()) {
+            timer.cancel();
+        }
         if (scheduler != null) {
             scheduler.shutdownNow();
         }
@@ -0,0 +1,158 @@
+package com.shreeyash.gateway;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The mixer values one routing step needs (capture, injection, speaker or
+ * mic mute), compiled once from the controls the device actually has.
+ *
+ * apply() reads the current values in one batch and writes only the
+ * controls that differ, remembering what they held; revert() writes those
+ * back in reverse order. Controls that were already right are left alone
+ * both ways, so consecutive calls, or two users of the same control, do
+ * not undo each other's state.
+ */
+final class MixerProfile {
+    private static final String TAG = "MixerProfile";
+
+    final String name;
+
+    private final Map<String, String> targets = new LinkedHashMap<>();
+    private final Map<String, String> fallbacks = new HashMap<>();
+
+    // Prior values of what apply() changed; null when not applied
+    private Map<String, String> undo;
+
+    MixerProfile(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Add a control that is not restored unless its prior value is known
+     */
+    MixerProfile put(String control, String value) {
+        targets.put(control, value);
+        return this;
+    }
+
+    /**
+     * Add a control, restored to fallback when its prior value could not
+     * be read (the tinymix path)
+     */
+    MixerProfile put(String control, String value, String fallback) {
+        targets.put(control, value);
+        fallbacks.put(control, fallback);
+        return this;
+    }
+
+    boolean isEmpty() {
+        return targets.isEmpty();
+    }
+
+    /**
+     * Bring the mixer to this profile, changing only what differs; applying
+     * again (a refresh) keeps the values saved by the first apply
+     *
+     * @return true if every control now holds its value
+     */
+    synchronized boolean apply(AlsaMixer mixer) {
+        if (targets.isEmpty()) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        Map<String, String> current = mixer.getAll(targets.keySet());
+
+        Map<String, String> diff = new LinkedHashMap<>();
+        if (undo == null) {
+            undo = new LinkedHashMap<>();
+        }
+        for (Map.Entry<String, String> entry : targets.entrySet()) {
+            String control = entry.getKey();
+            String value = current.get(control);
+            if (value != null && sameValue(value, entry.getValue())) {
+                continue;
+            }
+            diff.put(control, entry.getValue());
+            String prior = value != null ? value : fallbacks.get(control);
+            if (prior != null && !undo.containsKey(control)) {
+                undo.put(control, prior);
+            }
+        }
+
+        if (diff.isEmpty()) {
+            Log.d(TAG, name + ": already applied");
+            return true;
+        }
+        int applied = mixer.apply(diff);
+        Log.i(TAG, name + ": " + diff.size() + "/" + targets.size() + " controls changed in " +
+                   (System.currentTimeMillis() - start) + "ms");
+        return applied == diff.size();
+    }
+
+    /**
+     * Put back what the last apply() changed, in reverse order
+     */
+    synchronized void revert(AlsaMixer mixer) {
+        if (undo == null) {
+            return;
+        }
+        List<String> controls = new ArrayList<>(undo.keySet());
+        Collections.reverse(controls);
+        Map<String, String> values = new LinkedHashMap<>();
+        for (String control : controls) {
+            values.put(control, undo.get(control));
+        }
+        undo = null;
+
+        mixer.post(values);
+        Log.i(TAG, name + ": " + values.size() + " controls restored");
+    }
+
+    /**
+     * Compare a read-back value with a target as the helper and tinymix
+     * write them: one value sets every channel, "On"/"Off" mean 1/0
+     */
+    static boolean sameValue(String current, String target) {
+        String[] have = current.trim().split("\\s+");
+        String[] want = target.trim().split("\\s+");
+        if (want.length == 1) {
+            for (String token : have) {
+                if (!sameToken(token, want[0])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (want.length > have.length) {
+            return false;
+        }
+        for (int i = 0; i < want.length; i++) {
+            if (!sameToken(have[i], want[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameToken(String a, String b) {
+        return normalize(a).equals(normalize(b));
+    }
+
+    private static String normalize(String token) {
+        String t = token.toLowerCase();
+        if (t.equals("on")) {
+            return "1";
+        }
+        if (t.equals("off")) {
+            return "0";
+        }
+        return t;
+    }
+}
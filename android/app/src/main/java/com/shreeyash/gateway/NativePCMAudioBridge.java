@@ -2,22 +2,36 @@ package com.shreeyash.gateway;
 
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.DataInputStream;
+import com.shreeyash.gateway.codec.G711Codec;
+import com.shreeyash.gateway.codec.G711Plc;
+import com.shreeyash.gateway.codec.Pcm16;
+import com.shreeyash.gateway.rtp.CallQuality;
+import com.shreeyash.gateway.rtp.DtmfReceiver;
+import com.shreeyash.gateway.rtp.DtmfSender;
+import com.shreeyash.gateway.rtp.JitterBuffer;
+import com.shreeyash.gateway.rtp.MediaReactor;
+import com.shreeyash.gateway.rtp.RtcpReporter;
+import com.shreeyash.gateway.rtp.RtcpSession;
+import com.shreeyash.gateway.rtp.RtpHeader;
+import com.shreeyash.gateway.rtp.RtpTransport;
+import com.shreeyash.gateway.rtp.TelephoneEvent;
+import com.shreeyash.gateway.sip.SipResolver;
+
 import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.InputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * Native PCM Audio Bridge for SM6150 (Snapdragon 720G) devices
@@ -31,13 +45,30 @@ public class NativePCMAudioBridge {
     private static final int SAMPLE_RATE = 8000;
     private static final int CHANNELS = 1;
     private static final int BITS_PER_SAMPLE = 16;
-    private static final int FRAME_SIZE = 160; // 20ms at 8kHz
-    private static final int BUFFER_SIZE = FRAME_SIZE * 2; // 16-bit samples
+
+    // Injection PCM device (MultiMedia2 on SM6150) and the ALSA buffering we ask
+    // the PCM helper for, in periods of one ptime frame
+    private static final int INJECTION_PCM_DEVICE = 1;
+    private static final int CAPTURE_PERIODS = 4;
+    private static final int PLAYBACK_PERIODS = 2;
+
+    // Frames queued for tinyplay's writer thread before the oldest is dropped
+    private static final int TINYPLAY_QUEUE_FRAMES = 8;
 
     // RTP Configuration
     private static final int RTP_HEADER_SIZE = 12;
-    private static final byte RTP_VERSION = (byte) 0x80;
-    private static final byte PAYLOAD_TYPE_PCMU = 0;
+
+    // Negotiated media; a re-INVITE may change these while the bridge runs
+    private volatile G711Codec codec = G711Codec.PCMU;
+    private volatile int dtmfPayloadType = TelephoneEvent.PAYLOAD_TYPE;
+    private volatile boolean sending = true;    // false on hold (recvonly/inactive)
+    private volatile boolean receiving = true;  // false when the PBX holds us (sendonly/inactive)
+    private volatile boolean localHold = false; // GSM leg on hold
+
+    // Packetization we send at; what we receive may differ
+    private int ptimeMs = G711Codec.DEFAULT_PTIME;
+    private int frameSamples = G711Codec.frameSamples(ptimeMs);
+    private int frameBytes = frameSamples * 2; // 16-bit samples
 
     // Remote RTP endpoint
     private String remoteHost;
@@ -46,7 +77,9 @@ public class NativePCMAudioBridge {
 
     // State
     private volatile boolean running = false;
-    private DatagramSocket rtpSocket;
+    private RtpTransport rtpTransport;
+    private RtpTransport rtcpTransport;
+    private volatile RtcpSession rtcpSession;
     private InetAddress remoteAddress;
 
     // RTP state
@@ -54,13 +87,12 @@ public class NativePCMAudioBridge {
     private long timestamp = 0;
     private int ssrc;
 
-    // Threads
-    private Thread captureThread;
-    private Thread playbackThread;
+    // Media work, serviced by the shared MediaReactor
+    private volatile MediaSession mediaSession;
+    private RtcpReporter rtcpReporter;
 
-    // Root shell process for audio routing
-    private Process rootShell;
-    private DataOutputStream rootOut;
+    // Voice PCM devices opened by the root PCM helper, when it is available
+    private PcmHelper.Session pcmSession;
 
     // Qualcomm platform detection for mixer control selection
     private enum QualcommPlatform {
@@ -73,10 +105,16 @@ public class NativePCMAudioBridge {
     }
     private QualcommPlatform detectedPlatform = QualcommPlatform.UNKNOWN;
 
-    // Mixer control discovery
-    private Set<String> availableMixerControls = new HashSet<>();
+    // Mixer access (control index shared with RootAudioRouter)
+    private final AlsaMixer mixer = AlsaMixer.shared();
     private boolean mixerDiscovered = false;
 
+    // Routing profiles, compiled on the first call
+    private MixerProfile captureProfile;
+    private MixerProfile injectionProfile;
+    private MixerProfile speakerProfile;
+    private MixerProfile micProfile;
+
     // Mic mute state tracking
     private volatile boolean micMuted = false;
 
@@ -95,6 +133,13 @@ public class NativePCMAudioBridge {
         this.bridgeListener = listener;
     }
 
+    // DTMF digits received from the PBX (RFC 4733), called on the media reactor thread
+    private volatile DtmfReceiver.Listener dtmfListener;
+
+    public void setDtmfListener(DtmfReceiver.Listener listener) {
+        this.dtmfListener = listener;
+    }
+
     public NativePCMAudioBridge(int localRtpPort) {
         this.localRtpPort = localRtpPort;
         this.ssrc = (int) (Math.random() * Integer.MAX_VALUE);
@@ -105,6 +150,101 @@ public class NativePCMAudioBridge {
         this.remotePort = port;
     }
 
+    /**
+     * Select the negotiated G.711 codec (PT 0 = PCMU, 8 = PCMA).
+     * Call before start().
+     */
+    public void setPayloadType(int payloadType) {
+        codec = G711Codec.forNegotiatedPayloadType(payloadType);
+    }
+
+    /**
+     * Select the negotiated telephone-event payload type, or -1 if the PBX
+     * did not accept RFC 4733. Call before start().
+     */
+    public void setDtmfPayloadType(int payloadType) {
+        dtmfPayloadType = payloadType;
+    }
+
+    /**
+     * Set the packetization time (10/20/30/40 ms) we send at; this is also
+     * the media reactor tick. Call before start().
+     */
+    public void setPtime(int ptime) {
+        if (!G711Codec.isSupportedPtime(ptime)) {
+            Log.w(TAG, "Unsupported ptime " + ptime + "ms, using " + G711Codec.DEFAULT_PTIME + "ms");
+            ptime = G711Codec.DEFAULT_PTIME;
+        }
+        ptimeMs = ptime;
+        frameSamples = G711Codec.frameSamples(ptime);
+        frameBytes = frameSamples * 2;
+    }
+
+    /**
+     * Apply a re-INVITE or UPDATE to the running bridge without restarting
+     * it: remote endpoint, codec, telephone-event payload type and
+     * direction. Playout restarts when the stream changes so the jitter
+     * buffer does not splice the old stream into the new one. Packetization
+     * stays at what was negotiated when the bridge started.
+     *
+     * Resolves the host, so call it off the media reactor thread.
+     */
+    public void updateMedia(String host, int port, int payloadType, int dtmfPayloadType,
+                            boolean send, boolean receive) {
+        G711Codec previousCodec = codec;
+        boolean wasReceiving = receiving;
+        // c=0.0.0.0 (RFC 2543 hold) keeps the old endpoint; sending is off anyway
+        boolean newRemote = host != null && port > 0 && !"0.0.0.0".equals(host)
+            && (!host.equals(remoteHost) || port != remotePort);
+
+        setPayloadType(payloadType);
+        this.dtmfPayloadType = dtmfPayloadType;
+        sending = send;
+        receiving = receive;
+
+        if (newRemote) {
+            remoteHost = host;
+            remotePort = port;
+            RtpTransport rtp = rtpTransport;
+            RtpTransport rtcp = rtcpTransport;
+            if (running && rtp != null && rtcp != null) {
+                try {
+                    remoteAddress = SipResolver.shared().resolveAddress(host);
+                    rtp.setRemote(new InetSocketAddress(remoteAddress, port));
+                    rtcp.setRemote(new InetSocketAddress(remoteAddress, port + 1));
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot resolve new remote RTP host " + host + ": " + e.getMessage());
+                }
+            }
+        }
+
+        MediaSession session = mediaSession;
+        if (session != null && (newRemote || codec != previousCodec || receive != wasReceiving)) {
+            session.restartPlayout();
+        }
+
+        Log.i(TAG, "┌───────────────────────────────────────────────────────────┐");
+        Log.i(TAG, "│ 🔄 MEDIA UPDATED                                          │");
+        Log.i(TAG, "├───────────────────────────────────────────────────────────┤");
+        Log.i(TAG, "│ Remote: " + String.format("%-50s", remoteHost + ":" + remotePort) + " │");
+        Log.i(TAG, "│ Codec:  " + String.format("%-50s", "G.711 " + codec.getEncodingName() + ", DTMF PT " + dtmfPayloadType) + " │");
+        Log.i(TAG, "│ Send:   " + String.format("%-50s", send + ", receive: " + receive) + " │");
+        Log.i(TAG, "└───────────────────────────────────────────────────────────┘");
+    }
+
+    /**
+     * The GSM leg was put on hold or resumed: nothing is forwarded either
+     * way while held, but the RTP session and its clock keep running
+     */
+    public void setLocalHold(boolean hold) {
+        localHold = hold;
+        MediaSession session = mediaSession;
+        if (!hold && session != null) {
+            session.restartPlayout();
+        }
+        Log.i(TAG, hold ? "GSM leg held, RTP paused" : "GSM leg resumed, RTP flowing");
+    }
+
     /**
      * Start the audio bridge
      */
@@ -121,7 +261,7 @@ public class NativePCMAudioBridge {
         try {
             // Step 1: Initialize root shell
             Log.i(TAG, "┌─ STEP 1: Initializing root shell...");
-            if (!initRootShell()) {
+            if (!RootShell.shared().isAvailable()) {
                 Log.e(TAG, "└─ ❌ FAILED: Could not get root access");
                 return false;
             }
@@ -132,28 +272,49 @@ public class NativePCMAudioBridge {
             setupVoiceCallRouting();
             Log.i(TAG, "└─ ✓ Audio routing configured");
 
-            // Step 3: Create RTP socket
-            Log.i(TAG, "┌─ STEP 3: Creating RTP socket...");
-            remoteAddress = InetAddress.getByName(remoteHost);
-            rtpSocket = new DatagramSocket(localRtpPort);
-            rtpSocket.setSoTimeout(1000);
+            // Step 3: Open RTP channel
+            Log.i(TAG, "┌─ STEP 3: Opening RTP channel...");
+            remoteAddress = SipResolver.shared().resolveAddress(remoteHost);
+            rtpTransport = RtpTransport.open(localRtpPort);
+            rtpTransport.setRemote(new InetSocketAddress(remoteAddress, remotePort));
             Log.i(TAG, "│  Local RTP port: " + localRtpPort);
             Log.i(TAG, "│  Remote RTP: " + remoteHost + ":" + remotePort);
-            Log.i(TAG, "└─ ✓ RTP socket ready");
+
+            // RTCP on the next port up (RFC 3550 section 11)
+            rtcpTransport = RtpTransport.open(localRtpPort + 1);
+            rtcpTransport.setRemote(new InetSocketAddress(remoteAddress, remotePort + 1));
+            rtcpSession = new RtcpSession(ssrc, SAMPLE_RATE,
+                "gsmgateway-" + localRtpPort + "-" + Integer.toHexString(ssrc));
+            Log.i(TAG, "│  RTCP: " + (localRtpPort + 1) + " -> " + remoteHost + ":" + (remotePort + 1));
+            Log.i(TAG, "└─ ✓ RTP channel ready");
 
             running = true;
 
-            // Step 4: Start capture thread (GSM party voice → RTP → PBX)
-            Log.i(TAG, "┌─ STEP 4: Starting capture thread (GSM → PBX)...");
-            captureThread = new Thread(this::captureLoop, "PCM-Capture");
-            captureThread.start();
-            Log.i(TAG, "└─ ✓ Capture thread started");
+            // Step 4: Open capture source (GSM party voice → RTP → PBX)
+            Log.i(TAG, "┌─ STEP 4: Opening capture source (GSM → PBX)...");
+            CaptureSource capture = openCaptureSource();
+            if (capture == null) {
+                Log.e(TAG, "└─ ❌ FAILED: No capture source available");
+                throw new IOException("No capture source available");
+            }
+            Log.i(TAG, "└─ ✓ Capturing via " + capture.getName());
+
+            // Step 5: Open playback sink (PBX → RTP → GSM party)
+            Log.i(TAG, "┌─ STEP 5: Opening playback sink (PBX → GSM)...");
+            PcmSink sink = openPlaybackSink();
+            if (sink == null) {
+                Log.w(TAG, "└─ ⚠ No playback sink, PBX audio will not reach the GSM party");
+            } else {
+                Log.i(TAG, "└─ ✓ Playing via " + sink.getName());
+            }
 
-            // Step 5: Start playback thread (PBX → RTP → GSM party)
-            Log.i(TAG, "┌─ STEP 5: Starting playback thread (PBX → GSM)...");
-            playbackThread = new Thread(this::playbackLoop, "PCM-Playback");
-            playbackThread.start();
-            Log.i(TAG, "└─ ✓ Playback thread started");
+            // Step 6: Hand both directions to the shared media reactor
+            Log.i(TAG, "┌─ STEP 6: Attaching to media reactor...");
+            mediaSession = new MediaSession(capture, sink);
+            rtcpReporter = new RtcpReporter(rtcpSession, rtcpTransport);
+            MediaReactor.getInstance().attach(rtpTransport, mediaSession);
+            MediaReactor.getInstance().attach(rtcpTransport, rtcpReporter);
+            Log.i(TAG, "└─ ✓ Media session attached");
 
             Log.i(TAG, "╔════════════════════════════════════════════════════════════╗");
             Log.i(TAG, "║       ✓ AUDIO BRIDGE STARTED SUCCESSFULLY                  ║");
@@ -173,11 +334,31 @@ public class NativePCMAudioBridge {
     public void stop() {
         running = false;
 
-        if (captureThread != null) {
-            captureThread.interrupt();
+        // Detach from the reactor before closing what it polls
+        if (mediaSession != null) {
+            try {
+                MediaReactor.getInstance().detach(mediaSession);
+            } catch (IOException e) {
+                Log.e(TAG, "Error detaching media session", e);
+            }
+            mediaSession.close();
+            mediaSession = null;
+        }
+        if (pcmSession != null) {
+            pcmSession.close();
+            pcmSession = null;
+        }
+        if (rtcpReporter != null) {
+            try {
+                MediaReactor.getInstance().detach(rtcpReporter);
+            } catch (IOException e) {
+                Log.e(TAG, "Error detaching RTCP reporter", e);
+            }
+            rtcpReporter.sendBye();
+            rtcpReporter = null;
         }
-        if (playbackThread != null) {
-            playbackThread.interrupt();
+        if (rtcpSession != null) {
+            Log.i(TAG, "Final call quality: " + rtcpSession.getQuality());
         }
 
         // Disable voice call routing
@@ -187,104 +368,57 @@ public class NativePCMAudioBridge {
             Log.e(TAG, "Error disabling routing", e);
         }
 
-        // Close root shell
-        closeRootShell();
-
-        // Close RTP socket
-        if (rtpSocket != null && !rtpSocket.isClosed()) {
-            rtpSocket.close();
+        // Close RTP channel
+        if (rtpTransport != null) {
+            rtpTransport.close();
+        }
+        if (rtcpTransport != null) {
+            rtcpTransport.close();
         }
 
         Log.i(TAG, "Native PCM audio bridge stopped");
     }
 
     /**
-     * Initialize root shell
-     */
-    private boolean initRootShell() {
-        try {
-            rootShell = Runtime.getRuntime().exec("su");
-            rootOut = new DataOutputStream(rootShell.getOutputStream());
-
-            // Test root access
-            rootOut.writeBytes("id\n");
-            rootOut.flush();
-
-            Thread.sleep(100);
-
-            Log.i(TAG, "Root shell initialized");
-            return true;
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to get root: " + e.getMessage());
-            return false;
-        }
-    }
-
-    /**
-     * Close root shell
+     * Execute command as root on the shared shell (fire-and-forget)
      */
-    private void closeRootShell() {
-        try {
-            if (rootOut != null) {
-                rootOut.writeBytes("exit\n");
-                rootOut.flush();
-                rootOut.close();
-            }
-            if (rootShell != null) {
-                rootShell.destroy();
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error closing root shell", e);
-        }
+    private void execRoot(String cmd) {
+        RootShell.shared().post(cmd);
+        Log.d(TAG, "Root cmd: " + cmd);
     }
 
     /**
-     * Execute command as root (fire-and-forget)
+     * Execute command as root on the shared shell and return output
      */
-    private void execRoot(String cmd) {
-        try {
-            rootOut.writeBytes(cmd + "\n");
-            rootOut.flush();
-            Log.d(TAG, "Root cmd: " + cmd);
-        } catch (Exception e) {
-            Log.e(TAG, "Root cmd failed: " + cmd, e);
-        }
+    private String execRootSync(String cmd) {
+        return RootShell.shared().exec(cmd);
     }
 
     /**
-     * Execute command as root and return output
+     * Detect Qualcomm platform for mixer control selection, cached per build
      */
-    private String execRootSync(String cmd) {
-        Process process = null;
-        try {
-            process = Runtime.getRuntime().exec(new String[]{"su", "-c", cmd});
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            StringBuilder output = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                output.append(line).append("\n");
+    private QualcommPlatform detectQualcommPlatform() {
+        AudioDiscoveryCache cache = AudioDiscoveryCache.shared();
+        String cached = cache.qualcommPlatform();
+        if (cached != null) {
+            try {
+                return QualcommPlatform.valueOf(cached);
+            } catch (IllegalArgumentException e) {
+                // written by a build with other platforms, detect again
             }
-            process.waitFor();
-            return output.toString();
-        } catch (Exception e) {
-            Log.e(TAG, "execRootSync failed: " + cmd, e);
-            return null;
-        } finally {
-            if (process != null) process.destroy();
         }
+
+        QualcommPlatform detected = qualcommPlatformOf(cache.boardPlatform());
+        cache.putQualcommPlatform(detected.name());
+        return detected;
     }
 
-    /**
-     * Detect Qualcomm platform for mixer control selection
-     */
-    private QualcommPlatform detectQualcommPlatform() {
-        String platform = execRootSync("getprop ro.board.platform");
-        if (platform == null) {
+    private QualcommPlatform qualcommPlatformOf(String platform) {
+        if (platform.equals("unknown")) {
             Log.w(TAG, "Could not detect platform, using UNKNOWN");
             return QualcommPlatform.UNKNOWN;
         }
 
-        platform = platform.toLowerCase().trim();
         Log.i(TAG, "Detected board platform: " + platform);
 
         if (platform.contains("sm6150") || platform.contains("bengal")) {
@@ -308,24 +442,14 @@ public class NativePCMAudioBridge {
     private void discoverMixerControls() {
         if (mixerDiscovered) return;
 
-        String output = execRootSync("tinymix");
-        if (output == null) {
-            Log.e(TAG, "tinymix not available - mixer discovery failed");
+        List<String> controls = mixer.controlNames();
+        if (controls.isEmpty()) {
+            Log.e(TAG, "Mixer not accessible - mixer discovery failed");
             return;
         }
 
-        // Parse tinymix output to extract control names
-        // Format varies but typically: "123 [control name]" or "123\t[control name]"
-        Pattern pattern = Pattern.compile("^\\s*(\\d+)\\s+(.+?)\\s*$", Pattern.MULTILINE);
-        Matcher matcher = pattern.matcher(output);
-
-        while (matcher.find()) {
-            String controlName = matcher.group(2).trim();
-            availableMixerControls.add(controlName);
-        }
-
         mixerDiscovered = true;
-        Log.i(TAG, "Discovered " + availableMixerControls.size() + " mixer controls");
+        Log.i(TAG, "Discovered " + controls.size() + " mixer controls");
 
         // Log key controls for gateway audio routing
         Log.i(TAG, "=== KEY MIXER CONTROLS FOR GATEWAY ===");
@@ -350,49 +474,7 @@ public class NativePCMAudioBridge {
      * Check if a mixer control exists (case-insensitive partial match)
      */
     private boolean hasMixerControl(String control) {
-        String lowerControl = control.toLowerCase();
-        for (String c : availableMixerControls) {
-            if (c.toLowerCase().contains(lowerControl)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    /**
-     * Set mixer control with verification
-     * @return true if the setting was applied and verified
-     */
-    private boolean setMixerControl(String control, String value) {
-        // Try to set the control
-        execRoot("tinymix '" + control + "' '" + value + "'");
-
-        // Wait briefly for the setting to take effect
-        try { Thread.sleep(50); } catch (InterruptedException e) {}
-
-        // Verify the setting
-        String verify = execRootSync("tinymix '" + control + "'");
-        if (verify != null && verify.contains(value)) {
-            Log.i(TAG, "Mixer OK: " + control + " = " + value);
-            return true;
-        }
-
-        // Some controls report differently - just check if command didn't error
-        if (verify != null && !verify.toLowerCase().contains("error") &&
-            !verify.toLowerCase().contains("invalid")) {
-            Log.i(TAG, "Mixer SET (unverified): " + control + " = " + value);
-            return true;
-        }
-
-        Log.w(TAG, "Mixer FAILED: " + control + " = " + value);
-        return false;
-    }
-
-    /**
-     * Set mixer control with value (int version)
-     */
-    private boolean setMixerControl(String control, int value) {
-        return setMixerControl(control, String.valueOf(value));
+        return mixer.hasControl(control);
     }
 
     /**
@@ -405,10 +487,10 @@ public class NativePCMAudioBridge {
      * │                                                             │
      * │  [GSM Party Voice]                                          │
      * │      ↓ (Downlink from cell tower)                           │
-     * │  VOC_REC_DL → tinycap → PCM → μ-law → RTP → [PBX hears]    │
+     * │  VOC_REC_DL → tinycap → PCM → G.711 → RTP → [PBX hears]    │
      * │                                                             │
      * │  [PBX Voice]                                                │
-     * │  RTP → μ-law → PCM → tinyplay → Incall_Music → [GSM hears] │
+     * │  RTP → G.711 → PCM → tinyplay → Incall_Music → [GSM hears] │
      * │      ↓ (Uplink to cell tower)                               │
      * │                                                             │
      * │  Phone Mic  → MUTED (no local audio)                        │
@@ -425,31 +507,39 @@ public class NativePCMAudioBridge {
         Log.i(TAG, "SETTING UP VOICE CALL AUDIO ROUTING");
         Log.i(TAG, "========================================");
 
-        // Detect platform and discover mixer controls
-        detectedPlatform = detectQualcommPlatform();
-        Log.i(TAG, "Qualcomm Platform: " + detectedPlatform);
+        // Detect platform, discover mixer controls and compile the profiles, once
+        if (captureProfile == null || !mixerDiscovered) {
+            detectedPlatform = detectQualcommPlatform();
+            Log.i(TAG, "Qualcomm Platform: " + detectedPlatform);
+
+            discoverMixerControls();
+            compileProfiles();
+        }
 
-        discoverMixerControls();
+        // Each step writes only the controls that differ from the current mixer state
 
         // Configure capture path (GSM → RTP)
-        boolean captureOk = setupCapturePath();
+        boolean captureOk = captureProfile.apply(mixer);
         Log.i(TAG, "Capture path configured: " + (captureOk ? "SUCCESS" : "PARTIAL/FAILED"));
+        if (!captureOk) {
+            Log.e(TAG, "WARNING: Could not configure capture path - PBX won't hear GSM party!");
+        }
 
         // Configure injection path (RTP → GSM)
-        boolean injectionOk = setupInjectionPath();
+        boolean injectionOk = injectionProfile.apply(mixer);
         Log.i(TAG, "Injection path configured: " + (injectionOk ? "SUCCESS" : "PARTIAL/FAILED"));
+        if (!injectionOk) {
+            Log.e(TAG, "WARNING: Could not configure injection path - GSM party won't hear PBX!");
+        }
 
         // Mute phone speaker (gateway mode)
-        boolean speakerMuted = muteSpeaker();
+        boolean speakerMuted = speakerProfile.apply(mixer);
         Log.i(TAG, "Speaker muted: " + (speakerMuted ? "SUCCESS" : "PARTIAL/FAILED"));
 
         // Mute phone microphone (gateway mode - critical!)
         boolean micMuteOk = muteMicrophone();
         Log.i(TAG, "Microphone muted: " + (micMuteOk ? "SUCCESS" : "PARTIAL/FAILED - may have echo!"));
 
-        // Give mixer time to apply settings
-        try { Thread.sleep(100); } catch (InterruptedException e) {}
-
         Log.i(TAG, "========================================");
         Log.i(TAG, "VOICE CALL ROUTING COMPLETE");
         Log.i(TAG, "Platform: " + detectedPlatform);
@@ -458,14 +548,25 @@ public class NativePCMAudioBridge {
     }
 
     /**
-     * Configure capture path based on platform
+     * Compile the routing profiles for the detected platform from the
+     * discovered controls
+     */
+    private void compileProfiles() {
+        captureProfile = compileCaptureProfile();
+        injectionProfile = compileInjectionProfile();
+        speakerProfile = compileSpeakerProfile();
+        micProfile = compileMicProfile();
+    }
+
+    /**
+     * Capture path based on platform
      * CRITICAL: We capture VOC_REC_DL (Downlink = GSM party voice), NOT VOC_REC_UL (phone mic)
      *
      * VOC_REC_DL = Voice Downlink Recording = What GSM party is saying (from cell tower)
      * VOC_REC_UL = Voice Uplink Recording = What phone mic captures (NOT wanted in gateway mode)
      */
-    private boolean setupCapturePath() {
-        boolean success = false;
+    private MixerProfile compileCaptureProfile() {
+        MixerProfile profile = new MixerProfile("capture (" + detectedPlatform + ")");
 
         Log.i(TAG, "Configuring CAPTURE path: GSM party voice (DL) -> RTP -> PBX");
 
@@ -474,141 +575,125 @@ public class NativePCMAudioBridge {
                 // Bengal (Snapdragon 720G)
                 // NOTE: VOC_REC controls require TWO values (stereo control)
                 // Enable DL (downlink = GSM party voice), disable UL (uplink = phone mic)
-                success = setMixerControl("MultiMedia1 Mixer VOC_REC_DL", "1 1");  // GSM party voice (both channels)
-                setMixerControl("MultiMedia1 Mixer VOC_REC_UL", "0 0");            // Disable phone mic capture
-                setMixerControl("Voc Rec Config", "1");                            // Enable voice recording mode
+                profile.put("MultiMedia1 Mixer VOC_REC_DL", "1 1", "0");   // GSM party voice (both channels)
+                profile.put("MultiMedia1 Mixer VOC_REC_UL", "0 0", "0");   // Disable phone mic capture
+                profile.put("Voc Rec Config", "1");                         // Enable voice recording mode
 
                 // Also try to ensure voice call audio is routed to capture
                 // Some devices need this additional routing
                 if (hasMixerControl("SLIMBUS_0_TX")) {
-                    setMixerControl("MultiMedia1 Mixer SLIM_0_TX", "1");
+                    profile.put("MultiMedia1 Mixer SLIM_0_TX", "1", "0");
                 }
                 break;
 
             case SM8150:
             case SM8250:
-                // Snapdragon 855/865 - try VOC_REC_DL first, then SLIMBUS
+                // Snapdragon 855/865 - VOC_REC_DL first, then SLIMBUS
                 if (hasMixerControl("VOC_REC_DL")) {
-                    success = setMixerControl("MultiMedia1 Mixer VOC_REC_DL", "1 1");
-                    setMixerControl("MultiMedia1 Mixer VOC_REC_UL", "0 0");
-                }
-                // SLIMBUS fallback - captures RX path (what phone receives)
-                if (!success && hasMixerControl("SLIMBUS")) {
-                    success = setMixerControl("SLIMBUS_0_RX Voice Mixer VoiceMMode1", "1");
-                    setMixerControl("MultiMedia1 Mixer SLIM_0_RX", "1");
+                    profile.put("MultiMedia1 Mixer VOC_REC_DL", "1 1", "0");
+                    profile.put("MultiMedia1 Mixer VOC_REC_UL", "0 0", "0");
+                } else if (hasMixerControl("SLIMBUS")) {
+                    // SLIMBUS fallback - captures RX path (what phone receives)
+                    profile.put("SLIMBUS_0_RX Voice Mixer VoiceMMode1", "1", "0");
+                    profile.put("MultiMedia1 Mixer SLIM_0_RX", "1", "0");
                 }
                 break;
 
             case SDM845:
             case SDM660:
-                // Older Qualcomm - try VOC_REC_DL first
+                // Older Qualcomm - VOC_REC_DL first
                 if (hasMixerControl("VOC_REC_DL")) {
-                    success = setMixerControl("MultiMedia1 Mixer VOC_REC_DL", "1 1");
-                    setMixerControl("MultiMedia1 Mixer VOC_REC_UL", "0 0");
-                }
-                // VoiceMMode fallback - need RX (receive) path
-                if (!success && hasMixerControl("VoiceMMode1")) {
-                    // Try to route voice RX to multimedia
-                    success = setMixerControl("MultiMedia1 Mixer VoiceMMode1", "1");
-                }
-                if (!success && hasMixerControl("QUAT_MI2S")) {
-                    success = setMixerControl("QUAT_MI2S_RX Voice Mixer VoiceMMode1", "1");
+                    profile.put("MultiMedia1 Mixer VOC_REC_DL", "1 1", "0");
+                    profile.put("MultiMedia1 Mixer VOC_REC_UL", "0 0", "0");
+                } else if (hasMixerControl("VoiceMMode1")) {
+                    // VoiceMMode fallback - route voice RX (receive) path to multimedia
+                    profile.put("MultiMedia1 Mixer VoiceMMode1", "1", "0");
+                } else if (hasMixerControl("QUAT_MI2S")) {
+                    profile.put("QUAT_MI2S_RX Voice Mixer VoiceMMode1", "1", "0");
                 }
                 break;
 
             default:
                 // Generic fallback - prioritize DL (downlink) controls
                 Log.i(TAG, "Unknown platform, trying common DL capture controls");
-                // Try VOC_REC_DL with dual values first (most Qualcomm devices)
+                // VOC_REC_DL with dual values first (most Qualcomm devices)
                 if (hasMixerControl("VOC_REC_DL")) {
-                    success = setMixerControl("MultiMedia1 Mixer VOC_REC_DL", "1 1");
-                    setMixerControl("MultiMedia1 Mixer VOC_REC_UL", "0 0");
+                    profile.put("MultiMedia1 Mixer VOC_REC_DL", "1 1", "0");
+                    profile.put("MultiMedia1 Mixer VOC_REC_UL", "0 0", "0");
+                    break;
                 }
                 // Fallbacks
-                if (!success) {
-                    String[] captureControls = {
-                        "MultiMedia1 Mixer SLIM_0_RX",       // SLIMBUS RX path
-                        "MultiMedia1 Mixer VoiceMMode1",     // Voice mode mixer
-                        "SLIMBUS_0_RX Voice Mixer VoiceMMode1"
-                    };
-                    for (String ctrl : captureControls) {
-                        if (hasMixerControl(ctrl.split(" ")[0])) {
-                            success = setMixerControl(ctrl, "1");
-                            if (success) {
-                                Log.i(TAG, "Capture path configured via: " + ctrl);
-                                break;
-                            }
-                        }
+                String[] captureControls = {
+                    "MultiMedia1 Mixer SLIM_0_RX",       // SLIMBUS RX path
+                    "MultiMedia1 Mixer VoiceMMode1",     // Voice mode mixer
+                    "SLIMBUS_0_RX Voice Mixer VoiceMMode1"
+                };
+                for (String ctrl : captureControls) {
+                    if (hasMixerControl(ctrl.split(" ")[0])) {
+                        Log.i(TAG, "Capture path configured via: " + ctrl);
+                        profile.put(ctrl, "1", "0");
+                        break;
                     }
                 }
         }
-
-        if (!success) {
-            Log.e(TAG, "WARNING: Could not configure capture path - PBX won't hear GSM party!");
-        }
-        return success;
+        return profile;
     }
 
     /**
-     * Configure injection path (RTP → GSM)
+     * Injection path (RTP → GSM)
      * This routes PBX audio INTO the GSM call so the GSM party hears the PBX
      *
      * Incall_Music: Special Qualcomm mixer that injects audio into the voice uplink
      * The injected audio gets sent to the cell tower, so the GSM party hears it
      */
-    private boolean setupInjectionPath() {
-        boolean success = false;
+    private MixerProfile compileInjectionProfile() {
+        MixerProfile profile = new MixerProfile("injection (" + detectedPlatform + ")");
 
         Log.i(TAG, "Configuring INJECTION path: PBX voice -> RTP -> Incall_Music -> GSM party");
 
         // Incall_Music is the standard Qualcomm path for injecting audio into voice calls
         // We use MultiMedia2 for playback (tinyplay -d 1 or AudioTrack)
-        if (hasMixerControl("Incall_Music")) {
+        boolean incallMusic = hasMixerControl("Incall_Music");
+        if (incallMusic) {
             // Primary: MultiMedia2 for injection
-            success = setMixerControl("Incall_Music Audio Mixer MultiMedia2", 1);
-            Log.i(TAG, "Incall_Music via MultiMedia2: " + (success ? "OK" : "FAILED"));
+            profile.put("Incall_Music Audio Mixer MultiMedia2", "1", "0");
 
-            // Also try MM9 as backup on some devices
+            // Also MM9 as backup on some devices
             if (hasMixerControl("MultiMedia9")) {
-                boolean mm9 = setMixerControl("Incall_Music Audio Mixer MultiMedia9", 1);
-                Log.d(TAG, "Incall_Music via MultiMedia9: " + (mm9 ? "OK" : "FAILED"));
+                profile.put("Incall_Music Audio Mixer MultiMedia9", "1", "0");
             }
-        }
 
-        // Ensure MM1 doesn't inject (reserved for capture)
-        setMixerControl("Incall_Music Audio Mixer MultiMedia1", 0);
+            // Ensure MM1 doesn't inject (reserved for capture)
+            profile.put("Incall_Music Audio Mixer MultiMedia1", "0", "0");
+        }
 
         // On some platforms, also need to set Voice TX path to allow injection
         if (hasMixerControl("Voice_Tx Mixer")) {
-            setMixerControl("Voice_Tx Mixer Incall_Music", 1);
+            profile.put("Voice_Tx Mixer Incall_Music", "1");
         }
 
         // Alternative injection path on some Qualcomm platforms
-        if (!success && hasMixerControl("Voip_Tx Mixer")) {
-            success = setMixerControl("Voip_Tx Mixer Incall_Music", 1);
-            Log.i(TAG, "Alternative injection via Voip_Tx: " + (success ? "OK" : "FAILED"));
-        }
-
-        if (!success) {
-            Log.e(TAG, "WARNING: Could not configure injection path - GSM party won't hear PBX!");
+        if (!incallMusic && hasMixerControl("Voip_Tx Mixer")) {
+            Log.i(TAG, "Alternative injection via Voip_Tx");
+            profile.put("Voip_Tx Mixer Incall_Music", "1");
         }
-        return success;
+        return profile;
     }
 
     /**
-     * Mute phone speaker/earpiece
+     * Phone speaker/earpiece mute
      */
-    private boolean muteSpeaker() {
-        boolean anySuccess = false;
+    private MixerProfile compileSpeakerProfile() {
+        MixerProfile profile = new MixerProfile("speaker mute (" + detectedPlatform + ")");
 
         // Method 1: Voice Rx Device Mute
         if (hasMixerControl("Voice Rx Device Mute")) {
-            anySuccess |= setMixerControl("Voice Rx Device Mute", "1 1 1");
+            profile.put("Voice Rx Device Mute", "1 1 1", "0 0 0");
         }
 
         // Method 2: Voice Rx Gain
         if (hasMixerControl("Voice Rx Gain")) {
-            setMixerControl("Voice Rx Gain", "0 0 0");
+            profile.put("Voice Rx Gain", "0 0 0", "2000 2000 2000");
         }
 
         // Method 3: RX path mutes
@@ -620,7 +705,7 @@ public class NativePCMAudioBridge {
         };
         for (String path : rxPaths) {
             if (hasMixerControl(path.split(" ")[0])) {
-                setMixerControl(path, 0);
+                profile.put(path, "0");
             }
         }
 
@@ -628,7 +713,7 @@ public class NativePCMAudioBridge {
         String[] volumes = {"RX0 Digital Volume", "RX1 Digital Volume"};
         for (String vol : volumes) {
             if (hasMixerControl(vol)) {
-                setMixerControl(vol, 0);
+                profile.put(vol, "0", "84");
             }
         }
 
@@ -636,25 +721,22 @@ public class NativePCMAudioBridge {
         String[] dacs = {"EAR_SPKR DAC Switch", "HPHL DAC Switch", "HPHR DAC Switch"};
         for (String dac : dacs) {
             if (hasMixerControl(dac)) {
-                setMixerControl(dac, 0);
+                profile.put(dac, "0", "1");
             }
         }
-
-        return anySuccess;
+        return profile;
     }
 
     /**
-     * Mute phone microphone - CRITICAL for gateway mode
-     * Uses multiple methods with verification
+     * Phone microphone mute - CRITICAL for gateway mode
+     * Uses multiple methods
      */
-    private boolean muteMicrophone() {
-        Log.i(TAG, "Muting phone microphone for gateway mode");
-
-        boolean anySuccess = false;
+    private MixerProfile compileMicProfile() {
+        MixerProfile profile = new MixerProfile("mic mute (" + detectedPlatform + ")");
 
         // Method 1: Voice Tx Device Mute (most reliable on Qualcomm)
         if (hasMixerControl("Voice Tx Device Mute")) {
-            anySuccess |= setMixerControl("Voice Tx Device Mute", "1 1 1");
+            profile.put("Voice Tx Device Mute", "1 1 1", "0 0 0");
         }
 
         // Method 2: TX path mutes
@@ -666,15 +748,15 @@ public class NativePCMAudioBridge {
         };
         for (String ctrl : txControls) {
             if (hasMixerControl(ctrl.split(" ")[0])) {
-                anySuccess |= setMixerControl(ctrl, 0);
+                profile.put(ctrl, "0", ctrl.endsWith("VoiceMMode1") ? "1" : null);
             }
         }
 
-        // Method 3: ADC Volume zeroing
+        // Method 3: ADC Volume zeroing (default is typically 84)
         String[] adcControls = {"ADC1 Volume", "ADC2 Volume", "ADC3 Volume"};
         for (String ctrl : adcControls) {
             if (hasMixerControl(ctrl)) {
-                anySuccess |= setMixerControl(ctrl, 0);
+                profile.put(ctrl, "0", ctrl.equals("ADC3 Volume") ? null : "84");
             }
         }
 
@@ -682,7 +764,7 @@ public class NativePCMAudioBridge {
         String[] decControls = {"DEC0 Volume", "DEC1 Volume"};
         for (String ctrl : decControls) {
             if (hasMixerControl(ctrl)) {
-                setMixerControl(ctrl, 0);
+                profile.put(ctrl, "0");
             }
         }
 
@@ -690,20 +772,22 @@ public class NativePCMAudioBridge {
         String[] txInputs = {"TX0 Input", "TX1 Input"};
         for (String ctrl : txInputs) {
             if (hasMixerControl(ctrl)) {
-                anySuccess |= setMixerControl(ctrl, "ZERO");
+                profile.put(ctrl, "ZERO");
             }
         }
+        return profile;
+    }
 
-        micMuted = anySuccess;
+    private boolean muteMicrophone() {
+        Log.i(TAG, "Muting phone microphone for gateway mode");
 
-        if (!anySuccess) {
+        micMuted = micProfile.apply(mixer);
+        if (!micMuted) {
             Log.e(TAG, "WARNING: Could not mute microphone - may have local echo!");
         } else {
-            Log.i(TAG, "Microphone muted successfully using " +
-                      (anySuccess ? "multiple methods" : "fallback"));
+            Log.i(TAG, "Microphone muted successfully");
         }
-
-        return anySuccess;
+        return micMuted;
     }
 
     /**
@@ -717,7 +801,7 @@ public class NativePCMAudioBridge {
      * Dynamically control microphone mute during call
      */
     public void setMicrophoneMute(boolean mute) {
-        if (mute == micMuted) return;
+        if (mute == micMuted || micProfile == null) return;
 
         if (mute) {
             muteMicrophone();
@@ -727,83 +811,159 @@ public class NativePCMAudioBridge {
     }
 
     /**
-     * Unmute microphone (restore normal operation)
+     * Unmute microphone (restore what muting changed)
      */
     private void unmuteMicrophone() {
         Log.i(TAG, "Unmuting phone microphone");
+        micProfile.revert(mixer);
+        micMuted = false;
+    }
 
-        // Restore Voice Tx Device Mute
-        if (hasMixerControl("Voice Tx Device Mute")) {
-            setMixerControl("Voice Tx Device Mute", "0 0 0");
+    /**
+     * Disable voice call routing and restore normal audio
+     */
+    private void disableVoiceCallRouting() {
+        if (captureProfile == null) {
+            return;
         }
+        Log.i(TAG, "Disabling voice call audio routing, restoring normal audio");
 
-        // Restore TX paths
-        String[] txControls = {
-            "TX_CDC_DMA_TX_3_Voice Mixer VoiceMMode1",
-            "SLIM_0_TX_Voice Mixer VoiceMMode1"
-        };
-        for (String ctrl : txControls) {
-            if (hasMixerControl(ctrl.split(" ")[0])) {
-                setMixerControl(ctrl, 1);
-            }
+        // Reverse diff of setupVoiceCallRouting, last step first
+        unmuteMicrophone();
+        speakerProfile.revert(mixer);
+        injectionProfile.revert(mixer);
+        captureProfile.revert(mixer);
+    }
+
+    // ==================== CAPTURE (GSM → PBX) ====================
+
+    /**
+     * Non-blocking PCM source polled on every reactor tick
+     */
+    private interface CaptureSource {
+        /**
+         * Read whatever PCM is available without blocking
+         *
+         * @return bytes read (0 if none yet), or -1 if the source has ended
+         */
+        int read(byte[] buffer, int offset, int length) throws IOException;
+
+        void close();
+
+        String getName();
+    }
+
+    /**
+     * Capture ring of the PCM helper
+     */
+    private static class HelperCapture implements CaptureSource {
+        private final PcmHelper.Session session;
+
+        HelperCapture(PcmHelper.Session session) {
+            this.session = session;
         }
 
-        // Restore ADC volumes (default is typically 84)
-        String[] adcControls = {"ADC1 Volume", "ADC2 Volume"};
-        for (String ctrl : adcControls) {
-            if (hasMixerControl(ctrl)) {
-                setMixerControl(ctrl, 84);
-            }
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return session.read(buffer, offset, length);
         }
 
-        micMuted = false;
+        @Override
+        public void close() {
+            session.stop(PcmHelper.CAPTURE);
+        }
+
+        @Override
+        public String getName() {
+            return "pcm helper";
+        }
     }
 
     /**
-     * Disable voice call routing and restore normal audio
+     * tinycap on the VOC_REC_DL path, read from its stdout pipe
      */
-    private void disableVoiceCallRouting() {
-        Log.i(TAG, "Disabling voice call audio routing, restoring normal audio");
+    private static class TinycapCapture implements CaptureSource {
+        private final Process process;
+        private final InputStream in;
+
+        TinycapCapture(Process process, InputStream in) {
+            this.process = process;
+            this.in = in;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int available = in.available();
+            if (available <= 0) {
+                return hasExited(process) ? -1 : 0;
+            }
+            return in.read(buffer, offset, Math.min(length, available));
+        }
+
+        @Override
+        public void close() {
+            process.destroy();
+        }
+
+        @Override
+        public String getName() {
+            return "tinycap";
+        }
+    }
 
-        // Disable voice recording routing
-        execRoot("tinymix 'MultiMedia1 Mixer VOC_REC_UL' 0");
-        execRoot("tinymix 'MultiMedia1 Mixer VOC_REC_DL' 0");
+    /**
+     * AudioRecord fallback, read in non-blocking mode
+     */
+    private static class AudioRecordCapture implements CaptureSource {
+        private final android.media.AudioRecord audioRecord;
 
-        // Disable incall music routing
-        execRoot("tinymix 'Incall_Music Audio Mixer MultiMedia1' 0");
-        execRoot("tinymix 'Incall_Music Audio Mixer MultiMedia2' 0");
-        execRoot("tinymix 'Incall_Music Audio Mixer MultiMedia9' 0");
+        AudioRecordCapture(android.media.AudioRecord audioRecord) {
+            this.audioRecord = audioRecord;
+        }
 
-        // Restore phone speaker/earpiece (unmute)
-        execRoot("tinymix 'Voice Rx Device Mute' 0 0 0");
-        execRoot("tinymix 'Voice Rx Gain' 2000 2000 2000");
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = audioRecord.read(buffer, offset, length, android.media.AudioRecord.READ_NON_BLOCKING);
+            if (read < 0) {
+                throw new IOException("AudioRecord read error " + read);
+            }
+            return read;
+        }
 
-        // Restore RX digital volumes
-        execRoot("tinymix 'RX0 Digital Volume' 84");
-        execRoot("tinymix 'RX1 Digital Volume' 84");
+        @Override
+        public void close() {
+            try {
+                audioRecord.stop();
+            } catch (Exception e) { /* ignore */ }
+            audioRecord.release();
+        }
 
-        // Restore earpiece DAC
-        execRoot("tinymix 'EAR_SPKR DAC Switch' 1");
-        execRoot("tinymix 'HPHL DAC Switch' 1");
-        execRoot("tinymix 'HPHR DAC Switch' 1");
+        @Override
+        public String getName() {
+            return "AudioRecord";
+        }
+    }
 
-        // Restore phone mic
-        execRoot("tinymix 'Voice Tx Device Mute' 0 0 0");
+    private static boolean hasExited(Process process) {
+        try {
+            process.exitValue();
+            return true;
+        } catch (IllegalThreadStateException e) {
+            return false;
+        }
     }
 
     /**
-     * Capture voice call audio and send via RTP
-     * Uses tinycap with stdout pipe for reliable audio streaming
-     *
-     * This captures VOC_REC_DL (GSM party voice) and sends it to PBX via RTP
+     * Start capturing voice call audio: the PCM helper first, then tinycap,
+     * AudioRecord if both fail
      */
-    private void captureLoop() {
+    private CaptureSource openCaptureSource() {
         Log.i(TAG, "┌───────────────────────────────────────────────────────────┐");
-        Log.i(TAG, "│ CAPTURE LOOP: GSM Party Voice → RTP → PBX                 │");
+        Log.i(TAG, "│ CAPTURE PATH: GSM Party Voice → RTP → PBX                 │");
         Log.i(TAG, "├───────────────────────────────────────────────────────────┤");
         Log.i(TAG, "│ Source: VOC_REC_DL (GSM party downlink audio)             │");
         Log.i(TAG, "│ Dest:   " + String.format("%-50s", remoteHost + ":" + remotePort) + " │");
-        Log.i(TAG, "│ Codec:  G.711 μ-law @ 8kHz mono                           │");
+        Log.i(TAG, "│ Codec:  " + String.format("%-50s", "G.711 " + codec.getEncodingName() + " @ 8kHz mono, ptime " + ptimeMs + "ms") + " │");
         Log.i(TAG, "└───────────────────────────────────────────────────────────┘");
 
         // Log current mixer state for debugging
@@ -813,10 +973,29 @@ public class NativePCMAudioBridge {
         int captureDevice = findCapturePCMDevice();
         Log.i(TAG, "Using PCM capture device: " + captureDevice);
 
-        byte[] pcmBuffer = new byte[BUFFER_SIZE];
-        byte[] rtpPacket = new byte[RTP_HEADER_SIZE + FRAME_SIZE];
-        Process tinycapProc = null;
+        // One helper serves both directions; the playback sink picks up its other half
+        pcmSession = PcmHelper.shared().open(captureDevice, INJECTION_PCM_DEVICE, SAMPLE_RATE,
+                                             frameSamples, CAPTURE_PERIODS, PLAYBACK_PERIODS);
+        if (pcmSession != null && pcmSession.isOpen(PcmHelper.CAPTURE)) {
+            return new HelperCapture(pcmSession);
+        }
+
+        Log.w(TAG, "PCM helper unavailable, falling back to tinycap");
+        CaptureSource source = openTinycapCapture(captureDevice);
+        if (source == null) {
+            Log.w(TAG, "Falling back to AudioRecord capture");
+            source = openAudioRecordCapture();
+        }
+        return source;
+    }
 
+    /**
+     * Capture voice call audio with tinycap writing to a stdout pipe
+     *
+     * This captures VOC_REC_DL (GSM party voice) for sending to PBX via RTP
+     */
+    private CaptureSource openTinycapCapture(int captureDevice) {
+        Process tinycapProc = null;
         try {
             // Start tinycap to capture voice call audio to stdout
             // Use discovered device, fallback to 0 if discovery failed
@@ -827,128 +1006,48 @@ public class NativePCMAudioBridge {
             Log.i(TAG, "Starting tinycap: " + tinycapCmd);
 
             tinycapProc = Runtime.getRuntime().exec(new String[]{"su", "-c", tinycapCmd});
-
-            DataInputStream audioIn = new DataInputStream(tinycapProc.getInputStream());
+            InputStream audioIn = tinycapProc.getInputStream();
 
             // Skip WAV header (44 bytes) that tinycap prepends
             byte[] wavHeader = new byte[44];
             int headerRead = 0;
             int headerAttempts = 0;
             while (headerRead < 44 && running && headerAttempts < 100) {
-                int r = audioIn.read(wavHeader, headerRead, 44 - headerRead);
-                if (r <= 0) {
+                if (audioIn.available() <= 0) {
                     Thread.sleep(10);
                     headerAttempts++;
                     continue;
                 }
+                int r = audioIn.read(wavHeader, headerRead, 44 - headerRead);
+                if (r < 0) {
+                    break;
+                }
                 headerRead += r;
             }
 
             if (headerRead < 44) {
                 Log.e(TAG, "Failed to read WAV header from tinycap (only got " + headerRead + " bytes)");
-                Log.w(TAG, "Falling back to AudioRecord capture");
-                captureWithAudioRecord();
-                return;
+                tinycapProc.destroy();
+                return null;
             }
 
             Log.i(TAG, "Tinycap started successfully, skipped " + headerRead + " bytes WAV header");
-
-            int packetCount = 0;
-            int silentPackets = 0;
-            int totalSilentPackets = 0;
-            int maxAmplitudeSeen = 0;
-            long lastLogTime = System.currentTimeMillis();
-            long startTime = System.currentTimeMillis();
-
-            Log.i(TAG, "[CAPTURE] Starting main capture loop...");
-
-            while (running && !Thread.interrupted()) {
-                int bytesRead = audioIn.read(pcmBuffer);
-                if (bytesRead <= 0) {
-                    Thread.sleep(5);
-                    continue;
-                }
-
-                // Check if audio is silent (all zeros or very low amplitude)
-                int amplitude = getMaxAmplitude(pcmBuffer, bytesRead);
-                boolean isSilent = amplitude < 100;
-                if (amplitude > maxAmplitudeSeen) {
-                    maxAmplitudeSeen = amplitude;
-                }
-
-                if (isSilent) {
-                    silentPackets++;
-                    totalSilentPackets++;
-                } else {
-                    silentPackets = 0; // Reset consecutive silent counter
-                }
-
-                // Convert PCM to u-law
-                byte[] ulawData = pcmToUlaw(pcmBuffer, bytesRead);
-
-                // Build and send RTP packet
-                buildRTPHeader(rtpPacket);
-                int payloadSize = Math.min(ulawData.length, FRAME_SIZE);
-                System.arraycopy(ulawData, 0, rtpPacket, RTP_HEADER_SIZE, payloadSize);
-
-                DatagramPacket packet = new DatagramPacket(
-                    rtpPacket,
-                    RTP_HEADER_SIZE + payloadSize,
-                    remoteAddress,
-                    remotePort
-                );
-                rtpSocket.send(packet);
-
-                sequenceNumber++;
-                timestamp += FRAME_SIZE;
-                packetCount++;
-
-                // Detailed logging every 5 seconds
-                long now = System.currentTimeMillis();
-                if (now - lastLogTime >= 5000) {
-                    long elapsed = (now - startTime) / 1000;
-                    float silentPct = (packetCount > 0) ? (totalSilentPackets * 100.0f / packetCount) : 0;
-
-                    if (silentPackets > 100) {
-                        Log.w(TAG, String.format("[CAPTURE] ⚠ SILENT AUDIO DETECTED! Check VOC_REC_DL mixer routing!"));
-                    }
-
-                    Log.i(TAG, String.format("[CAPTURE] Stats @ %ds: pkts=%d, silent=%.1f%%, maxAmp=%d, dest=%s:%d",
-                        elapsed, packetCount, silentPct, maxAmplitudeSeen, remoteHost, remotePort));
-
-                    // Reset max amplitude for next interval
-                    maxAmplitudeSeen = 0;
-                    lastLogTime = now;
-                }
-            }
+            return new TinycapCapture(tinycapProc, audioIn);
 
         } catch (Exception e) {
-            Log.e(TAG, "Capture error: " + e.getMessage(), e);
-            consecutiveFailures++;
-
-            if (consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
-                Log.e(TAG, "Too many consecutive capture failures, notifying bridge failure");
-                if (bridgeListener != null) {
-                    bridgeListener.onBridgeFailure("Capture failed: " + e.getMessage());
-                }
-            } else {
-                // Try AudioRecord fallback
-                captureWithAudioRecord();
-            }
-        } finally {
+            Log.e(TAG, "Tinycap start error: " + e.getMessage(), e);
             if (tinycapProc != null) {
                 tinycapProc.destroy();
             }
+            return null;
         }
-
-        Log.i(TAG, "Capture loop ended");
     }
 
     /**
      * Get maximum amplitude from audio buffer
      */
-    private int getMaxAmplitude(byte[] buffer, int length) {
-        ByteBuffer bb = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+    private int getMaxAmplitude(byte[] buffer, int offset, int length) {
+        ByteBuffer bb = ByteBuffer.wrap(buffer, offset, length).order(ByteOrder.LITTLE_ENDIAN);
         int maxAmplitude = 0;
         for (int i = 0; i < length / 2 && bb.remaining() >= 2; i++) {
             int sample = Math.abs(bb.getShort());
@@ -976,7 +1075,7 @@ public class NativePCMAudioBridge {
         };
 
         for (String control : controlsToCheck) {
-            String value = execRootSync("tinymix '" + control + "' 2>/dev/null | head -1");
+            String value = mixer.get(control);
             if (value != null && !value.isEmpty()) {
                 Log.i(TAG, "│ " + String.format("%-40s", control) + " = " + value.trim());
             }
@@ -988,50 +1087,51 @@ public class NativePCMAudioBridge {
     /**
      * Find the correct PCM device for voice call capture
      * On Qualcomm devices, MultiMedia1 with VOC_REC routing may use different device numbers
+     * The answer is fixed for a build, so it is cached per build fingerprint
      */
     private int findCapturePCMDevice() {
-        Log.i(TAG, "Discovering PCM capture devices...");
+        AudioDiscoveryCache cache = AudioDiscoveryCache.shared();
+        int cached = cache.captureDevice();
+        if (cached >= 0) {
+            Log.i(TAG, "Using cached PCM capture device " + cached);
+            return cached;
+        }
 
-        // Read /proc/asound/pcm to find available devices
-        String pcmList = execRootSync("cat /proc/asound/pcm 2>/dev/null");
-        if (pcmList != null) {
-            Log.i(TAG, "Available PCM devices:\n" + pcmList);
+        int device = discoverCapturePCMDevice(cache);
+        if (device < 0) {
+            Log.w(TAG, "Could not determine best capture device, defaulting to 0");
+            return 0;
+        }
+        cache.putCaptureDevice(device);
+        return device;
+    }
 
-            // Look for MultiMedia or voice-related devices
-            for (String line : pcmList.split("\n")) {
+    /**
+     * @return the capture device, or -1 if none was found
+     */
+    private int discoverCapturePCMDevice(AudioDiscoveryCache cache) {
+        Log.i(TAG, "Discovering PCM capture devices...");
+
+        Map<Integer, String> pcmDevices = readPCMDevices(cache);
+        if (!pcmDevices.isEmpty()) {
+            // Look for MultiMedia or voice-related devices
+            for (Map.Entry<Integer, String> entry : pcmDevices.entrySet()) {
                 // Format: "00-00: MultiMedia1 : MultiMedia1 : playback 1 : capture 1"
+                String line = entry.getValue();
                 if (line.toLowerCase().contains("multimedia1") && line.contains("capture")) {
-                    try {
-                        // Extract device number from "00-XX:"
-                        String[] parts = line.split("-");
-                        if (parts.length >= 2) {
-                            String devPart = parts[1].split(":")[0].trim();
-                            int device = Integer.parseInt(devPart);
-                            Log.i(TAG, "Found MultiMedia1 capture on device " + device);
-                            return device;
-                        }
-                    } catch (Exception e) {
-                        Log.w(TAG, "Failed to parse PCM line: " + line);
-                    }
+                    Log.i(TAG, "Found MultiMedia1 capture on device " + entry.getKey());
+                    return entry.getKey();
                 }
             }
 
             // Look for voice recording device
-            for (String line : pcmList.split("\n")) {
-                if (line.toLowerCase().contains("voc_rec") ||
-                    line.toLowerCase().contains("voice_rec") ||
-                    line.toLowerCase().contains("incall_rec")) {
-                    try {
-                        String[] parts = line.split("-");
-                        if (parts.length >= 2) {
-                            String devPart = parts[1].split(":")[0].trim();
-                            int device = Integer.parseInt(devPart);
-                            Log.i(TAG, "Found voice recording device " + device);
-                            return device;
-                        }
-                    } catch (Exception e) {
-                        Log.w(TAG, "Failed to parse PCM line: " + line);
-                    }
+            for (Map.Entry<Integer, String> entry : pcmDevices.entrySet()) {
+                String line = entry.getValue().toLowerCase();
+                if (line.contains("voc_rec") ||
+                    line.contains("voice_rec") ||
+                    line.contains("incall_rec")) {
+                    Log.i(TAG, "Found voice recording device " + entry.getKey());
+                    return entry.getKey();
                 }
             }
         }
@@ -1050,22 +1150,55 @@ public class NativePCMAudioBridge {
                 return device;
             }
         }
+        return -1;
+    }
 
-        Log.w(TAG, "Could not determine best capture device, defaulting to 0");
-        return 0;
+    /**
+     * Card 0's PCM devices from /proc/asound/pcm, by device number
+     */
+    private Map<Integer, String> readPCMDevices(AudioDiscoveryCache cache) {
+        Map<Integer, String> devices = cache.pcmDevices();
+        if (devices != null) {
+            return devices;
+        }
+
+        devices = new TreeMap<>();
+        String pcmList = execRootSync("cat /proc/asound/pcm 2>/dev/null");
+        if (pcmList == null) {
+            return devices;
+        }
+        Log.i(TAG, "Available PCM devices:\n" + pcmList);
+
+        for (String line : pcmList.split("\n")) {
+            // Format: "00-00: MultiMedia1 : MultiMedia1 : playback 1 : capture 1"
+            if (!line.startsWith("00-")) {
+                continue;
+            }
+            try {
+                // Extract device number from "00-XX:"
+                String devPart = line.substring(3).split(":")[0].trim();
+                devices.put(Integer.parseInt(devPart), line.trim());
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Failed to parse PCM line: " + line);
+            }
+        }
+        if (!devices.isEmpty()) {
+            cache.putPcmDevices(devices);
+        }
+        return devices;
     }
 
     /**
      * Check if audio buffer is silent (all zeros or very low amplitude)
      */
     private boolean isAudioSilent(byte[] buffer, int length) {
-        return getMaxAmplitude(buffer, length) < 100;
+        return getMaxAmplitude(buffer, 0, length) < 100;
     }
 
     /**
      * Fallback: Use AudioRecord with root permission override
      */
-    private void captureWithAudioRecord() {
+    private CaptureSource openAudioRecordCapture() {
         Log.i(TAG, "Trying AudioRecord capture with permission override");
 
         try {
@@ -1104,180 +1237,102 @@ public class NativePCMAudioBridge {
 
                 if (audioRecord.getState() != android.media.AudioRecord.STATE_INITIALIZED) {
                     Log.e(TAG, "AudioRecord VOICE_CALL init also failed");
-                    return;
+                    audioRecord.release();
+                    return null;
                 }
             }
 
             Log.i(TAG, "AudioRecord initialized successfully");
             audioRecord.startRecording();
+            return new AudioRecordCapture(audioRecord);
 
-            byte[] pcmBuffer = new byte[BUFFER_SIZE];
-            byte[] rtpPacket = new byte[RTP_HEADER_SIZE + FRAME_SIZE];
-            int packetCount = 0;
-
-            while (running && !Thread.interrupted()) {
-                int bytesRead = audioRecord.read(pcmBuffer, 0, pcmBuffer.length);
-                if (bytesRead <= 0) {
-                    Thread.sleep(5);
-                    continue;
-                }
-
-                byte[] ulawData = pcmToUlaw(pcmBuffer, bytesRead);
-                buildRTPHeader(rtpPacket);
-                int payloadSize = Math.min(ulawData.length, FRAME_SIZE);
-                System.arraycopy(ulawData, 0, rtpPacket, RTP_HEADER_SIZE, payloadSize);
-
-                DatagramPacket packet = new DatagramPacket(
-                    rtpPacket,
-                    RTP_HEADER_SIZE + payloadSize,
-                    remoteAddress,
-                    remotePort
-                );
-                rtpSocket.send(packet);
+        } catch (Exception e) {
+            Log.e(TAG, "AudioRecord capture failed: " + e.getMessage(), e);
+            return null;
+        }
+    }
 
-                sequenceNumber++;
-                timestamp += FRAME_SIZE;
-                packetCount++;
+    // ==================== PLAYBACK (PBX → GSM) ====================
 
-                if (packetCount % 500 == 0) {
-                    Log.d(TAG, "AudioRecord capture: sent " + packetCount + " RTP packets");
-                }
-            }
+    /**
+     * Destination for de-jittered PCM frames (the PCM helper, tinyplay stdin
+     * or an AudioTrack)
+     */
+    private interface PcmSink {
+        void write(byte[] pcm, int length) throws IOException;
 
-            audioRecord.stop();
-            audioRecord.release();
+        void close();
 
-        } catch (Exception e) {
-            Log.e(TAG, "AudioRecord capture failed: " + e.getMessage(), e);
-        }
+        String getName();
     }
 
     /**
-     * Receive RTP and play into voice call
-     * Tries tinyplay first (more reliable for incall_music), then AudioTrack fallback
+     * Open the injection path: the PCM helper's playback ring if capture
+     * started it, else tinyplay (more reliable for incall_music), then
+     * AudioTrack fallbacks
      *
-     * This receives audio from PBX and injects it into the GSM call via Incall_Music
+     * This injects audio from PBX into the GSM call via Incall_Music
      */
-    private void playbackLoop() {
+    private PcmSink openPlaybackSink() {
         Log.i(TAG, "┌───────────────────────────────────────────────────────────┐");
-        Log.i(TAG, "│ PLAYBACK LOOP: PBX Voice → RTP → Incall_Music → GSM       │");
+        Log.i(TAG, "│ PLAYBACK PATH: PBX Voice → RTP → Incall_Music → GSM       │");
         Log.i(TAG, "├───────────────────────────────────────────────────────────┤");
         Log.i(TAG, "│ Source: RTP from PBX (port " + String.format("%-5d", localRtpPort) + ")                          │");
         Log.i(TAG, "│ Dest:   Incall_Music → GSM party                          │");
-        Log.i(TAG, "│ Codec:  G.711 μ-law @ 8kHz mono                           │");
+        Log.i(TAG, "│ Codec:  " + String.format("%-50s", "G.711 " + codec.getEncodingName() + " @ 8kHz mono, ptime " + ptimeMs + "ms") + " │");
         Log.i(TAG, "└───────────────────────────────────────────────────────────┘");
 
-        // Try tinyplay first - it routes more reliably to incall_music on SM6150
-        Log.i(TAG, "[PLAYBACK] Trying tinyplay (direct ALSA) first...");
-        if (!playbackWithTinyplay()) {
-            Log.w(TAG, "[PLAYBACK] ⚠ Tinyplay failed, falling back to AudioTrack");
-            playbackWithAudioTrack();
+        if (pcmSession != null && pcmSession.isOpen(PcmHelper.PLAYBACK)) {
+            Log.i(TAG, "[PLAYBACK] Injecting through the PCM helper, waiting for RTP packets from PBX...");
+            return new HelperSink(pcmSession);
         }
 
-        Log.i(TAG, "[PLAYBACK] Playback loop ended");
+        // Then tinyplay - it routes more reliably to incall_music on SM6150
+        Log.i(TAG, "[PLAYBACK] Trying tinyplay (direct ALSA)...");
+        PcmSink sink = openTinyplaySink();
+        if (sink == null) {
+            Log.w(TAG, "[PLAYBACK] ⚠ Tinyplay failed, falling back to AudioTrack");
+            sink = openAudioTrackSink();
+        }
+        return sink;
     }
 
     /**
      * Use tinyplay for incall music injection - more reliable on Qualcomm
      * Routes directly through ALSA to the incall_music mixer path
      */
-    private boolean playbackWithTinyplay() {
+    private PcmSink openTinyplaySink() {
         Log.i(TAG, "Starting tinyplay for incall_music injection");
 
         Process tinyplayProc = null;
-        DataOutputStream playbackOut = null;
-
         try {
             // Ensure incall music mixer is enabled for MultiMedia2
-            execRoot("tinymix 'Incall_Music Audio Mixer MultiMedia2' 1");
+            mixer.post("Incall_Music Audio Mixer MultiMedia2", "1");
 
             // Start tinyplay reading from stdin
             // Device 1 typically maps to MultiMedia2 on SM6150
             String tinyplayCmd = String.format(
-                "tinyplay /dev/stdin -D 0 -d 1 -c 1 -r %d -b 16",
-                SAMPLE_RATE
+                "tinyplay /dev/stdin -D 0 -d %d -c 1 -r %d -b 16",
+                INJECTION_PCM_DEVICE, SAMPLE_RATE
             );
             Log.i(TAG, "Starting tinyplay: " + tinyplayCmd);
 
-            tinyplayProc = Runtime.getRuntime().exec(new String[]{"su", "-c", tinyplayCmd});
-            playbackOut = new DataOutputStream(tinyplayProc.getOutputStream());
+            final Process proc = Runtime.getRuntime().exec(new String[]{"su", "-c", tinyplayCmd});
+            tinyplayProc = proc;
+            final DataOutputStream playbackOut = new DataOutputStream(proc.getOutputStream());
 
             // Write WAV header
-            byte[] wavHeader = createWavHeader();
-            playbackOut.write(wavHeader);
+            playbackOut.write(createWavHeader());
             playbackOut.flush();
 
-            byte[] rtpPacket = new byte[1500];
-            DatagramPacket packet = new DatagramPacket(rtpPacket, rtpPacket.length);
-            int packetCount = 0;
-            int timeoutCount = 0;
-            int maxAmplitudeSeen = 0;
-            long lastLogTime = System.currentTimeMillis();
-            long startTime = System.currentTimeMillis();
-            long lastPacketTime = 0;
-
             Log.i(TAG, "[PLAYBACK] Tinyplay ready, waiting for RTP packets from PBX...");
 
-            while (running && !Thread.interrupted()) {
-                try {
-                    rtpSocket.receive(packet);
-                    lastPacketTime = System.currentTimeMillis();
-                    timeoutCount = 0; // Reset timeout counter
-
-                    if (packet.getLength() < RTP_HEADER_SIZE) continue;
-
-                    int payloadLength = packet.getLength() - RTP_HEADER_SIZE;
-                    byte[] ulawData = new byte[payloadLength];
-                    System.arraycopy(rtpPacket, RTP_HEADER_SIZE, ulawData, 0, payloadLength);
-
-                    // Convert u-law to PCM
-                    byte[] pcmData = ulawToPcm(ulawData);
-
-                    // Track amplitude
-                    int amplitude = getMaxAmplitude(pcmData, pcmData.length);
-                    if (amplitude > maxAmplitudeSeen) maxAmplitudeSeen = amplitude;
-
-                    // Write to tinyplay
-                    playbackOut.write(pcmData);
-                    playbackOut.flush();
-
-                    packetCount++;
-
-                    // First packet log
-                    if (packetCount == 1) {
-                        Log.i(TAG, "[PLAYBACK] ✓ First RTP packet received from PBX!");
-                    }
-
-                    // Detailed logging every 5 seconds
-                    long now = System.currentTimeMillis();
-                    if (now - lastLogTime >= 5000) {
-                        long elapsed = (now - startTime) / 1000;
-                        Log.i(TAG, String.format("[PLAYBACK] Stats @ %ds: pkts=%d, maxAmp=%d, src=port %d",
-                            elapsed, packetCount, maxAmplitudeSeen, localRtpPort));
-                        maxAmplitudeSeen = 0;
-                        lastLogTime = now;
-                    }
-
-                } catch (java.net.SocketTimeoutException e) {
-                    timeoutCount++;
-                    // Warn if no packets for too long
-                    if (timeoutCount == 5) {
-                        Log.w(TAG, "[PLAYBACK] ⚠ No RTP from PBX for 5+ seconds - is PBX sending?");
-                    }
-                }
-            }
-
-            return true;
+            return new TinyplaySink(proc, playbackOut);
 
         } catch (Exception e) {
             Log.e(TAG, "Tinyplay playback error: " + e.getMessage(), e);
-            return false;
-
-        } finally {
-            try {
-                if (playbackOut != null) playbackOut.close();
-            } catch (Exception e) {}
             if (tinyplayProc != null) tinyplayProc.destroy();
+            return null;
         }
     }
 
@@ -1314,7 +1369,7 @@ public class NativePCMAudioBridge {
      * Use Android's AudioTrack for playback with USAGE_VOICE_COMMUNICATION
      * This routes audio through the incall_music path for voice call injection
      */
-    private void playbackWithAudioTrack() {
+    private PcmSink openAudioTrackSink() {
         Log.i(TAG, "Using AudioTrack for incall music playback");
 
         try {
@@ -1322,7 +1377,7 @@ public class NativePCMAudioBridge {
             execRoot("appops set com.shreeyash.gateway PLAY_AUDIO allow");
 
             // Ensure incall music routing is enabled (use MultiMedia2 to avoid echo)
-            execRoot("tinymix 'Incall_Music Audio Mixer MultiMedia2' 1");
+            mixer.post("Incall_Music Audio Mixer MultiMedia2", "1");
 
             int minBufferSize = android.media.AudioTrack.getMinBufferSize(
                 SAMPLE_RATE,
@@ -1372,53 +1427,22 @@ public class NativePCMAudioBridge {
 
                 if (audioTrack.getState() != android.media.AudioTrack.STATE_INITIALIZED) {
                     Log.e(TAG, "AudioTrack init failed, trying legacy stream");
-                    playbackWithLegacyAudioTrack();
-                    return;
+                    audioTrack.release();
+                    return openLegacyAudioTrackSink();
                 }
             }
 
             Log.i(TAG, "AudioTrack initialized for incall playback");
             audioTrack.play();
-
-            byte[] rtpPacket = new byte[1500];
-            DatagramPacket packet = new DatagramPacket(rtpPacket, rtpPacket.length);
-            int packetCount = 0;
-
-            while (running && !Thread.interrupted()) {
-                try {
-                    rtpSocket.receive(packet);
-
-                    if (packet.getLength() < RTP_HEADER_SIZE) continue;
-
-                    int payloadLength = packet.getLength() - RTP_HEADER_SIZE;
-                    byte[] ulawData = new byte[payloadLength];
-                    System.arraycopy(rtpPacket, RTP_HEADER_SIZE, ulawData, 0, payloadLength);
-
-                    byte[] pcmData = ulawToPcm(ulawData);
-                    int written = audioTrack.write(pcmData, 0, pcmData.length);
-
-                    packetCount++;
-                    if (packetCount % 500 == 0) {
-                        Log.d(TAG, "AudioTrack playback: " + packetCount + " packets, last write: " + written);
-                    }
-
-                } catch (java.net.SocketTimeoutException e) {
-                    // Normal timeout
-                }
-            }
-
-            audioTrack.stop();
-            audioTrack.release();
+            return new AudioTrackSink(audioTrack, "AudioTrack");
 
         } catch (Exception e) {
             Log.e(TAG, "AudioTrack playback failed: " + e.getMessage(), e);
+            return null;
         }
     }
 
-    /**
-     * Legacy AudioTrack playback using STREAM_VOICE_CALL
-     */
-    private void playbackWithLegacyAudioTrack() {
+    private PcmSink openLegacyAudioTrackSink() {
         Log.i(TAG, "Using legacy AudioTrack with STREAM_VOICE_CALL");
 
         try {
@@ -1440,125 +1464,577 @@ public class NativePCMAudioBridge {
 
             if (audioTrack.getState() != android.media.AudioTrack.STATE_INITIALIZED) {
                 Log.e(TAG, "Legacy AudioTrack init failed");
-                return;
+                audioTrack.release();
+                return null;
             }
 
             Log.i(TAG, "Legacy AudioTrack initialized");
             audioTrack.play();
+            return new AudioTrackSink(audioTrack, "Legacy AudioTrack");
 
-            byte[] rtpPacket = new byte[1500];
-            DatagramPacket packet = new DatagramPacket(rtpPacket, rtpPacket.length);
-            int packetCount = 0;
+        } catch (Exception e) {
+            Log.e(TAG, "Legacy AudioTrack playback failed: " + e.getMessage(), e);
+            return null;
+        }
+    }
 
-            while (running && !Thread.interrupted()) {
-                try {
-                    rtpSocket.receive(packet);
+    /**
+     * Playback ring of the PCM helper
+     */
+    private static class HelperSink implements PcmSink {
+        private final PcmHelper.Session session;
 
-                    if (packet.getLength() < RTP_HEADER_SIZE) continue;
+        HelperSink(PcmHelper.Session session) {
+            this.session = session;
+        }
 
-                    int payloadLength = packet.getLength() - RTP_HEADER_SIZE;
-                    byte[] ulawData = new byte[payloadLength];
-                    System.arraycopy(rtpPacket, RTP_HEADER_SIZE, ulawData, 0, payloadLength);
+        @Override
+        public void write(byte[] pcm, int length) throws IOException {
+            session.write(pcm, length);
+        }
 
-                    byte[] pcmData = ulawToPcm(ulawData);
-                    audioTrack.write(pcmData, 0, pcmData.length);
+        @Override
+        public void close() {
+            session.stop(PcmHelper.PLAYBACK);
+        }
 
-                    packetCount++;
-                    if (packetCount % 500 == 0) {
-                        Log.d(TAG, "Legacy AudioTrack playback: " + packetCount + " packets");
-                    }
+        @Override
+        public String getName() {
+            return "pcm helper";
+        }
+    }
 
-                } catch (java.net.SocketTimeoutException e) {
-                    // Normal timeout
+    /**
+     * tinyplay's stdin, written by its own thread: a full pipe blocks, and the
+     * reactor must not. Frames wait in a bounded queue; when tinyplay falls
+     * behind the oldest is dropped so latency stays bounded.
+     */
+    private static class TinyplaySink implements PcmSink {
+        private final Process process;
+        private final DataOutputStream out;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(TINYPLAY_QUEUE_FRAMES);
+        private final Thread writer;
+        private volatile IOException failure;
+        private volatile boolean closed = false;
+
+        TinyplaySink(Process process, DataOutputStream out) {
+            this.process = process;
+            this.out = out;
+            writer = new Thread(this::writeLoop, "PCM-Tinyplay");
+            writer.start();
+        }
+
+        private void writeLoop() {
+            try {
+                while (!closed) {
+                    byte[] pcm = queue.take();
+                    out.write(pcm);
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                // closed
+            } catch (IOException e) {
+                if (!closed) {
+                    failure = e;
                 }
             }
+        }
 
-            audioTrack.stop();
-            audioTrack.release();
+        @Override
+        public void write(byte[] pcm, int length) throws IOException {
+            IOException e = failure;
+            if (e != null) {
+                throw e;
+            }
+            byte[] copy = Arrays.copyOf(pcm, length);
+            while (!queue.offer(copy)) {
+                queue.poll();
+            }
+        }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Legacy AudioTrack playback failed: " + e.getMessage(), e);
+        @Override
+        public void close() {
+            closed = true;
+            writer.interrupt();
+            try {
+                out.close();
+            } catch (Exception e) { /* ignore */ }
+            process.destroy();
+        }
+
+        @Override
+        public String getName() {
+            return "tinyplay";
         }
     }
 
-    // ==================== RTP and CODEC ====================
+    /**
+     * AudioTrack written in non-blocking mode so the reactor never stalls
+     */
+    private static class AudioTrackSink implements PcmSink {
+        private final android.media.AudioTrack audioTrack;
+        private final String name;
 
-    private void buildRTPHeader(byte[] packet) {
-        ByteBuffer buffer = ByteBuffer.wrap(packet);
-        buffer.put(RTP_VERSION);
-        buffer.put(PAYLOAD_TYPE_PCMU);
-        buffer.putShort((short) sequenceNumber);
-        buffer.putInt((int) timestamp);
-        buffer.putInt(ssrc);
-    }
+        AudioTrackSink(android.media.AudioTrack audioTrack, String name) {
+            this.audioTrack = audioTrack;
+            this.name = name;
+        }
+
+        @Override
+        public void write(byte[] pcm, int length) throws IOException {
+            int written = audioTrack.write(pcm, 0, length, android.media.AudioTrack.WRITE_NON_BLOCKING);
+            if (written < 0) {
+                throw new IOException("AudioTrack write error " + written);
+            }
+        }
 
-    // G.711 u-law encoding table
-    private static final int[] ULAW_EXP_TABLE = {
-        0, 0, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 3, 3, 3, 3,
-        4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4,
-        5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5,
-        5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5,
-        6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6,
-        6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6,
-        6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6,
-        6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6,
-        7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-        7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-        7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-        7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-        7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-        7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-        7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-        7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7
-    };
-
-    private byte[] pcmToUlaw(byte[] pcmData, int length) {
-        byte[] ulaw = new byte[length / 2];
-        ByteBuffer buffer = ByteBuffer.wrap(pcmData).order(ByteOrder.LITTLE_ENDIAN);
-
-        for (int i = 0; i < ulaw.length && buffer.remaining() >= 2; i++) {
-            short sample = buffer.getShort();
-            ulaw[i] = linearToUlaw(sample);
-        }
-
-        return ulaw;
+        @Override
+        public void close() {
+            try {
+                audioTrack.stop();
+            } catch (Exception e) { /* ignore */ }
+            audioTrack.release();
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
     }
 
-    private byte[] ulawToPcm(byte[] ulawData) {
-        byte[] pcm = new byte[ulawData.length * 2];
-        ByteBuffer buffer = ByteBuffer.wrap(pcm).order(ByteOrder.LITTLE_ENDIAN);
+    // ==================== MEDIA SESSION ====================
+
+    /**
+     * Per-call media work, driven by the shared {@link MediaReactor}: RTP reads
+     * feed the jitter buffer, and every ptime tick packetizes captured PCM and
+     * plays out a tick's worth of de-jittered frames. Missing frames are concealed by the
+     * PLC so the sink never underruns.
+     */
+    private class MediaSession implements MediaReactor.Session {
+        private volatile CaptureSource capture;
+        private volatile PcmSink sink;
+
+        // Capture side: PCM accumulates until a full frame can be sent
+        private final byte[] captureBuffer = new byte[frameBytes * 8];
+        private int captureFill = 0;
+        private final byte[] sendPacket = new byte[RTP_HEADER_SIZE + frameSamples];
+        private boolean fallbackPending = false;
+
+        // Playback side
+        private final byte[] receivePacket = new byte[RtpTransport.MAX_PACKET_SIZE];
+        private final byte[] frame = new byte[JitterBuffer.MAX_PAYLOAD];
+        private final short[] samples = new short[JitterBuffer.MAX_PAYLOAD];
+        private final byte[] pcmData = new byte[JitterBuffer.MAX_PAYLOAD * 2];
+        private final JitterBuffer jitterBuffer = new JitterBuffer(frameSamples);
+        private final G711Plc plc = new G711Plc();
+        private int playoutDue = 0; // samples owed to the sink, in the remote's frame size
+        private volatile boolean playoutRestart = false;  // set by updateMedia, done on the tick
+
+        // DTMF (RFC 4733 telephone-event) in both directions
+        private final DtmfSender dtmfSender = new DtmfSender(SAMPLE_RATE);
+        private final DtmfReceiver dtmfReceiver = new DtmfReceiver(SAMPLE_RATE, new DtmfReceiver.Listener() {
+            @Override
+            public void onDtmfStart(char digit) {
+                DtmfReceiver.Listener listener = dtmfListener;
+                if (listener != null) listener.onDtmfStart(digit);
+            }
+
+            @Override
+            public void onDtmfEnd(char digit, int durationMs) {
+                DtmfReceiver.Listener listener = dtmfListener;
+                if (listener != null) listener.onDtmfEnd(digit, durationMs);
+            }
+        });
+
+        // Stats
+        private final long startTime = System.currentTimeMillis();
+        private long lastLogTime = startTime;
+        private long lastPacketTime = startTime;
+        private boolean silenceWarned = false;
+        private int sentPackets = 0;
+        private int silentPackets = 0;
+        private int totalSilentPackets = 0;
+        private int maxCaptureAmplitude = 0;
+        private int receivedPackets = 0;
+        private int maxPlaybackAmplitude = 0;
+
+        MediaSession(CaptureSource capture, PcmSink sink) {
+            this.capture = capture;
+            this.sink = sink;
+        }
+
+        @Override
+        public long getTickIntervalNanos() {
+            return frameSamples * 1_000_000_000L / SAMPLE_RATE;
+        }
+
+        /**
+         * The remote stream changed: drop what is buffered on the next tick
+         */
+        void restartPlayout() {
+            playoutRestart = true;
+        }
+
+        @Override
+        public void onReadable() throws IOException {
+            int length;
+            while ((length = rtpTransport.receive(receivePacket, 0)) >= 0) {
+                lastPacketTime = System.currentTimeMillis();
+                silenceWarned = false;
+                if (!receiving || localHold) {
+                    continue;  // on hold: drain the socket, play nothing
+                }
+
+                long arrivalNanos = System.nanoTime();
+                if (length < RTP_HEADER_SIZE || (receivePacket[0] & 0xC0) != 0x80) {
+                    continue;
+                }
+                int payloadType = RtpHeader.getPayloadType(receivePacket, 0);
+                if (payloadType == dtmfPayloadType) {
+                    // DTMF shares the audio's sequence space but must never reach the
+                    // decoder; the jitter buffer conceals the gap it leaves
+                    rtcpSession.onRtpReceived(receivePacket, 0, arrivalNanos);
+                    dtmfReceiver.onPacket(receivePacket, 0, length, arrivalNanos);
+                    continue;
+                }
+                if (payloadType != codec.getPayloadType()) {
+                    continue;  // comfort noise (PT 13) or a codec we did not negotiate
+                }
+
+                if (jitterBuffer.put(receivePacket, 0, length, arrivalNanos)) {
+                    rtcpSession.onRtpReceived(receivePacket, 0, arrivalNanos);
+                    receivedPackets++;
+                    if (receivedPackets == 1) {
+                        Log.i(TAG, "[PLAYBACK] ✓ First RTP packet received from PBX!");
+                    }
+                }
+            }
+        }
 
-        for (byte ulaw : ulawData) {
-            short sample = ulawToLinear(ulaw);
-            buffer.putShort(sample);
+        @Override
+        public void onTick() throws IOException {
+            if (playoutRestart) {
+                playoutRestart = false;
+                jitterBuffer.reset();
+                playoutDue = 0;
+                lastPacketTime = System.currentTimeMillis();
+            }
+            dtmfReceiver.checkTimeout(System.nanoTime());
+            captureTick();
+            playoutTick();
+            logStats();
+        }
+
+        @Override
+        public void onError(Exception e) {
+            if (running && bridgeListener != null) {
+                bridgeListener.onBridgeFailure("Media session failed: " + e.getMessage());
+            }
         }
 
-        return pcm;
+        /**
+         * Pull whatever the capture source has and send every complete frame
+         */
+        private void captureTick() throws IOException {
+            CaptureSource source = capture;
+            if (source == null) {
+                return;
+            }
+
+            int read;
+            try {
+                while (captureFill < captureBuffer.length &&
+                       (read = source.read(captureBuffer, captureFill, captureBuffer.length - captureFill)) != 0) {
+                    if (read < 0) {
+                        throw new IOException(source.getName() + " ended");
+                    }
+                    captureFill += read;
+                    consecutiveFailures = 0;
+                }
+            } catch (IOException e) {
+                onCaptureFailure(source, e);
+                return;
+            }
+
+            int offset = 0;
+            while (captureFill - offset >= frameBytes) {
+                sendFrame(captureBuffer, offset);
+                offset += frameBytes;
+            }
+            if (offset > 0) {
+                captureFill -= offset;
+                System.arraycopy(captureBuffer, offset, captureBuffer, 0, captureFill);
+            }
+        }
+
+        private void sendFrame(byte[] pcm, int offset) throws IOException {
+            if (!sending || localHold) {
+                // On hold: nothing goes out, but the clock keeps running (RFC 3550 section 5.1)
+                timestamp += frameSamples;
+                return;
+            }
+            if (dtmfSender.isActive()) {
+                // A telephone-event packet replaces this audio frame
+                sendDtmfPacket();
+                return;
+            }
+
+            // Check if audio is silent (all zeros or very low amplitude)
+            int amplitude = getMaxAmplitude(pcm, offset, frameBytes);
+            if (amplitude > maxCaptureAmplitude) {
+                maxCaptureAmplitude = amplitude;
+            }
+            if (amplitude < 100) {
+                silentPackets++;
+                totalSilentPackets++;
+            } else {
+                silentPackets = 0; // Reset consecutive silent counter
+            }
+
+            // Build RTP packet and encode PCM to G.711 straight into its payload
+            buildRTPHeader(sendPacket);
+            codec.encode(pcm, offset, sendPacket, RTP_HEADER_SIZE, frameSamples);
+            if (rtpTransport.send(sendPacket, 0, sendPacket.length)) {
+                rtcpSession.onRtpSent(frameSamples, timestamp);
+            }
+
+            sequenceNumber = (sequenceNumber + 1) & 0xFFFF;
+            timestamp += frameSamples;
+            sentPackets++;
+        }
+
+        private void sendDtmfPacket() throws IOException {
+            int length = dtmfSender.nextPayload(sendPacket, RTP_HEADER_SIZE, frameSamples);
+            RtpHeader.write(sendPacket, 0, dtmfSender.consumeMarker(), dtmfPayloadType,
+                sequenceNumber, dtmfSender.getTimestamp(), ssrc);
+            if (rtpTransport.send(sendPacket, 0, RTP_HEADER_SIZE + length)) {
+                rtcpSession.onRtpSent(length, timestamp);
+            }
+
+            sequenceNumber = (sequenceNumber + 1) & 0xFFFF;
+            timestamp += frameSamples;
+            sentPackets++;
+        }
+
+        /**
+         * Capture died mid-call: fall back to AudioRecord off the reactor thread
+         * (its setup sleeps), or give up after repeated failures
+         */
+        private void onCaptureFailure(CaptureSource source, IOException e) {
+            Log.e(TAG, "Capture error (" + source.getName() + "): " + e.getMessage());
+            source.close();
+            capture = null;
+            captureFill = 0;
+            consecutiveFailures++;
+
+            if (consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+                Log.e(TAG, "Too many consecutive capture failures, notifying bridge failure");
+                if (bridgeListener != null) {
+                    bridgeListener.onBridgeFailure("Capture failed: " + e.getMessage());
+                }
+                return;
+            }
+            if (fallbackPending || source instanceof AudioRecordCapture) {
+                return;
+            }
+
+            fallbackPending = true;
+            new Thread(() -> {
+                CaptureSource fallback = openAudioRecordCapture();
+                if (fallback != null && !running) {
+                    fallback.close();
+                    return;
+                }
+                capture = fallback;
+            }, "PCM-CaptureFallback").start();
+        }
+
+        /**
+         * Play out one tick's worth of audio from the jitter buffer. The remote
+         * may packetize differently from us (20ms frames against our 40ms
+         * tick, say), so whole frames are pulled until the tick is covered.
+         */
+        private void playoutTick() {
+            playoutDue += frameSamples;
+            while (playoutDue > 0) {
+                int played = playoutFrame();
+                if (played <= 0) {
+                    playoutDue = 0;
+                    return;
+                }
+                playoutDue -= played;
+            }
+        }
+
+        /**
+         * Play out one frame, concealing gaps
+         *
+         * @return samples played, or 0 if buffering or there is no sink
+         */
+        private int playoutFrame() {
+            PcmSink out = sink;
+            if (out == null) {
+                return 0;
+            }
+
+            int payloadLength = jitterBuffer.poll(frame, 0);
+            if (payloadLength == JitterBuffer.BUFFERING) {
+                return 0;
+            }
+
+            int pcmLength;
+            if (payloadLength == JitterBuffer.MISSING) {
+                // Lost frame - synthesize a replacement from recent pitch
+                int concealSamples = jitterBuffer.getSamplesPerFrame();
+                plc.conceal(samples, 0, concealSamples);
+                Pcm16.toBytes(samples, 0, pcmData, 0, concealSamples);
+                pcmLength = concealSamples * 2;
+            } else {
+                codec.decode(frame, 0, samples, 0, payloadLength);
+                plc.receive(samples, 0, payloadLength);
+                Pcm16.toBytes(samples, 0, pcmData, 0, payloadLength);
+                pcmLength = payloadLength * 2;
+
+                int amplitude = getMaxAmplitude(pcmData, 0, pcmLength);
+                if (amplitude > maxPlaybackAmplitude) maxPlaybackAmplitude = amplitude;
+            }
+
+            try {
+                out.write(pcmData, pcmLength);
+            } catch (IOException e) {
+                Log.e(TAG, "[PLAYBACK] " + out.getName() + " write failed: " + e.getMessage());
+                out.close();
+                sink = null;
+                if (!(out instanceof AudioTrackSink)) {
+                    Log.w(TAG, "[PLAYBACK] ⚠ Falling back to AudioTrack");
+                    sink = openAudioTrackSink();
+                }
+                if (sink == null) {
+                    onPlaybackFailure(e);
+                }
+                return 0;
+            }
+            return pcmLength / 2;
+        }
+
+        /**
+         * No sink left to play into - the caller would hear nothing, so let
+         * the bridge owner end or reroute the call rather than run on silent
+         */
+        private void onPlaybackFailure(IOException e) {
+            Log.e(TAG, "[PLAYBACK] No playback sink left, notifying bridge failure");
+            if (running && bridgeListener != null) {
+                bridgeListener.onBridgeFailure("Playback failed: " + e.getMessage());
+            }
+        }
+
+        private void logStats() {
+            long now = System.currentTimeMillis();
+            if (!silenceWarned && receiving && now - lastPacketTime >= 5000) {
+                Log.w(TAG, "[PLAYBACK] ⚠ No RTP from PBX for 5+ seconds - is PBX sending?");
+                silenceWarned = true;
+            }
+            if (now - lastLogTime < 5000) {
+                return;
+            }
+
+            // Detailed logging every 5 seconds
+            long elapsed = (now - startTime) / 1000;
+            float silentPct = (sentPackets > 0) ? (totalSilentPackets * 100.0f / sentPackets) : 0;
+            if (silentPackets > 100) {
+                Log.w(TAG, "[CAPTURE] ⚠ SILENT AUDIO DETECTED! Check VOC_REC_DL mixer routing!");
+            }
+            Log.i(TAG, String.format("[CAPTURE] Stats @ %ds: pkts=%d, silent=%.1f%%, maxAmp=%d, dest=%s:%d, src=%s",
+                elapsed, sentPackets, silentPct, maxCaptureAmplitude, remoteHost, remotePort,
+                capture != null ? capture.getName() : "none"));
+            Log.i(TAG, String.format("[PLAYBACK] Stats @ %ds: pkts=%d, maxAmp=%d, src=port %d, %s, plc=%d, sink=%s",
+                elapsed, receivedPackets, maxPlaybackAmplitude, localRtpPort, jitterBuffer,
+                plc.getConcealedFrames(), sink != null ? sink.getName() : "none"));
+
+            maxCaptureAmplitude = 0;
+            maxPlaybackAmplitude = 0;
+            lastLogTime = now;
+        }
+
+        void close() {
+            CaptureSource source = capture;
+            capture = null;
+            if (source != null) {
+                source.close();
+            }
+            PcmSink out = sink;
+            sink = null;
+            if (out != null) {
+                out.close();
+            }
+        }
     }
 
-    private byte linearToUlaw(short sample) {
-        int sign = (sample >> 8) & 0x80;
-        if (sign != 0) sample = (short) -sample;
-        if (sample > 32635) sample = 32635;
+    // ==================== DTMF ====================
 
-        sample = (short) (sample + 0x84);
-        int exponent = ULAW_EXP_TABLE[(sample >> 7) & 0xFF];
-        int mantissa = (sample >> (exponent + 3)) & 0x0F;
-        int ulawByte = ~(sign | (exponent << 4) | mantissa);
+    /**
+     * Start sending a DTMF digit to the PBX as RFC 4733 telephone-events,
+     * held until {@link #stopDtmf()}
+     */
+    public boolean startDtmf(char digit) {
+        return postDtmf(session -> session.dtmfSender.start(digit, timestamp));
+    }
 
-        return (byte) ulawByte;
+    /**
+     * Release the digit started by {@link #startDtmf(char)}
+     */
+    public boolean stopDtmf() {
+        return postDtmf(session -> session.dtmfSender.stop());
     }
 
-    private short ulawToLinear(byte ulawByte) {
-        ulawByte = (byte) ~ulawByte;
-        int sign = ulawByte & 0x80;
-        int exponent = (ulawByte >> 4) & 0x07;
-        int mantissa = ulawByte & 0x0F;
+    /**
+     * Send a DTMF digit for a fixed duration
+     */
+    public boolean sendDtmf(char digit, int durationMs) {
+        return postDtmf(session -> session.dtmfSender.start(digit, timestamp, durationMs));
+    }
 
-        int sample = ((mantissa << 3) + 0x84) << exponent;
-        if (sign != 0) sample = -sample;
+    private interface DtmfAction {
+        void apply(MediaSession session);
+    }
 
-        return (short) sample;
+    /**
+     * The DTMF sender belongs to the reactor thread, so hand it the request
+     */
+    private boolean postDtmf(DtmfAction action) {
+        final MediaSession session = mediaSession;
+        if (!running || session == null) {
+            Log.w(TAG, "[DTMF] Bridge not running, ignoring DTMF request");
+            return false;
+        }
+        if (dtmfPayloadType < 0) {
+            Log.w(TAG, "[DTMF] telephone-event not negotiated, ignoring DTMF request");
+            return false;
+        }
+        try {
+            MediaReactor.getInstance().execute(() -> action.apply(session));
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "[DTMF] Failed to reach media reactor: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // ==================== RTCP ====================
+
+    /**
+     * Latest RTCP quality metrics for the current (or last) call, or null
+     * if no call has been bridged yet
+     */
+    public CallQuality getCallQuality() {
+        RtcpSession session = rtcpSession;
+        return session != null ? session.getQuality() : null;
+    }
+
+    // ==================== RTP and CODEC ====================
+
+    private void buildRTPHeader(byte[] packet) {
+        RtpHeader.write(packet, 0, false, codec.getPayloadType(), sequenceNumber, timestamp, ssrc);
     }
 
     public boolean isRunning() {
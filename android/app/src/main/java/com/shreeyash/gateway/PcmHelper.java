@@ -0,0 +1,316 @@
+package com.shreeyash.gateway;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Voice call PCM through a root helper that opens the capture and injection
+ * devices itself (src/main/jni/pcm_helper.c) and exchanges audio with us
+ * over two shared-memory rings (src/main/jni/pcm_ring.h).
+ *
+ * One helper is started through su per call. It reads and writes the
+ * devices a period at a time, with the period size we ask for, so a frame
+ * is in the app one period after the DSP produced it instead of after
+ * tinycap's and the pipe's buffering; playback is kept fed with silence
+ * while nothing is queued. Reads and writes here never block.
+ *
+ * If the helper or its ring library is not packaged, the devices do not
+ * open, or the socket is held by anything but root, open() returns null
+ * and callers keep using tinycap/tinyplay.
+ */
+final class PcmHelper {
+    private static final String TAG = "PcmHelper";
+
+    private static final String HELPER = "libpcmhelper.so";
+    private static final String SOCKET_NAME = "gsmgateway.pcm";
+    private static final int CARD = 0;
+
+    static final int CAPTURE = 0;
+    static final int PLAYBACK = 1;
+
+    private static final long CONNECT_TIMEOUT_MS = 1000;
+    private static final long CONNECT_POLL_MS = 50;
+    private static final int IO_TIMEOUT_MS = 2000;
+    private static final long STALL_MS = 1000;
+
+    private static final boolean RING_LOADED = loadRingLibrary();
+
+    private static PcmHelper shared;
+
+    private String helperPath;
+    private int clientUid;
+
+    private PcmHelper() {}
+
+    static synchronized PcmHelper shared() {
+        if (shared == null) {
+            shared = new PcmHelper();
+        }
+        return shared;
+    }
+
+    /**
+     * Locate the helper; until this is called open() always fails
+     */
+    synchronized void init(Context context) {
+        ApplicationInfo info = context.getApplicationInfo();
+        helperPath = new File(info.nativeLibraryDir, HELPER).getPath();
+        clientUid = info.uid;
+    }
+
+    /**
+     * One call's streams: the helper connection and the mapped rings
+     */
+    static final class Session {
+        private final LocalSocket socket;
+        private final OutputStream out;
+        private long ring;
+        private final boolean[] open = new boolean[2];
+        private final long[] lastProgress = new long[2];
+
+        Session(LocalSocket socket, OutputStream out, long ring, boolean capture, boolean playback) {
+            this.socket = socket;
+            this.out = out;
+            this.ring = ring;
+            open[CAPTURE] = capture;
+            open[PLAYBACK] = playback;
+            long now = System.currentTimeMillis();
+            lastProgress[CAPTURE] = now;
+            lastProgress[PLAYBACK] = now;
+        }
+
+        synchronized boolean isOpen(int direction) {
+            return open[direction];
+        }
+
+        /**
+         * Take whatever captured PCM is queued, without blocking
+         *
+         * @return bytes read (0 if none yet), or -1 once capture has ended
+         */
+        synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+            if (!open[CAPTURE]) {
+                return -1;
+            }
+            int read = nativeRead(ring, buffer, offset, length);
+            long now = System.currentTimeMillis();
+            if (read != 0) {
+                lastProgress[CAPTURE] = now;
+            } else if (now - lastProgress[CAPTURE] > STALL_MS) {
+                throw new IOException("no capture from helper for " + STALL_MS + "ms");
+            }
+            return read;
+        }
+
+        /**
+         * Queue PCM for the injection device; what does not fit is dropped
+         */
+        synchronized void write(byte[] pcm, int length) throws IOException {
+            if (!open[PLAYBACK]) {
+                throw new IOException("playback closed");
+            }
+            int written = nativeWrite(ring, pcm, 0, length);
+            if (written < 0) {
+                throw new IOException("helper playback ended");
+            }
+            long now = System.currentTimeMillis();
+            if (written > 0 || length == 0) {
+                lastProgress[PLAYBACK] = now;
+            } else if (now - lastProgress[PLAYBACK] > STALL_MS) {
+                throw new IOException("helper not consuming playback for " + STALL_MS + "ms");
+            }
+        }
+
+        /**
+         * Stop one direction and release its device, e.g. for a fallback
+         * that needs it; the session closes once both are stopped
+         */
+        synchronized void stop(int direction) {
+            if (!open[direction]) {
+                return;
+            }
+            open[direction] = false;
+            send("STOP " + (direction == CAPTURE ? "capture" : "playback"));
+            if (!open[CAPTURE] && !open[PLAYBACK]) {
+                close();
+            }
+        }
+
+        synchronized void close() {
+            if (ring == 0) {
+                return;
+            }
+            open[CAPTURE] = false;
+            open[PLAYBACK] = false;
+            send("QUIT");
+            closeQuietly(socket);
+            Log.i(TAG, "PCM helper stopped: " + nativeXruns(ring, CAPTURE) + " capture periods dropped, " +
+                       nativeXruns(ring, PLAYBACK) + " playback periods of silence");
+            nativeUnmap(ring);
+            ring = 0;
+        }
+
+        private void send(String request) {
+            try {
+                out.write((request + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } catch (IOException e) {
+                // helper already gone; its streams ended with it
+            }
+        }
+    }
+
+    /**
+     * Start a helper and open the voice devices on card 0
+     *
+     * @param captureDevice  PCM device to capture from, or -1
+     * @param playbackDevice PCM device to inject into, or -1
+     * @param periodFrames   frames per period (at least; the driver may round up)
+     * @return the session, with at least one direction open, or null
+     */
+    Session open(int captureDevice, int playbackDevice, int rate, int periodFrames,
+                 int capturePeriods, int playbackPeriods) {
+        String path;
+        int uid;
+        synchronized (this) {
+            path = helperPath;
+            uid = clientUid;
+        }
+        if (path == null || !RING_LOADED) {
+            return null;
+        }
+        if (!new File(path).exists()) {
+            Log.w(TAG, "PCM helper not packaged");
+            return null;
+        }
+
+        LocalSocket socket = tryConnect();
+        if (socket == null) {
+            Log.i(TAG, "Starting PCM helper...");
+            RootShell.shared().post(path + " " + SOCKET_NAME + " " + uid + " " + CARD + " &");
+            long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+            while ((socket = tryConnect()) == null) {
+                if (System.currentTimeMillis() >= deadline) {
+                    Log.w(TAG, "PCM helper did not start");
+                    return null;
+                }
+                try {
+                    Thread.sleep(CONNECT_POLL_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
+
+        FileDescriptor[] fds = null;
+        try {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String request = "OPEN " + captureDevice + " " + playbackDevice + " " + rate + " " +
+                             periodFrames + " " + capturePeriods + " " + playbackPeriods + "\n";
+            out.write(request.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            // OK <ring bytes> <capture 0|1> <playback 0|1>, with the ring's fd attached
+            String reply = in.readLine();
+            fds = socket.getAncillaryFileDescriptors();
+            if (reply == null || !reply.startsWith("OK ")) {
+                throw new IOException(reply != null ? reply : "helper closed");
+            }
+            String[] fields = reply.split(" ");
+            if (fields.length < 4 || fds == null || fds.length == 0) {
+                throw new IOException("bad reply: " + reply);
+            }
+            int size = Integer.parseInt(fields[1]);
+            long ring = nativeMap(ParcelFileDescriptor.dup(fds[0]).detachFd(), size);
+            if (ring == 0) {
+                throw new IOException("could not map ring");
+            }
+
+            Session session = new Session(socket, out, ring, fields[2].equals("1"), fields[3].equals("1"));
+            Log.i(TAG, "PCM helper open: capture " + (session.isOpen(CAPTURE) ? "device " + captureDevice : "off") +
+                       ", playback " + (session.isOpen(PLAYBACK) ? "device " + playbackDevice : "off") +
+                       ", " + periodFrames + "-frame periods, " + size + "-byte rings");
+            return session;
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "PCM helper open failed: " + e.getMessage());
+            closeQuietly(socket);
+            return null;
+        } finally {
+            if (fds != null) {
+                for (FileDescriptor fd : fds) {
+                    try {
+                        Os.close(fd);
+                    } catch (ErrnoException e) {
+                        // ignore
+                    }
+                }
+            }
+        }
+    }
+
+    private static LocalSocket tryConnect() {
+        LocalSocket s = new LocalSocket();
+        try {
+            s.connect(new LocalSocketAddress(SOCKET_NAME, LocalSocketAddress.Namespace.ABSTRACT));
+            // Any app can bind an abstract name; only a root helper gets call audio
+            int peerUid = s.getPeerCredentials().getUid();
+            if (peerUid != 0) {
+                Log.e(TAG, "PCM socket held by uid " + peerUid + ", not the root helper");
+                closeQuietly(s);
+                return null;
+            }
+            s.setSoTimeout(IO_TIMEOUT_MS);
+            return s;
+        } catch (IOException e) {
+            closeQuietly(s);
+            return null;
+        }
+    }
+
+    private static void closeQuietly(LocalSocket s) {
+        try {
+            s.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private static boolean loadRingLibrary() {
+        try {
+            System.loadLibrary("pcmring");
+            return true;
+        } catch (UnsatisfiedLinkError e) {
+            Log.w(TAG, "PCM ring library not packaged: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // ==================== NATIVE (src/main/jni/pcm_ring.c) ====================
+
+    private static native long nativeMap(int fd, int size);
+
+    private static native void nativeUnmap(long ring);
+
+    private static native int nativeRead(long ring, byte[] buffer, int offset, int length);
+
+    private static native int nativeWrite(long ring, byte[] buffer, int offset, int length);
+
+    private static native int nativeXruns(long ring, int direction);
+}
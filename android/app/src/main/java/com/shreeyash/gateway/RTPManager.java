@@ -7,15 +7,27 @@ import android.media.AudioTrack;
 import android.media.MediaRecorder;
 import android.util.Log;
 
+import com.shreeyash.gateway.codec.G711Codec;
+import com.shreeyash.gateway.rtp.CallQuality;
+import com.shreeyash.gateway.rtp.DtmfReceiver;
+import com.shreeyash.gateway.rtp.JitterBuffer;
+import com.shreeyash.gateway.rtp.MediaReactor;
+import com.shreeyash.gateway.rtp.PlayoutClock;
+import com.shreeyash.gateway.rtp.RtcpReporter;
+import com.shreeyash.gateway.rtp.RtcpSession;
+import com.shreeyash.gateway.rtp.RtpHeader;
+import com.shreeyash.gateway.rtp.RtpTransport;
+import com.shreeyash.gateway.rtp.TelephoneEvent;
+import com.shreeyash.gateway.sip.SipResolver;
+
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.nio.ByteBuffer;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
 
 /**
  * Manages RTP audio streaming between GSM call and SIP endpoint
- * Uses G.711 u-law codec at 8kHz (standard telephony)
+ * Uses G.711 u-law or A-law (as negotiated) at 8kHz (standard telephony)
  */
 public class RTPManager {
     private static final String TAG = "RTPManager";
@@ -25,18 +37,23 @@ public class RTPManager {
     private String remoteHost;       // Remote RTP host (from SDP)
     private int remotePort;          // Remote RTP port (from SDP)
 
-    // Audio Configuration (G.711 u-law, 8kHz telephony standard)
+    // Audio Configuration (G.711, 8kHz telephony standard)
     private static final int SAMPLE_RATE = 8000;
     private static final int CHANNEL_CONFIG = AudioFormat.CHANNEL_IN_MONO;
     private static final int AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
-    private static final int FRAME_SIZE = 160; // 20ms at 8kHz
 
     // RTP Header
     private static final int RTP_HEADER_SIZE = 12;
-    private static final byte RTP_VERSION = (byte) 0x80;
-    private static final byte PAYLOAD_TYPE_PCMU = 0; // G.711 u-law
 
-    private DatagramSocket rtpSocket;
+    private G711Codec codec = G711Codec.PCMU;
+    private int frameSamples = G711Codec.frameSamples(G711Codec.DEFAULT_PTIME);
+    private volatile int dtmfPayloadType = TelephoneEvent.PAYLOAD_TYPE;
+    private volatile DtmfReceiver.Listener dtmfListener;
+
+    private RtpTransport rtpTransport;
+    private RtpTransport rtcpTransport;  // next port up, reported on from the media reactor
+    private volatile RtcpSession rtcpSession;
+    private RtcpReporter rtcpReporter;
     private InetAddress remoteAddress;
     private AudioRecord audioRecord;
     private AudioTrack audioTrack;
@@ -63,6 +80,41 @@ public class RTPManager {
         Log.i(TAG, "Remote RTP address set: " + host + ":" + port);
     }
 
+    /**
+     * Select the negotiated G.711 codec (PT 0 = PCMU, 8 = PCMA).
+     * Call before start().
+     */
+    public void setPayloadType(int payloadType) {
+        codec = G711Codec.forNegotiatedPayloadType(payloadType);
+    }
+
+    /**
+     * Select the negotiated telephone-event payload type, or -1 if the PBX
+     * did not accept RFC 4733. Call before start().
+     */
+    public void setDtmfPayloadType(int payloadType) {
+        dtmfPayloadType = payloadType;
+    }
+
+    /**
+     * DTMF digits received from the PBX (RFC 4733), called on the RTP-Receive thread
+     */
+    public void setDtmfListener(DtmfReceiver.Listener listener) {
+        this.dtmfListener = listener;
+    }
+
+    /**
+     * Set the packetization time (10/20/30/40 ms) we send at.
+     * Call before start().
+     */
+    public void setPtime(int ptimeMs) {
+        if (!G711Codec.isSupportedPtime(ptimeMs)) {
+            Log.w(TAG, "Unsupported ptime " + ptimeMs + "ms, using " + G711Codec.DEFAULT_PTIME + "ms");
+            ptimeMs = G711Codec.DEFAULT_PTIME;
+        }
+        frameSamples = G711Codec.frameSamples(ptimeMs);
+    }
+
     /**
      * Start RTP streaming (runs network init on background thread)
      */
@@ -99,15 +151,15 @@ public class RTPManager {
     private void initializeRTP() throws Exception {
         try {
             // Resolve remote address
-            remoteAddress = InetAddress.getByName(remoteHost);
+            remoteAddress = SipResolver.shared().resolveAddress(remoteHost);
 
-            // Create RTP socket bound to local port (try alternate ports if busy)
+            // Open RTP channel bound to local port (try alternate ports if busy)
             int port = localRtpPort;
             for (int attempt = 0; attempt < 5; attempt++) {
                 try {
-                    rtpSocket = new DatagramSocket(port);
-                    rtpSocket.setSoTimeout(1000); // 1 second timeout for receives
-                    Log.i(TAG, "RTP socket bound to port " + port);
+                    rtpTransport = RtpTransport.open(port);
+                    rtpTransport.setRemote(new InetSocketAddress(remoteAddress, remotePort));
+                    Log.i(TAG, "RTP channel bound to port " + port);
                     break;
                 } catch (java.net.BindException e) {
                     Log.w(TAG, "Port " + port + " in use, trying " + (port + 2));
@@ -119,14 +171,22 @@ public class RTPManager {
                 }
             }
 
-            if (rtpSocket == null) {
-                Log.e(TAG, "Failed to create RTP socket");
+            if (rtpTransport == null) {
+                Log.e(TAG, "Failed to open RTP channel");
                 return;
             }
 
             Log.i(TAG, String.format("RTP socket created: local=%d, remote=%s:%d",
                 port, remoteHost, remotePort));
 
+            // RTCP on the next port up (RFC 3550 section 11)
+            rtcpTransport = RtpTransport.open(port + 1);
+            rtcpTransport.setRemote(new InetSocketAddress(remoteAddress, remotePort + 1));
+            rtcpSession = new RtcpSession(ssrc, SAMPLE_RATE,
+                "gsmgateway-" + port + "-" + Integer.toHexString(ssrc));
+            rtcpReporter = new RtcpReporter(rtcpSession, rtcpTransport);
+            MediaReactor.getInstance().attach(rtcpTransport, rtcpReporter);
+
             // Initialize audio recording (from GSM microphone)
             int minBufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE, CHANNEL_CONFIG, AUDIO_FORMAT);
             audioRecord = new AudioRecord(
@@ -189,9 +249,10 @@ public class RTPManager {
      */
     private void cleanup() {
         running = false;
-        if (rtpSocket != null && !rtpSocket.isClosed()) {
-            rtpSocket.close();
-            rtpSocket = null;
+        stopRtcp();
+        if (rtpTransport != null) {
+            rtpTransport.close();
+            rtpTransport = null;
         }
         if (audioRecord != null) {
             try { audioRecord.release(); } catch (Exception e) {}
@@ -236,52 +297,77 @@ public class RTPManager {
             audioTrack = null;
         }
 
-        if (rtpSocket != null && !rtpSocket.isClosed()) {
-            rtpSocket.close();
-            rtpSocket = null;
+        stopRtcp();
+        if (rtpTransport != null) {
+            rtpTransport.close();
+            rtpTransport = null;
         }
 
         Log.i(TAG, "RTP streaming stopped");
     }
 
+    /**
+     * Detach the reporter, say BYE and close the RTCP port
+     */
+    private void stopRtcp() {
+        if (rtcpReporter != null) {
+            try {
+                MediaReactor.getInstance().detach(rtcpReporter);
+            } catch (IOException e) {
+                Log.e(TAG, "Error detaching RTCP reporter", e);
+            }
+            rtcpReporter.sendBye();
+            rtcpReporter = null;
+            Log.i(TAG, "Final call quality: " + rtcpSession.getQuality());
+        }
+        if (rtcpTransport != null) {
+            rtcpTransport.close();
+            rtcpTransport = null;
+        }
+    }
+
+    /**
+     * Latest RTCP quality metrics, or null before the first start()
+     */
+    public CallQuality getCallQuality() {
+        RtcpSession session = rtcpSession;
+        return session != null ? session.getQuality() : null;
+    }
+
     /**
      * Send audio from GSM to SIP via RTP
      */
     private void sendRTPLoop() {
         // Validate required objects
-        if (rtpSocket == null || audioRecord == null || remoteAddress == null) {
+        final RtpTransport transport = rtpTransport;
+        final RtcpSession rtcp = rtcpSession;
+        if (transport == null || audioRecord == null || remoteAddress == null) {
             Log.e(TAG, "RTP send loop cannot start - missing required objects");
             return;
         }
 
-        byte[] audioBuffer = new byte[FRAME_SIZE * 2]; // 16-bit samples
-        byte[] rtpPacket = new byte[RTP_HEADER_SIZE + FRAME_SIZE];
+        byte[] audioBuffer = new byte[frameSamples * 2]; // 16-bit samples
+        byte[] rtpPacket = new byte[RTP_HEADER_SIZE + frameSamples];
 
         try {
-            while (running && !Thread.interrupted() && rtpSocket != null && !rtpSocket.isClosed()) {
+            while (running && !Thread.interrupted() && transport.isOpen()) {
                 // Read audio from microphone
                 int bytesRead = audioRecord.read(audioBuffer, 0, audioBuffer.length);
                 if (bytesRead <= 0) continue;
 
-                // Convert PCM 16-bit to G.711 u-law
-                byte[] ulawData = pcmToUlaw(audioBuffer, bytesRead);
-
-                // Build RTP packet
+                // Encode PCM 16-bit to G.711 directly into the packet payload
+                int samples = bytesRead / 2;
                 buildRTPHeader(rtpPacket);
-                System.arraycopy(ulawData, 0, rtpPacket, RTP_HEADER_SIZE, ulawData.length);
+                codec.encode(audioBuffer, 0, rtpPacket, RTP_HEADER_SIZE, samples);
 
                 // Send to remote
-                DatagramPacket packet = new DatagramPacket(
-                    rtpPacket,
-                    RTP_HEADER_SIZE + ulawData.length,
-                    remoteAddress,
-                    remotePort
-                );
-                rtpSocket.send(packet);
+                if (transport.send(rtpPacket, 0, RTP_HEADER_SIZE + samples)) {
+                    rtcp.onRtpSent(samples, timestamp);
+                }
 
                 // Update RTP state
                 sequenceNumber++;
-                timestamp += FRAME_SIZE;
+                timestamp += samples;
             }
         } catch (IOException e) {
             if (running) {
@@ -298,35 +384,78 @@ public class RTPManager {
      */
     private void receiveRTPLoop() {
         // Validate required objects
-        if (rtpSocket == null || audioTrack == null) {
+        final RtpTransport transport = rtpTransport;
+        final RtcpSession rtcp = rtcpSession;
+        if (transport == null || audioTrack == null) {
             Log.e(TAG, "RTP receive loop cannot start - missing required objects");
             return;
         }
 
-        byte[] rtpPacket = new byte[1500]; // Max UDP packet size
-        DatagramPacket packet = new DatagramPacket(rtpPacket, rtpPacket.length);
-
-        try {
-            while (running && !Thread.interrupted() && rtpSocket != null && !rtpSocket.isClosed()) {
-                try {
-                    // Receive RTP packet
-                    rtpSocket.receive(packet);
+        byte[] rtpPacket = new byte[RtpTransport.MAX_PACKET_SIZE];
+        byte[] frame = new byte[JitterBuffer.MAX_PAYLOAD];
+        byte[] pcmData = new byte[frame.length * 2];
+
+        // Packets go through the jitter buffer; frames come out at the remote's packetization
+        JitterBuffer jitterBuffer = new JitterBuffer(frameSamples);
+        PlayoutClock clock = new PlayoutClock(frameSamples * 1000 / SAMPLE_RATE);
+        // RFC 4733 digits share the audio's sequence space but never reach the decoder
+        DtmfReceiver dtmfReceiver = new DtmfReceiver(SAMPLE_RATE, new DtmfReceiver.Listener() {
+            @Override
+            public void onDtmfStart(char digit) {
+                DtmfReceiver.Listener listener = dtmfListener;
+                if (listener != null) listener.onDtmfStart(digit);
+            }
 
-                    if (packet.getLength() < RTP_HEADER_SIZE) continue;
+            @Override
+            public void onDtmfEnd(char digit, int durationMs) {
+                DtmfReceiver.Listener listener = dtmfListener;
+                if (listener != null) listener.onDtmfEnd(digit, durationMs);
+            }
+        });
 
-                    // Extract audio payload (skip RTP header)
-                    int payloadLength = packet.getLength() - RTP_HEADER_SIZE;
-                    byte[] ulawData = new byte[payloadLength];
-                    System.arraycopy(rtpPacket, RTP_HEADER_SIZE, ulawData, 0, payloadLength);
+        try {
+            while (running && !Thread.interrupted() && transport.isOpen()) {
+                // Receive RTP packets, blocking no longer than the next playout deadline
+                if (transport.awaitReadable(clock.millisUntilDue())) {
+                    int length;
+                    while ((length = transport.receive(rtpPacket, 0)) >= 0) {
+                        long arrivalNanos = System.nanoTime();
+                        if (length < RTP_HEADER_SIZE || (rtpPacket[0] & 0xC0) != 0x80) {
+                            continue;
+                        }
+                        int payloadType = RtpHeader.getPayloadType(rtpPacket, 0);
+                        if (payloadType == dtmfPayloadType) {
+                            rtcp.onRtpReceived(rtpPacket, 0, arrivalNanos);
+                            dtmfReceiver.onPacket(rtpPacket, 0, length, arrivalNanos);
+                            continue;
+                        }
+                        if (payloadType != codec.getPayloadType()) {
+                            continue;  // comfort noise (PT 13) or a codec we did not negotiate
+                        }
+                        if (jitterBuffer.put(rtpPacket, 0, length, arrivalNanos)) {
+                            rtcp.onRtpReceived(rtpPacket, 0, arrivalNanos);
+                        }
+                    }
+                }
+                dtmfReceiver.checkTimeout(System.nanoTime());
+                clock.setFrameSamples(jitterBuffer.getSamplesPerFrame(), SAMPLE_RATE);
 
-                    // Convert G.711 u-law to PCM 16-bit
-                    byte[] pcmData = ulawToPcm(ulawData);
+                while (clock.poll()) {
+                    int payloadLength = jitterBuffer.poll(frame, 0);
+                    if (payloadLength == JitterBuffer.BUFFERING) {
+                        continue;
+                    }
+                    if (payloadLength == JitterBuffer.MISSING) {
+                        // Lost frame - keep the track fed with silence
+                        payloadLength = jitterBuffer.getSamplesPerFrame();
+                        Arrays.fill(pcmData, 0, payloadLength * 2, (byte) 0);
+                    } else {
+                        // Convert G.711 to PCM 16-bit
+                        codec.decode(frame, 0, pcmData, 0, payloadLength);
+                    }
 
                     // Play to GSM call speaker
-                    audioTrack.write(pcmData, 0, pcmData.length);
-
-                } catch (java.net.SocketTimeoutException e) {
-                    // Timeout is normal - just continue waiting
+                    audioTrack.write(pcmData, 0, payloadLength * 2);
                 }
             }
         } catch (IOException e) {
@@ -336,95 +465,14 @@ public class RTPManager {
         } catch (Exception e) {
             Log.e(TAG, "RTP receive exception: " + e.getMessage());
         }
-        Log.d(TAG, "RTP receive loop ended");
+        Log.d(TAG, "RTP receive loop ended: " + jitterBuffer);
     }
 
     /**
      * Build RTP header
      */
     private void buildRTPHeader(byte[] packet) {
-        ByteBuffer buffer = ByteBuffer.wrap(packet);
-
-        buffer.put(RTP_VERSION);                    // V=2, P=0, X=0, CC=0
-        buffer.put(PAYLOAD_TYPE_PCMU);              // M=0, PT=0 (PCMU)
-        buffer.putShort((short) sequenceNumber);    // Sequence number
-        buffer.putInt((int) timestamp);              // Timestamp
-        buffer.putInt(ssrc);                         // SSRC
-    }
-
-    /**
-     * Convert PCM 16-bit to G.711 u-law
-     */
-    private byte[] pcmToUlaw(byte[] pcmData, int length) {
-        byte[] ulaw = new byte[length / 2];
-        ByteBuffer buffer = ByteBuffer.wrap(pcmData);
-
-        for (int i = 0; i < ulaw.length; i++) {
-            short pcmSample = buffer.getShort();
-            ulaw[i] = linearToUlaw(pcmSample);
-        }
-
-        return ulaw;
-    }
-
-    /**
-     * Convert G.711 u-law to PCM 16-bit
-     */
-    private byte[] ulawToPcm(byte[] ulawData) {
-        byte[] pcm = new byte[ulawData.length * 2];
-        ByteBuffer buffer = ByteBuffer.wrap(pcm);
-
-        for (byte ulaw : ulawData) {
-            short pcmSample = ulawToLinear(ulaw);
-            buffer.putShort(pcmSample);
-        }
-
-        return pcm;
-    }
-
-    // G.711 u-law encoding/decoding tables
-    private static final int[] ULAW_EXP_TABLE = {
-        0, 0, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 3, 3, 3, 3,
-        4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4,
-        5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5,
-        5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5,
-        6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6,
-        6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6,
-        6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6,
-        6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6,
-        7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-        7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-        7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-        7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-        7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-        7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-        7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-        7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7
-    };
-
-    private byte linearToUlaw(short sample) {
-        int sign = (sample >> 8) & 0x80;
-        if (sign != 0) sample = (short) -sample;
-        if (sample > 32635) sample = 32635;
-
-        sample = (short) (sample + 0x84);
-        int exponent = ULAW_EXP_TABLE[(sample >> 7) & 0xFF];
-        int mantissa = (sample >> (exponent + 3)) & 0x0F;
-        int ulawByte = ~(sign | (exponent << 4) | mantissa);
-
-        return (byte) ulawByte;
-    }
-
-    private short ulawToLinear(byte ulawByte) {
-        ulawByte = (byte) ~ulawByte;
-        int sign = ulawByte & 0x80;
-        int exponent = (ulawByte >> 4) & 0x07;
-        int mantissa = ulawByte & 0x0F;
-
-        int sample = ((mantissa << 3) + 0x84) << exponent;
-        if (sign != 0) sample = -sample;
-
-        return (short) sample;
+        RtpHeader.write(packet, 0, false, codec.getPayloadType(), sequenceNumber, timestamp, ssrc);
     }
 
     public boolean isRunning() {
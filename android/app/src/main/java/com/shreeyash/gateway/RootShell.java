@@ -0,0 +1,336 @@
+package com.shreeyash.gateway;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * One long-lived "su" shell shared by everything that needs root (mixer
+ * routing, appops, device probing).
+ *
+ * Commands go in as batches: every command of a batch is written at once,
+ * each followed by an echo of a marker carrying its exit status, and the
+ * batch's future completes when the last marker comes back. A whole mixer
+ * setup is then a single round trip instead of one per tinymix. A
+ * dedicated reader thread owns the shell's stdout and splits it by marker,
+ * so callers never poll. Fire-and-forget commands have their output
+ * discarded by the shell and wait for nothing.
+ *
+ * If the shell dies, or a blocking call times out, every outstanding batch
+ * fails and the next command starts a new shell.
+ */
+public final class RootShell {
+    private static final String TAG = "RootShell";
+
+    private static final String MARKER = "__ROOTSHELL_DONE__:";
+    private static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    private static RootShell shared;
+
+    /**
+     * Output (stdout and stderr) and exit status of one command
+     */
+    public static final class Result {
+        public final String command;
+        public final String output;
+        public final int exitCode;
+
+        Result(String command, String output, int exitCode) {
+            this.command = command;
+            this.output = output;
+            this.exitCode = exitCode;
+        }
+
+        public boolean isSuccess() {
+            return exitCode == 0;
+        }
+    }
+
+    /**
+     * A batch waiting for its markers; filled in by the reader thread
+     */
+    private static final class Pending {
+        final String[] commands;
+        final List<Result> results;
+        final CompletableFuture<List<Result>> future = new CompletableFuture<>();
+        final StringBuilder output = new StringBuilder();
+
+        Pending(String[] commands) {
+            this.commands = commands;
+            this.results = new ArrayList<>(commands.length);
+        }
+    }
+
+    /**
+     * One su process, its writer side and the batches it owes results for
+     */
+    private final class Session {
+        final Process process;
+        final OutputStream stdin;
+        final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        boolean dead;
+
+        Session(Process process) {
+            this.process = process;
+            this.stdin = process.getOutputStream();
+        }
+
+        void readLoop() {
+            BufferedReader in = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    onLine(line);
+                }
+                Log.w(TAG, "Root shell exited");
+            } catch (IOException e) {
+                Log.w(TAG, "Root shell read failed: " + e.getMessage());
+            }
+            fail(this, new IOException("root shell exited"));
+        }
+
+        private void onLine(String line) {
+            Pending head;
+            synchronized (RootShell.this) {
+                head = pending.peek();
+            }
+            if (head == null) {
+                return;  // nothing asked for this output
+            }
+
+            int mark = line.indexOf(MARKER);
+            if (mark < 0) {
+                head.output.append(line).append('\n');
+                return;
+            }
+            // A command whose output lacks a trailing newline puts the marker mid-line
+            if (mark > 0) {
+                head.output.append(line, 0, mark).append('\n');
+            }
+
+            int exitCode;
+            try {
+                exitCode = Integer.parseInt(line.substring(mark + MARKER.length()).trim());
+            } catch (NumberFormatException e) {
+                exitCode = -1;
+            }
+            head.results.add(new Result(head.commands[head.results.size()],
+                head.output.toString().trim(), exitCode));
+            head.output.setLength(0);
+
+            if (head.results.size() == head.commands.length) {
+                synchronized (RootShell.this) {
+                    pending.poll();
+                }
+                head.future.complete(Collections.unmodifiableList(head.results));
+            }
+        }
+    }
+
+    private Session session;
+
+    private RootShell() {}
+
+    /**
+     * The process-wide root shell; started on the first command
+     */
+    public static synchronized RootShell shared() {
+        if (shared == null) {
+            shared = new RootShell();
+        }
+        return shared;
+    }
+
+    // ==================== ASYNC ====================
+
+    /**
+     * Run commands in order as one batch
+     *
+     * @return a future of one result per command, failed with an
+     *         IOException if there is no root or the shell dies
+     */
+    public CompletableFuture<List<Result>> submit(List<String> commands) {
+        String[] batch = commands.toArray(new String[0]);
+        Pending p = new Pending(batch);
+        if (batch.length == 0) {
+            p.future.complete(Collections.emptyList());
+            return p.future;
+        }
+
+        StringBuilder script = new StringBuilder(batch.length * 64);
+        for (String command : batch) {
+            // Group so pipes and redirections in the command stay intact
+            script.append("{ ").append(command).append("\n} 2>&1; echo \"")
+                  .append(MARKER).append("$?\"\n");
+        }
+
+        synchronized (this) {
+            try {
+                Session s = session();
+                s.pending.add(p);
+                s.stdin.write(script.toString().getBytes(StandardCharsets.UTF_8));
+                s.stdin.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Root shell write failed: " + e.getMessage());
+                restartLocked(e);
+                p.future.completeExceptionally(e);
+            }
+        }
+        return p.future;
+    }
+
+    public CompletableFuture<List<Result>> submit(String... commands) {
+        return submit(Arrays.asList(commands));
+    }
+
+    /**
+     * Write commands without waiting for them; their output is discarded
+     */
+    public void post(List<String> commands) {
+        if (commands.isEmpty()) {
+            return;
+        }
+        StringBuilder script = new StringBuilder(commands.size() * 64);
+        for (String command : commands) {
+            script.append("{ ").append(command).append("\n} >/dev/null 2>&1\n");
+        }
+        synchronized (this) {
+            try {
+                Session s = session();
+                s.stdin.write(script.toString().getBytes(StandardCharsets.UTF_8));
+                s.stdin.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Root shell write failed: " + e.getMessage());
+                restartLocked(e);
+            }
+        }
+    }
+
+    public void post(String... commands) {
+        post(Arrays.asList(commands));
+    }
+
+    // ==================== BLOCKING ====================
+
+    /**
+     * Run one command and wait for it
+     *
+     * @return its output, or null if there is no root shell or it timed out
+     */
+    public String exec(String command) {
+        List<Result> results = execBatch(Collections.singletonList(command), DEFAULT_TIMEOUT_MS);
+        return results != null ? results.get(0).output : null;
+    }
+
+    /**
+     * Run a batch and wait for all of it
+     *
+     * @return one result per command, or null on failure or timeout (the
+     *         shell is then restarted, since a command may be stuck in it)
+     */
+    public List<Result> execBatch(List<String> commands, long timeoutMs) {
+        CompletableFuture<List<Result>> future = submit(commands);
+        try {
+            return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Log.e(TAG, "Root batch timed out after " + timeoutMs + "ms: " + commands.get(0) +
+                       (commands.size() > 1 ? " (+" + (commands.size() - 1) + ")" : ""));
+            synchronized (this) {
+                restartLocked(new IOException("timed out"));
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            Log.e(TAG, "Root batch failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public List<Result> execBatch(List<String> commands) {
+        return execBatch(commands, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * @return true if the shell runs as uid 0
+     */
+    public boolean isAvailable() {
+        String uid = exec("id -u");
+        return uid != null && uid.trim().equals("0");
+    }
+
+    /**
+     * End the shell; the next command starts a new one
+     */
+    public synchronized void close() {
+        Session s = session;
+        if (s == null) {
+            return;
+        }
+        try {
+            s.stdin.write("exit\n".getBytes(StandardCharsets.UTF_8));
+            s.stdin.flush();
+        } catch (IOException e) {
+            // already gone
+        }
+        restartLocked(new IOException("root shell closed"));
+        Log.i(TAG, "Root shell closed");
+    }
+
+    // ==================== SESSION ====================
+
+    private Session session() throws IOException {
+        Session s = session;
+        if (s != null && !s.dead) {
+            return s;
+        }
+        Log.i(TAG, "Starting root shell...");
+        s = new Session(Runtime.getRuntime().exec("su"));
+        session = s;
+        Thread reader = new Thread(s::readLoop, "RootShell-Reader");
+        reader.setDaemon(true);
+        reader.start();
+        return s;
+    }
+
+    /**
+     * Drop the current shell and fail whatever it still owed
+     */
+    private void restartLocked(IOException cause) {
+        Session s = session;
+        session = null;
+        if (s != null) {
+            s.process.destroy();
+            fail(s, cause);
+        }
+    }
+
+    private void fail(Session s, IOException cause) {
+        List<Pending> owed;
+        synchronized (this) {
+            s.dead = true;
+            if (session == s) {
+                session = null;
+            }
+            owed = new ArrayList<>(s.pending);
+            s.pending.clear();
+        }
+        for (Pending p : owed) {
+            p.future.completeExceptionally(cause);
+        }
+    }
+}
@@ -12,11 +12,25 @@ import android.media.MediaRecorder;
 import android.os.Build;
 import android.util.Log;
 
+import com.shreeyash.gateway.codec.G711Codec;
+import com.shreeyash.gateway.codec.G711Plc;
+import com.shreeyash.gateway.codec.Pcm16;
+import com.shreeyash.gateway.rtp.CallQuality;
+import com.shreeyash.gateway.rtp.DtmfReceiver;
+import com.shreeyash.gateway.rtp.JitterBuffer;
+import com.shreeyash.gateway.rtp.MediaReactor;
+import com.shreeyash.gateway.rtp.PlayoutClock;
+import com.shreeyash.gateway.rtp.RtcpReporter;
+import com.shreeyash.gateway.rtp.RtcpSession;
+import com.shreeyash.gateway.rtp.RtpHeader;
+import com.shreeyash.gateway.rtp.RtpTransport;
+import com.shreeyash.gateway.rtp.TelephoneEvent;
+import com.shreeyash.gateway.sip.SipResolver;
+
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -32,8 +46,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
  *
  * Audio Flow:
  * ┌─────────────────────────────────────────────────────────────────────────────┐
- * │ GSM Party → Modem → VOICE_DOWNLINK → AudioRecord → μ-law → RTP → PBX       │
- * │ PBX → RTP → μ-law → AudioTrack → VOICE_CALL stream → Incall_Music → Modem  │
+ * │ GSM Party → Modem → VOICE_DOWNLINK → AudioRecord → G.711 → RTP → PBX       │
+ * │ PBX → RTP → G.711 → AudioTrack → VOICE_CALL stream → Incall_Music → Modem  │
  * └─────────────────────────────────────────────────────────────────────────────┘
  *
  * Audio Sources (in order of preference):
@@ -57,13 +71,15 @@ public class SystemAudioBridge {
     private static final int CHANNEL_CONFIG_IN = AudioFormat.CHANNEL_IN_MONO;
     private static final int CHANNEL_CONFIG_OUT = AudioFormat.CHANNEL_OUT_MONO;
     private static final int AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
-    private static final int FRAME_SIZE = 160; // 20ms at 8kHz = 160 samples
-    private static final int BYTES_PER_FRAME = FRAME_SIZE * 2; // 16-bit = 2 bytes per sample
 
     // RTP configuration
     private static final int RTP_HEADER_SIZE = 12;
-    private static final int PAYLOAD_TYPE_PCMU = 0; // G.711 μ-law
-    private static final int RTP_PACKET_SIZE = RTP_HEADER_SIZE + FRAME_SIZE;
+
+    private G711Codec codec = G711Codec.PCMU;
+    private int frameSamples = G711Codec.frameSamples(G711Codec.DEFAULT_PTIME);
+    private volatile int dtmfPayloadType = TelephoneEvent.PAYLOAD_TYPE;
+    private volatile DtmfReceiver.Listener dtmfListener;
+    private int bytesPerFrame = frameSamples * 2; // 16-bit = 2 bytes per sample
 
     // Audio sources to try (in order of preference for GSM-SIP gateway)
     // Telephony terminology:
@@ -85,7 +101,12 @@ public class SystemAudioBridge {
     private final AtomicBoolean running = new AtomicBoolean(false);
     private AudioRecord audioRecord;
     private AudioTrack audioTrack;
-    private DatagramSocket rtpSocket;
+    private RtpTransport rtpTransport;
+
+    // RTCP on the next port up; reports go out from the media reactor
+    private RtpTransport rtcpTransport;
+    private volatile RtcpSession rtcpSession;
+    private RtcpReporter rtcpReporter;
 
     // RTP state
     private int sequenceNumber = 0;
@@ -130,6 +151,42 @@ public class SystemAudioBridge {
         this.remotePort = port;
     }
 
+    /**
+     * Select the negotiated G.711 codec (PT 0 = PCMU, 8 = PCMA).
+     * Call before start().
+     */
+    public void setPayloadType(int payloadType) {
+        codec = G711Codec.forNegotiatedPayloadType(payloadType);
+    }
+
+    /**
+     * Select the negotiated telephone-event payload type, or -1 if the PBX
+     * did not accept RFC 4733. Call before start().
+     */
+    public void setDtmfPayloadType(int payloadType) {
+        dtmfPayloadType = payloadType;
+    }
+
+    /**
+     * DTMF digits received from the PBX (RFC 4733), called on the playback thread
+     */
+    public void setDtmfListener(DtmfReceiver.Listener listener) {
+        this.dtmfListener = listener;
+    }
+
+    /**
+     * Set the packetization time (10/20/30/40 ms) we send at.
+     * Call before start().
+     */
+    public void setPtime(int ptimeMs) {
+        if (!G711Codec.isSupportedPtime(ptimeMs)) {
+            Log.w(TAG, "Unsupported ptime " + ptimeMs + "ms, using " + G711Codec.DEFAULT_PTIME + "ms");
+            ptimeMs = G711Codec.DEFAULT_PTIME;
+        }
+        frameSamples = G711Codec.frameSamples(ptimeMs);
+        bytesPerFrame = frameSamples * 2;
+    }
+
     public void setListener(BridgeListener listener) {
         this.listener = listener;
     }
@@ -163,12 +220,21 @@ public class SystemAudioBridge {
 
         try {
             // Resolve remote address
-            remoteAddress = InetAddress.getByName(remoteHost);
-
-            // Create RTP socket
-            rtpSocket = new DatagramSocket(localRtpPort);
-            rtpSocket.setSoTimeout(100); // 100ms timeout for receive
-            Log.i(TAG, "RTP socket created on port " + localRtpPort);
+            remoteAddress = SipResolver.shared().resolveAddress(remoteHost);
+
+            // Open RTP channel
+            rtpTransport = RtpTransport.open(localRtpPort);
+            rtpTransport.setRemote(new InetSocketAddress(remoteAddress, remotePort));
+            Log.i(TAG, "RTP channel opened on port " + localRtpPort);
+
+            // RTCP on the next port up (RFC 3550 section 11)
+            rtcpTransport = RtpTransport.open(localRtpPort + 1);
+            rtcpTransport.setRemote(new InetSocketAddress(remoteAddress, remotePort + 1));
+            rtcpSession = new RtcpSession(ssrc, SAMPLE_RATE,
+                "gsmgateway-" + localRtpPort + "-" + Long.toHexString(ssrc));
+            rtcpReporter = new RtcpReporter(rtcpSession, rtcpTransport);
+            MediaReactor.getInstance().attach(rtcpTransport, rtcpReporter);
+            Log.i(TAG, "RTCP: " + (localRtpPort + 1) + " -> " + remoteHost + ":" + (remotePort + 1));
 
             // Initialize audio capture
             if (!initializeCapture()) {
@@ -227,10 +293,10 @@ public class SystemAudioBridge {
 
         if (minBufferSize == AudioRecord.ERROR || minBufferSize == AudioRecord.ERROR_BAD_VALUE) {
             Log.e(TAG, "Invalid buffer size for AudioRecord");
-            minBufferSize = BYTES_PER_FRAME * 10;
+            minBufferSize = bytesPerFrame * 10;
         }
 
-        int bufferSize = Math.max(minBufferSize * 2, BYTES_PER_FRAME * 20);
+        int bufferSize = Math.max(minBufferSize * 2, bytesPerFrame * 20);
         Log.i(TAG, "AudioRecord buffer size: " + bufferSize);
 
         // Try each audio source
@@ -290,10 +356,10 @@ public class SystemAudioBridge {
             SAMPLE_RATE, CHANNEL_CONFIG_OUT, AUDIO_FORMAT);
 
         if (minBufferSize == AudioTrack.ERROR || minBufferSize == AudioTrack.ERROR_BAD_VALUE) {
-            minBufferSize = BYTES_PER_FRAME * 10;
+            minBufferSize = bytesPerFrame * 10;
         }
 
-        int bufferSize = Math.max(minBufferSize * 2, BYTES_PER_FRAME * 20);
+        int bufferSize = Math.max(minBufferSize * 2, bytesPerFrame * 20);
 
         try {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
@@ -403,21 +469,46 @@ public class SystemAudioBridge {
             audioTrack = null;
         }
 
-        if (rtpSocket != null && !rtpSocket.isClosed()) {
-            rtpSocket.close();
-            rtpSocket = null;
+        if (rtcpReporter != null) {
+            try {
+                MediaReactor.getInstance().detach(rtcpReporter);
+            } catch (Exception e) {
+                Log.e(TAG, "Error detaching RTCP reporter", e);
+            }
+            rtcpReporter.sendBye();
+            rtcpReporter = null;
+            Log.i(TAG, "Final call quality: " + rtcpSession.getQuality());
+        }
+
+        if (rtpTransport != null) {
+            rtpTransport.close();
+            rtpTransport = null;
+        }
+        if (rtcpTransport != null) {
+            rtcpTransport.close();
+            rtcpTransport = null;
         }
     }
 
     /**
-     * Capture loop: Read from AudioRecord, encode to μ-law, send via RTP
+     * Latest RTCP quality metrics, or null before the bridge first started
+     */
+    public CallQuality getCallQuality() {
+        RtcpSession session = rtcpSession;
+        return session != null ? session.getQuality() : null;
+    }
+
+    /**
+     * Capture loop: Read from AudioRecord, encode to G.711, send via RTP
      */
     private void captureLoop() {
         Log.i(TAG, "Capture loop started");
         Log.i(TAG, "Sending audio to: " + remoteHost + ":" + remotePort);
 
-        byte[] pcmBuffer = new byte[BYTES_PER_FRAME];
-        byte[] rtpPacket = new byte[RTP_PACKET_SIZE];
+        final RtpTransport transport = rtpTransport;
+        final RtcpSession rtcp = rtcpSession;
+        byte[] pcmBuffer = new byte[bytesPerFrame];
+        byte[] rtpPacket = new byte[RTP_HEADER_SIZE + frameSamples];
 
         try {
             audioRecord.startRecording();
@@ -429,9 +520,9 @@ public class SystemAudioBridge {
 
             while (running.get() && !Thread.interrupted()) {
                 // Read PCM audio
-                int bytesRead = audioRecord.read(pcmBuffer, 0, BYTES_PER_FRAME);
+                int bytesRead = audioRecord.read(pcmBuffer, 0, bytesPerFrame);
 
-                if (bytesRead < BYTES_PER_FRAME) {
+                if (bytesRead < bytesPerFrame) {
                     if (bytesRead == AudioRecord.ERROR_INVALID_OPERATION) {
                         Log.e(TAG, "AudioRecord: Invalid operation");
                         break;
@@ -458,20 +549,17 @@ public class SystemAudioBridge {
                 // Build RTP packet
                 buildRtpHeader(rtpPacket);
 
-                // Encode PCM to μ-law
-                for (int i = 0; i < FRAME_SIZE; i++) {
-                    short sample = (short) ((pcmBuffer[i * 2 + 1] << 8) | (pcmBuffer[i * 2] & 0xFF));
-                    rtpPacket[RTP_HEADER_SIZE + i] = linearToUlaw(sample);
-                }
+                // Encode PCM to G.711
+                codec.encode(pcmBuffer, 0, rtpPacket, RTP_HEADER_SIZE, frameSamples);
 
                 // Send RTP packet
-                DatagramPacket packet = new DatagramPacket(
-                    rtpPacket, rtpPacket.length, remoteAddress, remotePort);
-                rtpSocket.send(packet);
+                if (transport.send(rtpPacket, 0, rtpPacket.length)) {
+                    rtcp.onRtpSent(frameSamples, timestamp);
+                }
 
                 capturePackets++;
                 sequenceNumber = (sequenceNumber + 1) & 0xFFFF;
-                timestamp += FRAME_SIZE;
+                timestamp += frameSamples;
 
                 // Log stats every 5 seconds
                 long now = System.currentTimeMillis();
@@ -502,14 +590,37 @@ public class SystemAudioBridge {
     }
 
     /**
-     * Playback loop: Receive RTP, decode μ-law, write to AudioTrack
+     * Playback loop: Receive RTP, decode G.711, write to AudioTrack
      */
     private void playbackLoop() {
         Log.i(TAG, "Playback loop started");
         Log.i(TAG, "Receiving audio on port: " + localRtpPort);
 
-        byte[] receiveBuffer = new byte[2048];
-        byte[] pcmBuffer = new byte[BYTES_PER_FRAME];
+        final RtpTransport transport = rtpTransport;
+        final RtcpSession rtcp = rtcpSession;
+        byte[] receiveBuffer = new byte[RtpTransport.MAX_PACKET_SIZE];
+        byte[] frame = new byte[JitterBuffer.MAX_PAYLOAD];
+        short[] samples = new short[JitterBuffer.MAX_PAYLOAD];
+        byte[] pcmBuffer = new byte[JitterBuffer.MAX_PAYLOAD * 2];
+
+        // Reorder/de-jitter before playout; frames leave at the remote's packetization
+        JitterBuffer jitterBuffer = new JitterBuffer(frameSamples);
+        G711Plc plc = new G711Plc();
+        PlayoutClock clock = new PlayoutClock(frameSamples * 1000 / SAMPLE_RATE);
+        // RFC 4733 digits share the audio's sequence space but never reach the decoder
+        DtmfReceiver dtmfReceiver = new DtmfReceiver(SAMPLE_RATE, new DtmfReceiver.Listener() {
+            @Override
+            public void onDtmfStart(char digit) {
+                DtmfReceiver.Listener listener = dtmfListener;
+                if (listener != null) listener.onDtmfStart(digit);
+            }
+
+            @Override
+            public void onDtmfEnd(char digit, int durationMs) {
+                DtmfReceiver.Listener listener = dtmfListener;
+                if (listener != null) listener.onDtmfEnd(digit, durationMs);
+            }
+        });
 
         try {
             audioTrack.play();
@@ -518,49 +629,68 @@ public class SystemAudioBridge {
             long startTime = System.currentTimeMillis();
             long lastLogTime = startTime;
 
-            while (running.get() && !Thread.interrupted()) {
-                try {
-                    // Receive RTP packet
-                    DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-                    rtpSocket.receive(packet);
-
-                    int length = packet.getLength();
-                    if (length < RTP_HEADER_SIZE + 1) {
-                        continue; // Too small
+            while (running.get() && !Thread.interrupted() && transport.isOpen()) {
+                // Receive RTP packets, blocking no longer than the next playout deadline
+                if (transport.awaitReadable(clock.millisUntilDue())) {
+                    int length;
+                    while ((length = transport.receive(receiveBuffer, 0)) >= 0) {
+                        long arrivalNanos = System.nanoTime();
+                        if (length < RTP_HEADER_SIZE || (receiveBuffer[0] & 0xC0) != 0x80) {
+                            continue;
+                        }
+                        int payloadType = RtpHeader.getPayloadType(receiveBuffer, 0);
+                        if (payloadType == dtmfPayloadType) {
+                            rtcp.onRtpReceived(receiveBuffer, 0, arrivalNanos);
+                            dtmfReceiver.onPacket(receiveBuffer, 0, length, arrivalNanos);
+                            continue;
+                        }
+                        if (payloadType != codec.getPayloadType()) {
+                            continue;  // comfort noise (PT 13) or a codec we did not negotiate
+                        }
+                        if (jitterBuffer.put(receiveBuffer, 0, length, arrivalNanos)) {
+                            rtcp.onRtpReceived(receiveBuffer, 0, arrivalNanos);
+                        }
                     }
+                }
+                dtmfReceiver.checkTimeout(System.nanoTime());
+                clock.setFrameSamples(jitterBuffer.getSamplesPerFrame(), SAMPLE_RATE);
 
-                    // Extract payload (skip RTP header)
-                    int payloadLength = Math.min(length - RTP_HEADER_SIZE, FRAME_SIZE);
-
-                    // Decode μ-law to PCM
-                    for (int i = 0; i < payloadLength; i++) {
-                        short sample = ulawToLinear(receiveBuffer[RTP_HEADER_SIZE + i]);
-                        pcmBuffer[i * 2] = (byte) (sample & 0xFF);
-                        pcmBuffer[i * 2 + 1] = (byte) ((sample >> 8) & 0xFF);
+                while (clock.poll()) {
+                    int payloadLength = jitterBuffer.poll(frame, 0);
+                    if (payloadLength == JitterBuffer.BUFFERING) {
+                        continue;
+                    }
 
-                        int amp = Math.abs(sample);
+                    if (payloadLength == JitterBuffer.MISSING) {
+                        // Lost frame - synthesize a replacement from recent pitch
+                        payloadLength = jitterBuffer.getSamplesPerFrame();
+                        plc.conceal(samples, 0, payloadLength);
+                        Pcm16.toBytes(samples, 0, pcmBuffer, 0, payloadLength);
+                    } else {
+                        // Decode G.711 to PCM
+                        codec.decode(frame, 0, samples, 0, payloadLength);
+                        plc.receive(samples, 0, payloadLength);
+                        Pcm16.toBytes(samples, 0, pcmBuffer, 0, payloadLength);
+
+                        int amp = getMaxAmplitude(pcmBuffer, payloadLength * 2);
                         if (amp > maxPlaybackAmplitude) {
                             maxPlaybackAmplitude = amp;
                         }
+                        playbackPackets++;
                     }
 
                     // Write to AudioTrack
                     audioTrack.write(pcmBuffer, 0, payloadLength * 2);
-                    playbackPackets++;
-
-                    // Log stats every 5 seconds
-                    long now = System.currentTimeMillis();
-                    if (now - lastLogTime >= 5000) {
-                        long elapsed = (now - startTime) / 1000;
-                        Log.i(TAG, String.format("[PLAYBACK] Stats @ %ds: pkts=%d, maxAmp=%d",
-                            elapsed, playbackPackets, maxPlaybackAmplitude));
-                        lastLogTime = now;
-                        maxPlaybackAmplitude = 0;
-                    }
+                }
 
-                } catch (java.net.SocketTimeoutException e) {
-                    // Expected - no data received within timeout
-                    continue;
+                // Log stats every 5 seconds
+                long now = System.currentTimeMillis();
+                if (now - lastLogTime >= 5000) {
+                    long elapsed = (now - startTime) / 1000;
+                    Log.i(TAG, String.format("[PLAYBACK] Stats @ %ds: pkts=%d, maxAmp=%d, %s",
+                        elapsed, playbackPackets, maxPlaybackAmplitude, jitterBuffer));
+                    lastLogTime = now;
+                    maxPlaybackAmplitude = 0;
                 }
             }
         } catch (Exception e) {
@@ -578,8 +708,8 @@ public class SystemAudioBridge {
     private void buildRtpHeader(byte[] packet) {
         // Version (2), Padding (0), Extension (0), CSRC count (0)
         packet[0] = (byte) 0x80;
-        // Marker (0), Payload type (PCMU = 0)
-        packet[1] = (byte) PAYLOAD_TYPE_PCMU;
+        // Marker (0), Payload type (PCMU = 0, PCMA = 8)
+        packet[1] = (byte) codec.getPayloadType();
         // Sequence number (big-endian)
         packet[2] = (byte) ((sequenceNumber >> 8) & 0xFF);
         packet[3] = (byte) (sequenceNumber & 0xFF);
@@ -599,59 +729,18 @@ public class SystemAudioBridge {
      * Get max amplitude from PCM buffer
      */
     private int getMaxAmplitude(byte[] buffer) {
+        return getMaxAmplitude(buffer, buffer.length);
+    }
+
+    private int getMaxAmplitude(byte[] buffer, int length) {
         int max = 0;
-        for (int i = 0; i < buffer.length - 1; i += 2) {
+        for (int i = 0; i < length - 1; i += 2) {
             int sample = Math.abs((short) ((buffer[i + 1] << 8) | (buffer[i] & 0xFF)));
             if (sample > max) max = sample;
         }
         return max;
     }
 
-    // μ-law encoding table
-    private static final int[] ULAW_ENCODE = new int[8192];
-    private static final short[] ULAW_DECODE = new short[256];
-
-    static {
-        // Initialize μ-law tables
-        for (int i = 0; i < 8192; i++) {
-            ULAW_ENCODE[i] = encode_ulaw((short) ((i - 4096) << 3));
-        }
-        for (int i = 0; i < 256; i++) {
-            ULAW_DECODE[i] = decode_ulaw((byte) i);
-        }
-    }
-
-    private static int encode_ulaw(short sample) {
-        int sign = (sample >> 8) & 0x80;
-        if (sign != 0) sample = (short) -sample;
-        if (sample > 32635) sample = 32635;
-        sample = (short) (sample + 0x84);
-
-        int exponent = 7;
-        for (int expMask = 0x4000; (sample & expMask) == 0 && exponent > 0; exponent--, expMask >>= 1) ;
-
-        int mantissa = (sample >> (exponent + 3)) & 0x0F;
-        return ~(sign | (exponent << 4) | mantissa) & 0xFF;
-    }
-
-    private static short decode_ulaw(byte ulaw) {
-        int u = ~ulaw & 0xFF;
-        int sign = u & 0x80;
-        int exponent = (u >> 4) & 0x07;
-        int mantissa = u & 0x0F;
-        int sample = ((mantissa << 3) + 0x84) << exponent;
-        sample -= 0x84;
-        return (short) (sign != 0 ? -sample : sample);
-    }
-
-    private byte linearToUlaw(short sample) {
-        return (byte) ULAW_ENCODE[(sample >> 3) + 4096];
-    }
-
-    private short ulawToLinear(byte ulaw) {
-        return ULAW_DECODE[ulaw & 0xFF];
-    }
-
     /**
      * Get audio source name
      */
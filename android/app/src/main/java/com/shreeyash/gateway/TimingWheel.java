@@ -0,0 +1,312 @@
+package com.shreeyash.gateway;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel for the gateway's many short-lived timers (SIP
+ * retransmissions and transaction timeouts, call setup guards).
+ *
+ * Each timer hashes into one slot of a fixed ring by its deadline tick, so
+ * scheduling and cancelling are O(1) list operations. A single thread
+ * sleeps until the earliest pending deadline, sweeps the slots it passed and
+ * fires every expired timer as a batch, so a 30 s timer costs one wakeup
+ * rather than 3000 ticks. Timers never fire early and at most one tick late.
+ *
+ * The thread sleeps while nothing is scheduled. Callbacks run on it and must
+ * not block; a cancel that races with expiry may lose, so callbacks should
+ * re-check their owner's state.
+ */
+public final class TimingWheel {
+    private static final String TAG = "TimingWheel";
+
+    private static final int DEFAULT_SLOTS = 512;
+    private static final long SHARED_TICK_MS = 10;
+
+    private static TimingWheel shared;
+
+    /**
+     * A schedulable timer. It can be re-armed any number of times, so a
+     * long-lived owner keeps one per timer instead of allocating per schedule.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private volatile TimingWheel wheel;  // non-null while pending
+        private long deadlineTick;
+        private Timeout prev;
+        private Timeout next;
+
+        public Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * @return true if the timer was pending and will not fire
+         */
+        public boolean cancel() {
+            TimingWheel w = wheel;
+            return w != null && w.cancel(this);
+        }
+
+        public boolean isPending() {
+            return wheel != null;
+        }
+    }
+
+    private final String name;
+    private final long tickNanos;
+    private final Timeout[] slots;
+    private final int mask;
+    private final Object lock = new Object();
+    private final List<Timeout> expired = new ArrayList<>();  // wheel thread only
+
+    private long startNanos;
+    private long tick;      // last tick processed
+    private long wakeTick = Long.MAX_VALUE;  // when the wheel thread next wakes
+    private int pending;
+    private volatile Thread thread;
+    private volatile boolean running;
+
+    /**
+     * @param tickMs resolution; timers are rounded up to whole ticks
+     */
+    public TimingWheel(String name, long tickMs) {
+        this(name, tickMs, DEFAULT_SLOTS);
+    }
+
+    public TimingWheel(String name, long tickMs, int slotCount) {
+        if (tickMs <= 0 || Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("tick " + tickMs + "ms, " + slotCount + " slots");
+        }
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        this.slots = new Timeout[slotCount];
+        this.mask = slotCount - 1;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * The process-wide wheel used by SIP and call control. Started on first
+     * use and never stopped; its thread sleeps while nothing is scheduled.
+     */
+    public static synchronized TimingWheel shared() {
+        if (shared == null) {
+            shared = new TimingWheel("Gateway-Timers", SHARED_TICK_MS);
+            shared.start();
+        }
+        return shared;
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if (running) {
+                return;
+            }
+            running = true;
+            startNanos = System.nanoTime();
+            tick = 0;
+            thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Log.i(TAG, name + " started (" + TimeUnit.NANOSECONDS.toMillis(tickNanos) + "ms x " + slots.length + ")");
+    }
+
+    /**
+     * Stop the thread and drop every pending timer without running it
+     */
+    public void stop() {
+        Thread t;
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            for (int i = 0; i < slots.length; i++) {
+                for (Timeout timeout = slots[i]; timeout != null; timeout = timeout.next) {
+                    timeout.wheel = null;
+                }
+                slots[i] = null;
+            }
+            pending = 0;
+            t = thread;
+            thread = null;
+            lock.notifyAll();
+        }
+        t.interrupt();
+        Log.i(TAG, name + " stopped");
+    }
+
+    /**
+     * Schedule a one-shot task
+     */
+    public Timeout schedule(Runnable task, long delayMs) {
+        Timeout timeout = new Timeout(task);
+        schedule(timeout, delayMs);
+        return timeout;
+    }
+
+    /**
+     * Arm (or re-arm) a timer; a pending timer is moved to the new deadline
+     */
+    public void schedule(Timeout timeout, long delayMs) {
+        synchronized (lock) {
+            if (!running) {
+                Log.w(TAG, name + " not running, timer dropped");
+                return;
+            }
+            if (timeout.wheel == this) {
+                unlink(timeout);
+            } else if (timeout.wheel != null) {
+                timeout.cancel();
+            }
+            long now = currentTick();
+            if (pending == 0) {
+                // Wheel was idle: restart the sweep from now
+                tick = now;
+            }
+            long ticks = (TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs)) + tickNanos - 1) / tickNanos;
+            timeout.deadlineTick = Math.max(now + ticks, tick + 1);
+            link(timeout);
+            pending++;
+            if (timeout.deadlineTick < wakeTick) {
+                // Sooner than the wheel thread planned to wake (or it is idle)
+                lock.notifyAll();
+            }
+        }
+    }
+
+    public int getPendingCount() {
+        synchronized (lock) {
+            return pending;
+        }
+    }
+
+    private boolean cancel(Timeout timeout) {
+        synchronized (lock) {
+            if (timeout.wheel != this) {
+                return false;
+            }
+            unlink(timeout);
+            pending--;
+            return true;
+        }
+    }
+
+    // ==================== Slots ====================
+
+    private void link(Timeout timeout) {
+        int slot = (int) (timeout.deadlineTick & mask);
+        timeout.wheel = this;
+        timeout.prev = null;
+        timeout.next = slots[slot];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        slots[slot] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[(int) (timeout.deadlineTick & mask)] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.wheel = null;
+    }
+
+    private long currentTick() {
+        return (System.nanoTime() - startNanos) / tickNanos;
+    }
+
+    // ==================== Wheel Thread ====================
+
+    private void run() {
+        // A quick stop() + start() may leave this thread briefly alongside its replacement
+        while (running && thread == Thread.currentThread()) {
+            try {
+                synchronized (lock) {
+                    while (running && pending == 0) {
+                        wakeTick = Long.MAX_VALUE;
+                        lock.wait();
+                    }
+                    wakeTick = nextDeadlineTick();
+                    long waitNanos = wakeTick * tickNanos - (System.nanoTime() - startNanos);
+                    if (waitNanos > 0) {
+                        // An earlier schedule() wakes us; the sweep below finds nothing due then
+                        TimeUnit.NANOSECONDS.timedWait(lock, waitNanos);
+                    }
+                    long now = currentTick();
+                    if (now - tick > slots.length) {
+                        // Fell a whole turn behind (device slept): sweep every slot once
+                        for (int slot = 0; slot < slots.length; slot++) {
+                            collectExpired(slot, now);
+                        }
+                        tick = now;
+                    }
+                    // Catch up on every tick that has passed, one slot each
+                    while (tick < now && pending > 0) {
+                        tick++;
+                        collectExpired((int) (tick & mask), tick);
+                    }
+                }
+                fireExpired();
+            } catch (InterruptedException e) {
+                if (!running) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * The earliest pending deadline. Walks the ring from the next tick: the
+     * first slot holding a timer due on this turn wins, otherwise the soonest
+     * later-turn timer seen on the way. Caller holds the lock, pending > 0.
+     */
+    private long nextDeadlineTick() {
+        long earliest = Long.MAX_VALUE;
+        for (int distance = 1; distance <= slots.length; distance++) {
+            long slotTick = tick + distance;
+            for (Timeout timeout = slots[(int) (slotTick & mask)]; timeout != null; timeout = timeout.next) {
+                if (timeout.deadlineTick <= slotTick) {
+                    return timeout.deadlineTick;
+                }
+                earliest = Math.min(earliest, timeout.deadlineTick);
+            }
+        }
+        return earliest;
+    }
+
+    private void collectExpired(int slot, long upToTick) {
+        Timeout timeout = slots[slot];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.deadlineTick <= upToTick) {
+                unlink(timeout);
+                pending--;
+                expired.add(timeout);
+            }
+            timeout = next;
+        }
+    }
+
+    private void fireExpired() {
+        for (int i = 0; i < expired.size(); i++) {
+            try {
+                expired.get(i).task.run();
+            } catch (Exception e) {
+                Log.e(TAG, name + " timer task failed: " + e.getMessage(), e);
+            }
+        }
+        expired.clear();
+    }
+}
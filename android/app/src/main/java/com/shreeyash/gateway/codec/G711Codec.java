@@ -0,0 +1,261 @@
+package com.shreeyash.gateway.codec;
+
+import android.util.Log;
+
+/**
+ * G.711 codec engine (μ-law and A-law) shared by all audio bridges.
+ *
+ * Encoding is a single lookup in a 64K-entry table indexed by the raw 16-bit
+ * sample, decoding a lookup in a 256-entry table. All bulk methods work on
+ * caller-supplied buffers so the 20ms audio loops never allocate.
+ *
+ * PCM byte buffers are 16-bit little-endian, which is what AudioRecord,
+ * AudioTrack and tinycap/tinyplay use.
+ */
+public enum G711Codec {
+    PCMU(0, "PCMU"),
+    PCMA(8, "PCMA");
+
+    private static final String TAG = "G711Codec";
+
+    /** RTP static payload types (RFC 3551) */
+    public static final int PAYLOAD_TYPE_PCMU = 0;
+    public static final int PAYLOAD_TYPE_PCMA = 8;
+
+    public static final int SAMPLE_RATE = 8000;
+
+    /** Packetization times (ms) the bridges can run at */
+    public static final int DEFAULT_PTIME = 20;
+    private static final int[] SUPPORTED_PTIMES = {10, 20, 30, 40};
+
+    private final int payloadType;
+    private final String encodingName;
+
+    // Indexed by (sample & 0xFFFF)
+    private final byte[] encodeTable = new byte[65536];
+    // Indexed by (code & 0xFF)
+    private final short[] decodeTable = new short[256];
+
+    G711Codec(int payloadType, String encodingName) {
+        this.payloadType = payloadType;
+        this.encodingName = encodingName;
+
+        boolean ulaw = payloadType == PAYLOAD_TYPE_PCMU;
+        for (int i = 0; i < 65536; i++) {
+            short sample = (short) i;
+            encodeTable[i] = ulaw ? linearToUlaw(sample) : linearToAlaw(sample);
+        }
+        for (int i = 0; i < 256; i++) {
+            decodeTable[i] = ulaw ? ulawToLinear(i) : alawToLinear(i);
+        }
+    }
+
+    /**
+     * Get codec for an RTP payload type, or null if it is not G.711
+     */
+    public static G711Codec forPayloadType(int payloadType) {
+        switch (payloadType) {
+            case PAYLOAD_TYPE_PCMU: return PCMU;
+            case PAYLOAD_TYPE_PCMA: return PCMA;
+            default: return null;
+        }
+    }
+
+    /**
+     * Get codec a bridge should run for the negotiated payload type, PCMU
+     * if it is not G.711
+     */
+    public static G711Codec forNegotiatedPayloadType(int payloadType) {
+        G711Codec codec = forPayloadType(payloadType);
+        if (codec == null) {
+            Log.w(TAG, "Unsupported payload type " + payloadType + ", using PCMU");
+            return PCMU;
+        }
+        return codec;
+    }
+
+    public int getPayloadType() {
+        return payloadType;
+    }
+
+    public String getEncodingName() {
+        return encodingName;
+    }
+
+    // ==================== Packetization ====================
+
+    public static boolean isSupportedPtime(int ptimeMs) {
+        for (int p : SUPPORTED_PTIMES) {
+            if (p == ptimeMs) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Largest supported ptime not above the limit, or the smallest if none is
+     */
+    public static int supportedPtimeAtMost(int limitMs) {
+        int best = SUPPORTED_PTIMES[0];
+        for (int p : SUPPORTED_PTIMES) {
+            if (p <= limitMs) {
+                best = p;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Samples (and encoded bytes) in one frame of the given ptime
+     */
+    public static int frameSamples(int ptimeMs) {
+        return SAMPLE_RATE * ptimeMs / 1000;
+    }
+
+    // ==================== Single Sample ====================
+
+    public byte encode(short sample) {
+        return encodeTable[sample & 0xFFFF];
+    }
+
+    public short decode(byte code) {
+        return decodeTable[code & 0xFF];
+    }
+
+    // ==================== Bulk (caller-supplied buffers) ====================
+
+    /**
+     * Encode little-endian 16-bit PCM into G.711.
+     *
+     * @param pcm       source PCM bytes
+     * @param pcmOffset byte offset into pcm
+     * @param out       destination for encoded bytes
+     * @param outOffset offset into out
+     * @param samples   number of samples (pcm consumes samples * 2 bytes)
+     */
+    public void encode(byte[] pcm, int pcmOffset, byte[] out, int outOffset, int samples) {
+        final byte[] table = encodeTable;
+        int p = pcmOffset;
+        for (int i = 0; i < samples; i++, p += 2) {
+            out[outOffset + i] = table[(pcm[p] & 0xFF) | ((pcm[p + 1] & 0xFF) << 8)];
+        }
+    }
+
+    /**
+     * Encode 16-bit PCM samples into G.711
+     */
+    public void encode(short[] pcm, int pcmOffset, byte[] out, int outOffset, int samples) {
+        final byte[] table = encodeTable;
+        for (int i = 0; i < samples; i++) {
+            out[outOffset + i] = table[pcm[pcmOffset + i] & 0xFFFF];
+        }
+    }
+
+    /**
+     * Decode G.711 into little-endian 16-bit PCM.
+     *
+     * @param in        encoded bytes
+     * @param inOffset  offset into in
+     * @param pcm       destination PCM bytes (receives samples * 2 bytes)
+     * @param pcmOffset byte offset into pcm
+     * @param samples   number of encoded bytes to decode
+     */
+    public void decode(byte[] in, int inOffset, byte[] pcm, int pcmOffset, int samples) {
+        final short[] table = decodeTable;
+        int p = pcmOffset;
+        for (int i = 0; i < samples; i++, p += 2) {
+            short s = table[in[inOffset + i] & 0xFF];
+            pcm[p] = (byte) s;
+            pcm[p + 1] = (byte) (s >> 8);
+        }
+    }
+
+    /**
+     * Decode G.711 into 16-bit PCM samples
+     */
+    public void decode(byte[] in, int inOffset, short[] pcm, int pcmOffset, int samples) {
+        final short[] table = decodeTable;
+        for (int i = 0; i < samples; i++) {
+            pcm[pcmOffset + i] = table[in[inOffset + i] & 0xFF];
+        }
+    }
+
+    // ==================== Reference Conversions (table build only) ====================
+
+    private static final int ULAW_BIAS = 0x84;
+    private static final int ULAW_CLIP = 8159;
+
+    // Held in a nested class: enum constants are built before the enum's own static arrays
+    private static final class Segments {
+        static final int[] ULAW_END = {0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF, 0x1FFF};
+        static final int[] ALAW_END = {0x1F, 0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF};
+    }
+
+    private static int segment(int value, int[] segEnd) {
+        for (int i = 0; i < segEnd.length; i++) {
+            if (value <= segEnd[i]) return i;
+        }
+        return segEnd.length;
+    }
+
+    private static byte linearToUlaw(short sample) {
+        int pcm = sample >> 2;
+        int mask;
+        if (pcm < 0) {
+            pcm = -pcm;
+            mask = 0x7F;
+        } else {
+            mask = 0xFF;
+        }
+        if (pcm > ULAW_CLIP) pcm = ULAW_CLIP;
+        pcm += ULAW_BIAS >> 2;
+
+        int seg = segment(pcm, Segments.ULAW_END);
+        if (seg >= 8) return (byte) (0x7F ^ mask);
+        int uval = (seg << 4) | ((pcm >> (seg + 1)) & 0x0F);
+        return (byte) (uval ^ mask);
+    }
+
+    private static short ulawToLinear(int code) {
+        int u = ~code & 0xFF;
+        int t = ((u & 0x0F) << 3) + ULAW_BIAS;
+        t <<= (u & 0x70) >> 4;
+        return (short) ((u & 0x80) != 0 ? ULAW_BIAS - t : t - ULAW_BIAS);
+    }
+
+    private static byte linearToAlaw(short sample) {
+        int pcm = sample >> 3;
+        int mask;
+        if (pcm >= 0) {
+            mask = 0xD5;
+        } else {
+            mask = 0x55;
+            pcm = -pcm - 1;
+        }
+
+        int seg = segment(pcm, Segments.ALAW_END);
+        if (seg >= 8) return (byte) (0x7F ^ mask);
+        int aval = seg << 4;
+        aval |= (seg < 2) ? (pcm >> 1) & 0x0F : (pcm >> seg) & 0x0F;
+        return (byte) (aval ^ mask);
+    }
+
+    private static short alawToLinear(int code) {
+        int a = (code ^ 0x55) & 0xFF;
+        int t = (a & 0x0F) << 4;
+        int seg = (a & 0x70) >> 4;
+        switch (seg) {
+            case 0:
+                t += 8;
+                break;
+            case 1:
+                t += 0x108;
+                break;
+            default:
+                t += 0x108;
+                t <<= seg - 1;
+        }
+        return (short) ((a & 0x80) != 0 ? t : -t);
+    }
+}
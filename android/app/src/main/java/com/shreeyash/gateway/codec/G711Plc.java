@@ -0,0 +1,174 @@
+package com.shreeyash.gateway.codec;
+
+/**
+ * Packet loss concealment for 8kHz G.711 audio, after ITU-T G.711 Appendix I.
+ *
+ * Good frames are fed through {@link #receive} so a short history is kept.
+ * When a frame is lost, {@link #conceal} estimates the pitch period of the
+ * history (AMDF search over 40..120 samples), builds one smoothed pitch cycle
+ * and repeats it. The first 10ms of a gap play at full level, after which the
+ * signal fades by 20% per 10ms and is silent from 60ms on. The first good
+ * frame after a gap is overlap-added with the synthetic signal so there is
+ * no discontinuity.
+ *
+ * Not thread-safe: one instance per playout stream.
+ */
+public class G711Plc {
+    private static final int MIN_PERIOD = 40;          // 200 Hz
+    private static final int MAX_PERIOD = 120;         // 66 Hz
+    private static final int CORRELATION_SPAN = 160;   // 20ms
+    private static final int HISTORY_LEN = CORRELATION_SPAN + MAX_PERIOD;
+
+    private static final int FULL_LEVEL_SAMPLES = 80;  // 10ms before attenuation starts
+    private static final float ATTENUATION_PER_SAMPLE = 0.2f / 80; // 20% per 10ms
+
+    private final short[] history = new short[HISTORY_LEN];
+    private final float[] pitchBuffer = new float[MAX_PERIOD];
+    private int pitch = MIN_PERIOD;
+    private int pitchOffset = 0;
+    private int missingSamples = 0;
+
+    private long concealedFrames = 0;
+
+    /**
+     * Feed a good (decoded) frame. If it follows a concealed gap, its start
+     * is blended in place with the synthetic signal.
+     */
+    public void receive(short[] pcm, int offset, int samples) {
+        if (missingSamples > 0) {
+            int overlap = Math.min(pitch >> 2, samples);
+            float gain = gainAt(missingSamples);
+            float step = 1.0f / overlap;
+            float newWeight = step;
+            for (int i = 0; i < overlap; i++) {
+                float synthetic = pitchBuffer[pitchOffset] * gain * (1.0f - newWeight);
+                pcm[offset + i] = saturate(synthetic + pcm[offset + i] * newWeight);
+                if (++pitchOffset >= pitch) pitchOffset = 0;
+                newWeight += step;
+            }
+            missingSamples = 0;
+        }
+        saveHistory(pcm, offset, samples);
+    }
+
+    /**
+     * Synthesize a replacement for a lost frame
+     */
+    public void conceal(short[] pcm, int offset, int samples) {
+        int i = 0;
+        if (missingSamples == 0) {
+            startGap();
+
+            // Blend the first 1/4 cycle with the reversed tail of the real
+            // signal so the gap starts without a step and without delay
+            int overlap = pitch >> 2;
+            float step = 1.0f / overlap;
+            float newWeight = step;
+            for (; i < overlap && i < samples; i++) {
+                float real = history[HISTORY_LEN - 1 - i];
+                pcm[offset + i] = saturate(real * (1.0f - newWeight) + pitchBuffer[i] * newWeight);
+                newWeight += step;
+            }
+            pitchOffset = i % pitch;
+        }
+
+        for (; i < samples; i++) {
+            float gain = gainAt(missingSamples + i);
+            if (gain <= 0.0f) {
+                break;
+            }
+            pcm[offset + i] = saturate(pitchBuffer[pitchOffset] * gain);
+            if (++pitchOffset >= pitch) pitchOffset = 0;
+        }
+        for (; i < samples; i++) {
+            pcm[offset + i] = 0;
+        }
+
+        missingSamples += samples;
+        concealedFrames++;
+        saveHistory(pcm, offset, samples);
+    }
+
+    /**
+     * Forget history and any gap in progress
+     */
+    public void reset() {
+        for (int i = 0; i < HISTORY_LEN; i++) {
+            history[i] = 0;
+        }
+        missingSamples = 0;
+        pitchOffset = 0;
+    }
+
+    public long getConcealedFrames() {
+        return concealedFrames;
+    }
+
+    // ==================== Internals ====================
+
+    /**
+     * Estimate the pitch period of the history and cook one cycle of it,
+     * with the last 1/4 cycle cross-faded into the previous cycle so the
+     * repetition joins up smoothly.
+     */
+    private void startGap() {
+        pitch = findPitch();
+        int overlap = pitch >> 2;
+        int base = HISTORY_LEN - pitch;
+
+        int i = 0;
+        for (; i < pitch - overlap; i++) {
+            pitchBuffer[i] = history[base + i];
+        }
+        float step = 1.0f / overlap;
+        float weight = step;
+        for (; i < pitch; i++) {
+            pitchBuffer[i] = history[base + i] * (1.0f - weight) + history[base - pitch + i] * weight;
+            weight += step;
+        }
+    }
+
+    /**
+     * Average magnitude difference function over the most recent 20ms
+     */
+    private int findPitch() {
+        int start = HISTORY_LEN - CORRELATION_SPAN - MAX_PERIOD;
+        int best = MIN_PERIOD;
+        long bestAcc = Long.MAX_VALUE;
+        for (int period = MIN_PERIOD; period <= MAX_PERIOD; period++) {
+            long acc = 0;
+            int lagged = start + MAX_PERIOD - period;
+            for (int j = 0; j < CORRELATION_SPAN; j++) {
+                acc += Math.abs(history[start + MAX_PERIOD + j] - history[lagged + j]);
+            }
+            if (acc < bestAcc) {
+                bestAcc = acc;
+                best = period;
+            }
+        }
+        return best;
+    }
+
+    private static float gainAt(int samplesIntoGap) {
+        if (samplesIntoGap <= FULL_LEVEL_SAMPLES) {
+            return 1.0f;
+        }
+        float gain = 1.0f - (samplesIntoGap - FULL_LEVEL_SAMPLES) * ATTENUATION_PER_SAMPLE;
+        return gain > 0.0f ? gain : 0.0f;
+    }
+
+    private void saveHistory(short[] pcm, int offset, int samples) {
+        if (samples >= HISTORY_LEN) {
+            System.arraycopy(pcm, offset + samples - HISTORY_LEN, history, 0, HISTORY_LEN);
+        } else {
+            System.arraycopy(history, samples, history, 0, HISTORY_LEN - samples);
+            System.arraycopy(pcm, offset, history, HISTORY_LEN - samples, samples);
+        }
+    }
+
+    private static short saturate(float value) {
+        if (value > Short.MAX_VALUE) return Short.MAX_VALUE;
+        if (value < Short.MIN_VALUE) return Short.MIN_VALUE;
+        return (short) value;
+    }
+}
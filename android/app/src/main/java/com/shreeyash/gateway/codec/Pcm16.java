@@ -0,0 +1,24 @@
+package com.shreeyash.gateway.codec;
+
+/**
+ * Conversions between 16-bit PCM samples and little-endian byte buffers
+ */
+public final class Pcm16 {
+    private Pcm16() {}
+
+    public static void toBytes(short[] src, int srcOffset, byte[] dst, int dstOffset, int samples) {
+        int p = dstOffset;
+        for (int i = 0; i < samples; i++, p += 2) {
+            short s = src[srcOffset + i];
+            dst[p] = (byte) s;
+            dst[p + 1] = (byte) (s >> 8);
+        }
+    }
+
+    public static void fromBytes(byte[] src, int srcOffset, short[] dst, int dstOffset, int samples) {
+        int p = srcOffset;
+        for (int i = 0; i < samples; i++, p += 2) {
+            dst[dstOffset + i] = (short) ((src[p] & 0xFF) | (src[p + 1] << 8));
+        }
+    }
+}
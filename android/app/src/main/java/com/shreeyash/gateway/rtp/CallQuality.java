@@ -0,0 +1,108 @@
+package com.shreeyash.gateway.rtp;
+
+import java.util.Locale;
+
+/**
+ * Immutable snapshot of one call's media quality, from local RTP receive
+ * statistics and the report blocks the PBX sends back over RTCP.
+ */
+public final class CallQuality {
+    /** rttMs value when no SR/RR round trip has completed yet */
+    public static final int RTT_UNKNOWN = -1;
+
+    // What we receive from the PBX
+    private final long packetsReceived;
+    private final long cumulativeLost;
+    private final float fractionLost;
+    private final float jitterMs;
+
+    // What the PBX reports about our stream
+    private final long packetsSent;
+    private final boolean haveRemoteReport;
+    private final long remoteCumulativeLost;
+    private final float remoteFractionLost;
+    private final float remoteJitterMs;
+
+    private final int rttMs;
+
+    CallQuality(long packetsReceived, long cumulativeLost, float fractionLost, float jitterMs,
+                long packetsSent, boolean haveRemoteReport, long remoteCumulativeLost,
+                float remoteFractionLost, float remoteJitterMs, int rttMs) {
+        this.packetsReceived = packetsReceived;
+        this.cumulativeLost = cumulativeLost;
+        this.fractionLost = fractionLost;
+        this.jitterMs = jitterMs;
+        this.packetsSent = packetsSent;
+        this.haveRemoteReport = haveRemoteReport;
+        this.remoteCumulativeLost = remoteCumulativeLost;
+        this.remoteFractionLost = remoteFractionLost;
+        this.remoteJitterMs = remoteJitterMs;
+        this.rttMs = rttMs;
+    }
+
+    public long getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    public long getCumulativeLost() {
+        return cumulativeLost;
+    }
+
+    /** Loss over the last report interval, 0..1 */
+    public float getFractionLost() {
+        return fractionLost;
+    }
+
+    public float getJitterMs() {
+        return jitterMs;
+    }
+
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    public boolean hasRemoteReport() {
+        return haveRemoteReport;
+    }
+
+    public long getRemoteCumulativeLost() {
+        return remoteCumulativeLost;
+    }
+
+    public float getRemoteFractionLost() {
+        return remoteFractionLost;
+    }
+
+    public float getRemoteJitterMs() {
+        return remoteJitterMs;
+    }
+
+    public int getRttMs() {
+        return rttMs;
+    }
+
+    /**
+     * Compact form for the status notification
+     */
+    public String toShortString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "rx %.1f%%/%.0fms", fractionLost * 100, jitterMs));
+        if (haveRemoteReport) {
+            sb.append(String.format(Locale.US, " tx %.1f%%/%.0fms", remoteFractionLost * 100, remoteJitterMs));
+        }
+        if (rttMs != RTT_UNKNOWN) {
+            sb.append(" rtt ").append(rttMs).append("ms");
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+            "CallQuality{rx=%d, lost=%d (%.1f%%), jitter=%.1fms, tx=%d, remoteLost=%s, remoteJitter=%s, rtt=%s}",
+            packetsReceived, cumulativeLost, fractionLost * 100, jitterMs, packetsSent,
+            haveRemoteReport ? String.format(Locale.US, "%d (%.1f%%)", remoteCumulativeLost, remoteFractionLost * 100) : "n/a",
+            haveRemoteReport ? String.format(Locale.US, "%.1fms", remoteJitterMs) : "n/a",
+            rttMs != RTT_UNKNOWN ? rttMs + "ms" : "n/a");
+    }
+}
@@ -0,0 +1,111 @@
+package com.shreeyash.gateway.rtp;
+
+import android.util.Log;
+
+/**
+ * Turns a stream of RFC 4733 telephone-event packets into digit start/end
+ * callbacks.
+ *
+ * A sender repeats each event's packets while the key is held and sends the
+ * final (E bit) packet three times, all sharing the event's RTP timestamp,
+ * so the timestamp identifies the event and repeats are ignored. If the end
+ * packets are all lost, the event is ended when the next one starts or
+ * after {@link #EVENT_TIMEOUT_MS} without packets.
+ *
+ * Not thread-safe: owned by the media reactor thread.
+ */
+public class DtmfReceiver {
+    private static final String TAG = "DtmfReceiver";
+
+    private static final long EVENT_TIMEOUT_MS = 1000;
+
+    /**
+     * Digit notifications, called on the receiving thread
+     */
+    public interface Listener {
+        void onDtmfStart(char digit);
+
+        void onDtmfEnd(char digit, int durationMs);
+    }
+
+    private final int clockRate;
+    private final Listener listener;
+
+    private boolean haveEvent = false;
+    private long eventTimestamp;
+    private char digit;
+    private boolean ended;
+    private int lastDuration;
+    private long lastPacketNanos;
+
+    public DtmfReceiver(int clockRate, Listener listener) {
+        this.clockRate = clockRate;
+        this.listener = listener;
+    }
+
+    /**
+     * Handle a telephone-event RTP packet
+     */
+    public void onPacket(byte[] packet, int offset, int length, long arrivalNanos) {
+        int headerLength = RtpHeader.headerLength(packet, offset, length);
+        if (headerLength < 0 || RtpHeader.payloadLength(packet, offset, length) < TelephoneEvent.SIZE) {
+            return;
+        }
+        int payload = offset + headerLength;
+        long timestamp = RtpHeader.getTimestamp(packet, offset);
+        int event = TelephoneEvent.getEvent(packet, payload);
+        boolean end = TelephoneEvent.isEnd(packet, payload);
+        int duration = TelephoneEvent.getDuration(packet, payload);
+
+        if (!haveEvent || timestamp != eventTimestamp) {
+            int delta = (int) (timestamp - eventTimestamp);
+            if (haveEvent && delta < 0 && delta > -clockRate * 60) {
+                // Straggler from an event we already moved past
+                return;
+            }
+            finishEvent();
+
+            char newDigit = TelephoneEvent.eventToDigit(event);
+            if (newDigit == 0) {
+                Log.d(TAG, "Ignoring non-DTMF telephone-event " + event);
+                return;
+            }
+            haveEvent = true;
+            eventTimestamp = timestamp;
+            digit = newDigit;
+            ended = false;
+            lastDuration = 0;
+            Log.i(TAG, "DTMF '" + digit + "' start");
+            listener.onDtmfStart(digit);
+        }
+
+        if (ended) {
+            return; // retransmitted end packet
+        }
+        lastPacketNanos = arrivalNanos;
+        lastDuration = Math.max(lastDuration, duration);
+        if (end) {
+            finishEvent();
+        }
+    }
+
+    /**
+     * End an event whose end packets never arrived
+     */
+    public void checkTimeout(long nowNanos) {
+        if (haveEvent && !ended && (nowNanos - lastPacketNanos) / 1_000_000L >= EVENT_TIMEOUT_MS) {
+            Log.w(TAG, "DTMF '" + digit + "' end packet lost, ending on timeout");
+            finishEvent();
+        }
+    }
+
+    private void finishEvent() {
+        if (!haveEvent || ended) {
+            return;
+        }
+        ended = true;
+        int durationMs = (int) (lastDuration * 1000L / clockRate);
+        Log.i(TAG, "DTMF '" + digit + "' end (" + durationMs + "ms)");
+        listener.onDtmfEnd(digit, durationMs);
+    }
+}
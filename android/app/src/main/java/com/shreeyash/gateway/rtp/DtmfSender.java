@@ -0,0 +1,124 @@
+package com.shreeyash.gateway.rtp;
+
+import android.util.Log;
+
+/**
+ * Generates RFC 4733 telephone-event payloads for one digit at a time.
+ *
+ * While an event is active the RTP sender calls {@link #nextPayload} once
+ * per packetization interval instead of sending audio. Every packet of the
+ * event carries the timestamp of its first packet and a growing duration;
+ * the first has the marker bit set. Once stopped (and past the minimum
+ * duration) the final packet is sent three times with the E bit.
+ *
+ * Not thread-safe: owned by the media reactor thread.
+ */
+public class DtmfSender {
+    private static final String TAG = "DtmfSender";
+
+    private static final int END_PACKETS = 3;
+    private static final int MIN_DURATION_MS = 100;   // long enough for IVR detectors
+    private static final int MAX_DURATION_MS = 5000;  // stuck key guard
+    private static final int VOLUME = 10;             // -10 dBm0
+
+    private final int clockRate;
+    private final int minDuration;
+    private final int maxDuration;
+
+    private boolean active = false;
+    private int event;
+    private long timestamp;
+    private int duration;
+    private boolean first;
+    private boolean stopRequested;
+    private int endPacketsLeft;
+    private int requestedDuration;
+
+    public DtmfSender(int clockRate) {
+        this.clockRate = clockRate;
+        this.minDuration = clockRate * MIN_DURATION_MS / 1000;
+        this.maxDuration = clockRate * MAX_DURATION_MS / 1000;
+    }
+
+    /**
+     * Start sending a digit until {@link #stop()} is called
+     *
+     * @param timestamp RTP timestamp of the frame the event replaces
+     * @return false if the character is not a DTMF digit
+     */
+    public boolean start(char digit, long timestamp) {
+        return start(digit, timestamp, 0);
+    }
+
+    /**
+     * Send a digit for a fixed duration
+     *
+     * @param durationMs tone length, 0 to hold until {@link #stop()}
+     */
+    public boolean start(char digit, long timestamp, int durationMs) {
+        int code = TelephoneEvent.digitToEvent(digit);
+        if (code < 0) {
+            Log.w(TAG, "Not a DTMF digit: '" + digit + "'");
+            return false;
+        }
+        if (active) {
+            Log.d(TAG, "DTMF event in progress, replacing it");
+        }
+        active = true;
+        event = code;
+        this.timestamp = timestamp & 0xFFFFFFFFL;
+        duration = 0;
+        first = true;
+        stopRequested = false;
+        endPacketsLeft = END_PACKETS;
+        requestedDuration = durationMs > 0 ? Math.min(maxDuration, durationMs * clockRate / 1000) : 0;
+        return true;
+    }
+
+    /**
+     * Key released: finish the event once the minimum duration is reached
+     */
+    public void stop() {
+        stopRequested = true;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Write the next event payload covering another frameSamples of time
+     *
+     * @return payload length
+     */
+    public int nextPayload(byte[] out, int offset, int frameSamples) {
+        boolean finishing = endPacketsLeft < END_PACKETS;
+        if (!finishing) {
+            duration = Math.min(duration + frameSamples, 0xFFFF);
+            boolean stopDue = (stopRequested || requestedDuration > 0) &&
+                duration >= Math.max(minDuration, requestedDuration);
+            finishing = stopDue || duration >= maxDuration;
+        }
+
+        TelephoneEvent.write(out, offset, event, finishing, VOLUME, duration);
+        if (finishing && --endPacketsLeft == 0) {
+            active = false;
+        }
+        return TelephoneEvent.SIZE;
+    }
+
+    /**
+     * True for the first packet of an event (RTP marker bit). Call after
+     * {@link #nextPayload}.
+     */
+    public boolean consumeMarker() {
+        boolean marker = first;
+        first = false;
+        return marker;
+    }
+
+    /** RTP timestamp shared by every packet of the current event */
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
@@ -0,0 +1,343 @@
+package com.shreeyash.gateway.rtp;
+
+import android.util.Log;
+
+import com.shreeyash.gateway.codec.G711Codec;
+
+/**
+ * Adaptive RTP jitter buffer for G.711 payloads.
+ *
+ * Packets are slotted by sequence number, so reordering is undone and
+ * duplicates or packets that arrive after their playout slot are dropped.
+ * Interarrival jitter is measured as in RFC 3550 section 6.4.1 and the
+ * playout depth follows it: the buffer re-primes deeper after an underrun
+ * and drops a frame when it has been sitting well above target.
+ *
+ * Not thread-safe: owned by the single thread that receives and plays out.
+ */
+public class JitterBuffer {
+    private static final String TAG = "JitterBuffer";
+
+    /** poll() result: nothing to play yet (priming or underrun) */
+    public static final int BUFFERING = -1;
+    /** poll() result: slot is missing, caller should conceal */
+    public static final int MISSING = 0;
+
+    private static final int CAPACITY = 64;            // slots, power of two
+    public static final int MAX_PAYLOAD = 480;         // 60ms of G.711
+    private static final int MIN_DEPTH = 2;            // frames
+    private static final int MAX_DEPTH = 12;           // frames
+    private static final int SHRINK_HOLDOFF = 50;      // polls above target before dropping a frame
+    private static final int MAX_CONCEALED_RUN = 10;   // consecutive misses before re-priming
+    private static final int FLOOR_DECAY_FRAMES = 1000; // clean frames before relaxing an underrun floor
+
+    private final int sampleRate;
+    private int samplesPerFrame;
+
+    // Slot storage (indexed by seq & (CAPACITY - 1))
+    private final byte[][] payloads = new byte[CAPACITY][MAX_PAYLOAD];
+    private final int[] lengths = new int[CAPACITY];
+    private final int[] slotSeq = new int[CAPACITY];
+    private final boolean[] filled = new boolean[CAPACITY];
+    private int buffered = 0;
+
+    // Playout state
+    private boolean playing = false;
+    private int playoutSeq;        // next 16-bit sequence to play
+    private int highestSeq;        // highest 16-bit sequence received
+    private boolean haveHighest = false;
+    private int targetDepth = MIN_DEPTH;
+    private int depthFloor = MIN_DEPTH;    // raised by underruns, decays while playout is clean
+    private int cleanFrames = 0;
+    private int aboveTargetPolls = 0;
+    private int concealedRun = 0;
+
+    // Jitter estimation (RFC 3550), in timestamp units
+    private boolean haveTransit = false;
+    private long lastTransit;
+    private double jitter = 0;
+    private long clockBaseNanos;
+
+    // Statistics
+    private long received = 0;
+    private long duplicates = 0;
+    private long late = 0;
+    private long concealed = 0;
+    private long dropped = 0;
+    private long underruns = 0;
+
+    public JitterBuffer(int samplesPerFrame) {
+        this(samplesPerFrame, 8000);
+    }
+
+    public JitterBuffer(int samplesPerFrame, int sampleRate) {
+        this.samplesPerFrame = samplesPerFrame;
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Insert a received RTP packet.
+     *
+     * @return true if the packet was buffered, false if it was dropped
+     */
+    public boolean put(byte[] packet, int offset, int length) {
+        return put(packet, offset, length, System.nanoTime());
+    }
+
+    /**
+     * Insert a received RTP packet with an explicit monotonic arrival time
+     */
+    public boolean put(byte[] packet, int offset, int length, long arrivalNanos) {
+        if (length < RtpHeader.SIZE || (packet[offset] & 0xC0) != 0x80) {
+            return false;
+        }
+        int headerLength = RtpHeader.headerLength(packet, offset, length);
+        int payloadLength = RtpHeader.payloadLength(packet, offset, length);
+        if (headerLength < 0 || !isFrameSize(payloadLength)) {
+            return false;
+        }
+
+        int seq = RtpHeader.getSequence(packet, offset);
+        long rtpTimestamp = RtpHeader.getTimestamp(packet, offset);
+        received++;
+        updateJitter(rtpTimestamp, arrivalNanos);
+        if (!haveHighest || seqDelta(seq, highestSeq) > 0) {
+            highestSeq = seq;
+            haveHighest = true;
+        }
+
+        if (playing) {
+            int delta = seqDelta(seq, playoutSeq);
+            if (delta < 0) {
+                late++;
+                return false;
+            }
+            if (delta >= CAPACITY) {
+                // Sender jumped (restart or long outage) - start over from here
+                Log.w(TAG, "Sequence jump of " + delta + ", resyncing");
+                reset();
+            }
+        }
+
+        int slot = seq & (CAPACITY - 1);
+        if (filled[slot]) {
+            if (slotSeq[slot] == seq) {
+                duplicates++;
+                return false;
+            }
+            // Stale occupant from a previous wrap - overwrite
+            buffered--;
+        }
+
+        int copy = Math.min(payloadLength, MAX_PAYLOAD);
+        System.arraycopy(packet, offset + headerLength, payloads[slot], 0, copy);
+        lengths[slot] = copy;
+        slotSeq[slot] = seq;
+        filled[slot] = true;
+        buffered++;
+
+        if (!playing && copy != samplesPerFrame) {
+            samplesPerFrame = copy;
+        }
+        return true;
+    }
+
+    /**
+     * A G.711 payload of whole milliseconds at a supported ptime; anything
+     * else (a CN or event packet that slipped through) must not set the
+     * frame size the playout clock runs at
+     */
+    private boolean isFrameSize(int payloadLength) {
+        int samplesPerMs = sampleRate / 1000;
+        return payloadLength > 0 && payloadLength % samplesPerMs == 0 &&
+               G711Codec.isSupportedPtime(payloadLength / samplesPerMs);
+    }
+
+    /**
+     * Take the next frame due for playout.
+     *
+     * @param out buffer receiving the encoded payload
+     * @param outOffset offset into out
+     * @return payload length, MISSING when the slot is empty and should be
+     *         concealed, or BUFFERING when playout has not started
+     */
+    public int poll(byte[] out, int outOffset) {
+        if (!playing) {
+            if (buffered < targetDepth) {
+                return BUFFERING;
+            }
+            playoutSeq = oldestBufferedSeq();
+            playing = true;
+            concealedRun = 0;
+        }
+
+        if (buffered == 0) {
+            if (++concealedRun > MAX_CONCEALED_RUN) {
+                underrun();
+                return BUFFERING;
+            }
+            concealed++;
+            playoutSeq = (playoutSeq + 1) & 0xFFFF;
+            return MISSING;
+        }
+
+        adaptDepth();
+
+        int seq = playoutSeq;
+        int slot = seq & (CAPACITY - 1);
+        playoutSeq = (seq + 1) & 0xFFFF;
+        if (!filled[slot] || slotSeq[slot] != seq) {
+            concealedRun++;
+            concealed++;
+            return MISSING;
+        }
+
+        int len = lengths[slot];
+        System.arraycopy(payloads[slot], 0, out, outOffset, len);
+        filled[slot] = false;
+        buffered--;
+        concealedRun = 0;
+        if (++cleanFrames >= FLOOR_DECAY_FRAMES && depthFloor > MIN_DEPTH) {
+            depthFloor--;
+            cleanFrames = 0;
+        }
+        return len;
+    }
+
+    /**
+     * Drop all buffered packets and return to priming
+     */
+    public void reset() {
+        for (int i = 0; i < CAPACITY; i++) {
+            filled[i] = false;
+        }
+        buffered = 0;
+        playing = false;
+        aboveTargetPolls = 0;
+        concealedRun = 0;
+    }
+
+    // ==================== Adaptation ====================
+
+    private void updateJitter(long rtpTimestamp, long arrivalNanos) {
+        if (!haveTransit) {
+            clockBaseNanos = arrivalNanos;
+        }
+        long arrival = (arrivalNanos - clockBaseNanos) * sampleRate / 1_000_000_000L;
+        long transit = arrival - rtpTimestamp;
+        if (haveTransit) {
+            long d = Math.abs(transit - lastTransit);
+            // Ignore huge steps (timestamp jump after a sender restart)
+            if (d < sampleRate) {
+                jitter += (d - jitter) / 16.0;
+            }
+        }
+        lastTransit = transit;
+        haveTransit = true;
+
+        // Cover one frame of scheduling slack plus ~3x the measured jitter
+        updateTargetDepth();
+    }
+
+    private void updateTargetDepth() {
+        int depth = (int) Math.ceil((samplesPerFrame + 3 * jitter) / samplesPerFrame);
+        targetDepth = Math.max(depthFloor, Math.min(MAX_DEPTH, depth));
+    }
+
+    private void adaptDepth() {
+        if (buffered > targetDepth + 1) {
+            if (++aboveTargetPolls >= SHRINK_HOLDOFF) {
+                // Drop the oldest frame to pull latency back down
+                int slot = playoutSeq & (CAPACITY - 1);
+                if (filled[slot] && slotSeq[slot] == playoutSeq) {
+                    filled[slot] = false;
+                    buffered--;
+                }
+                playoutSeq = (playoutSeq + 1) & 0xFFFF;
+                dropped++;
+                aboveTargetPolls = 0;
+            }
+        } else {
+            aboveTargetPolls = 0;
+        }
+    }
+
+    private void underrun() {
+        underruns++;
+        playing = false;
+        concealedRun = 0;
+        // Next priming waits for at least one extra frame
+        depthFloor = Math.min(MAX_DEPTH, Math.max(depthFloor, targetDepth) + 1);
+        cleanFrames = 0;
+        updateTargetDepth();
+        Log.d(TAG, "Underrun, re-priming to depth " + targetDepth);
+    }
+
+    private int oldestBufferedSeq() {
+        int oldest = -1;
+        for (int i = 0; i < CAPACITY; i++) {
+            if (filled[i] && (oldest < 0 || seqDelta(slotSeq[i], oldest) < 0)) {
+                oldest = slotSeq[i];
+            }
+        }
+        return oldest < 0 ? highestSeq : oldest;
+    }
+
+    /** Signed distance a - b in 16-bit sequence space */
+    private static int seqDelta(int a, int b) {
+        return (short) (a - b);
+    }
+
+    // ==================== Getters ====================
+
+    public boolean isPlaying() {
+        return playing;
+    }
+
+    public int getBufferedFrames() {
+        return buffered;
+    }
+
+    public int getTargetDepth() {
+        return targetDepth;
+    }
+
+    public int getSamplesPerFrame() {
+        return samplesPerFrame;
+    }
+
+    /** Interarrival jitter in timestamp units (RFC 3550) */
+    public int getJitterSamples() {
+        return (int) jitter;
+    }
+
+    public double getJitterMs() {
+        return jitter * 1000.0 / sampleRate;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    public long getLate() {
+        return late;
+    }
+
+    public long getConcealed() {
+        return concealed;
+    }
+
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("JB{depth=%d/%d, jitter=%.1fms, rx=%d, late=%d, dup=%d, conceal=%d, drop=%d, underrun=%d}",
+            buffered, targetDepth, getJitterMs(), received, late, duplicates, concealed, dropped, underruns);
+    }
+}
@@ -0,0 +1,298 @@
+package com.shreeyash.gateway.rtp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single event loop for all active media sessions.
+ *
+ * Every SIM's RTP channel is registered with one Selector, and each session's
+ * packetization tick (normally 20ms) is scheduled on the same thread against
+ * System.nanoTime(). Dual-SIM operation therefore costs one media thread
+ * instead of a capture and playback thread per bridge, and the two SIMs no
+ * longer compete with each other's scheduling.
+ *
+ * Session callbacks run on the reactor thread and must not block.
+ */
+public final class MediaReactor {
+    private static final String TAG = "MediaReactor";
+
+    private static final int MAX_CATCHUP_TICKS = 5;
+    private static final long DETACH_WAIT_MS = 1000;
+
+    private static volatile MediaReactor instance;
+
+    /**
+     * A media stream serviced by the reactor
+     */
+    public interface Session {
+        /** RTP channel has datagrams pending */
+        void onReadable() throws IOException;
+
+        /** Packetization / playout tick */
+        void onTick() throws IOException;
+
+        /** Tick period, e.g. 20ms for G.711 at ptime 20 */
+        long getTickIntervalNanos();
+
+        /** A callback threw; the session has already been detached */
+        void onError(Exception e);
+    }
+
+    private static final class Entry {
+        final Session session;
+        final RtpTransport transport;
+        final long intervalNanos;
+        SelectionKey key;
+        long nextTick;
+        boolean active = true;
+
+        Entry(Session session, RtpTransport transport) {
+            this.session = session;
+            this.transport = transport;
+            this.intervalNanos = session.getTickIntervalNanos();
+        }
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final List<Entry> entries = new ArrayList<>();   // reactor thread only
+
+    public static MediaReactor getInstance() throws IOException {
+        MediaReactor reactor = instance;
+        if (reactor == null) {
+            synchronized (MediaReactor.class) {
+                reactor = instance;
+                if (reactor == null) {
+                    reactor = new MediaReactor();
+                    instance = reactor;
+                }
+            }
+        }
+        return reactor;
+    }
+
+    private MediaReactor() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this::run, "Media-Reactor");
+        thread.setDaemon(true);
+        thread.start();
+        Log.i(TAG, "Media reactor started");
+    }
+
+    // ==================== Registration ====================
+
+    /**
+     * Start servicing a session: RTP reads on its transport plus periodic ticks
+     */
+    public void attach(RtpTransport transport, Session session) {
+        Entry entry = new Entry(session, transport);
+        execute(() -> {
+            try {
+                entry.key = transport.register(selector, entry);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to register RTP channel: " + e.getMessage());
+                entry.active = false;
+                session.onError(e);
+                return;
+            }
+            entry.nextTick = System.nanoTime() + entry.intervalNanos;
+            entries.add(entry);
+            Log.d(TAG, "Attached session on port " + transport.getLocalPort() +
+                " (" + entries.size() + " active)");
+        });
+    }
+
+    /**
+     * Stop servicing a session. When called off the reactor thread this waits
+     * until the session can no longer receive callbacks.
+     */
+    public void detach(Session session) {
+        Runnable removal = () -> {
+            Iterator<Entry> it = entries.iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.session == session) {
+                    deactivate(entry);
+                    it.remove();
+                }
+            }
+            flushCancelledKeys();
+        };
+
+        if (Thread.currentThread() == thread) {
+            // Mid-dispatch: stop callbacks now, prune the list on the next pass
+            for (Entry entry : entries) {
+                if (entry.session == session) {
+                    deactivate(entry);
+                }
+            }
+            tasks.add(removal);
+            return;
+        }
+
+        CountDownLatch done = new CountDownLatch(1);
+        execute(() -> {
+            removal.run();
+            done.countDown();
+        });
+        try {
+            if (!done.await(DETACH_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out waiting for session detach");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Run a task on the reactor thread
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    // ==================== Event Loop ====================
+
+    private void run() {
+        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        while (true) {
+            try {
+                long timeoutMs = millisUntilNextTick();
+                if (timeoutMs < 0) {
+                    selector.select();
+                } else if (timeoutMs == 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeoutMs);
+                }
+
+                runTasks();
+                dispatchReadable();
+                dispatchTicks();
+
+            } catch (Exception e) {
+                // Never let one bad iteration kill media for every SIM
+                Log.e(TAG, "Reactor loop error: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * @return -1 to wait indefinitely, 0 if a tick is already due, else ms to wait
+     */
+    private long millisUntilNextTick() {
+        if (entries.isEmpty()) {
+            return tasks.isEmpty() ? -1 : 0;
+        }
+        long now = System.nanoTime();
+        long earliest = Long.MAX_VALUE;
+        for (Entry entry : entries) {
+            earliest = Math.min(earliest, entry.nextTick - now);
+        }
+        if (earliest <= 0 || !tasks.isEmpty()) {
+            return 0;
+        }
+        // Round up so we never wake just before the deadline
+        return (earliest + 999_999) / 1_000_000;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                Log.e(TAG, "Reactor task failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void dispatchReadable() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            Entry entry = (Entry) key.attachment();
+            if (entry == null || !entry.active || !key.isValid()) {
+                continue;
+            }
+            try {
+                entry.session.onReadable();
+            } catch (Exception e) {
+                fail(entry, e);
+            }
+        }
+    }
+
+    private void dispatchTicks() {
+        long now = System.nanoTime();
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            int ticks = 0;
+            while (entry.active && now - entry.nextTick >= 0) {
+                if (++ticks > MAX_CATCHUP_TICKS) {
+                    // Far behind (device stall) - resync instead of bursting
+                    entry.nextTick = now + entry.intervalNanos;
+                    break;
+                }
+                entry.nextTick += entry.intervalNanos;
+                try {
+                    entry.session.onTick();
+                } catch (Exception e) {
+                    fail(entry, e);
+                }
+            }
+        }
+    }
+
+    private void fail(Entry entry, Exception e) {
+        Log.e(TAG, "Session on port " + entry.transport.getLocalPort() + " failed: " + e.getMessage(), e);
+        deactivate(entry);
+        tasks.add(() -> {
+            entries.remove(entry);
+            flushCancelledKeys();
+        });
+        entry.session.onError(e);
+    }
+
+    /**
+     * Deregister cancelled keys now. A channel registered with a selector is
+     * not really closed (and its port stays bound) until that happens, and
+     * with no sessions left the loop could sit in select() indefinitely.
+     */
+    private void flushCancelledKeys() {
+        try {
+            selector.selectNow();
+        } catch (IOException e) {
+            Log.w(TAG, "selectNow failed: " + e.getMessage());
+        }
+    }
+
+    private static void deactivate(Entry entry) {
+        entry.active = false;
+        if (entry.key != null) {
+            entry.key.cancel();
+        }
+    }
+
+    /**
+     * Number of sessions currently serviced (for diagnostics)
+     */
+    public int getSessionCount() {
+        return entries.size();
+    }
+}
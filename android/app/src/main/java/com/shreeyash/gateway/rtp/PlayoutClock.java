@@ -0,0 +1,52 @@
+package com.shreeyash.gateway.rtp;
+
+/**
+ * Monotonic frame clock for jitter-buffered playout.
+ *
+ * Playback loops interleave socket receives with frame pulls; this tells
+ * them when the next frame is due and how long a receive may block.
+ */
+public class PlayoutClock {
+    private static final int MAX_BEHIND_FRAMES = 5;
+
+    private long frameNanos;
+    private long nextDue;
+
+    public PlayoutClock(int frameMs) {
+        this.frameNanos = frameMs * 1_000_000L;
+        this.nextDue = System.nanoTime();
+    }
+
+    /**
+     * Follow the packetization the remote actually sends, which may differ
+     * from ours; takes effect from the next frame
+     */
+    public void setFrameSamples(int samples, int sampleRate) {
+        frameNanos = samples * 1_000_000_000L / sampleRate;
+    }
+
+    /**
+     * Check whether a frame is due now; advances the clock if so.
+     * If the loop has fallen far behind (e.g. a blocked write) the clock
+     * snaps forward instead of bursting a backlog of frames.
+     */
+    public boolean poll() {
+        long now = System.nanoTime();
+        if (now - nextDue < 0) {
+            return false;
+        }
+        if (now - nextDue > MAX_BEHIND_FRAMES * frameNanos) {
+            nextDue = now;
+        }
+        nextDue += frameNanos;
+        return true;
+    }
+
+    /**
+     * Milliseconds until the next frame is due (at least 1, for socket timeouts)
+     */
+    public int millisUntilDue() {
+        long wait = (nextDue - System.nanoTime()) / 1_000_000L;
+        return (int) Math.max(1, wait);
+    }
+}
@@ -0,0 +1,66 @@
+package com.shreeyash.gateway.rtp;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Sends an SR/RR every 5 seconds on a stream's RTCP port and feeds what the
+ * remote sends back into its {@link RtcpSession}.
+ *
+ * Attached to the {@link MediaReactor} next to the RTP side, whichever
+ * thread that runs on; the session is shared with it.
+ */
+public final class RtcpReporter implements MediaReactor.Session {
+    private static final String TAG = "RtcpReporter";
+
+    private static final long REPORT_INTERVAL_NANOS = 5_000_000_000L; // RFC 3550 minimum
+
+    private final RtcpSession session;
+    private final RtpTransport transport;
+    private final byte[] packet = new byte[RtpTransport.MAX_PACKET_SIZE];
+
+    public RtcpReporter(RtcpSession session, RtpTransport transport) {
+        this.session = session;
+        this.transport = transport;
+    }
+
+    @Override
+    public long getTickIntervalNanos() {
+        return REPORT_INTERVAL_NANOS;
+    }
+
+    @Override
+    public void onReadable() throws IOException {
+        int length;
+        while ((length = transport.receive(packet, 0)) >= 0) {
+            if (!session.onRtcpReceived(packet, 0, length, System.nanoTime())) {
+                Log.d(TAG, "Ignoring malformed packet (" + length + " bytes)");
+            }
+        }
+    }
+
+    @Override
+    public void onTick() throws IOException {
+        int length = session.buildReport(packet, 0);
+        transport.send(packet, 0, length);
+        Log.d(TAG, session.getQuality().toString());
+    }
+
+    @Override
+    public void onError(Exception e) {
+        // Reports are best effort - never tear down the call over RTCP
+        Log.w(TAG, "Reporter stopped: " + e.getMessage());
+    }
+
+    /**
+     * Say goodbye on the RTCP port; call once detached from the reactor
+     */
+    public void sendBye() {
+        try {
+            transport.send(packet, 0, session.buildBye(packet, 0));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to send BYE: " + e.getMessage());
+        }
+    }
+}
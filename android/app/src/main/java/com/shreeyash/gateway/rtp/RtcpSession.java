@@ -0,0 +1,399 @@
+package com.shreeyash.gateway.rtp;
+
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * RTCP state for one RTP stream pair (RFC 3550 section 6).
+ *
+ * Received RTP is fed through {@link #onRtpReceived} to track the extended
+ * highest sequence number, cumulative and interval loss (appendix A.1/A.3)
+ * and interarrival jitter (A.8). {@link #buildReport} writes a compound
+ * SR or RR + SDES CNAME, and {@link #onRtcpReceived} parses the PBX's
+ * reports to pick up how our stream is arriving and the round-trip time
+ * from LSR/DLSR.
+ *
+ * Bridges with their own capture and playback threads account RTP from
+ * both while the reactor sends the reports, so every update is synchronized.
+ * {@link #getQuality()} only reads the last snapshot.
+ */
+public class RtcpSession {
+    private static final String TAG = "RtcpSession";
+
+    public static final int PT_SR = 200;
+    public static final int PT_RR = 201;
+    public static final int PT_SDES = 202;
+    public static final int PT_BYE = 203;
+
+    private static final int SDES_CNAME = 1;
+    private static final int REPORT_BLOCK_SIZE = 24;
+    private static final long NTP_EPOCH_OFFSET = 2208988800L; // 1900 -> 1970, seconds
+
+    // Sequence validation limits from RFC 3550 appendix A.1
+    private static final int MAX_DROPOUT = 3000;
+    private static final int MAX_MISORDER = 100;
+    private static final int SEQ_MOD = 1 << 16;
+
+    private final long localSsrc;
+    private final int clockRate;
+    private final byte[] cname;
+
+    // Receive side (PBX -> us)
+    private boolean haveSource = false;
+    private long sourceSsrc;
+    private int maxSeq;
+    private long cycles;
+    private int baseSeq;
+    private int badSeq = SEQ_MOD + 1;
+    private long received = 0;
+    private long expectedPrior = 0;
+    private long receivedPrior = 0;
+    private double jitter = 0;           // timestamp units
+    private boolean haveTransit = false;
+    private long lastTransit;
+    private long clockBaseNanos;
+    private long lastFractionByte = 0;   // loss fraction from the last report, /256
+
+    // Last SR from the PBX, echoed back as LSR/DLSR
+    private long lastSrNtpMiddle = 0;
+    private long lastSrArrivalNanos;
+
+    // Send side (us -> PBX)
+    private long packetsSent = 0;
+    private long octetsSent = 0;
+    private long lastRtpTimestamp;
+    private long lastRtpSendNanos;
+    private boolean sentSinceReport = false;
+
+    // What the PBX reports about our stream
+    private boolean haveRemoteReport = false;
+    private float remoteFractionLost = 0;
+    private long remoteCumulativeLost = 0;
+    private float remoteJitterMs = 0;
+    private int rttMs = CallQuality.RTT_UNKNOWN;
+
+    private volatile CallQuality quality;
+
+    public RtcpSession(long localSsrc, int clockRate, String cname) {
+        this.localSsrc = localSsrc & 0xFFFFFFFFL;
+        this.clockRate = clockRate;
+        byte[] text = cname.getBytes(StandardCharsets.UTF_8);
+        this.cname = text.length > 255 ? Arrays.copyOf(text, 255) : text;
+        this.quality = snapshot();
+    }
+
+    // ==================== RTP Accounting ====================
+
+    /**
+     * Account for a received RTP packet (header already validated by the caller)
+     */
+    public synchronized void onRtpReceived(byte[] packet, int offset, long arrivalNanos) {
+        long ssrc = RtpHeader.getSsrc(packet, offset);
+        int seq = RtpHeader.getSequence(packet, offset);
+
+        if (!haveSource || ssrc != sourceSsrc) {
+            if (haveSource) {
+                Log.i(TAG, "Remote SSRC changed, restarting receive statistics");
+            }
+            sourceSsrc = ssrc;
+            haveSource = true;
+            initSequence(seq);
+            haveTransit = false;
+            jitter = 0;
+        } else if (!updateSequence(seq)) {
+            return;
+        }
+        received++;
+        updateJitter(RtpHeader.getTimestamp(packet, offset), arrivalNanos);
+    }
+
+    /**
+     * Account for an RTP packet we sent
+     */
+    public synchronized void onRtpSent(int payloadLength, long rtpTimestamp) {
+        packetsSent++;
+        octetsSent += payloadLength;
+        lastRtpTimestamp = rtpTimestamp;
+        lastRtpSendNanos = System.nanoTime();
+        sentSinceReport = true;
+    }
+
+    private void initSequence(int seq) {
+        baseSeq = seq;
+        maxSeq = seq;
+        badSeq = SEQ_MOD + 1;
+        cycles = 0;
+        received = 0;
+        receivedPrior = 0;
+        expectedPrior = 0;
+    }
+
+    /**
+     * RFC 3550 A.1 update_seq (without probation)
+     *
+     * @return false if the packet should not be counted
+     */
+    private boolean updateSequence(int seq) {
+        int delta = (seq - maxSeq) & 0xFFFF;
+        if (delta < MAX_DROPOUT) {
+            // In order, with permissible gap
+            if (seq < maxSeq) {
+                cycles += SEQ_MOD;
+            }
+            maxSeq = seq;
+        } else if (delta <= SEQ_MOD - MAX_MISORDER) {
+            // Very large jump: accept only if the next packet confirms it
+            if (seq == badSeq) {
+                initSequence(seq);
+            } else {
+                badSeq = (seq + 1) & 0xFFFF;
+                return false;
+            }
+        }
+        // else: duplicate or reordered packet, counted but max unchanged
+        return true;
+    }
+
+    private void updateJitter(long rtpTimestamp, long arrivalNanos) {
+        if (!haveTransit) {
+            clockBaseNanos = arrivalNanos;
+        }
+        long arrival = (arrivalNanos - clockBaseNanos) * clockRate / 1_000_000_000L;
+        long transit = arrival - rtpTimestamp;
+        if (haveTransit) {
+            long d = Math.abs(transit - lastTransit);
+            if (d < clockRate) {
+                jitter += (d - jitter) / 16.0;
+            }
+        }
+        lastTransit = transit;
+        haveTransit = true;
+    }
+
+    // ==================== Report Generation ====================
+
+    /**
+     * Write a compound SR/RR + SDES packet. An SR is sent if we have sent
+     * RTP since the last report, otherwise an RR.
+     *
+     * @return packet length
+     */
+    public synchronized int buildReport(byte[] out, int offset) {
+        long nowNanos = System.nanoTime();
+        boolean sender = sentSinceReport;
+        int blocks = haveSource ? 1 : 0;
+        int pos = offset;
+
+        if (sender) {
+            int words = 6 + 6 * blocks;
+            writeHeader(out, pos, blocks, PT_SR, words);
+            writeUint32(out, pos + 4, localSsrc);
+
+            long wallMs = System.currentTimeMillis();
+            long ntpSeconds = wallMs / 1000 + NTP_EPOCH_OFFSET;
+            long ntpFraction = ((wallMs % 1000) << 32) / 1000;
+            writeUint32(out, pos + 8, ntpSeconds);
+            writeUint32(out, pos + 12, ntpFraction);
+
+            // RTP time corresponding to the NTP time above
+            long rtpNow = lastRtpTimestamp + (nowNanos - lastRtpSendNanos) * clockRate / 1_000_000_000L;
+            writeUint32(out, pos + 16, rtpNow);
+            writeUint32(out, pos + 20, packetsSent);
+            writeUint32(out, pos + 24, octetsSent);
+            pos += 28;
+        } else {
+            int words = 1 + 6 * blocks;
+            writeHeader(out, pos, blocks, PT_RR, words);
+            writeUint32(out, pos + 4, localSsrc);
+            pos += 8;
+        }
+
+        if (blocks > 0) {
+            pos = writeReportBlock(out, pos, nowNanos);
+        }
+        pos = writeSdes(out, pos);
+
+        sentSinceReport = false;
+        quality = snapshot();
+        return pos - offset;
+    }
+
+    /**
+     * Write an RR + BYE compound to send when the call ends
+     *
+     * @return packet length
+     */
+    public synchronized int buildBye(byte[] out, int offset) {
+        int pos = offset;
+        writeHeader(out, pos, 0, PT_RR, 1);
+        writeUint32(out, pos + 4, localSsrc);
+        pos += 8;
+        pos = writeSdes(out, pos);
+        writeHeader(out, pos, 1, PT_BYE, 1);
+        writeUint32(out, pos + 4, localSsrc);
+        return pos + 8 - offset;
+    }
+
+    private int writeReportBlock(byte[] out, int pos, long nowNanos) {
+        long extendedMax = cycles + maxSeq;
+        long expected = extendedMax - baseSeq + 1;
+        long lost = expected - received;
+        // Cumulative loss is a signed 24-bit field
+        long lost24 = Math.max(-0x800000L, Math.min(0x7FFFFFL, lost)) & 0xFFFFFF;
+
+        long expectedInterval = expected - expectedPrior;
+        long receivedInterval = received - receivedPrior;
+        long lostInterval = expectedInterval - receivedInterval;
+        expectedPrior = expected;
+        receivedPrior = received;
+        lastFractionByte = (expectedInterval == 0 || lostInterval <= 0)
+            ? 0 : (lostInterval << 8) / expectedInterval;
+
+        long dlsr = 0;
+        if (lastSrNtpMiddle != 0) {
+            dlsr = (nowNanos - lastSrArrivalNanos) * 65536L / 1_000_000_000L;
+        }
+
+        writeUint32(out, pos, sourceSsrc);
+        writeUint32(out, pos + 4, (Math.min(lastFractionByte, 255) << 24) | lost24);
+        writeUint32(out, pos + 8, extendedMax);
+        writeUint32(out, pos + 12, (long) jitter);
+        writeUint32(out, pos + 16, lastSrNtpMiddle);
+        writeUint32(out, pos + 20, dlsr);
+        return pos + REPORT_BLOCK_SIZE;
+    }
+
+    private int writeSdes(byte[] out, int pos) {
+        // SSRC + CNAME item + terminating null, padded to a word boundary
+        int chunk = 4 + 2 + cname.length + 1;
+        int padded = (chunk + 3) & ~3;
+        writeHeader(out, pos, 1, PT_SDES, padded / 4);
+        int p = pos + 4;
+        writeUint32(out, p, localSsrc);
+        out[p + 4] = SDES_CNAME;
+        out[p + 5] = (byte) cname.length;
+        System.arraycopy(cname, 0, out, p + 6, cname.length);
+        for (int i = p + 6 + cname.length; i < p + padded; i++) {
+            out[i] = 0;
+        }
+        return p + padded;
+    }
+
+    private static void writeHeader(byte[] out, int pos, int count, int packetType, int lengthWords) {
+        out[pos] = (byte) (0x80 | (count & 0x1F));
+        out[pos + 1] = (byte) packetType;
+        out[pos + 2] = (byte) (lengthWords >> 8);
+        out[pos + 3] = (byte) lengthWords;
+    }
+
+    private static void writeUint32(byte[] out, int pos, long value) {
+        out[pos] = (byte) (value >> 24);
+        out[pos + 1] = (byte) (value >> 16);
+        out[pos + 2] = (byte) (value >> 8);
+        out[pos + 3] = (byte) value;
+    }
+
+    // ==================== Report Parsing ====================
+
+    /**
+     * Parse a received compound RTCP packet
+     *
+     * @return false if the packet is malformed
+     */
+    public synchronized boolean onRtcpReceived(byte[] packet, int offset, int length, long arrivalNanos) {
+        int pos = offset;
+        int end = offset + length;
+
+        while (pos + 4 <= end) {
+            if ((packet[pos] & 0xC0) != 0x80) {
+                return false;
+            }
+            int count = packet[pos] & 0x1F;
+            int packetType = packet[pos + 1] & 0xFF;
+            int packetLength = ((((packet[pos + 2] & 0xFF) << 8) | (packet[pos + 3] & 0xFF)) + 1) * 4;
+            if (pos + packetLength > end) {
+                return false;
+            }
+
+            switch (packetType) {
+                case PT_SR:
+                    if (packetLength < 28) return false;
+                    // Middle 32 bits of the NTP timestamp, echoed as LSR
+                    lastSrNtpMiddle = RtpHeader.readUint32(packet, pos + 10);
+                    lastSrArrivalNanos = arrivalNanos;
+                    parseReportBlocks(packet, pos + 28, pos + packetLength, count);
+                    break;
+                case PT_RR:
+                    if (packetLength < 8) return false;
+                    parseReportBlocks(packet, pos + 8, pos + packetLength, count);
+                    break;
+                case PT_BYE:
+                    Log.i(TAG, "Received RTCP BYE");
+                    break;
+                default:
+                    // SDES, APP, XR: nothing we use
+                    break;
+            }
+            pos += packetLength;
+        }
+
+        quality = snapshot();
+        return true;
+    }
+
+    private void parseReportBlocks(byte[] packet, int pos, int end, int count) {
+        for (int i = 0; i < count && pos + REPORT_BLOCK_SIZE <= end; i++, pos += REPORT_BLOCK_SIZE) {
+            if (RtpHeader.readUint32(packet, pos) != localSsrc) {
+                continue;
+            }
+
+            haveRemoteReport = true;
+            remoteFractionLost = (packet[pos + 4] & 0xFF) / 256.0f;
+            int lost = ((packet[pos + 5] & 0xFF) << 16) | ((packet[pos + 6] & 0xFF) << 8) | (packet[pos + 7] & 0xFF);
+            remoteCumulativeLost = (lost << 8) >> 8; // sign-extend 24 bits
+            remoteJitterMs = RtpHeader.readUint32(packet, pos + 12) * 1000.0f / clockRate;
+
+            long lsr = RtpHeader.readUint32(packet, pos + 16);
+            long dlsr = RtpHeader.readUint32(packet, pos + 20);
+            if (lsr != 0) {
+                // RTT = A - LSR - DLSR, all in 1/65536 s. Our wall clock only
+                // has ms resolution, so a LAN round trip can come out slightly
+                // negative; treat that as zero and ignore anything absurd.
+                int rtt = (int) (ntpMiddleNow() - lsr - dlsr);
+                if (rtt > -65536 / 10 && rtt < 65536 * 10) {
+                    rttMs = (int) (Math.max(0, rtt) * 1000L / 65536);
+                }
+            }
+        }
+    }
+
+    private static long ntpMiddleNow() {
+        long wallMs = System.currentTimeMillis();
+        long seconds = wallMs / 1000 + NTP_EPOCH_OFFSET;
+        long fraction = ((wallMs % 1000) << 16) / 1000;
+        return ((seconds & 0xFFFF) << 16) | fraction;
+    }
+
+    // ==================== Getters ====================
+
+    private CallQuality snapshot() {
+        long expected = haveSource ? cycles + maxSeq - baseSeq + 1 : 0;
+        long lost = Math.max(0, expected - received);
+        return new CallQuality(received, lost, lastFractionByte / 256.0f,
+            (float) (jitter * 1000.0 / clockRate), packetsSent, haveRemoteReport,
+            remoteCumulativeLost, remoteFractionLost, remoteJitterMs, rttMs);
+    }
+
+    /**
+     * Latest quality snapshot, refreshed on every report sent or received
+     */
+    public CallQuality getQuality() {
+        return quality;
+    }
+
+    public long getLocalSsrc() {
+        return localSsrc;
+    }
+}
@@ -0,0 +1,80 @@
+package com.shreeyash.gateway.rtp;
+
+/**
+ * Static helpers for reading and writing RTP fixed headers (RFC 3550)
+ * in place, without wrapping the packet in a ByteBuffer.
+ */
+public final class RtpHeader {
+    public static final int SIZE = 12;
+    public static final int VERSION_BYTE = 0x80; // V=2, P=0, X=0, CC=0
+
+    private RtpHeader() {}
+
+    /**
+     * Write a 12-byte header (no CSRCs, no extension)
+     */
+    public static void write(byte[] packet, int offset, boolean marker, int payloadType,
+                             int sequence, long timestamp, long ssrc) {
+        packet[offset] = (byte) VERSION_BYTE;
+        packet[offset + 1] = (byte) ((marker ? 0x80 : 0) | (payloadType & 0x7F));
+        packet[offset + 2] = (byte) (sequence >> 8);
+        packet[offset + 3] = (byte) sequence;
+        packet[offset + 4] = (byte) (timestamp >> 24);
+        packet[offset + 5] = (byte) (timestamp >> 16);
+        packet[offset + 6] = (byte) (timestamp >> 8);
+        packet[offset + 7] = (byte) timestamp;
+        packet[offset + 8] = (byte) (ssrc >> 24);
+        packet[offset + 9] = (byte) (ssrc >> 16);
+        packet[offset + 10] = (byte) (ssrc >> 8);
+        packet[offset + 11] = (byte) ssrc;
+    }
+
+    public static boolean getMarker(byte[] packet, int offset) {
+        return (packet[offset + 1] & 0x80) != 0;
+    }
+
+    public static int getPayloadType(byte[] packet, int offset) {
+        return packet[offset + 1] & 0x7F;
+    }
+
+    public static int getSequence(byte[] packet, int offset) {
+        return ((packet[offset + 2] & 0xFF) << 8) | (packet[offset + 3] & 0xFF);
+    }
+
+    public static long getTimestamp(byte[] packet, int offset) {
+        return readUint32(packet, offset + 4);
+    }
+
+    public static long getSsrc(byte[] packet, int offset) {
+        return readUint32(packet, offset + 8);
+    }
+
+    /**
+     * Header length including CSRCs and extension, or -1 if truncated
+     */
+    public static int headerLength(byte[] packet, int offset, int length) {
+        int len = SIZE + (packet[offset] & 0x0F) * 4;
+        if ((packet[offset] & 0x10) != 0) {
+            if (length < len + 4) return -1;
+            int words = ((packet[offset + len + 2] & 0xFF) << 8) | (packet[offset + len + 3] & 0xFF);
+            len += 4 + words * 4;
+        }
+        return len <= length ? len : -1;
+    }
+
+    /**
+     * Payload length excluding header and padding, or -1 if malformed
+     */
+    public static int payloadLength(byte[] packet, int offset, int length) {
+        int header = headerLength(packet, offset, length);
+        if (header < 0) return -1;
+        int padding = (packet[offset] & 0x20) != 0 ? packet[offset + length - 1] & 0xFF : 0;
+        int payload = length - header - padding;
+        return payload >= 0 ? payload : -1;
+    }
+
+    static long readUint32(byte[] b, int i) {
+        return ((long) (b[i] & 0xFF) << 24) | ((b[i + 1] & 0xFF) << 16)
+            | ((b[i + 2] & 0xFF) << 8) | (b[i + 3] & 0xFF);
+    }
+}
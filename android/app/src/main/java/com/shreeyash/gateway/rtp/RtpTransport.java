@@ -0,0 +1,208 @@
+package com.shreeyash.gateway.rtp;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Non-blocking UDP transport for one RTP port.
+ *
+ * Built on a DatagramChannel with one direct buffer for each direction, so
+ * sending and receiving allocate nothing per packet. The channel can be
+ * registered with a shared Selector so one thread services every SIM's
+ * port. {@link #awaitReadable} is for loops that own their thread; it uses a
+ * private selector that {@link #close()} wakes at once, so stop() no longer
+ * waits out a socket timeout.
+ */
+public class RtpTransport implements Closeable {
+    private static final String TAG = "RtpTransport";
+
+    public static final int MAX_PACKET_SIZE = 1500;
+
+    private final DatagramChannel channel;
+    private final int localPort;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+    private final Object sendLock = new Object();
+
+    private volatile InetSocketAddress remote;
+    private SocketAddress lastSource;
+    private Selector privateSelector;
+
+    // Statistics
+    private volatile long packetsSent = 0;
+    private volatile long packetsReceived = 0;
+
+    private RtpTransport(DatagramChannel channel, int localPort) {
+        this.channel = channel;
+        this.localPort = localPort;
+    }
+
+    /**
+     * Open a non-blocking channel bound to the given local port on all interfaces
+     */
+    public static RtpTransport open(int localPort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(localPort));
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        Log.d(TAG, "Opened RTP channel on port " + localPort);
+        return new RtpTransport(channel, localPort);
+    }
+
+    /**
+     * Set where outgoing packets go. Resolved once here, not per packet.
+     */
+    public void setRemote(InetSocketAddress remote) {
+        this.remote = remote;
+    }
+
+    public InetSocketAddress getRemote() {
+        return remote;
+    }
+
+    // ==================== Send ====================
+
+    /**
+     * Send a packet to the remote endpoint.
+     *
+     * @return true if the datagram was handed to the kernel, false if there is
+     *         no remote yet or the socket buffer is full
+     */
+    public boolean send(byte[] packet, int offset, int length) throws IOException {
+        InetSocketAddress target = remote;
+        if (target == null) {
+            return false;
+        }
+        synchronized (sendLock) {
+            sendBuffer.clear();
+            sendBuffer.put(packet, offset, length);
+            sendBuffer.flip();
+            if (channel.send(sendBuffer, target) == 0) {
+                return false;
+            }
+        }
+        packetsSent++;
+        return true;
+    }
+
+    // ==================== Receive ====================
+
+    /**
+     * Read one pending datagram into dst without blocking.
+     *
+     * @return datagram length, or -1 if nothing is pending
+     */
+    public int receive(byte[] dst, int offset) throws IOException {
+        receiveBuffer.clear();
+        SocketAddress source = channel.receive(receiveBuffer);
+        if (source == null) {
+            return -1;
+        }
+        lastSource = source;
+        receiveBuffer.flip();
+        int length = Math.min(receiveBuffer.remaining(), dst.length - offset);
+        receiveBuffer.get(dst, offset, length);
+        packetsReceived++;
+        return length;
+    }
+
+    /**
+     * Block until a datagram is pending, the timeout passes, or the transport
+     * is closed.
+     *
+     * @return true if a datagram can be read
+     */
+    public boolean awaitReadable(long timeoutMs) throws IOException {
+        Selector selector;
+        synchronized (this) {
+            if (!channel.isOpen()) {
+                return false;
+            }
+            if (privateSelector == null) {
+                privateSelector = Selector.open();
+                channel.register(privateSelector, SelectionKey.OP_READ);
+            }
+            selector = privateSelector;
+        }
+        try {
+            int ready = selector.select(Math.max(1, timeoutMs));
+            selector.selectedKeys().clear();
+            return ready > 0;
+        } catch (ClosedSelectorException e) {
+            // close() raced with us - the transport is shutting down
+            return false;
+        }
+    }
+
+    /**
+     * Register with a shared selector for OP_READ
+     */
+    public SelectionKey register(Selector selector, Object attachment) throws ClosedChannelException {
+        return channel.register(selector, SelectionKey.OP_READ, attachment);
+    }
+
+    // ==================== Lifecycle ====================
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (privateSelector != null) {
+                privateSelector.wakeup();
+                try {
+                    privateSelector.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Error closing selector: " + e.getMessage());
+                }
+                privateSelector = null;
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing RTP channel: " + e.getMessage());
+        }
+        Log.d(TAG, "Closed RTP channel on port " + localPort + " (sent=" + packetsSent
+            + ", received=" + packetsReceived + ")");
+    }
+
+    // ==================== Getters ====================
+
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    /** Source address of the most recently received datagram */
+    public SocketAddress getLastSource() {
+        return lastSource;
+    }
+
+    public DatagramChannel getChannel() {
+        return channel;
+    }
+
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    public long getPacketsReceived() {
+        return packetsReceived;
+    }
+}
@@ -0,0 +1,61 @@
+package com.shreeyash.gateway.rtp;
+
+/**
+ * RFC 4733 telephone-event payload (DTMF named events 0-15).
+ *
+ *  0                   1                   2                   3
+ *  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |     event     |E|R| volume    |          duration             |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ */
+public final class TelephoneEvent {
+    /** Dynamic payload type advertised in our SDP (a=rtpmap:101 telephone-event/8000) */
+    public static final int PAYLOAD_TYPE = 101;
+    public static final int SIZE = 4;
+
+    private static final String DIGITS = "0123456789*#ABCD";
+
+    private TelephoneEvent() {}
+
+    /**
+     * Map a DTMF digit to its event code
+     *
+     * @return event code, or -1 if not a DTMF digit
+     */
+    public static int digitToEvent(char digit) {
+        return DIGITS.indexOf(Character.toUpperCase(digit));
+    }
+
+    /**
+     * Map an event code to its DTMF digit
+     *
+     * @return digit, or 0 for non-DTMF events (flash, tones)
+     */
+    public static char eventToDigit(int event) {
+        return event >= 0 && event < DIGITS.length() ? DIGITS.charAt(event) : 0;
+    }
+
+    public static void write(byte[] payload, int offset, int event, boolean end, int volume, int duration) {
+        payload[offset] = (byte) event;
+        payload[offset + 1] = (byte) ((end ? 0x80 : 0) | (volume & 0x3F));
+        payload[offset + 2] = (byte) (duration >> 8);
+        payload[offset + 3] = (byte) duration;
+    }
+
+    public static int getEvent(byte[] payload, int offset) {
+        return payload[offset] & 0xFF;
+    }
+
+    public static boolean isEnd(byte[] payload, int offset) {
+        return (payload[offset + 1] & 0x80) != 0;
+    }
+
+    public static int getVolume(byte[] payload, int offset) {
+        return payload[offset + 1] & 0x3F;
+    }
+
+    public static int getDuration(byte[] payload, int offset) {
+        return ((payload[offset + 2] & 0xFF) << 8) | (payload[offset + 3] & 0xFF);
+    }
+}
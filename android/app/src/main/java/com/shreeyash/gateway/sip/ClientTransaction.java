@@ -0,0 +1,149 @@
+package com.shreeyash.gateway.sip;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Client transaction: a request we sent (RFC 3261 section 17.1).
+ *
+ * INVITE: Timer A retransmits in Calling (doubling from T1), Timer B gives
+ * up after 64*T1 without any response. A non-2xx final is ACKed here, and
+ * Timer D keeps re-sending that ACK for retransmitted finals. A 2xx ends
+ * the transaction; its ACK belongs to the dialog.
+ *
+ * Non-INVITE: Timer E retransmits (doubling, capped at T2), Timer F gives
+ * up after 64*T1, Timer K absorbs retransmitted finals for T4.
+ *
+ * Over a reliable transport Timers A and E never start; B and F still do.
+ */
+final class ClientTransaction extends SipTransaction {
+    private static final String TAG = "ClientTransaction";
+
+    private final SIPMessage request;
+    private final byte[] data;
+    private byte[] ack;  // for non-2xx finals to an INVITE
+
+    ClientTransaction(TransactionLayer layer, String key, SIPMessage request, SipTransport transport,
+                      InetAddress remoteAddress, int remotePort) {
+        super(layer, key, request.getMethod(), transport, remoteAddress, remotePort);
+        this.request = request;
+        this.data = request.toBytes().getBytes();
+    }
+
+    synchronized void start() throws IOException {
+        state = invite ? State.CALLING : State.TRYING;
+        send(data);
+        interval = T1;
+        if (!reliable) {
+            schedule(retransmitTimer, interval);
+        }
+        schedule(timeoutTimer, TIMEOUT);
+    }
+
+    SIPMessage getRequest() {
+        return request;
+    }
+
+    /**
+     * @return true if the response should be passed up to the transaction user
+     */
+    boolean receiveResponse(SIPMessage response) {
+        int status = response.getStatusCode();
+        synchronized (this) {
+            if (invite) {
+                return receiveInviteResponse(response, status);
+            }
+            switch (state) {
+                case TRYING:
+                case PROCEEDING:
+                    if (status < 200) {
+                        state = State.PROCEEDING;
+                        return true;
+                    }
+                    state = State.COMPLETED;
+                    retransmitTimer.cancel();
+                    timeoutTimer.cancel();
+                    scheduleWait(T4);  // Timer K
+                    return true;
+                default:
+                    // Completed: retransmitted final, already delivered
+                    return false;
+            }
+        }
+    }
+
+    private boolean receiveInviteResponse(SIPMessage response, int status) {
+        switch (state) {
+            case CALLING:
+            case PROCEEDING:
+                if (status < 200) {
+                    // Provisional: stop Timers A and B, the far end has it
+                    state = State.PROCEEDING;
+                    retransmitTimer.cancel();
+                    timeoutTimer.cancel();
+                    return true;
+                }
+                if (status < 300) {
+                    terminate();
+                    return true;
+                }
+                state = State.COMPLETED;
+                retransmitTimer.cancel();
+                timeoutTimer.cancel();
+                ack = SIPMessage.createNon2xxAck(request, response).toBytes().getBytes();
+                resend(ack);
+                scheduleWait(TIMEOUT);  // Timer D, at least 32s for UDP
+                return true;
+            case COMPLETED:
+                if (status >= 300) {
+                    // Our ACK was lost
+                    resend(ack);
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    void onRetransmit() {
+        synchronized (this) {
+            switch (state) {
+                case CALLING:
+                    // Timer A: 2*T1, 4*T1, ... until Timer B
+                    interval *= 2;
+                    break;
+                case TRYING:
+                    // Timer E: doubles up to T2
+                    interval = Math.min(interval * 2, T2);
+                    break;
+                case PROCEEDING:
+                    if (invite) {
+                        return;
+                    }
+                    // Timer E in Proceeding fires every T2
+                    interval = T2;
+                    break;
+                default:
+                    return;
+            }
+            Log.d(TAG, "Retransmit " + method + " " + key);
+            resend(data);
+            schedule(retransmitTimer, interval);
+        }
+    }
+
+    @Override
+    void onTimeout() {
+        synchronized (this) {
+            if (state == State.COMPLETED || state == State.TERMINATED) {
+                return;
+            }
+            Log.w(TAG, "Timer " + (invite ? "B" : "F") + " fired: no final response to " + method + " " + key);
+            terminate();
+        }
+        layer.clientTimedOut(this);
+    }
+}
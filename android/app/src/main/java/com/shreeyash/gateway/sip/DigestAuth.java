@@ -0,0 +1,351 @@
+package com.shreeyash.gateway.sip;
+
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Digest authentication (RFC 3261 section 22, RFC 7616) for one account.
+ *
+ * Answers 401 and 407 challenges with qop=auth, cnonce and nonce-count, in
+ * MD5 or SHA-256 (preferred when offered). HA1 is computed once per realm
+ * and algorithm. The last nonce is kept and reused with an increasing nc,
+ * so later REGISTERs and INVITEs carry credentials up front instead of
+ * waiting to be challenged again.
+ */
+final class DigestAuth {
+    private static final String TAG = "DigestAuth";
+
+    static final String MD5 = "MD5";
+    static final String SHA_256 = "SHA-256";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String username;
+    private final String password;
+    private final SecureRandom random = new SecureRandom();
+
+    // H(username:realm:password) by algorithm + realm
+    private final Map<String, String> ha1Cache = new HashMap<>();
+
+    // Authorization or Proxy-Authorization, by the method that was challenged
+    private final Map<String, String> headerByMethod = new HashMap<>();
+
+    // Current nonce, reused until the server challenges again
+    private Challenge current;
+    private int nonceCount;
+
+    private MessageDigest md5;
+    private MessageDigest sha256;
+
+    /**
+     * One parsed WWW-Authenticate or Proxy-Authenticate
+     */
+    static final class Challenge {
+        String realm;
+        String nonce;
+        String opaque;
+        String algorithm = MD5;
+        boolean qopAuth;
+        boolean stale;
+        boolean proxy;
+    }
+
+    DigestAuth(String username, String password) {
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * Take the challenge from a 401 or 407.
+     *
+     * @param alreadyRetried the challenged request was itself a retry with
+     *                       credentials for a fresh nonce
+     * @return true if the request should be sent again with credentials;
+     *         false if there is no usable challenge or the credentials
+     *         were rejected
+     */
+    synchronized boolean onChallenge(SIPMessage response, boolean alreadyRetried) {
+        boolean proxy = response.getStatusCode() == 407;
+        List<String> values = response.getHeaderValues(proxy ? "proxy-authenticate" : "www-authenticate");
+
+        Challenge best = null;
+        for (String value : values) {
+            Challenge challenge = parse(value);
+            if (challenge == null) {
+                continue;
+            }
+            challenge.proxy = proxy;
+            if (best == null || (SHA_256.equals(challenge.algorithm) && !SHA_256.equals(best.algorithm))) {
+                best = challenge;
+            }
+        }
+        if (best == null) {
+            Log.w(TAG, "No usable Digest challenge in " + response.getStatusCode());
+            return false;
+        }
+        if (alreadyRetried && !best.stale) {
+            Log.e(TAG, "Credentials rejected by realm " + best.realm);
+            current = null;
+            return false;
+        }
+
+        String method = response.getCSeqMethod();
+        if (method != null) {
+            headerByMethod.put(method, proxy ? "proxy-authorization" : "authorization");
+        }
+        current = best;
+        nonceCount = 0;
+        Log.d(TAG, "Challenge: realm=" + best.realm + " algorithm=" + best.algorithm +
+                   " qop=" + (best.qopAuth ? "auth" : "none") + (best.stale ? " (stale)" : ""));
+        return true;
+    }
+
+    /**
+     * Nonce rotation from the Authentication-Info of a 2xx, if any
+     */
+    synchronized void onSuccess(SIPMessage response) {
+        String info = response.getHeader("authentication-info");
+        if (info == null || current == null) {
+            return;
+        }
+        String nextNonce = parseParams(info).get("nextnonce");
+        if (nextNonce != null) {
+            current.nonce = nextNonce;
+            nonceCount = 0;
+        }
+    }
+
+    /**
+     * Add credentials for the current nonce to a request we built, if we
+     * have been challenged before
+     *
+     * @return true if credentials were added
+     */
+    synchronized boolean authorize(SIPMessage request) {
+        Challenge challenge = current;
+        if (challenge == null) {
+            return false;
+        }
+        String method = request.getMethod();
+        String header = headerByMethod.get(method);
+        if (header == null) {
+            // Not challenged for this method yet: same header as the last challenge
+            header = challenge.proxy ? "proxy-authorization" : "authorization";
+        }
+        request.setHeader(header, credentials(challenge, method, request.getRequestUri()));
+        return true;
+    }
+
+    synchronized void clear() {
+        current = null;
+        headerByMethod.clear();
+    }
+
+    // ==================== RESPONSE ====================
+
+    private String credentials(Challenge c, String method, String uri) {
+        String ha1 = ha1(c.algorithm, c.realm);
+        String ha2 = hash(c.algorithm, method + ":" + uri);
+
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("Digest username=\"");
+        quote(sb, username).append("\",realm=\"");
+        quote(sb, c.realm).append("\",nonce=\"");
+        quote(sb, c.nonce).append("\",uri=\"").append(uri)
+          .append("\",response=\"");
+
+        if (c.qopAuth) {
+            String nc = nonceCount(++nonceCount);
+            String cnonce = cnonce();
+            sb.append(hash(c.algorithm, ha1 + ":" + c.nonce + ":" + nc + ":" + cnonce + ":auth:" + ha2))
+              .append("\",cnonce=\"").append(cnonce)
+              .append("\",nc=").append(nc)
+              .append(",qop=auth");
+        } else {
+            sb.append(hash(c.algorithm, ha1 + ":" + c.nonce + ":" + ha2)).append('"');
+        }
+
+        sb.append(",algorithm=").append(c.algorithm);
+        if (c.opaque != null) {
+            sb.append(",opaque=\"");
+            quote(sb, c.opaque).append('"');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Quoted-string body: backslash before quotes and backslashes
+     */
+    private static StringBuilder quote(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch == '"' || ch == '\\') {
+                sb.append('\\');
+            }
+            sb.append(ch);
+        }
+        return sb;
+    }
+
+    private String ha1(String algorithm, String realm) {
+        String key = algorithm + ":" + realm;
+        String ha1 = ha1Cache.get(key);
+        if (ha1 == null) {
+            ha1 = hash(algorithm, username + ":" + realm + ":" + password);
+            ha1Cache.put(key, ha1);
+        }
+        return ha1;
+    }
+
+    private String hash(String algorithm, String input) {
+        MessageDigest md = digest(algorithm);
+        byte[] digest = md.digest(input.getBytes(StandardCharsets.UTF_8));
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX[(digest[i] >> 4) & 0x0f];
+            hex[i * 2 + 1] = HEX[digest[i] & 0x0f];
+        }
+        return new String(hex);
+    }
+
+    private MessageDigest digest(String algorithm) {
+        try {
+            if (SHA_256.equals(algorithm)) {
+                if (sha256 == null) {
+                    sha256 = MessageDigest.getInstance("SHA-256");
+                }
+                return sha256;
+            }
+            if (md5 == null) {
+                md5 = MessageDigest.getInstance("MD5");
+            }
+            return md5;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithm + " not available", e);
+        }
+    }
+
+    private static String nonceCount(int nc) {
+        char[] out = new char[8];
+        for (int i = 7; i >= 0; i--) {
+            out[i] = HEX[nc & 0x0f];
+            nc >>>= 4;
+        }
+        return new String(out);
+    }
+
+    private String cnonce() {
+        byte[] bytes = new byte[8];
+        random.nextBytes(bytes);
+        char[] hex = new char[16];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0x0f];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0x0f];
+        }
+        return new String(hex);
+    }
+
+    // ==================== CHALLENGE PARSING ====================
+
+    /**
+     * Parse one challenge value
+     *
+     * @return the challenge, or null if it is not Digest, lacks a nonce or
+     *         uses an algorithm we do not support
+     */
+    static Challenge parse(String value) {
+        String v = value.trim();
+        if (v.length() < 7 || !v.regionMatches(true, 0, "Digest", 0, 6)
+            || !Character.isWhitespace(v.charAt(6))) {
+            return null;
+        }
+        Map<String, String> params = parseParams(v.substring(7));
+
+        Challenge c = new Challenge();
+        c.realm = params.get("realm");
+        c.nonce = params.get("nonce");
+        c.opaque = params.get("opaque");
+        c.stale = "true".equalsIgnoreCase(params.get("stale"));
+        if (c.realm == null || c.nonce == null) {
+            return null;
+        }
+
+        String algorithm = params.get("algorithm");
+        if (algorithm != null) {
+            if (algorithm.equalsIgnoreCase(SHA_256)) {
+                c.algorithm = SHA_256;
+            } else if (!algorithm.equalsIgnoreCase(MD5)) {
+                return null;  // -sess variants and anything newer
+            }
+        }
+
+        String qop = params.get("qop");
+        if (qop != null) {
+            for (String option : qop.split(",")) {
+                if (option.trim().equalsIgnoreCase("auth")) {
+                    c.qopAuth = true;
+                }
+            }
+            if (!c.qopAuth) {
+                return null;  // auth-int only
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Comma-separated name=value pairs; quoted values may hold commas and
+     * backslash escapes. Names are lowercased.
+     */
+    static Map<String, String> parseParams(String s) {
+        Map<String, String> params = new HashMap<>();
+        int i = 0;
+        int n = s.length();
+        StringBuilder value = new StringBuilder();
+        while (i < n) {
+            while (i < n && (s.charAt(i) == ',' || Character.isWhitespace(s.charAt(i)))) {
+                i++;
+            }
+            int nameStart = i;
+            while (i < n && s.charAt(i) != '=' && s.charAt(i) != ',') {
+                i++;
+            }
+            String name = s.substring(nameStart, i).trim().toLowerCase(Locale.US);
+            if (i >= n || s.charAt(i) == ',') {
+                continue;  // bare token
+            }
+            i++;
+            while (i < n && Character.isWhitespace(s.charAt(i))) {
+                i++;
+            }
+
+            value.setLength(0);
+            if (i < n && s.charAt(i) == '"') {
+                i++;
+                while (i < n && s.charAt(i) != '"') {
+                    if (s.charAt(i) == '\\' && i + 1 < n) {
+                        i++;
+                    }
+                    value.append(s.charAt(i++));
+                }
+                i++;
+            } else {
+                while (i < n && s.charAt(i) != ',') {
+                    value.append(s.charAt(i++));
+                }
+            }
+            if (!name.isEmpty()) {
+                params.put(name, value.toString().trim());
+            }
+        }
+        return params;
+    }
+}
@@ -0,0 +1,83 @@
+package com.shreeyash.gateway.sip;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * DNS lookups needed to locate a SIP server (RFC 3263).
+ *
+ * SipResolver caches the answers; implementations just ask the network.
+ * Swap in a fixed table with SipResolver.setDnsResolver() to test failover
+ * without a DNS server.
+ */
+public interface DnsResolver {
+
+    /**
+     * Records of one type for one name. An empty list means the name has
+     * none (NXDOMAIN or no data), which is cached too.
+     */
+    final class Answer<T> {
+        public final List<T> records;
+        public final long ttlSeconds;
+
+        public Answer(List<T> records, long ttlSeconds) {
+            this.records = Collections.unmodifiableList(records);
+            this.ttlSeconds = ttlSeconds;
+        }
+    }
+
+    /**
+     * SRV record (RFC 2782)
+     */
+    final class Srv {
+        public final int priority;
+        public final int weight;
+        public final int port;
+        public final String target;
+
+        public Srv(int priority, int weight, int port, String target) {
+            this.priority = priority;
+            this.weight = weight;
+            this.port = port;
+            this.target = target;
+        }
+
+        @Override
+        public String toString() {
+            return priority + " " + weight + " " + port + " " + target;
+        }
+    }
+
+    /**
+     * NAPTR record (RFC 3403)
+     */
+    final class Naptr {
+        public final int order;
+        public final int preference;
+        public final String flags;
+        public final String service;
+        public final String replacement;
+
+        public Naptr(int order, int preference, String flags, String service, String replacement) {
+            this.order = order;
+            this.preference = preference;
+            this.flags = flags;
+            this.service = service;
+            this.replacement = replacement;
+        }
+
+        @Override
+        public String toString() {
+            return order + " " + preference + " \"" + flags + "\" \"" + service + "\" " + replacement;
+        }
+    }
+
+    /** A and AAAA records */
+    Answer<InetAddress> lookupAddress(String host) throws IOException;
+
+    Answer<Srv> lookupSrv(String name) throws IOException;
+
+    Answer<Naptr> lookupNaptr(String name) throws IOException;
+}
@@ -0,0 +1,332 @@
+package com.shreeyash.gateway.sip;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * One m= section of an SDP body with its media-level attributes
+ */
+public class MediaDescription {
+
+    /**
+     * Stream direction attribute (RFC 3264 section 5.1)
+     */
+    public enum Direction {
+        SENDRECV("sendrecv"),
+        SENDONLY("sendonly"),
+        RECVONLY("recvonly"),
+        INACTIVE("inactive");
+
+        private final String attribute;
+
+        Direction(String attribute) {
+            this.attribute = attribute;
+        }
+
+        public String getAttribute() {
+            return attribute;
+        }
+
+        /**
+         * The same stream seen from the other end (sendonly <-> recvonly)
+         */
+        public Direction reverse() {
+            switch (this) {
+                case SENDONLY: return RECVONLY;
+                case RECVONLY: return SENDONLY;
+                default: return this;
+            }
+        }
+
+        public boolean canSend() {
+            return this == SENDRECV || this == SENDONLY;
+        }
+
+        public boolean canReceive() {
+            return this == SENDRECV || this == RECVONLY;
+        }
+
+        /**
+         * @return direction for an attribute name, or null if it is not one
+         */
+        public static Direction fromAttribute(String name) {
+            for (Direction d : values()) {
+                if (d.attribute.equals(name)) {
+                    return d;
+                }
+            }
+            return null;
+        }
+    }
+
+    private String media;
+    private int port;
+    private String protocol;
+    private final List<String> formats = new ArrayList<>();
+
+    private String connectionAddress;  // null = use session-level c=
+    private Direction direction;       // null = use session-level or sendrecv
+    private int ptime;                 // 0 = not present
+    private int maxptime;              // 0 = not present
+    private final Map<Integer, String> rtpmaps = new LinkedHashMap<>();
+    private final Map<Integer, String> fmtps = new LinkedHashMap<>();
+    private final List<String> attributes = new ArrayList<>();
+
+    public MediaDescription(String media, int port, String protocol) {
+        this.media = media;
+        this.port = port;
+        this.protocol = protocol;
+    }
+
+    /**
+     * Parse an m= line value: "audio 10000 RTP/AVP 0 8 101"
+     *
+     * @return null if malformed
+     */
+    static MediaDescription parse(String value) {
+        String[] parts = value.trim().split("\\s+");
+        if (parts.length < 4) {
+            return null;
+        }
+        int port;
+        try {
+            // "port/count" is allowed, we only ever use one port
+            int slash = parts[1].indexOf('/');
+            port = Integer.parseInt(slash < 0 ? parts[1] : parts[1].substring(0, slash));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        MediaDescription m = new MediaDescription(parts[0], port, parts[2]);
+        for (int i = 3; i < parts.length; i++) {
+            m.formats.add(parts[i]);
+        }
+        return m;
+    }
+
+    /**
+     * Apply one media-level a= line
+     */
+    void parseAttribute(String name, String value) {
+        Direction d = Direction.fromAttribute(name);
+        if (d != null) {
+            direction = d;
+            return;
+        }
+        if (value == null) {
+            // Property attribute (a=rtcp-mux), or a value-less rtpmap/ptime: keep it verbatim
+            attributes.add(name);
+            return;
+        }
+        try {
+            switch (name) {
+                case "rtpmap": {
+                    int space = value.indexOf(' ');
+                    if (space > 0) {
+                        rtpmaps.put(Integer.parseInt(value.substring(0, space)), value.substring(space + 1).trim());
+                    }
+                    return;
+                }
+                case "fmtp": {
+                    int space = value.indexOf(' ');
+                    if (space > 0) {
+                        fmtps.put(Integer.parseInt(value.substring(0, space)), value.substring(space + 1).trim());
+                    }
+                    return;
+                }
+                case "ptime":
+                    ptime = Integer.parseInt(value.trim());
+                    return;
+                case "maxptime":
+                    maxptime = Integer.parseInt(value.trim());
+                    return;
+                default:
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            // Malformed attribute: keep it verbatim below
+        }
+        attributes.add(name + ":" + value);
+    }
+
+    // ==================== Accessors ====================
+
+    public String getMedia() {
+        return media;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public boolean isAudio() {
+        return "audio".equals(media);
+    }
+
+    /**
+     * A stream offered or answered with port 0 is disabled
+     */
+    public boolean isRejected() {
+        return port == 0;
+    }
+
+    public List<String> getFormats() {
+        return formats;
+    }
+
+    /**
+     * Numeric payload types on the m= line, in preference order
+     */
+    public List<Integer> getPayloadTypes() {
+        List<Integer> pts = new ArrayList<>(formats.size());
+        for (String f : formats) {
+            try {
+                pts.add(Integer.parseInt(f));
+            } catch (NumberFormatException e) {
+                // Non-RTP format token
+            }
+        }
+        return pts;
+    }
+
+    public String getConnectionAddress() {
+        return connectionAddress;
+    }
+
+    public void setConnectionAddress(String connectionAddress) {
+        this.connectionAddress = connectionAddress;
+    }
+
+    /**
+     * @return the media-level direction, or null if not present
+     */
+    public Direction getDirection() {
+        return direction;
+    }
+
+    public void setDirection(Direction direction) {
+        this.direction = direction;
+    }
+
+    /**
+     * @return packetization time in ms, or 0 if not present
+     */
+    public int getPtime() {
+        return ptime;
+    }
+
+    public void setPtime(int ptime) {
+        this.ptime = ptime;
+    }
+
+    /**
+     * @return largest packetization in ms this end will receive, or 0 if not present
+     */
+    public int getMaxptime() {
+        return maxptime;
+    }
+
+    /**
+     * @return rtpmap value ("PCMU/8000") for a payload type, or null
+     */
+    public String getRtpmap(int payloadType) {
+        return rtpmaps.get(payloadType);
+    }
+
+    public String getFmtp(int payloadType) {
+        return fmtps.get(payloadType);
+    }
+
+    /**
+     * Find the payload type mapped to an encoding, e.g. "telephone-event" at 8000 Hz
+     *
+     * @return payload type, or -1 if not listed
+     */
+    public int findPayloadType(String encodingName, int clockRate) {
+        String wanted = (encodingName + "/" + clockRate).toLowerCase(Locale.US);
+        for (int pt : getPayloadTypes()) {
+            String rtpmap = rtpmaps.get(pt);
+            if (rtpmap != null && rtpmap.toLowerCase(Locale.US).startsWith(wanted)) {
+                return pt;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add a payload type to the m= line with its rtpmap and optional fmtp
+     */
+    public void addFormat(int payloadType, String rtpmap, String fmtp) {
+        formats.add(String.valueOf(payloadType));
+        if (rtpmap != null) {
+            rtpmaps.put(payloadType, rtpmap);
+        }
+        if (fmtp != null) {
+            fmtps.put(payloadType, fmtp);
+        }
+    }
+
+    /**
+     * Add a raw format token (used when echoing a rejected stream)
+     */
+    public void addFormat(String format) {
+        formats.add(format);
+    }
+
+    public List<String> getAttributes() {
+        return attributes;
+    }
+
+    // ==================== Serialization ====================
+
+    void appendTo(StringBuilder sb) {
+        sb.append("m=").append(media).append(' ').append(port).append(' ').append(protocol);
+        for (String f : formats) {
+            sb.append(' ').append(f);
+        }
+        sb.append("\r\n");
+        if (connectionAddress != null) {
+            sb.append("c=IN ").append(SessionDescription.addressType(connectionAddress))
+              .append(' ').append(connectionAddress).append("\r\n");
+        }
+        for (int pt : getPayloadTypes()) {
+            String rtpmap = rtpmaps.get(pt);
+            if (rtpmap != null) {
+                sb.append("a=rtpmap:").append(pt).append(' ').append(rtpmap).append("\r\n");
+            }
+            String fmtp = fmtps.get(pt);
+            if (fmtp != null) {
+                sb.append("a=fmtp:").append(pt).append(' ').append(fmtp).append("\r\n");
+            }
+        }
+        if (ptime > 0) {
+            sb.append("a=ptime:").append(ptime).append("\r\n");
+        }
+        if (maxptime > 0) {
+            sb.append("a=maxptime:").append(maxptime).append("\r\n");
+        }
+        for (String a : attributes) {
+            sb.append("a=").append(a).append("\r\n");
+        }
+        if (direction != null) {
+            sb.append("a=").append(direction.getAttribute()).append("\r\n");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "m=" + media + " " + port + " " + protocol + " " + formats +
+               (ptime > 0 ? " ptime=" + ptime : "") +
+               (direction != null ? " " + direction.getAttribute() : "");
+    }
+}
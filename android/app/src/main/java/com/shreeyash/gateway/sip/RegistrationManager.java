@@ -0,0 +1,502 @@
+package com.shreeyash.gateway.sip;
+
+import android.util.Log;
+
+import com.shreeyash.gateway.TimingWheel;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps one account registered with the PBX (RFC 3261 section 10).
+ *
+ * Reads the expiry the registrar actually granted (our Contact's expires
+ * parameter, else Expires) and refreshes at a jittered fraction of it, so
+ * the two SIMs drift apart instead of registering in lockstep. Failures back
+ * off exponentially with jitter; timeouts and 5xx move to the next PBX node
+ * the resolver knows of first. A failed refresh only reports the
+ * registration lost once the granted binding has actually run out.
+ *
+ * State changes reach the Client in order, after the lock is released,
+ * and the failover check (which may resolve the PBX) runs on the executor.
+ */
+public final class RegistrationManager {
+    private static final String TAG = "RegistrationManager";
+
+    // Refresh at 50-60% of the granted interval
+    private static final double REFRESH_FRACTION = 0.5;
+    private static final double REFRESH_JITTER = 0.1;
+    private static final long MIN_REFRESH_MS = 1000;
+
+    // Retry after failure: 2s doubling to 2 minutes, each delay 50-100% of that
+    private static final long BACKOFF_MIN_MS = 2000;
+    private static final long BACKOFF_MAX_MS = 120000;
+
+    public enum State {
+        UNREGISTERED,  // not started, or stopped
+        REGISTERING,   // first REGISTER in flight
+        REGISTERED,    // binding in place (a refresh may be in flight)
+        RETRYING       // no binding; waiting to try again
+    }
+
+    /**
+     * Builds and sends the REGISTER, and hears about state changes
+     */
+    interface Client {
+        ClientTransaction sendRegister(int expires, int cseq) throws Exception;
+
+        void onStateChanged(State state, String reason);
+    }
+
+    private final Client client;
+    private final DigestAuth auth;
+    private final SipResolver resolver;
+    private final TimingWheel timers;
+    private final Executor executor;
+    private final String pbxHost;
+    private final int pbxPort;
+    private final String transport;
+    private final String contactHostPort;  // finds our binding among the 200's Contacts
+    private final Random random = new Random();
+
+    private final TimingWheel.Timeout refreshTimer = new TimingWheel.Timeout(this::onRefresh);
+    private final TimingWheel.Timeout expiryTimer = new TimingWheel.Timeout(this::onExpired);
+
+    private State state = State.UNREGISTERED;
+    private boolean running;
+    private int requestedExpires;
+    private int grantedExpires;
+    private long expiresAt;       // when the current binding lapses, 0 if none
+    private int cseq = 1;
+    private int pendingCSeq = -1; // CSeq of the REGISTER we are waiting on
+    private int pendingExpires;
+    private boolean authRetried;
+    private int failures;
+    private ClientTransaction lastTransaction;
+
+    // Queued under the lock, delivered outside it
+    private final ArrayDeque<StateChange> stateChanges = new ArrayDeque<>();
+    private final Object deliveryLock = new Object();
+
+    private static final class StateChange {
+        final State state;
+        final String reason;
+
+        StateChange(State state, String reason) {
+            this.state = state;
+            this.reason = reason;
+        }
+    }
+
+    RegistrationManager(Client client, DigestAuth auth, SipResolver resolver, TimingWheel timers,
+                        Executor executor, String pbxHost, int pbxPort, String transport,
+                        String contactHostPort, int requestedExpires) {
+        this.client = client;
+        this.auth = auth;
+        this.resolver = resolver;
+        this.timers = timers;
+        this.executor = executor;
+        this.pbxHost = pbxHost;
+        this.pbxPort = pbxPort;
+        this.transport = transport;
+        this.contactHostPort = contactHostPort;
+        this.requestedExpires = requestedExpires;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized boolean isRegistered() {
+        return state == State.REGISTERED;
+    }
+
+    /** Seconds the registrar granted last time, 0 before the first 200 */
+    public synchronized int getGrantedExpires() {
+        return grantedExpires;
+    }
+
+    void start() {
+        synchronized (this) {
+            if (running) {
+                return;
+            }
+            running = true;
+            failures = 0;
+            setState(State.REGISTERING, null);
+            send(requestedExpires);
+        }
+        deliverStateChanges();
+    }
+
+    /**
+     * Refresh now instead of waiting for the timer (e.g. the link went quiet)
+     */
+    synchronized void refreshNow() {
+        if (running && pendingCSeq < 0) {
+            refreshTimer.cancel();
+            send(requestedExpires);
+        }
+    }
+
+    /**
+     * Stop refreshing and, if a binding is in place, remove it. Sends on
+     * the calling thread so the unregister leaves before the transports close.
+     */
+    void stop() {
+        int unregisterCSeq;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            refreshTimer.cancel();
+            expiryTimer.cancel();
+            unregisterCSeq = expiresAt > System.currentTimeMillis() ? nextCSeq(0) : -1;
+            expiresAt = 0;
+            setState(State.UNREGISTERED, null);
+        }
+        deliverStateChanges();
+        if (unregisterCSeq > 0) {
+            try {
+                client.sendRegister(0, unregisterCSeq);
+            } catch (Exception e) {
+                Log.e(TAG, "Error unregistering: " + e.getMessage());
+            }
+        }
+    }
+
+    // ==================== RESPONSES ====================
+
+    /**
+     * A response to one of our REGISTERs
+     */
+    void onResponse(SIPMessage response) {
+        synchronized (this) {
+            handleResponse(response);
+        }
+        deliverStateChanges();
+    }
+
+    private void handleResponse(SIPMessage response) {
+        int status = response.getStatusCode();
+        if (status < 200 || response.getCSeqNumber() != pendingCSeq) {
+            return;  // provisional, or for a REGISTER we have given up on
+        }
+        pendingCSeq = -1;
+
+        if (status >= 200 && status < 300) {
+            onSuccess(response);
+        } else if ((status == 401 || status == 407) && running && auth.onChallenge(response, authRetried)) {
+            authRetried = true;
+            send(pendingExpires);
+        } else if (status == 423 && running) {
+            onIntervalTooBrief(response);
+        } else {
+            boolean serverFault = status >= 500 || status == 408 || status == 480;
+            if (serverFault && lastTransaction != null) {
+                resolver.markFailed(lastTransaction.remoteAddress, lastTransaction.remotePort);
+            }
+            onFailure(status + " " + response.getReasonPhrase(), serverFault);
+        }
+    }
+
+    /**
+     * Timer F: the registrar never answered (the resolver has already
+     * marked the node failed). Called on the executor, not the wheel.
+     */
+    void onTimeout(ClientTransaction tx) {
+        synchronized (this) {
+            if (tx.getRequest().getCSeqNumber() != pendingCSeq) {
+                return;
+            }
+            pendingCSeq = -1;
+            onFailure("Timeout", true);
+        }
+        deliverStateChanges();
+    }
+
+    private void onSuccess(SIPMessage response) {
+        authRetried = false;
+        auth.onSuccess(response);
+        if (pendingExpires == 0 || !running) {
+            return;
+        }
+        failures = 0;
+
+        int granted = grantedExpires(response, contactHostPort, pendingExpires);
+        if (granted <= 0) {
+            Log.w(TAG, "Registrar granted no binding");
+            onFailure("No binding granted", false);
+            return;
+        }
+        grantedExpires = granted;
+        long grantedMs = granted * 1000L;
+        expiresAt = System.currentTimeMillis() + grantedMs;
+
+        double fraction = REFRESH_FRACTION + random.nextDouble() * REFRESH_JITTER;
+        long refreshMs = Math.max(MIN_REFRESH_MS, (long) (grantedMs * fraction));
+        timers.schedule(refreshTimer, refreshMs);
+        timers.schedule(expiryTimer, grantedMs);
+
+        Log.i(TAG, "Registered for " + granted + "s, refreshing in " + refreshMs / 1000 + "s");
+        if (state != State.REGISTERED) {
+            setState(State.REGISTERED, null);
+        }
+    }
+
+    /**
+     * 423: ask again with at least the registrar's Min-Expires
+     */
+    private void onIntervalTooBrief(SIPMessage response) {
+        int min = parseSeconds(response.getHeader("min-expires"), -1);
+        if (min <= requestedExpires) {
+            onFailure("423 without a usable Min-Expires", false);
+            return;
+        }
+        Log.i(TAG, "Registrar wants expires >= " + min);
+        requestedExpires = min;
+        send(requestedExpires);
+    }
+
+    private void onFailure(String reason, boolean tryNextNode) {
+        authRetried = false;
+        if (!running) {
+            return;
+        }
+        failures++;
+        Log.w(TAG, "REGISTER failed (" + reason + "), attempt " + failures);
+
+        if (tryNextNode) {
+            executor.execute(() -> failOver(reason));
+            return;
+        }
+        backOff(reason);
+    }
+
+    /**
+     * After a timeout or server fault: go straight to the next PBX node if
+     * the resolver has a healthy one, else back off. Resolving may block on
+     * DNS, so it happens before taking the lock.
+     */
+    private void failOver(String reason) {
+        boolean healthy = hasHealthyNode();
+        synchronized (this) {
+            if (!running || pendingCSeq >= 0) {
+                return;  // stopped, or refreshNow() already sent one
+            }
+            if (healthy) {
+                Log.i(TAG, "[SIP] Failing over REGISTER to next PBX node");
+                send(requestedExpires);
+            } else {
+                backOff(reason);
+            }
+        }
+        deliverStateChanges();
+    }
+
+    private void backOff(String reason) {
+        long base = Math.min(BACKOFF_MAX_MS, BACKOFF_MIN_MS << Math.min(failures - 1, 16));
+        long delay = base / 2 + (long) (random.nextDouble() * (base / 2));
+        timers.schedule(refreshTimer, delay);
+
+        if (expiresAt > System.currentTimeMillis()) {
+            Log.i(TAG, "Binding still valid, retrying in " + delay + "ms");
+        } else {
+            Log.i(TAG, "Retrying REGISTER in " + delay + "ms");
+            setState(State.RETRYING, reason);
+        }
+    }
+
+    private boolean hasHealthyNode() {
+        try {
+            return !resolver.isFailed(resolver.resolveFirst(pbxHost, pbxPort, transport));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // ==================== TIMERS ====================
+
+    private void onRefresh() {
+        synchronized (this) {
+            if (running && pendingCSeq < 0) {
+                send(requestedExpires);
+            }
+        }
+    }
+
+    /**
+     * The granted interval ran out without a successful refresh; the
+     * listener hears about it on the executor, since the wheel must not block
+     */
+    private void onExpired() {
+        synchronized (this) {
+            if (running && expiresAt <= System.currentTimeMillis() && state == State.REGISTERED) {
+                expiresAt = 0;
+                setState(State.RETRYING, "Registration expired");
+            }
+            if (stateChanges.isEmpty()) {
+                return;
+            }
+        }
+        executor.execute(this::deliverStateChanges);
+    }
+
+    // ==================== SENDING ====================
+
+    /**
+     * Send a REGISTER off the caller's thread (resolving the PBX may block)
+     */
+    private void send(int expires) {
+        int sendCSeq = nextCSeq(expires);
+        executor.execute(() -> {
+            try {
+                ClientTransaction tx = client.sendRegister(expires, sendCSeq);
+                synchronized (this) {
+                    lastTransaction = tx;
+                }
+                if (tx == null) {
+                    onSendFailed(sendCSeq, "No PBX address");
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Registration failed: " + e.getMessage(), e);
+                onSendFailed(sendCSeq, e.getMessage());
+            }
+        });
+    }
+
+    private void onSendFailed(int sendCSeq, String reason) {
+        synchronized (this) {
+            if (pendingCSeq == sendCSeq) {
+                pendingCSeq = -1;
+                onFailure(reason, false);
+            }
+        }
+        deliverStateChanges();
+    }
+
+    private int nextCSeq(int expires) {
+        pendingCSeq = cseq++;
+        pendingExpires = expires;
+        return pendingCSeq;
+    }
+
+    private void setState(State newState, String reason) {
+        state = newState;
+        stateChanges.add(new StateChange(newState, reason));
+    }
+
+    /**
+     * Tell the client about queued state changes, without holding the
+     * manager's lock; deliveryLock keeps them in order across threads
+     */
+    private void deliverStateChanges() {
+        synchronized (deliveryLock) {
+            while (true) {
+                StateChange change;
+                synchronized (this) {
+                    change = stateChanges.poll();
+                }
+                if (change == null) {
+                    return;
+                }
+                client.onStateChanged(change.state, change.reason);
+            }
+        }
+    }
+
+    // ==================== PARSING ====================
+
+    /**
+     * Expiry granted in a 2xx to REGISTER: the expires parameter of our own
+     * Contact, else the Expires header, else what we asked for
+     */
+    static int grantedExpires(SIPMessage ok, String contactHostPort, int requested) {
+        List<String> contacts = ok.getHeaderValues("contact");
+        for (String header : contacts) {
+            for (String contact : splitContacts(header)) {
+                if (isOurs(contact, contactHostPort)) {
+                    int expires = contactExpires(contact);
+                    if (expires >= 0) {
+                        return expires;
+                    }
+                }
+            }
+        }
+        return parseSeconds(ok.getHeader("expires"), requested);
+    }
+
+    /**
+     * One Contact header may list several bindings, comma separated
+     * outside quotes and angle brackets
+     */
+    private static String[] splitContacts(String header) {
+        if (header.indexOf(',') < 0) {
+            return new String[] {header};
+        }
+        List<String> out = new ArrayList<>();
+        boolean quoted = false;
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < header.length(); i++) {
+            char ch = header.charAt(i);
+            if (ch == '"') {
+                quoted = !quoted;
+            } else if (!quoted && ch == '<') {
+                depth++;
+            } else if (!quoted && ch == '>') {
+                depth--;
+            } else if (!quoted && depth == 0 && ch == ',') {
+                out.add(header.substring(start, i));
+                start = i + 1;
+            }
+        }
+        out.add(header.substring(start));
+        return out.toArray(new String[0]);
+    }
+
+    /**
+     * Contact URI host:port is ours (not just a prefix of another port)
+     */
+    private static boolean isOurs(String contact, String hostPort) {
+        int at = contact.indexOf("@" + hostPort);
+        if (at < 0) {
+            return false;
+        }
+        int end = at + 1 + hostPort.length();
+        return end == contact.length() || !Character.isDigit(contact.charAt(end));
+    }
+
+    /**
+     * The expires header parameter (after the URI), or -1
+     */
+    private static int contactExpires(String contact) {
+        int close = contact.lastIndexOf('>');
+        String params = (close >= 0 ? contact.substring(close + 1) : contact).toLowerCase(Locale.US);
+        int at = params.indexOf("expires=");
+        if (at < 0) {
+            return -1;
+        }
+        int end = at + 8;
+        while (end < params.length() && Character.isDigit(params.charAt(end))) {
+            end++;
+        }
+        return parseSeconds(params.substring(at + 8, end), -1);
+    }
+
+    private static int parseSeconds(String value, int fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+}
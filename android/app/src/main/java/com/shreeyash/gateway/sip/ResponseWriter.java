@@ -0,0 +1,215 @@
+package com.shreeyash.gateway.sip;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Builds responses straight into a reusable byte buffer.
+ *
+ * Status lines and header names are encoded once. Via, From, To, Call-ID
+ * and CSeq are copied byte for byte from the request's receive buffer, so
+ * a 100 Trying or 200 OK to a BYE costs one array: the finished response,
+ * which the server transaction keeps for retransmission. Responses that
+ * set up a dialog (101-299 with our To tag) also echo Record-Route.
+ *
+ * One writer per thread (local()); begin() resets it.
+ */
+final class ResponseWriter {
+
+    static final byte[] VIA = name("Via");
+    static final byte[] FROM = name("From");
+    static final byte[] TO = name("To");
+    static final byte[] CALL_ID = name("Call-ID");
+    static final byte[] CSEQ = name("CSeq");
+    static final byte[] RECORD_ROUTE = name("Record-Route");
+    static final byte[] CONTACT = name("Contact");
+    static final byte[] EXPIRES = name("Expires");
+    static final byte[] ALLOW = name("Allow");
+    static final byte[] REQUIRE = name("Require");
+    static final byte[] SESSION_EXPIRES = name("Session-Expires");
+    static final byte[] MIN_SE = name("Min-SE");
+    static final byte[] RETRY_AFTER = name("Retry-After");
+    static final byte[] CONTENT_TYPE = name("Content-Type");
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] TAG_PARAM = ascii(";tag=");
+    private static final byte[] USER_AGENT = ascii("User-Agent: GSM-Gateway/1.0\r\n");
+    private static final byte[] CONTENT_LENGTH = name("Content-Length");
+    private static final byte[] EMPTY_BODY = ascii("Content-Length: 0\r\n\r\n");
+
+    // Status lines by code, encoded the first time each is sent
+    private static final StatusLine[] STATUS_LINES = new StatusLine[700];
+
+    private static final class StatusLine {
+        final String reason;
+        final byte[] bytes;
+
+        StatusLine(int status, String reason) {
+            this.reason = reason;
+            this.bytes = ascii("SIP/2.0 " + status + " " + reason + "\r\n");
+        }
+    }
+
+    private static final ThreadLocal<ResponseWriter> LOCAL = new ThreadLocal<ResponseWriter>() {
+        @Override
+        protected ResponseWriter initialValue() {
+            return new ResponseWriter();
+        }
+    };
+
+    private byte[] buffer = new byte[1024];
+    private int length;
+
+    static ResponseWriter local() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Start a response: status line plus the headers echoed from the
+     * request. A To tag is added if given and the To has none yet.
+     */
+    ResponseWriter begin(SIPMessage request, int status, String reason, String toTag) {
+        length = 0;
+        write(statusLine(status, reason));
+        request.copyResponseHeaders(this, toTag, toTag != null && status > 100 && status < 300);
+        return this;
+    }
+
+    ResponseWriter header(byte[] name, String value) {
+        write(name);
+        writeString(value);
+        write(CRLF);
+        return this;
+    }
+
+    /**
+     * Header with a value copied from another buffer; the To header also
+     * gets our tag if it is missing
+     */
+    void copyHeader(byte[] name, byte[] src, int start, int end, String toTag) {
+        write(name);
+        ensure(end - start);
+        System.arraycopy(src, start, buffer, length, end - start);
+        length += end - start;
+        if (toTag != null && name == TO && !hasTag(src, start, end)) {
+            write(TAG_PARAM);
+            writeString(toTag);
+        }
+        write(CRLF);
+    }
+
+    /**
+     * Same for a header value held as a String (requests built locally)
+     */
+    void copyHeader(byte[] name, String value, String toTag) {
+        write(name);
+        writeString(value);
+        if (toTag != null && name == TO && !value.contains("tag=")) {
+            write(TAG_PARAM);
+            writeString(toTag);
+        }
+        write(CRLF);
+    }
+
+    /**
+     * Finish a header-only response
+     */
+    byte[] finish() {
+        write(USER_AGENT);
+        write(EMPTY_BODY);
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * Finish a response with a body
+     */
+    byte[] finish(String contentType, String body) {
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        write(USER_AGENT);
+        header(CONTENT_TYPE, contentType);
+        write(CONTENT_LENGTH);
+        writeInt(bodyBytes.length);
+        write(CRLF);
+        write(CRLF);
+        write(bodyBytes);
+        return Arrays.copyOf(buffer, length);
+    }
+
+    // ==================== ENCODING ====================
+
+    private static byte[] statusLine(int status, String reason) {
+        if (status < 100 || status >= STATUS_LINES.length) {
+            return new StatusLine(status, reason).bytes;
+        }
+        StatusLine line = STATUS_LINES[status];
+        if (line == null || !reason.equals(line.reason)) {
+            line = new StatusLine(status, reason);
+            STATUS_LINES[status] = line;
+        }
+        return line.bytes;
+    }
+
+    private static boolean hasTag(byte[] src, int start, int end) {
+        for (int i = start; i + 4 <= end; i++) {
+            if ((src[i] | 0x20) == 't' && (src[i + 1] | 0x20) == 'a' && (src[i + 2] | 0x20) == 'g'
+                && src[i + 3] == '=') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void write(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    /**
+     * ASCII goes in directly; anything else is UTF-8 encoded
+     */
+    private void writeString(String s) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                write(s.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buffer[length++] = (byte) c;
+        }
+    }
+
+    private void writeInt(int value) {
+        if (value == 0) {
+            ensure(1);
+            buffer[length++] = '0';
+            return;
+        }
+        int digits = 0;
+        for (int v = value; v > 0; v /= 10) {
+            digits++;
+        }
+        ensure(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+
+    private static byte[] name(String name) {
+        return ascii(name + ": ");
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -2,18 +2,18 @@ package com.shreeyash.gateway.sip;
 
 import android.util.Log;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import com.shreeyash.gateway.TimingWheel;
+import com.shreeyash.gateway.codec.G711Codec;
+import com.shreeyash.gateway.rtp.TelephoneEvent;
+
+import java.io.IOException;
 import java.net.InetAddress;
-import java.net.SocketTimeoutException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
 
 /**
  * SIP Client - User Agent for direct PBX registration
@@ -29,6 +29,7 @@ public class SIPClient {
     // Enable detailed SIP message logging
     private static final boolean LOG_SIP_MESSAGES = true;
     private static final boolean LOG_SIP_HEADERS = true;
+    private static final boolean LOG_SIP_KEEPALIVES = false;  // OPTIONS pings from the PBX
 
     // Configuration
     private final String pbxHost;
@@ -37,12 +38,16 @@ public class SIPClient {
     private final String password;
     private final String localIp;
     private final int localSipPort;
+    private final String transportName;  // to the PBX: UDP, TCP or TLS
+    private final SdpNegotiator sdpNegotiator;
+
+    // Transports: UDP and TCP always listen on the SIP port, TLS only connects out
+    private UdpTransport udp;
+    private StreamTransport tcp;
+    private StreamTransport tls;
 
     // SIP state
-    private DatagramSocket sipSocket;
     private volatile boolean running = false;
-    private volatile boolean registered = false;
-    private int cseq = 1;
     private String registerCallId;
 
     // Active calls: callId -> SIPCall
@@ -50,30 +55,38 @@ public class SIPClient {
 
     // Executors
     private ExecutorService executor = Executors.newCachedThreadPool();
-    private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-    private Thread receiverThread;
 
     // Event listener
     private SIPEventListener eventListener;
 
-    // Authentication state
-    private String lastNonce;
-    private String lastRealm;
+    // Digest credentials, reused across REGISTER and INVITE
+    private final DigestAuth auth;
+
+    // Registration with the PBX (null in trunk mode)
+    private final RegistrationManager registration;
+
+    // Transactions (RFC 3261 section 17); every SIP timer runs on the shared wheel
+    private final TimingWheel timers = TimingWheel.shared();
+
+    // Cached RFC 3263 lookups of the PBX host, shared with the other SIMs
+    private final SipResolver resolver = SipResolver.shared();
+    private final TransactionLayer transactions;
+
+    // Expiry we ask for: short over UDP to hold the NAT mapping open,
+    // longer over TCP/TLS where CRLF keepalives do that
+    private static final int REGISTER_EXPIRES_UDP = 60;
+    private static final int REGISTER_EXPIRES_STREAM = 600;
 
-    // Transaction timeouts (RFC 3261)
-    private static final int INVITE_TIMEOUT_MS = 32000;  // Timer B
-    private static final int BYE_TIMEOUT_MS = 5000;
-    private static final int CANCEL_TIMEOUT_MS = 5000;
-    private Map<String, ScheduledFuture<?>> transactionTimers = new ConcurrentHashMap<>();
+    private static final String ALLOWED_METHODS = "INVITE,ACK,BYE,CANCEL,OPTIONS,UPDATE";
 
-    // Retransmission intervals (RFC 3261 Timer A)
-    private static final long[] RETRANSMIT_INTERVALS = {500, 1000, 2000, 4000, 4000, 4000};
-    private static final int MAX_RETRANSMITS = 6;
+    // Smallest session interval we accept (RFC 4028 section 4)
+    private static final int MIN_SESSION_EXPIRES = 90;
 
     // Health monitoring
     private volatile long lastReceivedTime = System.currentTimeMillis();
     private static final long HEALTH_CHECK_INTERVAL_MS = 30000;
     private static final long DEAD_THRESHOLD_MS = 90000;
+    private final TimingWheel.Timeout healthTimer = new TimingWheel.Timeout(this::checkHealth);
 
     /**
      * SIP call state
@@ -82,20 +95,26 @@ public class SIPClient {
         public String callId;
         public String fromTag;
         public String toTag;
-        public String remoteUri;
-        public String localUri;
-        public String fromHeader;
-        public String toHeader;
-        public String viaHeader;  // Original Via for responses
-        public int cseq;
+        public int cseq;           // CSeq of our INVITE (and its auth retries)
+        SipDialog dialog;          // from the first tagged response; builds BYE and ACK
         public String remoteRtpAddress;
         public int remoteRtpPort;
         public int localRtpPort;
+        public int payloadType = G711Codec.PAYLOAD_TYPE_PCMU; // Negotiated audio codec
+        public int dtmfPayloadType = TelephoneEvent.PAYLOAD_TYPE; // Negotiated telephone-event, -1 if none
+        public int ptime = G711Codec.DEFAULT_PTIME;  // Negotiated packetization we send at (ms)
+        public MediaDescription.Direction direction = MediaDescription.Direction.SENDRECV;  // Negotiated, our side
+        public SessionDescription localSdp;   // Our last offer or answer
+        public SessionDescription remoteSdp;  // Remote's last offer or answer
+        public boolean awaitingSdpAnswer;     // We offered in a 200 OK, answer comes in the ACK
         public boolean isIncoming; // Incoming INVITE = outgoing GSM call
         public CallState state = CallState.IDLE;
         // For trunk mode - store sender address
         public InetAddress senderAddress;
         public int senderPort;
+        SipTransport transport;  // in-dialog requests go the same way
+        boolean authRetried;     // INVITE already resent with credentials
+        boolean intervalRetried; // INVITE already resent after a 422
 
         public enum CallState {
             IDLE,           // Initial state
@@ -108,6 +127,18 @@ public class SIPClient {
 
         // Store original INVITE for CANCEL support
         public SIPMessage originalInvite;
+
+        // Incoming calls: every response to the INVITE goes through this
+        ServerTransaction inviteTransaction;
+
+        // re-INVITE from the remote side whose 2xx still waits for its ACK
+        ServerTransaction reInviteTransaction;
+        long reInviteCSeq;
+
+        // Session timer (RFC 4028), 0 if the remote side did not ask for one
+        int sessionExpires;
+        boolean sessionRefresher;  // we send the refreshes, else we expect them
+        TimingWheel.Timeout sessionTimer;
     }
 
     /**
@@ -124,6 +155,13 @@ public class SIPClient {
         default void onEarlyMedia(SIPCall call) {}
         default void onCallProgress(SIPCall call, int statusCode) {}
         default void onCallFailed(SIPCall call, int statusCode, String reason) {}
+        default void onRegistrationStateChanged(RegistrationManager.State state, String reason) {}
+
+        /**
+         * A re-INVITE or UPDATE changed the remote RTP address, codec or
+         * direction of an established call; the new values are in the call
+         */
+        default void onMediaChanged(SIPCall call) {}
     }
 
     // Trunk mode (no registration, just listen)
@@ -132,23 +170,48 @@ public class SIPClient {
     // Learned PBX address (from incoming REGISTERs in trunk mode)
     private InetAddress learnedPbxAddress;
     private int learnedPbxPort;
+    private SipTransport learnedPbxTransport;
 
     public SIPClient(String pbxHost, int pbxPort, String username, String password,
                      String localIp, int localSipPort) {
+        this(pbxHost, pbxPort, username, password, localIp, localSipPort, G711Codec.DEFAULT_PTIME);
+    }
+
+    /**
+     * @param ptime packetization (ms) to offer and prefer for this trunk
+     */
+    public SIPClient(String pbxHost, int pbxPort, String username, String password,
+                     String localIp, int localSipPort, int ptime) {
+        this(pbxHost, pbxPort, username, password, localIp, localSipPort, ptime, SipTransport.UDP);
+    }
+
+    /**
+     * @param transport SIP transport to the PBX: UDP, TCP or TLS
+     */
+    public SIPClient(String pbxHost, int pbxPort, String username, String password,
+                     String localIp, int localSipPort, int ptime, String transport) {
         this.pbxHost = pbxHost;
         this.pbxPort = pbxPort;
         this.username = username;
         this.password = password;
         this.localIp = localIp;
         this.localSipPort = localSipPort;
+        this.transportName = transport;
+        this.sdpNegotiator = new SdpNegotiator(localIp, ptime);
+        this.transactions = new TransactionLayer(timers, transactionUser);
+        this.auth = new DigestAuth(username, password);
 
         // If no PBX host, run in trunk/listen mode
         if (pbxHost == null || pbxHost.isEmpty()) {
             this.trunkMode = true;
             this.registerCallId = SIPMessage.generateCallId(localIp);
+            this.registration = null;
             Log.i(TAG, "Running in trunk mode (listen only, no registration)");
         } else {
             this.registerCallId = SIPMessage.generateCallId(pbxHost);
+            int expires = SipTransport.UDP.equals(transport) ? REGISTER_EXPIRES_UDP : REGISTER_EXPIRES_STREAM;
+            this.registration = new RegistrationManager(registrationClient, auth, resolver, timers, executor,
+                pbxHost, pbxPort, transport, localIp + ":" + localSipPort, expires);
         }
     }
 
@@ -165,11 +228,15 @@ public class SIPClient {
         Log.i(TAG, "╚════════════════════════════════════════════════════════════╝");
 
         try {
-            // Bind to IPv4 explicitly (0.0.0.0) to ensure we can receive from IPv4 PBX
-            // Without this, Java/Android defaults to IPv6 if available
-            sipSocket = new DatagramSocket(localSipPort, InetAddress.getByName("0.0.0.0"));
-            sipSocket.setSoTimeout(5000);  // 5 second timeout for receive
             running = true;
+            udp = new UdpTransport(localSipPort);
+            udp.start(this::handleMessage);
+            tcp = StreamTransport.tcp(localSipPort);
+            tcp.start(this::handleMessage);
+            if (SipTransport.TLS.equals(transportName) && !trunkMode) {
+                tls = StreamTransport.tls(SSLContext.getDefault(), pbxHost);
+                tls.start(this::handleMessage);
+            }
 
             Log.i(TAG, "┌─ SIP Configuration:");
             Log.i(TAG, "│  Local IP:      " + localIp);
@@ -178,14 +245,12 @@ public class SIPClient {
             if (!trunkMode) {
                 Log.i(TAG, "│  PBX Host:      " + pbxHost);
                 Log.i(TAG, "│  PBX Port:      " + pbxPort);
+                Log.i(TAG, "│  Transport:     " + transportName);
                 Log.i(TAG, "│  Username:      " + username);
             }
             Log.i(TAG, "└─────────────────────────────");
 
-            // Start receiver thread
-            receiverThread = new Thread(this::receiveLoop, "SIP-Receiver");
-            receiverThread.start();
-            Log.i(TAG, "[SIP] ✓ Receiver thread started");
+            Log.i(TAG, "[SIP] ✓ Listening on UDP and TCP port " + localSipPort);
 
             // Start health monitor
             startHealthMonitor();
@@ -194,8 +259,7 @@ public class SIPClient {
             if (trunkMode) {
                 // In trunk mode, just listen - no registration needed
                 Log.i(TAG, "[SIP] Running in TRUNK MODE - waiting for PBX to register with us...");
-                // Mark as "registered" for compatibility (trunk mode is always ready)
-                registered = true;
+                // Reported as "registered" for compatibility (trunk mode is always ready)
                 if (eventListener != null) {
                     eventListener.onRegistered();
                 }
@@ -203,11 +267,8 @@ public class SIPClient {
                 // Normal mode - register with PBX
                 Log.i(TAG, "[SIP] Sending REGISTER to " + pbxHost + ":" + pbxPort);
 
-                // Initial registration
-                register();
-
-                // Schedule periodic re-registration (every 50 seconds for 60s expiry)
-                scheduler.scheduleAtFixedRate(this::register, 50, 50, TimeUnit.SECONDS);
+                // Registers now, then refreshes at the interval the PBX grants
+                registration.start();
             }
 
             Log.i(TAG, "╔════════════════════════════════════════════════════════════╗");
@@ -254,21 +315,55 @@ public class SIPClient {
         }
     }
 
+    /**
+     * Log a received message from its parsed form (no re-split of the datagram)
+     */
+    private void logSipMessage(SIPMessage msg, String remoteAddr, int remotePort) {
+        if (!LOG_SIP_MESSAGES || (!LOG_SIP_KEEPALIVES && isKeepalive(msg))) return;
+
+        Log.i(TAG, String.format("[SIP] 📥 <<< %s %s:%d", msg.getStartLine(), remoteAddr, remotePort));
+
+        if (LOG_SIP_HEADERS) {
+            for (String name : new String[] {"From", "To", "Call-ID", "CSeq", "Contact"}) {
+                String value = msg.getHeader(name);
+                if (value != null) {
+                    Log.d(TAG, "[SIP]     " + name + ": " + value);
+                }
+            }
+        }
+    }
+
+    /**
+     * OPTIONS requests and their responses are qualify pings, not call traffic
+     */
+    private static boolean isKeepalive(SIPMessage msg) {
+        return msg.isRequest() ? "OPTIONS".equals(msg.getMethod()) : "OPTIONS".equals(msg.getCSeqMethod());
+    }
+
     /**
      * Start health monitoring for connection status
      */
     private void startHealthMonitor() {
-        scheduler.scheduleAtFixedRate(() -> {
-            long silenceMs = System.currentTimeMillis() - lastReceivedTime;
-            if (silenceMs > DEAD_THRESHOLD_MS && !activeCalls.isEmpty()) {
-                Log.w(TAG, "No SIP traffic for " + silenceMs + "ms with active calls - possible connection issue");
-                // In registration mode, try re-registering
-                if (!trunkMode && registered) {
-                    Log.i(TAG, "Attempting re-registration due to silence");
-                    register();
-                }
+        timers.schedule(healthTimer, HEALTH_CHECK_INTERVAL_MS);
+    }
+
+    /**
+     * Health check, on the timer thread (refreshNow() hands off to the executor)
+     */
+    private void checkHealth() {
+        if (!running) {
+            return;
+        }
+        long silenceMs = System.currentTimeMillis() - lastReceivedTime;
+        if (silenceMs > DEAD_THRESHOLD_MS && !activeCalls.isEmpty()) {
+            Log.w(TAG, "No SIP traffic for " + silenceMs + "ms with active calls - possible connection issue");
+            // In registration mode, try re-registering
+            if (!trunkMode && registration.isRegistered()) {
+                Log.i(TAG, "Attempting re-registration due to silence");
+                registration.refreshNow();
             }
-        }, HEALTH_CHECK_INTERVAL_MS, HEALTH_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+        timers.schedule(healthTimer, HEALTH_CHECK_INTERVAL_MS);
     }
 
     /**
@@ -278,12 +373,8 @@ public class SIPClient {
         running = false;
 
         // Unregister
-        if (registered) {
-            try {
-                sendRegister(0); // Expires=0 means unregister
-            } catch (Exception e) {
-                Log.e(TAG, "Error unregistering", e);
-            }
+        if (registration != null) {
+            registration.stop();
         }
 
         // Hangup all active calls
@@ -291,51 +382,33 @@ public class SIPClient {
             hangup(call);
         }
 
-        scheduler.shutdown();
+        healthTimer.cancel();
         executor.shutdown();
 
-        if (receiverThread != null) {
-            receiverThread.interrupt();
+        for (SipTransport transport : new SipTransport[] {udp, tcp, tls}) {
+            if (transport != null) {
+                transport.stop();
+            }
         }
 
-        if (sipSocket != null && !sipSocket.isClosed()) {
-            sipSocket.close();
-        }
+        transactions.clear();
 
         Log.i(TAG, "SIP client stopped");
     }
 
     /**
-     * Register with PBX
+     * Send REGISTER request (called by the registration manager)
      */
-    private void register() {
-        executor.execute(() -> {
-            try {
-                sendRegister(60); // 60 second registration
-            } catch (Exception e) {
-                Log.e(TAG, "Registration failed: " + e.getMessage(), e);
-                if (eventListener != null) {
-                    eventListener.onRegistrationFailed(e.getMessage());
-                }
-            }
-        });
-    }
-
-    /**
-     * Send REGISTER request
-     */
-    private void sendRegister(int expires) throws Exception {
+    private ClientTransaction sendRegister(int expires, int cseq) throws Exception {
         SIPMessage register = SIPMessage.createRegister(
-            username, pbxHost, localIp, localSipPort, registerCallId, cseq++, expires);
+            username, pbxHost, localIp, localSipPort, registerCallId, cseq, expires);
 
-        // Add authentication if we have credentials from a previous 401
-        if (lastNonce != null && lastRealm != null) {
-            String authHeader = createDigestAuth("REGISTER", "sip:" + pbxHost);
-            register.setHeader("authorization", authHeader);
-        }
+        // Credentials up front once a previous challenge gave us a nonce
+        auth.authorize(register);
 
-        sendMessage(register);
+        ClientTransaction tx = sendRequest(register);
         Log.i(TAG, "Sent REGISTER (expires=" + expires + ")");
+        return tx;
     }
 
     /**
@@ -375,28 +448,36 @@ public class SIPClient {
 
         activeCalls.put(call.callId, call);
 
+        call.localSdp = sdpNegotiator.createOffer(localRtpPort);
+
         executor.execute(() -> {
             try {
                 SIPMessage invite = SIPMessage.createInvite(
                     displayCallerId, username, toExtension, destHost, localIp, localSipPort,
-                    localRtpPort, call.callId, call.cseq++);
+                    call.localSdp, call.callId, call.cseq++);
+                auth.authorize(invite);
 
-                call.fromHeader = invite.getHeader("from");
-                call.toHeader = invite.getHeader("to");
-                call.remoteUri = "sip:" + toExtension + "@" + destHost;
+                call.fromTag = invite.getFromTag();
                 call.originalInvite = invite;  // Store for CANCEL support
 
                 // Send to target with retransmission
-                InetAddress destAddr = trunkMode ? learnedPbxAddress : InetAddress.getByName(destHost);
+                InetAddress destAddr = learnedPbxAddress;
+                int sendPort = destPort;
+                SipTransport transport = learnedPbxTransport;
+                if (!trunkMode) {
+                    SipResolver.Target target = resolver.resolveFirst(destHost, destPort, transportName);
+                    destAddr = target.address;
+                    sendPort = target.port;
+                    transport = transport(target.transport);
+                }
                 call.senderAddress = destAddr;
-                call.senderPort = destPort;
-
-                sendWithRetransmit(invite, call, destAddr, destPort, MAX_RETRANSMITS);
+                call.senderPort = sendPort;
+                call.transport = transport;
 
-                // Start INVITE timeout timer
-                startInviteTimer(call);
+                // Retransmission (Timer A) and timeout (Timer B) belong to the transaction
+                sendRequest(invite, transport, destAddr, sendPort);
 
-                Log.i(TAG, "Sent INVITE to " + toExtension + " with caller ID: " + displayCallerId + " via " + destHost + ":" + destPort);
+                Log.i(TAG, "Sent INVITE to " + toExtension + " with caller ID: " + displayCallerId + " via " + destAddr.getHostAddress() + ":" + sendPort);
 
             } catch (Exception e) {
                 Log.e(TAG, "Failed to send INVITE: " + e.getMessage(), e);
@@ -429,59 +510,27 @@ public class SIPClient {
 
         executor.execute(() -> {
             try {
-                // Build 200 OK response with SDP
-                call.toTag = SIPMessage.generateTag();
-
-                // IMPORTANT: Update call.toHeader to include our tag for later BYE
-                // This is critical - BYE uses call.toHeader as From when we're the callee
-                if (!call.toHeader.contains("tag=")) {
-                    call.toHeader = call.toHeader + ";tag=" + call.toTag;
-                    Log.d(TAG, "[SIP] Updated toHeader with our tag: " + call.toHeader);
-                }
+                String sdp = createLocalSdp(call, localRtpPort).toString();
 
-                StringBuilder sb = new StringBuilder();
-                sb.append("SIP/2.0 200 OK\r\n");
-                // Use original Via header from INVITE
-                if (call.viaHeader != null) {
-                    sb.append("Via: ").append(call.viaHeader).append("\r\n");
-                }
-                sb.append("From: ").append(call.fromHeader).append("\r\n");
-                sb.append("To: ").append(call.toHeader).append("\r\n");
-                sb.append("Call-ID: ").append(call.callId).append("\r\n");
-                sb.append("CSeq: ").append(call.cseq).append(" INVITE\r\n");
-                sb.append("Contact: <sip:").append(username).append("@").append(localIp)
-                  .append(":").append(localSipPort).append(">\r\n");
-                sb.append("User-Agent: GSM-Gateway/1.0\r\n");
-                sb.append("Allow: INVITE,ACK,BYE,CANCEL,OPTIONS\r\n");
-
-                String sdp = createSDP(localRtpPort);
-                sb.append("Content-Type: application/sdp\r\n");
-                sb.append("Content-Length: ").append(sdp.length()).append("\r\n");
-                sb.append("\r\n");
-                sb.append(sdp);
-
-                // Send to the correct destination (trunk mode support)
-                String data = sb.toString();
-                InetAddress destAddr;
-                int destPort;
-
-                if (call.senderAddress != null) {
-                    destAddr = call.senderAddress;
-                    destPort = call.senderPort;
-                } else if (pbxHost != null) {
-                    destAddr = InetAddress.getByName(pbxHost);
-                    destPort = pbxPort;
-                } else {
-                    Log.e(TAG, "Cannot send 200 OK - no destination");
+                // The INVITE transaction retransmits the 200 OK until the ACK arrives
+                if (call.inviteTransaction == null || call.originalInvite == null) {
+                    Log.e(TAG, "Cannot send 200 OK - no INVITE transaction for " + call.callId);
                     return;
                 }
-
-                byte[] bytes = data.getBytes();
-                DatagramPacket packet = new DatagramPacket(bytes, bytes.length, destAddr, destPort);
-                sipSocket.send(packet);
-
+                // Via, From, To, Call-ID, CSeq and Record-Route copied from the INVITE's bytes
+                ResponseWriter ok = ResponseWriter.local()
+                    .begin(call.originalInvite, 200, "OK", call.toTag)
+                    .header(ResponseWriter.CONTACT, localContact(call))
+                    .header(ResponseWriter.ALLOW, ALLOWED_METHODS);
+                applySessionTimer(ok, call, call.originalInvite);
+
+                // Before sending: the ACK may come back before this thread runs again
+                call.dialog.setConfirmed();
                 call.state = SIPCall.CallState.ANSWERED;
-                Log.i(TAG, "Sent 200 OK for call " + call.callId + " to " + destAddr.getHostAddress() + ":" + destPort);
+                call.inviteTransaction.sendResponse(200, ok.finish("application/sdp", sdp));
+
+                Log.i(TAG, "Sent 200 OK for call " + call.callId + " to " +
+                           call.senderAddress.getHostAddress() + ":" + call.senderPort);
 
             } catch (Exception e) {
                 Log.e(TAG, "Failed to answer call: " + e.getMessage(), e);
@@ -506,9 +555,6 @@ public class SIPClient {
 
         executor.execute(() -> {
             try {
-                // Cancel any pending transaction timers
-                cancelTransactionTimer(call.callId);
-
                 // Determine whether to send CANCEL or BYE
                 boolean callNotYetAnswered = (call.state == SIPCall.CallState.IDLE ||
                                                call.state == SIPCall.CallState.RINGING ||
@@ -517,16 +563,14 @@ public class SIPClient {
                 if (callNotYetAnswered && !call.isIncoming && call.originalInvite != null) {
                     // Outgoing call not yet answered - send CANCEL
                     Log.i(TAG, "[SIP] Sending CANCEL (call not yet answered)...");
-                    SIPMessage cancel = SIPMessage.createCancel(
-                        call.callId, call.fromHeader, call.toHeader,
-                        call.remoteUri != null ? call.remoteUri : "sip:" + pbxHost,
-                        localIp, localSipPort, 1);  // CANCEL uses same CSeq as INVITE
+                    // Same branch and CSeq number as the INVITE
+                    SIPMessage cancel = SIPMessage.createCancel(call.originalInvite, localIp, localSipPort);
 
                     // Send to the same destination as the INVITE
                     if (call.senderAddress != null) {
-                        sendToAddress(cancel, call.senderAddress, call.senderPort);
+                        sendRequest(cancel, call.transport, call.senderAddress, call.senderPort);
                     } else {
-                        sendMessage(cancel);
+                        sendRequest(cancel);
                     }
 
                     Log.i(TAG, "[SIP] ✓ CANCEL sent for unanswered call");
@@ -536,51 +580,20 @@ public class SIPClient {
                     // Established call - send BYE
                     Log.i(TAG, "[SIP] Sending BYE (call was established)...");
 
-                    // For BYE, the sender (us) must be in the From header
-                    // For incoming calls, we were the To in the original INVITE, so swap
-                    // For outgoing calls, we were the From, so keep as-is
-                    String byeFromHeader;
-                    String byeToHeader;
-
-                    if (call.isIncoming) {
-                        // We received the INVITE, so we're the To in the original dialog
-                        // In BYE, we become the From (sender)
-                        // NOTE: call.toHeader should already include our tag from answerCall()
-                        byeFromHeader = call.toHeader;  // Our identity (was To in INVITE + our tag)
-                        byeToHeader = call.fromHeader;  // Remote identity (was From in INVITE + their tag)
-                        Log.d(TAG, "[SIP] Swapping From/To for incoming call BYE");
-                        Log.d(TAG, "[SIP] Our toTag: " + call.toTag);
-                    } else {
-                        // We sent the INVITE, so we're already the From
-                        byeFromHeader = call.fromHeader;
-                        byeToHeader = call.toHeader;
-                    }
-
-                    // Log headers for debugging 481 errors
-                    Log.i(TAG, "[SIP] BYE Headers:");
-                    Log.i(TAG, "[SIP]   From: " + byeFromHeader);
-                    Log.i(TAG, "[SIP]   To:   " + byeToHeader);
-                    Log.i(TAG, "[SIP]   Call-ID: " + call.callId);
-
-                    // Verify tags are present (critical for 481 debugging)
-                    if (!byeFromHeader.contains("tag=")) {
-                        Log.w(TAG, "[SIP] ⚠ WARNING: From header missing tag!");
-                    }
-                    if (!byeToHeader.contains("tag=")) {
-                        Log.w(TAG, "[SIP] ⚠ WARNING: To header missing tag!");
+                    // Request-URI, Route, From and To all come from the dialog
+                    SipDialog dialog = call.dialog;
+                    if (dialog == null) {
+                        Log.e(TAG, "[SIP] ❌ No dialog for " + call.callId + ", cannot send BYE");
+                        call.state = SIPCall.CallState.TERMINATED;
+                        activeCalls.remove(call.callId);
+                        return;
                     }
+                    SIPMessage bye = SIPMessage.createInDialog("BYE", dialog, dialog.nextLocalCSeq(),
+                                                               localIp, localSipPort);
+                    Log.i(TAG, "[SIP]   Target: " + dialog.getRemoteTarget());
+                    Log.i(TAG, "[SIP]   Route:  " + dialog.getRouteSet());
 
-                    SIPMessage bye = SIPMessage.createBye(
-                        call.callId, byeFromHeader, byeToHeader,
-                        call.remoteUri != null ? call.remoteUri : "sip:" + pbxHost,
-                        localIp, localSipPort, call.cseq++);
-
-                    // Send to the correct destination
-                    if (call.senderAddress != null) {
-                        sendToAddress(bye, call.senderAddress, call.senderPort);
-                    } else {
-                        sendMessage(bye);
-                    }
+                    sendInDialog(call, bye);
 
                     Log.i(TAG, "[SIP] ✓ BYE sent for established call");
 
@@ -588,8 +601,7 @@ public class SIPClient {
                     // Incoming call we haven't answered - send 486 Busy Here or 603 Decline
                     Log.i(TAG, "[SIP] Sending 603 Decline (incoming call not answered)...");
                     if (call.originalInvite != null) {
-                        SIPMessage decline = SIPMessage.createResponse(call.originalInvite, 603, "Decline");
-                        sendToCall(call, decline);
+                        respond(call, 603, "Decline");
                         Log.i(TAG, "[SIP] ✓ 603 Decline sent for incoming call");
                     }
                 } else {
@@ -610,55 +622,40 @@ public class SIPClient {
     }
 
     /**
-     * Receive loop
+     * Handle incoming SIP message, on the transport's thread. The message
+     * is parsed in place and only valid until the next receive; anything
+     * kept must be retain()ed.
      */
-    private void receiveLoop() {
-        byte[] buffer = new byte[4096];
-
-        while (running && !Thread.interrupted()) {
-            try {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                sipSocket.receive(packet);
-
-                // Update health monitor timestamp
-                lastReceivedTime = System.currentTimeMillis();
-
-                String message = new String(packet.getData(), 0, packet.getLength());
-                handleMessage(message, packet.getAddress(), packet.getPort());
-
-            } catch (SocketTimeoutException e) {
-                // Expected - continue loop (allows periodic checks)
-                continue;
-            } catch (Exception e) {
-                if (running) {
-                    Log.e(TAG, "Receive error: " + e.getMessage());
-                }
-            }
-        }
-    }
+    private void handleMessage(SipTransport transport, byte[] data, int length,
+                               InetAddress fromAddr, int fromPort) {
+        // Update health monitor timestamp
+        lastReceivedTime = System.currentTimeMillis();
 
-    /**
-     * Handle incoming SIP message
-     */
-    private void handleMessage(String rawMessage, InetAddress fromAddr, int fromPort) {
         try {
-            // Ignore empty messages (keep-alive packets)
-            if (rawMessage == null || rawMessage.trim().isEmpty()) {
+            // Parser returns null for CRLF keep-alives and garbage
+            SIPMessage msg = SIPMessage.parse(data, 0, length);
+            if (msg == null) {
                 return;
             }
 
             // Log received message
-            logSipMessage("RX", rawMessage, fromAddr.getHostAddress(), fromPort);
-
-            SIPMessage msg = SIPMessage.parse(rawMessage);
-            if (msg == null) {
-                Log.d(TAG, "[SIP] Unparseable SIP message from " + fromAddr.getHostAddress());
-                return;
-            }
+            logSipMessage(msg, fromAddr.getHostAddress(), fromPort);
 
             if (msg.isRequest()) {
-                handleRequest(msg, fromAddr, fromPort);
-            } else {
+                if ("ACK".equals(msg.getMethod())) {
+                    // ACK for a non-2xx is absorbed by its INVITE transaction
+                    if (!transactions.receiveAck(msg)) {
+                        handleAck(msg);
+                    }
+                    return;
+                }
+                ServerTransaction tx = transactions.receiveRequest(msg, transport, fromAddr, fromPort);
+                if (tx == null) {
+                    // Retransmission, answered by the transaction
+                    return;
+                }
+                handleRequest(msg, tx, fromAddr, fromPort);
+            } else if (transactions.receiveResponse(msg)) {
                 handleResponse(msg);
             }
 
@@ -670,37 +667,50 @@ public class SIPClient {
     /**
      * Handle incoming SIP request
      */
-    private void handleRequest(SIPMessage request, InetAddress fromAddr, int fromPort) {
+    private void handleRequest(SIPMessage request, ServerTransaction tx, InetAddress fromAddr, int fromPort) {
         String method = request.getMethod();
-        Log.i(TAG, "Received " + method + " from " + fromAddr.getHostAddress() + ":" + fromPort);
+        if (LOG_SIP_KEEPALIVES || !"OPTIONS".equals(method)) {
+            Log.i(TAG, "Received " + method + " from " + fromAddr.getHostAddress() + ":" + fromPort);
+        }
 
         switch (method) {
             case "REGISTER":
-                handleRegister(request, fromAddr, fromPort);
+                handleRegister(request, tx, fromAddr, fromPort);
                 break;
 
             case "INVITE":
-                handleInvite(request, fromAddr, fromPort);
+                if (request.getToTag() != null) {
+                    // Tagged: a re-INVITE within a dialog, not a new call
+                    handleSessionUpdate(request, tx);
+                } else {
+                    handleInvite(request, tx, fromAddr, fromPort);
+                }
                 break;
 
-            case "ACK":
-                handleAck(request);
+            case "UPDATE":
+                handleSessionUpdate(request, tx);
                 break;
 
             case "BYE":
-                handleBye(request, fromAddr, fromPort);
+                handleBye(request, tx, fromAddr, fromPort);
                 break;
 
             case "CANCEL":
-                handleCancel(request, fromAddr, fromPort);
+                handleCancel(request, tx, fromAddr, fromPort);
                 break;
 
             case "OPTIONS":
-                handleOptions(request, fromAddr, fromPort);
+                handleOptions(request, tx);
                 break;
 
             default:
                 Log.w(TAG, "Unhandled request method: " + method);
+                try {
+                    // Every server transaction needs a final response to end
+                    tx.sendResponse(request, 501, "Not Implemented");
+                } catch (IOException e) {
+                    Log.e(TAG, "Error sending 501 for " + method, e);
+                }
         }
     }
 
@@ -708,58 +718,32 @@ public class SIPClient {
      * Handle incoming REGISTER (PBX registering with us - trunk mode)
      * This allows us to learn the PBX address for sending INVITEs
      */
-    private void handleRegister(SIPMessage register, InetAddress fromAddr, int fromPort) {
+    private void handleRegister(SIPMessage register, ServerTransaction tx, InetAddress fromAddr, int fromPort) {
         Log.i(TAG, "Handling REGISTER from " + fromAddr.getHostAddress() + ":" + fromPort);
 
         // Learn PBX address for sending INVITEs
         learnedPbxAddress = fromAddr;
         learnedPbxPort = fromPort;
-        Log.i(TAG, "Learned PBX address: " + fromAddr.getHostAddress() + ":" + fromPort);
+        learnedPbxTransport = tx.transport;
+        Log.i(TAG, "Learned PBX address: " + fromAddr.getHostAddress() + ":" + fromPort + " over " + tx.transport.getName());
 
         // Send 200 OK response
         try {
-            StringBuilder sb = new StringBuilder();
-            sb.append("SIP/2.0 200 OK\r\n");
-
-            // Copy Via header
-            String via = register.getHeader("via");
-            if (via != null) {
-                sb.append("Via: ").append(via).append("\r\n");
-            }
-
-            // Copy From, To, Call-ID, CSeq
-            sb.append("From: ").append(register.getHeader("from")).append("\r\n");
-
-            String to = register.getHeader("to");
-            if (to != null && !to.contains("tag=")) {
-                to = to + ";tag=" + SIPMessage.generateTag();
-            }
-            sb.append("To: ").append(to).append("\r\n");
-
-            sb.append("Call-ID: ").append(register.getCallId()).append("\r\n");
-            sb.append("CSeq: ").append(register.getHeader("cseq")).append("\r\n");
-
-            // Contact header
-            String contact = register.getHeader("contact");
-            if (contact != null) {
-                sb.append("Contact: ").append(contact).append("\r\n");
-            }
-
             // Expires
             String expires = register.getHeader("expires");
             if (expires == null) {
                 expires = "3600";
             }
-            sb.append("Expires: ").append(expires).append("\r\n");
 
-            sb.append("Server: GSM-Gateway/1.0\r\n");
-            sb.append("Content-Length: 0\r\n");
-            sb.append("\r\n");
+            ResponseWriter ok = ResponseWriter.local().begin(register, 200, "OK", SIPMessage.generateTag());
+            String contact = register.getHeader("contact");
+            if (contact != null) {
+                ok.header(ResponseWriter.CONTACT, contact);
+            }
+            ok.header(ResponseWriter.EXPIRES, expires);
 
             // Send response
-            byte[] bytes = sb.toString().getBytes();
-            DatagramPacket packet = new DatagramPacket(bytes, bytes.length, fromAddr, fromPort);
-            sipSocket.send(packet);
+            tx.sendResponse(200, ok.finish());
 
             Log.i(TAG, "Sent 200 OK for REGISTER");
 
@@ -771,7 +755,7 @@ public class SIPClient {
     /**
      * Handle incoming INVITE (outgoing GSM call request from PBX)
      */
-    private void handleInvite(SIPMessage invite, InetAddress fromAddr, int fromPort) {
+    private void handleInvite(SIPMessage invite, ServerTransaction tx, InetAddress fromAddr, int fromPort) {
         String callId = invite.getCallId();
         String dialedNumber = invite.getDialedNumber();
 
@@ -783,33 +767,45 @@ public class SIPClient {
         Log.i(TAG, "│ Call-ID:       " + String.format("%-43s", callId.length() > 43 ? callId.substring(0, 40) + "..." : callId) + " │");
         Log.i(TAG, "└───────────────────────────────────────────────────────────┘");
 
-        // Parse SDP to get remote RTP info
-        SDPParser sdp = new SDPParser();
-        if (invite.getBody() != null) {
-            sdp.parse(invite.getBody());
+        // Negotiate the SDP offer; no body means the offer comes from us in the 200 OK
+        SessionDescription offer = null;
+        SdpNegotiator.Result negotiated = null;
+        String body = invite.getBody();
+        if (body != null && !body.trim().isEmpty()) {
+            offer = SessionDescription.parse(body);
+            negotiated = offer != null ? sdpNegotiator.negotiateOffer(offer) : null;
+            if (negotiated == null) {
+                Log.w(TAG, "[SIP] ❌ No acceptable media in offer, rejecting with 488");
+                try {
+                    tx.sendResponse(invite, 488, "Not Acceptable Here", SIPMessage.generateTag());
+                } catch (Exception e) {
+                    Log.e(TAG, "Error sending 488 Not Acceptable Here", e);
+                }
+                return;
+            }
         }
 
         // Create call object
         SIPCall call = new SIPCall();
         call.callId = callId;
         call.fromTag = invite.getFromTag();
-        call.fromHeader = invite.getHeader("from");
-        call.toHeader = invite.getHeader("to");
-        call.viaHeader = invite.getHeader("via");
-        call.remoteUri = getContactUri(invite);
-        call.remoteRtpAddress = sdp.getConnectionAddress();
-        call.remoteRtpPort = sdp.getAudioPort();
+        call.toTag = SIPMessage.generateTag();
+        call.dialog = SipDialog.asCallee(invite, call.toTag);  // early until our 200 OK
+        call.remoteSdp = offer;
+        if (negotiated != null) {
+            applyNegotiation(call, negotiated);
+        }
         call.isIncoming = true;
         call.state = SIPCall.CallState.RINGING;
         call.senderAddress = fromAddr;
         call.senderPort = fromPort;
+        call.transport = tx.transport;
         call.cseq = 1;
-        call.originalInvite = invite;  // Store for response generation
+        call.originalInvite = invite.retain();  // Store for response generation
+        call.inviteTransaction = tx;
 
-        // Log stored headers for debugging
-        Log.d(TAG, "[SIP] Stored From header: " + call.fromHeader);
-        Log.d(TAG, "[SIP] Stored To header: " + call.toHeader);
-        Log.d(TAG, "[SIP] Remote fromTag: " + call.fromTag);
+        Log.d(TAG, "[SIP] Dialog: remote tag " + call.fromTag + ", target " + call.dialog.getRemoteTarget() +
+                   ", route " + call.dialog.getRouteSet());
 
         activeCalls.put(callId, call);
 
@@ -817,16 +813,14 @@ public class SIPClient {
 
         // Send 100 Trying
         try {
-            SIPMessage trying = SIPMessage.createResponse(invite, 100, "Trying");
-            sendToCall(call, trying);
+            respond(call, 100, "Trying");
         } catch (Exception e) {
             Log.e(TAG, "Error sending 100 Trying", e);
         }
 
         // Send 180 Ringing
         try {
-            SIPMessage ringing = SIPMessage.createResponse(invite, 180, "Ringing");
-            sendToCall(call, ringing);
+            respond(call, 180, "Ringing");
         } catch (Exception e) {
             Log.e(TAG, "Error sending 180 Ringing", e);
         }
@@ -844,20 +838,186 @@ public class SIPClient {
         String callId = ack.getCallId();
         SIPCall call = activeCalls.get(callId);
 
-        if (call != null) {
-            call.state = SIPCall.CallState.CONFIRMED;
-            Log.i(TAG, "Call confirmed: " + callId);
+        if (call == null) {
+            return;
+        }
 
-            if (eventListener != null) {
-                eventListener.onCallAnswered(call);
+        // The ACK for our 2xx to a re-INVITE, or for the 2xx that answered the call
+        boolean reInvite = call.reInviteTransaction != null && ack.getCSeqNumber() == call.reInviteCSeq;
+        if (reInvite) {
+            call.reInviteTransaction.acknowledge();
+            call.reInviteTransaction = null;
+        } else if (call.state != SIPCall.CallState.ANSWERED) {
+            return;  // retransmitted ACK
+        } else if (call.inviteTransaction != null) {
+            // Stops the 200 OK retransmissions
+            call.inviteTransaction.acknowledge();
+        }
+
+        boolean mediaChanged = false;
+        if (call.awaitingSdpAnswer) {
+            // Delayed offer: our 200 OK carried the offer, the ACK carries the answer
+            call.awaitingSdpAnswer = false;
+            SessionDescription answer = SessionDescription.parse(ack.getBody());
+            SdpNegotiator.Result negotiated = answer != null ?
+                sdpNegotiator.processAnswer(call.localSdp, answer) : null;
+            if (negotiated != null) {
+                call.remoteSdp = answer;
+                mediaChanged = applyNegotiation(call, negotiated);
+            } else {
+                Log.w(TAG, "[SIP] ⚠ No usable SDP answer in ACK, keeping " +
+                           (reInvite ? "the current media" : "PCMU defaults"));
+            }
+        }
+
+        if (reInvite) {
+            Log.i(TAG, "re-INVITE confirmed: " + callId);
+            if (mediaChanged && eventListener != null) {
+                eventListener.onMediaChanged(call);
             }
+            return;
+        }
+
+        call.state = SIPCall.CallState.CONFIRMED;
+        Log.i(TAG, "Call confirmed: " + callId);
+
+        if (eventListener != null) {
+            eventListener.onCallAnswered(call);
+        }
+    }
+
+    /**
+     * Handle a re-INVITE or UPDATE within an existing dialog: hold and
+     * resume, a new RTP address or codec after a transfer, or a session
+     * refresh. The running call keeps its audio bridge; only what the new
+     * offer changes is passed on.
+     */
+    private void handleSessionUpdate(SIPMessage request, ServerTransaction tx) {
+        String method = request.getMethod();
+        boolean reInvite = "INVITE".equals(method);
+        SIPCall call = activeCalls.get(request.getCallId());
+
+        if (call == null || call.dialog == null || call.state == SIPCall.CallState.TERMINATED) {
+            Log.w(TAG, "[SIP] ⚠ " + method + " for unknown dialog: " + request.getCallId());
+            reject(request, tx, 481, "Call/Transaction Does Not Exist", -1);
+            return;
+        }
+        if (!call.dialog.acceptRemoteCSeq(request)) {
+            // Out of order in the dialog (RFC 3261 section 12.2.2)
+            Log.w(TAG, "[SIP] ⚠ " + method + " CSeq went backwards, rejecting with 500");
+            reject(request, tx, 500, "Server Internal Error", -1);
+            return;
+        }
+
+        SessionDescription offer = null;
+        String body = request.getBody();
+        if (body != null && !body.trim().isEmpty()) {
+            offer = SessionDescription.parse(body);
+        }
+
+        // One offer at a time (RFC 3261 section 14.2, RFC 3311 section 5.2)
+        if (call.awaitingSdpAnswer || (!call.isIncoming && call.remoteSdp == null)) {
+            // Our own offer is still unanswered
+            Log.w(TAG, "[SIP] ⚠ " + method + " while our offer is pending, 491");
+            reject(request, tx, 491, "Request Pending", -1);
+            return;
+        }
+        if (call.reInviteTransaction != null || (reInvite && call.state != SIPCall.CallState.CONFIRMED)
+            || (offer != null && call.localSdp == null)) {
+            // Their previous INVITE has not completed yet: retry in 0-10s
+            Log.w(TAG, "[SIP] ⚠ " + method + " overlaps a pending INVITE, 500 with Retry-After");
+            reject(request, tx, 500, "Server Internal Error", (int) (Math.random() * 11));
+            return;
+        }
+
+        int sessionExpires = sessionInterval(request.getHeader("session-expires"));
+        if (sessionExpires > 0 && sessionExpires < MIN_SESSION_EXPIRES) {
+            reject(request, tx, 422, "Session Interval Too Small", -1);
+            return;
+        }
+
+        // Negotiate before touching the call: a 488 leaves the session as it was
+        SdpNegotiator.Result negotiated = null;
+        if (offer != null) {
+            negotiated = sdpNegotiator.negotiateOffer(offer);
+            if (negotiated == null) {
+                Log.w(TAG, "[SIP] ❌ No acceptable media in " + method + " offer, rejecting with 488");
+                reject(request, tx, 488, "Not Acceptable Here", -1);
+                return;
+            }
+        }
+
+        // Both are target refresh requests
+        call.dialog.refreshTarget(request);
+
+        SessionDescription localSdp = null;
+        boolean mediaChanged = false;
+        if (negotiated != null) {
+            localSdp = sdpNegotiator.createAnswer(offer, negotiated, call.localRtpPort, call.localSdp);
+            call.remoteSdp = offer;
+            mediaChanged = applyNegotiation(call, negotiated);
+        } else if (reInvite) {
+            // No offer: ours goes in the 200 OK and the answer comes in the ACK
+            localSdp = sdpNegotiator.createOffer(call.localRtpPort, call.localSdp);
+            call.awaitingSdpAnswer = true;
+        }
+        if (localSdp != null) {
+            call.localSdp = localSdp;
+        }
+
+        Log.i(TAG, "┌───────────────────────────────────────────────────────────┐");
+        Log.i(TAG, "│ [SIP] 🔄 " + String.format("%-48s", (reInvite ? "RE-INVITE" : "UPDATE") + " IN DIALOG") + " │");
+        Log.i(TAG, "├───────────────────────────────────────────────────────────┤");
+        Log.i(TAG, "│ Offer:     " + String.format("%-47s", offer != null ? "yes" : "none") + " │");
+        Log.i(TAG, "│ Remote:    " + String.format("%-47s", call.remoteRtpAddress + ":" + call.remoteRtpPort) + " │");
+        Log.i(TAG, "│ Codec:     " + String.format("%-47s", "PT " + call.payloadType + ", " + call.direction.getAttribute()) + " │");
+        Log.i(TAG, "└───────────────────────────────────────────────────────────┘");
+
+        try {
+            // To already carries our tag; Contact because both refresh the target
+            ResponseWriter ok = ResponseWriter.local()
+                .begin(request, 200, "OK", null)
+                .header(ResponseWriter.CONTACT, localContact(call))
+                .header(ResponseWriter.ALLOW, ALLOWED_METHODS);
+            applySessionTimer(ok, call, request);
+            if (reInvite) {
+                // The transaction retransmits the 200 OK until the ACK arrives
+                call.reInviteTransaction = tx;
+                call.reInviteCSeq = request.getCSeqNumber();
+            }
+            tx.sendResponse(200, localSdp != null ?
+                ok.finish("application/sdp", localSdp.toString()) : ok.finish());
+        } catch (IOException e) {
+            Log.e(TAG, "[SIP] ❌ Error sending 200 OK for " + method + ": " + e.getMessage(), e);
+        }
+
+        if (mediaChanged && eventListener != null) {
+            eventListener.onMediaChanged(call);
+        }
+    }
+
+    /**
+     * Final non-2xx response to an in-dialog request, with Retry-After
+     * unless {@code retryAfter} is negative
+     */
+    private void reject(SIPMessage request, ServerTransaction tx, int status, String reason, int retryAfter) {
+        try {
+            ResponseWriter response = ResponseWriter.local().begin(request, status, reason, null);
+            if (retryAfter >= 0) {
+                response.header(ResponseWriter.RETRY_AFTER, String.valueOf(retryAfter));
+            } else if (status == 422) {
+                response.header(ResponseWriter.MIN_SE, String.valueOf(MIN_SESSION_EXPIRES));
+            }
+            tx.sendResponse(status, response.finish());
+        } catch (IOException e) {
+            Log.e(TAG, "[SIP] ❌ Error sending " + status + " for " + request.getMethod(), e);
         }
     }
 
     /**
      * Handle BYE
      */
-    private void handleBye(SIPMessage bye, InetAddress fromAddr, int fromPort) {
+    private void handleBye(SIPMessage bye, ServerTransaction tx, InetAddress fromAddr, int fromPort) {
         String callId = bye.getCallId();
         SIPCall call = activeCalls.get(callId);
 
@@ -866,12 +1026,20 @@ public class SIPClient {
         Log.i(TAG, "│ From: " + String.format("%-52s", fromAddr.getHostAddress() + ":" + fromPort) + " │");
         Log.i(TAG, "└───────────────────────────────────────────────────────────┘");
 
+        if (call != null && call.dialog != null && !call.dialog.acceptRemoteCSeq(bye)) {
+            // Out of order in the dialog (RFC 3261 section 12.2.2)
+            Log.w(TAG, "[SIP] ⚠ BYE CSeq went backwards, rejecting with 500");
+            try {
+                tx.sendResponse(bye, 500, "Server Internal Error");
+            } catch (IOException e) {
+                Log.e(TAG, "[SIP] ❌ Error sending 500 for BYE: " + e.getMessage(), e);
+            }
+            return;
+        }
+
         // Send 200 OK
         try {
-            SIPMessage ok = SIPMessage.createResponse(bye, 200, "OK");
-            byte[] bytes = ok.toBytes().getBytes();
-            DatagramPacket packet = new DatagramPacket(bytes, bytes.length, fromAddr, fromPort);
-            sipSocket.send(packet);
+            tx.sendResponse(bye, 200, "OK");
             Log.i(TAG, "[SIP] ✓ Sent 200 OK for BYE");
         } catch (Exception e) {
             Log.e(TAG, "[SIP] ❌ Error sending 200 OK for BYE: " + e.getMessage(), e);
@@ -893,7 +1061,7 @@ public class SIPClient {
     /**
      * Handle CANCEL
      */
-    private void handleCancel(SIPMessage cancel, InetAddress fromAddr, int fromPort) {
+    private void handleCancel(SIPMessage cancel, ServerTransaction tx, InetAddress fromAddr, int fromPort) {
         String callId = cancel.getCallId();
         SIPCall call = activeCalls.get(callId);
 
@@ -904,17 +1072,24 @@ public class SIPClient {
 
         // Send 200 OK for CANCEL
         try {
-            SIPMessage ok = SIPMessage.createResponse(cancel, 200, "OK");
-            byte[] bytes = ok.toBytes().getBytes();
-            DatagramPacket packet = new DatagramPacket(bytes, bytes.length, fromAddr, fromPort);
-            sipSocket.send(packet);
+            tx.sendResponse(cancel, 200, "OK");
             Log.i(TAG, "[SIP] ✓ Sent 200 OK for CANCEL");
         } catch (Exception e) {
             Log.e(TAG, "[SIP] ❌ Error sending 200 OK for CANCEL: " + e.getMessage(), e);
         }
 
         if (call != null) {
-            // Send 487 Request Terminated for the INVITE
+            // Send 487 Request Terminated for the INVITE (dropped by the
+            // transaction if it already has a final response)
+            ServerTransaction inviteTx = transactions.findInvite(cancel);
+            if (inviteTx != null && call.originalInvite != null) {
+                try {
+                    inviteTx.sendResponse(call.originalInvite, 487, "Request Terminated", call.toTag);
+                } catch (IOException e) {
+                    Log.e(TAG, "[SIP] ❌ Error sending 487: " + e.getMessage(), e);
+                }
+            }
+
             call.state = SIPCall.CallState.TERMINATED;
             activeCalls.remove(callId);
             Log.i(TAG, "[SIP] ✓ Call cancelled by remote party");
@@ -930,12 +1105,9 @@ public class SIPClient {
     /**
      * Handle OPTIONS
      */
-    private void handleOptions(SIPMessage options, InetAddress fromAddr, int fromPort) {
+    private void handleOptions(SIPMessage options, ServerTransaction tx) {
         try {
-            SIPMessage ok = SIPMessage.createResponse(options, 200, "OK");
-            byte[] bytes = ok.toBytes().getBytes();
-            DatagramPacket packet = new DatagramPacket(bytes, bytes.length, fromAddr, fromPort);
-            sipSocket.send(packet);
+            tx.sendResponse(options, 200, "OK");
         } catch (Exception e) {
             Log.e(TAG, "Error responding to OPTIONS", e);
         }
@@ -946,14 +1118,20 @@ public class SIPClient {
      */
     private void handleResponse(SIPMessage response) {
         int statusCode = response.getStatusCode();
-        String cseqHeader = response.getHeader("cseq");
-        String method = cseqHeader != null ? cseqHeader.split(" ")[1] : "";
+        String method = response.getCSeqMethod();
+        if (method == null) {
+            method = "";
+        }
 
-        Log.i(TAG, "Received " + statusCode + " " + response.getReasonPhrase() + " for " + method);
+        if (LOG_SIP_KEEPALIVES || !"OPTIONS".equals(method)) {
+            Log.i(TAG, "Received " + statusCode + " " + response.getReasonPhrase() + " for " + method);
+        }
 
         switch (method) {
             case "REGISTER":
-                handleRegisterResponse(response);
+                if (registration != null) {
+                    registration.onResponse(response);
+                }
                 break;
 
             case "INVITE":
@@ -963,41 +1141,34 @@ public class SIPClient {
             case "BYE":
                 // BYE response - call cleanup already done
                 break;
+
+            case "UPDATE":
+                handleUpdateResponse(response);
+                break;
         }
     }
 
     /**
-     * Handle REGISTER response
+     * Handle the response to our session refresh UPDATE
      */
-    private void handleRegisterResponse(SIPMessage response) {
+    private void handleUpdateResponse(SIPMessage response) {
         int statusCode = response.getStatusCode();
-
-        if (statusCode == 200) {
-            registered = true;
-            Log.i(TAG, "Registration successful");
+        SIPCall call = activeCalls.get(response.getCallId());
+        if (call == null || statusCode < 200) {
+            return;
+        }
+        if (statusCode < 300) {
+            call.dialog.refreshTarget(response);
+        } else if (statusCode == 481 || statusCode == 408) {
+            // The dialog is gone at the far end (RFC 3261 section 12.2.1.2)
+            Log.w(TAG, "[SIP] ⚠ Session refresh got " + statusCode + ", call " + call.callId + " has ended");
+            call.state = SIPCall.CallState.TERMINATED;
+            activeCalls.remove(call.callId);
             if (eventListener != null) {
-                eventListener.onRegistered();
-            }
-        } else if (statusCode == 401 || statusCode == 407) {
-            // Authentication required
-            String authHeader = response.getHeader("www-authenticate");
-            if (authHeader == null) {
-                authHeader = response.getHeader("proxy-authenticate");
-            }
-
-            if (authHeader != null) {
-                parseAuthChallenge(authHeader);
-                try {
-                    sendRegister(60);
-                } catch (Exception e) {
-                    Log.e(TAG, "Re-registration with auth failed", e);
-                }
+                eventListener.onCallEnded(call);
             }
         } else {
-            Log.e(TAG, "Registration failed: " + statusCode);
-            if (eventListener != null) {
-                eventListener.onRegistrationFailed("Status " + statusCode);
-            }
+            Log.w(TAG, "[SIP] ⚠ Session refresh rejected: " + statusCode + " " + response.getReasonPhrase());
         }
     }
 
@@ -1014,6 +1185,11 @@ public class SIPClient {
             return;
         }
 
+        if (statusCode > 100 && statusCode < 200 && call.dialog == null && call.originalInvite != null) {
+            // A tagged 18x sets up an early dialog
+            call.dialog = SipDialog.asCaller(call.originalInvite, response);
+        }
+
         if (statusCode >= 100 && statusCode < 200) {
             // Provisional response (100, 180, 183)
             String icon = statusCode == 180 ? "🔔" : (statusCode == 183 ? "🎵" : "⏳");
@@ -1022,10 +1198,8 @@ public class SIPClient {
 
             if (statusCode == 183) {
                 // 183 Session Progress - may contain early media SDP
-                SDPParser sdp = new SDPParser();
-                if (response.getBody() != null && sdp.parse(response.getBody())) {
-                    call.remoteRtpAddress = sdp.getConnectionAddress();
-                    call.remoteRtpPort = sdp.getAudioPort();
+                SdpNegotiator.Result negotiated = processSdpAnswer(call, response);
+                if (negotiated != null) {
                     call.state = SIPCall.CallState.EARLY_MEDIA;
                     Log.i(TAG, "[SIP] 🎧 Early media RTP: " + call.remoteRtpAddress + ":" + call.remoteRtpPort);
 
@@ -1045,40 +1219,58 @@ public class SIPClient {
             }
 
         } else if (statusCode == 200) {
-            // Call answered - cancel INVITE timer
-            cancelTransactionTimer(callId);
+            if (call.state == SIPCall.CallState.CONFIRMED) {
+                // Retransmitted 200 OK: our ACK was lost, send it again
+                Log.d(TAG, "[SIP] Retransmitted 200 OK, re-sending ACK");
+                sendAck(call, response);
+                return;
+            }
 
             Log.i(TAG, "┌───────────────────────────────────────────────────────────┐");
             Log.i(TAG, "│ [SIP] ✅ 200 OK - CALL ANSWERED                            │");
             Log.i(TAG, "└───────────────────────────────────────────────────────────┘");
 
+            auth.onSuccess(response);
             call.state = SIPCall.CallState.ANSWERED;
             call.toTag = response.getToTag();
-            call.toHeader = response.getHeader("to");
-
-            // Parse SDP for RTP info
-            SDPParser sdp = new SDPParser();
-            if (response.getBody() != null && sdp.parse(response.getBody())) {
-                call.remoteRtpAddress = sdp.getConnectionAddress();
-                call.remoteRtpPort = sdp.getAudioPort();
-                Log.i(TAG, "[SIP] 🎧 RTP endpoint from 200 OK: " + call.remoteRtpAddress + ":" + call.remoteRtpPort);
+            if (call.dialog == null || !call.dialog.remoteTag.equals(call.toTag)) {
+                // No early dialog, or the 2xx came from another fork
+                call.dialog = SipDialog.asCaller(call.originalInvite, response);
+            } else {
+                call.dialog.confirm(response);
             }
 
-            // Send ACK
-            try {
-                Log.i(TAG, "[SIP] Sending ACK...");
-                SIPMessage ack = SIPMessage.createAck(response, localIp, localSipPort);
-                if (call.senderAddress != null) {
-                    sendToAddress(ack, call.senderAddress, call.senderPort);
-                } else {
-                    sendMessage(ack);
+            // Parse SDP answer for RTP info (may be absent if a 183 already carried it)
+            boolean mediaOk = true;
+            String body = response.getBody();
+            if (body != null && !body.trim().isEmpty()) {
+                mediaOk = processSdpAnswer(call, response) != null;
+                if (mediaOk) {
+                    Log.i(TAG, "[SIP] 🎧 RTP endpoint from 200 OK: " + call.remoteRtpAddress + ":" + call.remoteRtpPort +
+                               " (PT " + call.payloadType + ")");
                 }
+            }
+
+            // Send ACK
+            Log.i(TAG, "[SIP] Sending ACK...");
+            if (sendAck(call, response)) {
                 call.state = SIPCall.CallState.CONFIRMED;
                 Log.i(TAG, "[SIP] ✓ Call state: CONFIRMED - ready for audio");
-            } catch (Exception e) {
-                Log.e(TAG, "[SIP] ❌ Error sending ACK: " + e.getMessage(), e);
             }
 
+            if (!mediaOk) {
+                // The dialog exists now, so it has to be ended with BYE (RFC 3264 section 6)
+                Log.e(TAG, "[SIP] ❌ SDP answer unusable, ending call");
+                hangup(call);
+                if (eventListener != null) {
+                    eventListener.onCallFailed(call, 488, "Not Acceptable Here");
+                    eventListener.onCallEnded(call);
+                }
+                return;
+            }
+
+            startCallerSessionTimer(call, response);
+
             if (eventListener != null) {
                 Log.i(TAG, "╔════════════════════════════════════════════════════════════╗");
                 Log.i(TAG, "║ SIP 200 OK RECEIVED - CALLING onCallAnswered()             ║");
@@ -1090,8 +1282,13 @@ public class SIPClient {
             }
 
         } else if (statusCode >= 400) {
-            // Error response - cancel INVITE timer
-            cancelTransactionTimer(callId);
+            // Error response (the INVITE transaction has already ACKed it)
+            if ((statusCode == 401 || statusCode == 407) && retryInviteWithAuth(call, response)) {
+                return;
+            }
+            if (statusCode == 422 && retryInviteWithMinSE(call, response)) {
+                return;
+            }
 
             Log.e(TAG, "┌───────────────────────────────────────────────────────────┐");
             Log.e(TAG, "│ [SIP] ❌ CALL FAILED: " + String.format("%-36s", statusCode + " " + response.getReasonPhrase()) + " │");
@@ -1100,19 +1297,6 @@ public class SIPClient {
             call.state = SIPCall.CallState.TERMINATED;
             activeCalls.remove(callId);
 
-            // Send ACK for error responses (required by RFC 3261)
-            try {
-                SIPMessage ack = SIPMessage.createAck(response, localIp, localSipPort);
-                if (call.senderAddress != null) {
-                    sendToAddress(ack, call.senderAddress, call.senderPort);
-                } else {
-                    sendMessage(ack);
-                }
-                Log.d(TAG, "[SIP] Sent ACK for error response");
-            } catch (Exception e) {
-                Log.e(TAG, "[SIP] ❌ Error sending ACK for error response: " + e.getMessage(), e);
-            }
-
             if (eventListener != null) {
                 eventListener.onCallFailed(call, statusCode, response.getReasonPhrase());
                 eventListener.onCallEnded(call);
@@ -1121,255 +1305,535 @@ public class SIPClient {
     }
 
     /**
-     * Parse WWW-Authenticate header
+     * ACK a 2xx to our INVITE. This ACK is not part of the INVITE
+     * transaction; a retransmitted 2xx gets a fresh one.
+     *
+     * @return true if sent
      */
-    private void parseAuthChallenge(String authHeader) {
-        // Digest realm="asterisk",nonce="abc123"
-        if (authHeader.startsWith("Digest ")) {
-            authHeader = authHeader.substring(7);
-        }
-
-        String[] parts = authHeader.split(",");
-        for (String part : parts) {
-            part = part.trim();
-            if (part.startsWith("realm=")) {
-                lastRealm = part.substring(7, part.length() - 1);
-            } else if (part.startsWith("nonce=")) {
-                lastNonce = part.substring(7, part.length() - 1);
+    private boolean sendAck(SIPCall call, SIPMessage response) {
+        try {
+            if (call.dialog == null) {
+                Log.e(TAG, "[SIP] ❌ 2xx without To tag, cannot ACK");
+                return false;
             }
+            // Same CSeq number as the INVITE, routed like any in-dialog request
+            SIPMessage ack = SIPMessage.createInDialog("ACK", call.dialog, response.getCSeqNumber(),
+                                                       localIp, localSipPort);
+            sendInDialog(call, ack);
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "[SIP] ❌ Error sending ACK: " + e.getMessage(), e);
+            return false;
         }
-
-        Log.d(TAG, "Auth challenge: realm=" + lastRealm + ", nonce=" + lastNonce);
     }
 
     /**
-     * Create Digest authentication header
+     * Resend a challenged INVITE with credentials, in a new transaction
+     * with the next CSeq (RFC 3261 section 22.2)
+     *
+     * @return true if resent
      */
-    private String createDigestAuth(String method, String uri) {
-        String ha1 = md5(username + ":" + lastRealm + ":" + password);
-        String ha2 = md5(method + ":" + uri);
-        String response = md5(ha1 + ":" + lastNonce + ":" + ha2);
-
-        return String.format(
-            "Digest username=\"%s\",realm=\"%s\",nonce=\"%s\",uri=\"%s\",response=\"%s\",algorithm=MD5",
-            username, lastRealm, lastNonce, uri, response);
+    private boolean retryInviteWithAuth(SIPCall call, SIPMessage response) {
+        if (call.originalInvite == null || !auth.onChallenge(response, call.authRetried)) {
+            return false;
+        }
+        call.authRetried = true;
+        call.dialog = null;
+        SIPMessage invite = SIPMessage.createAuthRetry(call.originalInvite, call.cseq++);
+        auth.authorize(invite);
+        call.originalInvite = invite;  // CANCEL must match the INVITE now pending
+        try {
+            sendRequest(invite, call.transport, call.senderAddress, call.senderPort);
+            Log.i(TAG, "[SIP] 🔑 INVITE resent with credentials (" + response.getStatusCode() + ")");
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "[SIP] ❌ Failed to resend INVITE with credentials: " + e.getMessage());
+            return false;
+        }
     }
 
     /**
-     * MD5 hash
+     * Resend an INVITE refused with 422 Session Interval Too Small, asking
+     * for the Min-SE it named (RFC 4028 section 7.4)
+     *
+     * @return true if resent
      */
-    private String md5(String input) {
+    private boolean retryInviteWithMinSE(SIPCall call, SIPMessage response) {
+        int minSE = sessionInterval(response.getHeader("min-se"));
+        if (call.originalInvite == null || call.intervalRetried || minSE <= 0) {
+            return false;
+        }
+        minSE = Math.max(minSE, MIN_SESSION_EXPIRES);
+        call.intervalRetried = true;
+        call.dialog = null;
+        SIPMessage invite = SIPMessage.createAuthRetry(call.originalInvite, call.cseq++);
+        invite.setHeader("session-expires", String.valueOf(minSE));
+        invite.setHeader("min-se", String.valueOf(minSE));
+        auth.authorize(invite);
+        call.originalInvite = invite;  // CANCEL must match the INVITE now pending
         try {
-            java.security.MessageDigest md = java.security.MessageDigest.getInstance("MD5");
-            byte[] digest = md.digest(input.getBytes());
-            StringBuilder sb = new StringBuilder();
-            for (byte b : digest) {
-                sb.append(String.format("%02x", b));
+            sendRequest(invite, call.transport, call.senderAddress, call.senderPort);
+            Log.i(TAG, "[SIP] ⏱ INVITE resent with Session-Expires " + minSE + " (422)");
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "[SIP] ❌ Failed to resend INVITE after 422: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Our SDP for a 200 OK: the answer to the remote offer, or our own offer
+     * if the INVITE had none
+     */
+    private SessionDescription createLocalSdp(SIPCall call, int rtpPort) {
+        if (call.remoteSdp != null) {
+            SdpNegotiator.Result negotiated = sdpNegotiator.negotiateOffer(call.remoteSdp);
+            if (negotiated != null) {
+                call.localSdp = sdpNegotiator.createAnswer(call.remoteSdp, negotiated, rtpPort);
+                return call.localSdp;
             }
-            return sb.toString();
-        } catch (Exception e) {
-            throw new RuntimeException("MD5 not available", e);
         }
+        call.localSdp = sdpNegotiator.createOffer(rtpPort);
+        call.awaitingSdpAnswer = true;
+        return call.localSdp;
     }
 
     /**
-     * Get Contact URI from message
+     * Apply the SDP answer in a 183 or 200 to our offer
+     *
+     * @return the negotiation, or null if there was no usable answer
      */
-    private String getContactUri(SIPMessage msg) {
-        String contact = msg.getHeader("contact");
-        if (contact != null && contact.contains("<") && contact.contains(">")) {
-            return contact.substring(contact.indexOf('<') + 1, contact.indexOf('>'));
+    private SdpNegotiator.Result processSdpAnswer(SIPCall call, SIPMessage response) {
+        if (response.getBody() == null || call.localSdp == null) {
+            return null;
         }
-        return "sip:" + pbxHost + ":" + pbxPort;
+        SessionDescription answer = SessionDescription.parse(response.getBody());
+        if (answer == null) {
+            return null;
+        }
+        SdpNegotiator.Result negotiated = sdpNegotiator.processAnswer(call.localSdp, answer);
+        if (negotiated != null) {
+            call.remoteSdp = answer;
+            applyNegotiation(call, negotiated);
+        }
+        return negotiated;
     }
 
     /**
-     * Create SDP
+     * @return true if the remote address, codec or direction changed
      */
-    private String createSDP(int rtpPort) {
-        String sessionId = String.valueOf(System.currentTimeMillis());
-        StringBuilder sdp = new StringBuilder();
-        sdp.append("v=0\r\n");
-        sdp.append("o=GSMGateway ").append(sessionId).append(" ").append(sessionId)
-           .append(" IN IP4 ").append(localIp).append("\r\n");
-        sdp.append("s=GSM Gateway Call\r\n");
-        sdp.append("c=IN IP4 ").append(localIp).append("\r\n");
-        sdp.append("t=0 0\r\n");
-        sdp.append("m=audio ").append(rtpPort).append(" RTP/AVP 0 8 101\r\n");
-        sdp.append("a=rtpmap:0 PCMU/8000\r\n");
-        sdp.append("a=rtpmap:8 PCMA/8000\r\n");
-        sdp.append("a=rtpmap:101 telephone-event/8000\r\n");
-        sdp.append("a=fmtp:101 0-16\r\n");
-        sdp.append("a=ptime:20\r\n");
-        sdp.append("a=sendrecv\r\n");
-        return sdp.toString();
+    private boolean applyNegotiation(SIPCall call, SdpNegotiator.Result negotiated) {
+        boolean changed = !negotiated.remoteAddress.equals(call.remoteRtpAddress)
+            || negotiated.remotePort != call.remoteRtpPort
+            || negotiated.payloadType != call.payloadType
+            || negotiated.dtmfPayloadType != call.dtmfPayloadType
+            || negotiated.direction != call.direction;
+        call.remoteRtpAddress = negotiated.remoteAddress;
+        call.remoteRtpPort = negotiated.remotePort;
+        call.payloadType = negotiated.payloadType;
+        call.dtmfPayloadType = negotiated.dtmfPayloadType;
+        call.ptime = negotiated.ptime;
+        call.direction = negotiated.direction;
+        return changed;
     }
 
     /**
-     * Send SIP message to PBX
+     * Our Contact for responses in a call's dialog
      */
-    private void sendMessage(SIPMessage msg) throws Exception {
-        String data = msg.toBytes();
-        sendRaw(data);
+    private String localContact(SIPCall call) {
+        String contact = "<sip:" + username + "@" + localIp + ":" + localSipPort + ">";
+        if (call.transport != null) {
+            contact = SIPMessage.contactWithTransport(contact, call.transport.getName());
+        }
+        return contact;
     }
 
+    // ==================== SESSION TIMER ====================
+
     /**
-     * Send SIP message to specific call's sender (for responses in trunk mode)
+     * Session timer (RFC 4028) for our 2xx to an INVITE or UPDATE: echo
+     * Session-Expires with the refresher and time the session. A request
+     * without Session-Expires turns the timer off.
      */
-    private void sendToCall(SIPCall call, SIPMessage msg) throws Exception {
-        String data = msg.toBytes();
-        InetAddress destAddr;
-        int destPort;
+    private void applySessionTimer(ResponseWriter ok, SIPCall call, SIPMessage request) {
+        String value = request.getHeader("session-expires");
+        int interval = sessionInterval(value);
+        if (interval < MIN_SESSION_EXPIRES) {
+            call.sessionExpires = 0;
+            if (call.sessionTimer != null) {
+                call.sessionTimer.cancel();
+            }
+            return;
+        }
 
-        if (call.senderAddress != null) {
-            // Send back to whoever sent us the INVITE (trunk mode)
-            destAddr = call.senderAddress;
-            destPort = call.senderPort;
-        } else if (pbxHost != null) {
-            destAddr = InetAddress.getByName(pbxHost);
-            destPort = pbxPort;
-        } else {
-            Log.e(TAG, "Cannot send message - no destination address");
+        boolean timerSupported = hasOptionTag(request.getHeader("supported"), "timer");
+        String refresher = headerParam(value, "refresher");
+        if (refresher == null) {
+            // Our choice; a UAC without timer support cannot refresh
+            refresher = timerSupported ? "uac" : "uas";
+        }
+        ok.header(ResponseWriter.SESSION_EXPIRES, interval + ";refresher=" + refresher);
+        if (timerSupported) {
+            ok.header(ResponseWriter.REQUIRE, "timer");
+        }
+
+        armSessionTimer(call, interval, "uas".equalsIgnoreCase(refresher));
+    }
+
+    /**
+     * Session timer (RFC 4028) from the 2xx to our INVITE: the UAS picked
+     * the interval and the refresher. A 2xx without Session-Expires means
+     * no timer (section 7.2).
+     */
+    private void startCallerSessionTimer(SIPCall call, SIPMessage response) {
+        String value = response.getHeader("session-expires");
+        int interval = sessionInterval(value);
+        if (interval <= 0) {
+            call.sessionExpires = 0;
+            if (call.sessionTimer != null) {
+                call.sessionTimer.cancel();
+            }
+            return;
+        }
+        String refresher = headerParam(value, "refresher");
+        armSessionTimer(call, interval, refresher == null || "uac".equalsIgnoreCase(refresher));
+        Log.i(TAG, "[SIP] ⏱ Session timer " + interval + "s, " +
+                   (call.sessionRefresher ? "we refresh" : "remote refreshes"));
+    }
+
+    private void armSessionTimer(SIPCall call, int interval, boolean weRefresh) {
+        call.sessionExpires = interval;
+        call.sessionRefresher = weRefresh;
+        if (call.sessionTimer == null) {
+            call.sessionTimer = new TimingWheel.Timeout(() -> onSessionTimer(call));
+        }
+        // Refresh at half the interval; otherwise give up a little before it ends (section 10)
+        long intervalMs = interval * 1000L;
+        timers.schedule(call.sessionTimer, weRefresh ?
+            intervalMs / 2 : intervalMs - Math.min(32000, intervalMs / 3));
+    }
+
+    /**
+     * Runs on the wheel: send our refresh, or end a session whose refresh
+     * never came; both on the executor, since the wheel must not block
+     */
+    private void onSessionTimer(SIPCall call) {
+        if (call.state == SIPCall.CallState.TERMINATED || call.sessionExpires == 0
+            || activeCalls.get(call.callId) != call) {
             return;
         }
+        if (!call.sessionRefresher) {
+            executor.execute(() -> {
+                if (call.state == SIPCall.CallState.TERMINATED || activeCalls.get(call.callId) != call) {
+                    return;
+                }
+                Log.w(TAG, "[SIP] ⚠ Session " + call.callId + " expired without a refresh, ending call");
+                hangup(call);
+                if (eventListener != null) {
+                    eventListener.onCallEnded(call);
+                }
+            });
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                // UPDATE without a body refreshes without touching the media (RFC 4028 section 7.4)
+                SipDialog dialog = call.dialog;
+                SIPMessage update = SIPMessage.createInDialog("UPDATE", dialog, dialog.nextLocalCSeq(),
+                                                              localIp, localSipPort);
+                update.setHeader("contact", localContact(call));
+                update.setHeader("session-expires", call.sessionExpires + ";refresher=uac");
+                update.setHeader("supported", "timer");
+                auth.authorize(update);
+                sendInDialog(call, update);
+                Log.i(TAG, "[SIP] 🔄 Session refresh sent for " + call.callId);
+            } catch (Exception e) {
+                Log.e(TAG, "[SIP] ❌ Failed to send session refresh: " + e.getMessage(), e);
+            }
+        });
+        timers.schedule(call.sessionTimer, call.sessionExpires * 1000L / 2);
+    }
 
-        byte[] bytes = data.getBytes();
-        DatagramPacket packet = new DatagramPacket(bytes, bytes.length, destAddr, destPort);
-        sipSocket.send(packet);
-        Log.d(TAG, "Sent SIP message to " + destAddr.getHostAddress() + ":" + destPort);
+    /**
+     * Delta-seconds of a Session-Expires value, 0 if absent or malformed
+     */
+    private static int sessionInterval(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int semi = value.indexOf(';');
+        try {
+            return Integer.parseInt((semi < 0 ? value : value.substring(0, semi)).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
     /**
-     * Send raw string to PBX (uses configured host or learned address in trunk mode)
+     * Value of a ;name=value header parameter, or null
      */
-    private void sendRaw(String data) throws Exception {
-        InetAddress destAddr;
-        int destPort;
+    private static String headerParam(String value, String name) {
+        for (String part : value.split(";")) {
+            int eq = part.indexOf('=');
+            if (eq > 0 && part.substring(0, eq).trim().equalsIgnoreCase(name)) {
+                return part.substring(eq + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    private static boolean hasOptionTag(String header, String tag) {
+        if (header != null) {
+            for (String option : header.split(",")) {
+                if (option.trim().equalsIgnoreCase(tag)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
+    /**
+     * Send SIP message to PBX outside any transaction (uses configured host
+     * or learned address in trunk mode)
+     */
+    private void sendMessage(SIPMessage msg) throws Exception {
         if (pbxHost != null && !pbxHost.isEmpty()) {
             // Normal mode - use configured PBX address
-            destAddr = InetAddress.getByName(pbxHost);
-            destPort = pbxPort;
+            SipResolver.Target target = resolver.resolveFirst(pbxHost, pbxPort, transportName);
+            sendToAddress(msg, transport(target.transport), target.address, target.port);
         } else if (learnedPbxAddress != null) {
             // Trunk mode - use learned PBX address
-            destAddr = learnedPbxAddress;
-            destPort = learnedPbxPort;
+            sendToAddress(msg, learnedPbxTransport, learnedPbxAddress, learnedPbxPort);
         } else {
             Log.e(TAG, "[SIP] ❌ Cannot send - no PBX address (neither configured nor learned)");
-            return;
         }
-
-        // Log outgoing message
-        logSipMessage("TX", data, destAddr.getHostAddress(), destPort);
-
-        byte[] bytes = data.getBytes();
-        DatagramPacket packet = new DatagramPacket(bytes, bytes.length, destAddr, destPort);
-        sipSocket.send(packet);
     }
 
-    // ==================== TRANSACTION TIMERS ====================
+    // ==================== TRANSACTIONS ====================
 
     /**
-     * Start INVITE transaction timer (RFC 3261 Timer B)
+     * Timeouts reported by the transaction layer, on the timing wheel; call
+     * teardown reaches the listener through the executor, since the wheel
+     * must not block
      */
-    private void startInviteTimer(SIPCall call) {
-        ScheduledFuture<?> timer = scheduler.schedule(() -> {
-            if (call.state == SIPCall.CallState.RINGING ||
-                call.state == SIPCall.CallState.EARLY_MEDIA ||
-                call.state == SIPCall.CallState.IDLE) {
-                Log.w(TAG, "INVITE timeout for call " + call.callId);
-                call.state = SIPCall.CallState.TERMINATED;
-                activeCalls.remove(call.callId);
-
-                if (eventListener != null) {
-                    eventListener.onCallFailed(call, 408, "Request Timeout");
-                    eventListener.onCallEnded(call);
+    private final TransactionLayer.User transactionUser = new TransactionLayer.User() {
+        @Override
+        public void onTransactionTimeout(ClientTransaction tx) {
+            String callId = tx.getRequest().getCallId();
+            if (!trunkMode) {
+                // Next request goes to another SRV node, if there is one
+                resolver.markFailed(tx.remoteAddress, tx.remotePort);
+            }
+            switch (tx.getMethod()) {
+                case "INVITE": {
+                    SIPCall call = activeCalls.get(callId);
+                    executor.execute(() -> inviteTimedOut(call));
+                    break;
                 }
+                case "REGISTER":
+                    Log.e(TAG, "REGISTER timed out");
+                    if (registration != null) {
+                        executor.execute(() -> registration.onTimeout(tx));
+                    }
+                    break;
+                default:
+                    Log.w(TAG, tx.getMethod() + " timed out for " + callId);
+                    break;
             }
-        }, INVITE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-        transactionTimers.put(call.callId, timer);
-    }
+        }
+
+        @Override
+        public void onAckTimeout(ServerTransaction tx) {
+            executor.execute(() -> ackTimedOut(tx));
+        }
+    };
 
     /**
-     * Cancel a transaction timer
+     * Timer H: the 2xx to an INVITE or re-INVITE was never ACKed
      */
-    private void cancelTransactionTimer(String callId) {
-        ScheduledFuture<?> timer = transactionTimers.remove(callId);
-        if (timer != null) {
-            timer.cancel(false);
-            Log.d(TAG, "Cancelled transaction timer for " + callId);
+    private void ackTimedOut(ServerTransaction tx) {
+        SIPCall call = activeCalls.get(tx.getCallId());
+        if (call != null && tx == call.reInviteTransaction) {
+            // Same rule for the 2xx to a re-INVITE
+            call.reInviteTransaction = null;
+            call.awaitingSdpAnswer = false;
+            Log.w(TAG, "[SIP] ⚠ No ACK for re-INVITE 200 OK, ending call " + call.callId);
+            hangup(call);
+            if (eventListener != null) {
+                eventListener.onCallEnded(call);
+            }
+        } else if (call != null && call.state == SIPCall.CallState.ANSWERED) {
+            // Never confirmed: end the dialog with BYE (RFC 3261 section 13.3.1.4)
+            Log.w(TAG, "[SIP] ⚠ No ACK for 200 OK, ending call " + call.callId);
+            hangup(call);
+            if (eventListener != null) {
+                eventListener.onCallEnded(call);
+            }
         }
     }
 
-    // ==================== RETRANSMISSION ====================
+    /**
+     * Sends our REGISTERs and passes registration state on to the listener
+     */
+    private final RegistrationManager.Client registrationClient = new RegistrationManager.Client() {
+        @Override
+        public ClientTransaction sendRegister(int expires, int cseq) throws Exception {
+            return SIPClient.this.sendRegister(expires, cseq);
+        }
+
+        @Override
+        public void onStateChanged(RegistrationManager.State state, String reason) {
+            Log.i(TAG, "[SIP] Registration " + state + (reason != null ? " (" + reason + ")" : ""));
+            if (eventListener == null) {
+                return;
+            }
+            eventListener.onRegistrationStateChanged(state, reason);
+            if (state == RegistrationManager.State.REGISTERED) {
+                eventListener.onRegistered();
+            } else if (state == RegistrationManager.State.RETRYING) {
+                eventListener.onRegistrationFailed(reason);
+            }
+        }
+    };
 
     /**
-     * Send SIP message with retransmission (RFC 3261 Timer A)
+     * Timer B: no response at all to our INVITE
      */
-    private void sendWithRetransmit(SIPMessage msg, SIPCall call,
-                                    InetAddress destAddr, int destPort, int maxRetries) {
-        final AtomicInteger retryCount = new AtomicInteger(0);
-
-        Runnable retransmitTask = new Runnable() {
-            @Override
-            public void run() {
-                // Stop if call is terminated or answered
-                if (call.state == SIPCall.CallState.TERMINATED ||
-                    call.state == SIPCall.CallState.ANSWERED ||
-                    call.state == SIPCall.CallState.CONFIRMED) {
-                    return;
-                }
+    private void inviteTimedOut(SIPCall call) {
+        if (call == null) {
+            return;
+        }
+        if (call.state == SIPCall.CallState.RINGING ||
+            call.state == SIPCall.CallState.EARLY_MEDIA ||
+            call.state == SIPCall.CallState.IDLE) {
+            Log.w(TAG, "INVITE timeout for call " + call.callId);
+            call.state = SIPCall.CallState.TERMINATED;
+            activeCalls.remove(call.callId);
 
-                if (retryCount.get() >= maxRetries) {
-                    Log.w(TAG, "Max retransmits reached for " + call.callId);
-                    return;
-                }
+            if (eventListener != null) {
+                eventListener.onCallFailed(call, 408, "Request Timeout");
+                eventListener.onCallEnded(call);
+            }
+        }
+    }
 
-                try {
-                    String data = msg.toBytes();
-                    byte[] bytes = data.getBytes();
-                    DatagramPacket packet = new DatagramPacket(bytes, bytes.length, destAddr, destPort);
-                    sipSocket.send(packet);
-
-                    int retry = retryCount.incrementAndGet();
-                    if (retry > 1) {
-                        Log.d(TAG, "Retransmit #" + retry + " for " + msg.getMethod() + " " + call.callId);
-                    }
+    /**
+     * Send a request to the PBX (configured or learned) in a new client transaction
+     *
+     * @return the transaction, or null if there is no PBX address yet
+     */
+    private ClientTransaction sendRequest(SIPMessage request) throws IOException {
+        if (pbxHost != null && !pbxHost.isEmpty()) {
+            SipResolver.Target target = resolver.resolveFirst(pbxHost, pbxPort, transportName);
+            return sendRequest(request, transport(target.transport), target.address, target.port);
+        }
+        if (learnedPbxAddress != null) {
+            return sendRequest(request, learnedPbxTransport, learnedPbxAddress, learnedPbxPort);
+        }
+        Log.e(TAG, "[SIP] ❌ Cannot send - no PBX address (neither configured nor learned)");
+        return null;
+    }
 
-                    // Schedule next retransmit
-                    if (retry < maxRetries) {
-                        long delay = RETRANSMIT_INTERVALS[Math.min(retry - 1, RETRANSMIT_INTERVALS.length - 1)];
-                        scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
-                    }
-                } catch (Exception e) {
-                    Log.e(TAG, "Retransmit failed: " + e.getMessage());
+    /**
+     * Send a request in a new client transaction, which retransmits it
+     * and times it out
+     */
+    private ClientTransaction sendRequest(SIPMessage request, SipTransport transport,
+                                          InetAddress destAddr, int destPort) throws IOException {
+        if (transport == null) {
+            transport = udp;
+        }
+        request.setTransport(transport.getName());
+        logSipMessage("TX", request.toBytes(), destAddr.getHostAddress(), destPort);
+        return transactions.sendRequest(request, transport, destAddr, destPort);
+    }
+
+    /**
+     * Send a request built from the call's dialog to the dialog's next hop:
+     * the first route, else the remote target (RFC 3261 section 12.2.1.1).
+     * ACK for a 2xx goes outside any transaction. If the next hop does not
+     * resolve, the request goes where the dialog was set up from.
+     */
+    private void sendInDialog(SIPCall call, SIPMessage request) throws Exception {
+        boolean ack = "ACK".equals(request.getMethod());
+        String uri = call.dialog != null ? call.dialog.nextHopUri() : null;
+        if (uri != null) {
+            try {
+                SipResolver.Target hop = resolver.resolveUri(uri,
+                    call.transport != null ? call.transport.getName() : transportName);
+                if (ack) {
+                    sendToAddress(request, transport(hop.transport), hop.address, hop.port);
+                } else {
+                    sendRequest(request, transport(hop.transport), hop.address, hop.port);
                 }
+                return;
+            } catch (IOException e) {
+                Log.w(TAG, "[SIP] ⚠ Cannot resolve next hop " + uri + ": " + e.getMessage());
             }
-        };
+        }
+        if (call.senderAddress != null) {
+            if (ack) {
+                sendToAddress(request, call.transport, call.senderAddress, call.senderPort);
+            } else {
+                sendRequest(request, call.transport, call.senderAddress, call.senderPort);
+            }
+        } else if (ack) {
+            sendMessage(request);
+        } else {
+            sendRequest(request);
+        }
+    }
 
-        // Start first transmission
-        executor.execute(retransmitTask);
+    /**
+     * Respond to an incoming call's INVITE through its server transaction
+     */
+    private void respond(SIPCall call, int status, String reason) throws IOException {
+        if (call.inviteTransaction == null || call.originalInvite == null) {
+            Log.e(TAG, "No INVITE transaction for " + call.callId + ", " + status + " not sent");
+            return;
+        }
+        // Everything but 100 carries our tag (RFC 3261 section 8.2.6.2)
+        call.inviteTransaction.sendResponse(call.originalInvite, status, reason, status > 100 ? call.toTag : null);
+    }
+
+    /**
+     * Our transport for a resolved target's transport name
+     */
+    private SipTransport transport(String name) {
+        if (SipTransport.TLS.equals(name) && tls != null) {
+            return tls;
+        }
+        return SipTransport.TCP.equals(name) ? tcp : udp;
     }
 
     // ==================== SEND HELPERS ====================
 
     /**
-     * Send SIP message to specific address
+     * Send SIP message to specific address, outside any transaction
      */
-    private void sendToAddress(SIPMessage msg, InetAddress destAddr, int destPort) throws Exception {
+    private void sendToAddress(SIPMessage msg, SipTransport transport,
+                               InetAddress destAddr, int destPort) throws Exception {
+        if (transport == null) {
+            transport = udp;
+        }
+        if (msg.isRequest()) {
+            msg.setTransport(transport.getName());
+        }
         String data = msg.toBytes();
 
         // Log outgoing message
         logSipMessage("TX", data, destAddr.getHostAddress(), destPort);
 
-        byte[] bytes = data.getBytes();
-        DatagramPacket packet = new DatagramPacket(bytes, bytes.length, destAddr, destPort);
-        sipSocket.send(packet);
+        transport.send(data.getBytes(), destAddr, destPort);
     }
 
     // ==================== GETTERS ====================
 
-    public boolean isRegistered() { return registered; }
+    public boolean isRegistered() { return trunkMode || registration.isRegistered(); }
+    public RegistrationManager.State getRegistrationState() {
+        return registration != null ? registration.getState() : RegistrationManager.State.REGISTERED;
+    }
     public SIPCall getCall(String callId) { return activeCalls.get(callId); }
     public Map<String, SIPCall> getActiveCalls() { return activeCalls; }
 }
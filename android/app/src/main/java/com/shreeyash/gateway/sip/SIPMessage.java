@@ -1,6 +1,11 @@
 package com.shreeyash.gateway.sip;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
 
@@ -28,65 +33,53 @@ public class SIPMessage {
     // Is this a request or response?
     private boolean isRequest;
 
+    // Parsed form (see SipParser): spans into the received bytes, decoded on demand.
+    // Headers set or decoded so far live in the map above and take precedence.
+    private byte[] raw;
+    private int rawOffset;
+    private int rawLength;
+    private boolean rawOwned;  // raw is our own copy, not a receive buffer
+    private int uriStart = -1, uriEnd;
+    private int versionStart = -1, versionEnd;
+    private int reasonStart = -1, reasonEnd;
+    int headerCount;
+    private int[] headerIds;
+    private int[] nameStarts, nameEnds;
+    private int[] valueStarts;
+    int[] valueEnds;
+    boolean[] folded;
+    int bodyStart = -1, bodyLength;
+
     public SIPMessage() {}
 
+    SIPMessage(byte[] raw, int offset, int length, int headerCapacity) {
+        this.raw = raw;
+        this.rawOffset = offset;
+        this.rawLength = length;
+        headerIds = new int[headerCapacity];
+        nameStarts = new int[headerCapacity];
+        nameEnds = new int[headerCapacity];
+        valueStarts = new int[headerCapacity];
+        valueEnds = new int[headerCapacity];
+        folded = new boolean[headerCapacity];
+    }
+
+    /**
+     * Parse a SIP message straight from a receive buffer. The message refers
+     * to the buffer until {@link #retain()} is called.
+     *
+     * @return the message, or null for keepalives and malformed input
+     */
+    public static SIPMessage parse(byte[] data, int offset, int length) {
+        return SipParser.parse(data, offset, length);
+    }
+
     /**
      * Parse a SIP message from raw text
      */
     public static SIPMessage parse(String rawMessage) {
-        SIPMessage msg = new SIPMessage();
-
-        String[] parts = rawMessage.split("\r\n\r\n", 2);
-        String headerSection = parts[0];
-        if (parts.length > 1) {
-            msg.body = parts[1];
-        }
-
-        String[] lines = headerSection.split("\r\n");
-        if (lines.length == 0) return null;
-
-        // Parse first line (request-line or status-line)
-        String firstLine = lines[0].trim();
-
-        // Skip empty or keep-alive messages (CRLF only, or just whitespace)
-        if (firstLine.isEmpty() || firstLine.equals("\r\n") || firstLine.equals("\n")) {
-            return null;
-        }
-
-        if (firstLine.startsWith("SIP/")) {
-            // Response: SIP/2.0 200 OK
-            msg.isRequest = false;
-            String[] statusParts = firstLine.split(" ", 3);
-            if (statusParts.length < 2) return null; // Malformed response
-            msg.sipVersion = statusParts[0];
-            try {
-                msg.statusCode = Integer.parseInt(statusParts[1]);
-            } catch (NumberFormatException e) {
-                return null; // Malformed status code
-            }
-            msg.reasonPhrase = statusParts.length > 2 ? statusParts[2] : "";
-        } else {
-            // Request: INVITE sip:user@host SIP/2.0
-            msg.isRequest = true;
-            String[] requestParts = firstLine.split(" ");
-            if (requestParts.length < 2) return null; // Malformed request
-            msg.method = requestParts[0];
-            msg.requestUri = requestParts[1];
-            msg.sipVersion = requestParts.length > 2 ? requestParts[2] : "SIP/2.0";
-        }
-
-        // Parse headers
-        for (int i = 1; i < lines.length; i++) {
-            String line = lines[i];
-            int colonIndex = line.indexOf(':');
-            if (colonIndex > 0) {
-                String key = line.substring(0, colonIndex).trim();
-                String value = line.substring(colonIndex + 1).trim();
-                msg.headers.put(key.toLowerCase(), value);
-            }
-        }
-
-        return msg;
+        byte[] data = rawMessage.getBytes(StandardCharsets.UTF_8);
+        return SipParser.parse(data, 0, data.length);
     }
 
     /**
@@ -114,7 +107,7 @@ public class SIPMessage {
         msg.headers.put("max-forwards", "70");
         msg.headers.put("user-agent", "GSM-Gateway/1.0");
         msg.headers.put("expires", String.valueOf(expires));
-        msg.headers.put("allow", "INVITE,ACK,BYE,CANCEL,OPTIONS,INFO");
+        msg.headers.put("allow", "INVITE,ACK,BYE,CANCEL,OPTIONS,UPDATE,INFO");
         msg.headers.put("content-length", "0");
 
         return msg;
@@ -125,9 +118,10 @@ public class SIPMessage {
      * @param callerId The actual caller ID (phone number) to display
      * @param sipUser The SIP account username for Contact header
      * @param toUser The destination to dial (extension)
+     * @param offer Our SDP offer
      */
     public static SIPMessage createInvite(String callerId, String sipUser, String toUser, String domain,
-                                          String localIp, int localPort, int rtpPort,
+                                          String localIp, int localPort, SessionDescription offer,
                                           String callId, int cseq) {
         SIPMessage msg = new SIPMessage();
         msg.isRequest = true;
@@ -151,11 +145,11 @@ public class SIPMessage {
         msg.headers.put("contact", contact);
         msg.headers.put("max-forwards", "70");
         msg.headers.put("user-agent", "GSM-Gateway/1.0");
-        msg.headers.put("allow", "INVITE,ACK,BYE,CANCEL,OPTIONS,INFO");
+        msg.headers.put("allow", "INVITE,ACK,BYE,CANCEL,OPTIONS,UPDATE,INFO");
         msg.headers.put("supported", "replaces,timer");
 
         // Create SDP body
-        String sdp = createSDP(localIp, rtpPort);
+        String sdp = offer.toString();
         msg.body = sdp;
         msg.headers.put("content-type", "application/sdp");
         msg.headers.put("content-length", String.valueOf(sdp.length()));
@@ -188,7 +182,7 @@ public class SIPMessage {
      * Build a 200 OK response with SDP
      */
     public static SIPMessage createOkWithSDP(SIPMessage request, String localIp,
-                                              int localPort, int rtpPort, String toTag) {
+                                              int localPort, SessionDescription sdpBody, String toTag) {
         SIPMessage msg = new SIPMessage();
         msg.isRequest = false;
         msg.statusCode = 200;
@@ -211,10 +205,10 @@ public class SIPMessage {
         String contact = String.format("<sip:%s:%d>", localIp, localPort);
         msg.headers.put("contact", contact);
         msg.headers.put("user-agent", "GSM-Gateway/1.0");
-        msg.headers.put("allow", "INVITE,ACK,BYE,CANCEL,OPTIONS,INFO");
+        msg.headers.put("allow", "INVITE,ACK,BYE,CANCEL,OPTIONS,UPDATE,INFO");
 
         // Create SDP body
-        String sdp = createSDP(localIp, rtpPort);
+        String sdp = sdpBody.toString();
         msg.body = sdp;
         msg.headers.put("content-type", "application/sdp");
         msg.headers.put("content-length", String.valueOf(sdp.length()));
@@ -223,39 +217,30 @@ public class SIPMessage {
     }
 
     /**
-     * Build a SIP ACK request
+     * Build a request inside a dialog (RFC 3261 section 12.2.1.1): Request-URI
+     * and Route from the dialog's target and route set, From and To from its
+     * URIs and tags. An ACK for a 2xx passes the INVITE's CSeq number.
      */
-    public static SIPMessage createAck(SIPMessage inviteResponse, String localIp, int localPort) {
+    static SIPMessage createInDialog(String method, SipDialog dialog, long cseq,
+                                     String localIp, int localPort) {
         SIPMessage msg = new SIPMessage();
         msg.isRequest = true;
-        msg.method = "ACK";
+        msg.method = method;
 
-        // Get request URI from Contact header of response, or use To header
-        String contact = inviteResponse.getHeader("contact");
-        if (contact != null && contact.contains("<") && contact.contains(">")) {
-            msg.requestUri = contact.substring(contact.indexOf('<') + 1, contact.indexOf('>'));
-        } else {
-            String to = inviteResponse.getHeader("to");
-            if (to.contains("<")) {
-                msg.requestUri = to.substring(to.indexOf('<') + 1, to.indexOf('>'));
-            } else {
-                msg.requestUri = to;
-            }
-        }
+        String[] uriAndRoute = dialog.requestUriAndRoute();
+        msg.requestUri = uriAndRoute[0];
 
         String via = String.format("SIP/2.0/UDP %s:%d;branch=%s;rport",
                                    localIp, localPort, generateBranch());
 
         msg.headers.put("via", via);
-        msg.headers.put("from", inviteResponse.getHeader("from"));
-        msg.headers.put("to", inviteResponse.getHeader("to"));
-        msg.headers.put("call-id", inviteResponse.getHeader("call-id"));
-
-        // ACK CSeq must have same number as INVITE
-        String cseq = inviteResponse.getHeader("cseq");
-        String cseqNum = cseq.split(" ")[0];
-        msg.headers.put("cseq", cseqNum + " ACK");
-
+        if (uriAndRoute[1] != null) {
+            msg.headers.put("route", uriAndRoute[1]);
+        }
+        msg.headers.put("from", dialog.localUri);
+        msg.headers.put("to", dialog.remoteUri);
+        msg.headers.put("call-id", dialog.callId);
+        msg.headers.put("cseq", cseq + " " + method);
         msg.headers.put("max-forwards", "70");
         msg.headers.put("content-length", "0");
 
@@ -263,29 +248,55 @@ public class SIPMessage {
     }
 
     /**
-     * Build a SIP BYE request
+     * Build the ACK for a non-2xx final response to our INVITE. Unlike the
+     * ACK for a 2xx it belongs to the INVITE transaction: same Request-URI,
+     * top Via and CSeq number as the INVITE (RFC 3261 section 17.1.1.3).
      */
-    public static SIPMessage createBye(String callId, String from, String to,
-                                       String remoteUri, String localIp, int localPort, int cseq) {
+    public static SIPMessage createNon2xxAck(SIPMessage invite, SIPMessage response) {
         SIPMessage msg = new SIPMessage();
         msg.isRequest = true;
-        msg.method = "BYE";
-        msg.requestUri = remoteUri;
-
-        String via = String.format("SIP/2.0/UDP %s:%d;branch=%s;rport",
-                                   localIp, localPort, generateBranch());
-
-        msg.headers.put("via", via);
-        msg.headers.put("from", from);
-        msg.headers.put("to", to);
-        msg.headers.put("call-id", callId);
-        msg.headers.put("cseq", cseq + " BYE");
+        msg.method = "ACK";
+        msg.requestUri = invite.getRequestUri();
+
+        msg.headers.put("via", invite.getTopVia());
+        msg.headers.put("from", invite.getHeader("from"));
+        msg.headers.put("to", response.getHeader("to"));
+        msg.headers.put("call-id", invite.getHeader("call-id"));
+        msg.headers.put("cseq", invite.getCSeqNumber() + " ACK");
+        String route = invite.getHeader("route");
+        if (route != null) {
+            msg.headers.put("route", route);
+        }
         msg.headers.put("max-forwards", "70");
         msg.headers.put("content-length", "0");
 
         return msg;
     }
 
+    /**
+     * Copy of a request we sent, for resending with credentials after a
+     * 401/407: same dialog headers and body, new branch and CSeq number
+     * (RFC 3261 section 22.2)
+     */
+    public static SIPMessage createAuthRetry(SIPMessage request, int cseq) {
+        SIPMessage msg = new SIPMessage();
+        msg.isRequest = true;
+        msg.method = request.getMethod();
+        msg.requestUri = request.getRequestUri();
+        msg.headers.putAll(request.getHeaders());
+        msg.body = request.getBody();
+
+        String via = msg.headers.get("via");
+        if (via != null) {
+            msg.headers.put("via", via.replaceFirst("branch=[^;,\\s]*", "branch=" + generateBranch()));
+        }
+        msg.headers.put("cseq", cseq + " " + msg.method);
+        msg.headers.remove("authorization");
+        msg.headers.remove("proxy-authorization");
+
+        return msg;
+    }
+
     /**
      * Build a SIP CANCEL request
      * CANCEL is used to terminate a pending INVITE that hasn't been answered yet.
@@ -302,10 +313,13 @@ public class SIPMessage {
         msg.method = "CANCEL";
         msg.requestUri = originalInvite.getRequestUri();
 
-        // CANCEL must use the same branch as the original INVITE's Via
-        // But for simplicity, we'll use a new branch (which is also valid per RFC 3261)
-        String via = String.format("SIP/2.0/UDP %s:%d;branch=%s;rport",
-                                   localIp, localPort, generateBranch());
+        // CANCEL must carry the INVITE's top Via (same branch) so the far end
+        // matches it to the INVITE transaction (RFC 3261 section 9.1)
+        String via = originalInvite.getTopVia();
+        if (via == null) {
+            via = String.format("SIP/2.0/UDP %s:%d;branch=%s;rport",
+                                localIp, localPort, generateBranch());
+        }
 
         msg.headers.put("via", via);
         msg.headers.put("from", originalInvite.getHeader("from"));
@@ -348,28 +362,6 @@ public class SIPMessage {
         return msg;
     }
 
-    /**
-     * Create SDP for audio (G.711 u-law)
-     */
-    private static String createSDP(String ip, int port) {
-        String sessionId = String.valueOf(System.currentTimeMillis());
-        StringBuilder sdp = new StringBuilder();
-        sdp.append("v=0\r\n");
-        sdp.append("o=GSMGateway ").append(sessionId).append(" ").append(sessionId)
-           .append(" IN IP4 ").append(ip).append("\r\n");
-        sdp.append("s=GSM Gateway Call\r\n");
-        sdp.append("c=IN IP4 ").append(ip).append("\r\n");
-        sdp.append("t=0 0\r\n");
-        sdp.append("m=audio ").append(port).append(" RTP/AVP 0 8 101\r\n");
-        sdp.append("a=rtpmap:0 PCMU/8000\r\n");
-        sdp.append("a=rtpmap:8 PCMA/8000\r\n");
-        sdp.append("a=rtpmap:101 telephone-event/8000\r\n");
-        sdp.append("a=fmtp:101 0-16\r\n");
-        sdp.append("a=ptime:20\r\n");
-        sdp.append("a=sendrecv\r\n");
-        return sdp.toString();
-    }
-
     /**
      * Generate a random tag for From/To headers
      */
@@ -395,14 +387,12 @@ public class SIPMessage {
      * Serialize message to string
      */
     public String toBytes() {
+        materializeHeaders();
+        getBody();
         StringBuilder sb = new StringBuilder();
 
         // First line
-        if (isRequest) {
-            sb.append(method).append(" ").append(requestUri).append(" ").append(sipVersion).append("\r\n");
-        } else {
-            sb.append(sipVersion).append(" ").append(statusCode).append(" ").append(reasonPhrase).append("\r\n");
-        }
+        sb.append(getStartLine()).append("\r\n");
 
         // Headers (in preferred order)
         String[] orderedHeaders = {"via", "from", "to", "call-id", "cseq", "contact",
@@ -460,27 +450,378 @@ public class SIPMessage {
         return result.toString();
     }
 
+    // ==================== Parsed Form ====================
+
+    void setRequestLine(String method, int uriStart, int uriEnd, int versionStart, int versionEnd) {
+        this.isRequest = true;
+        this.method = method;
+        this.uriStart = uriStart;
+        this.uriEnd = uriEnd;
+        this.versionStart = versionStart;
+        this.versionEnd = versionEnd;
+    }
+
+    void setResponseLine(int statusCode, int versionStart, int versionEnd, int reasonStart, int reasonEnd) {
+        this.isRequest = false;
+        this.statusCode = statusCode;
+        this.versionStart = versionStart;
+        this.versionEnd = versionEnd;
+        this.reasonStart = reasonStart;
+        this.reasonEnd = reasonEnd;
+    }
+
+    void addHeaderSpan(int id, int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if (headerCount == headerIds.length) {
+            int capacity = headerCount * 2;
+            headerIds = Arrays.copyOf(headerIds, capacity);
+            nameStarts = Arrays.copyOf(nameStarts, capacity);
+            nameEnds = Arrays.copyOf(nameEnds, capacity);
+            valueStarts = Arrays.copyOf(valueStarts, capacity);
+            valueEnds = Arrays.copyOf(valueEnds, capacity);
+            folded = Arrays.copyOf(folded, capacity);
+        }
+        headerIds[headerCount] = id;
+        nameStarts[headerCount] = nameStart;
+        nameEnds[headerCount] = nameEnd;
+        valueStarts[headerCount] = valueStart;
+        valueEnds[headerCount] = valueEnd;
+        headerCount++;
+    }
+
+    /**
+     * Copy the message out of the receive buffer so it can be kept after
+     * the next datagram arrives (e.g. an INVITE stored for CANCEL)
+     */
+    public SIPMessage retain() {
+        // A message filling the whole buffer still aliases it (a stream
+        // framer delivers its own buffer at offset 0), so always copy once
+        if (raw == null || rawOwned) {
+            return this;
+        }
+        raw = Arrays.copyOfRange(raw, rawOffset, rawOffset + rawLength);
+        rawOwned = true;
+        int shift = rawOffset;
+        rawOffset = 0;
+        if (uriStart >= 0) { uriStart -= shift; uriEnd -= shift; }
+        if (versionStart >= 0) { versionStart -= shift; versionEnd -= shift; }
+        if (reasonStart >= 0) { reasonStart -= shift; reasonEnd -= shift; }
+        for (int i = 0; i < headerCount; i++) {
+            nameStarts[i] -= shift;
+            nameEnds[i] -= shift;
+            valueStarts[i] -= shift;
+            valueEnds[i] -= shift;
+        }
+        if (bodyStart >= 0) {
+            bodyStart -= shift;
+        }
+        return this;
+    }
+
+    /**
+     * Write the headers a response echoes (Via, From, To, Call-ID, CSeq,
+     * and Record-Route when it sets up a dialog). Parsed requests are copied
+     * straight from the received bytes, every Via line in order.
+     */
+    void copyResponseHeaders(ResponseWriter out, String toTag, boolean recordRoute) {
+        if (raw == null) {
+            copyHeader(out, ResponseWriter.VIA, "via", toTag);
+            if (recordRoute) {
+                copyHeader(out, ResponseWriter.RECORD_ROUTE, "record-route", toTag);
+            }
+            copyHeader(out, ResponseWriter.FROM, "from", toTag);
+            copyHeader(out, ResponseWriter.TO, "to", toTag);
+            copyHeader(out, ResponseWriter.CALL_ID, "call-id", toTag);
+            copyHeader(out, ResponseWriter.CSEQ, "cseq", toTag);
+            return;
+        }
+        for (int i = 0; i < headerCount; i++) {
+            byte[] name;
+            switch (headerIds[i]) {
+                case SipHeaders.VIA: name = ResponseWriter.VIA; break;
+                case SipHeaders.FROM: name = ResponseWriter.FROM; break;
+                case SipHeaders.TO: name = ResponseWriter.TO; break;
+                case SipHeaders.CALL_ID: name = ResponseWriter.CALL_ID; break;
+                case SipHeaders.CSEQ: name = ResponseWriter.CSEQ; break;
+                case SipHeaders.RECORD_ROUTE:
+                    if (!recordRoute) {
+                        continue;
+                    }
+                    name = ResponseWriter.RECORD_ROUTE;
+                    break;
+                default: continue;
+            }
+            out.copyHeader(name, raw, valueStarts[i], valueEnds[i], toTag);
+        }
+    }
+
+    private void copyHeader(ResponseWriter out, byte[] name, String key, String toTag) {
+        String value = headers.get(key);
+        if (value != null) {
+            out.copyHeader(name, value, toTag);
+        }
+    }
+
+    private String decode(int start, int end) {
+        return new String(raw, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private boolean nameMatches(int index, int id, String lowerName) {
+        if (id != SipHeaders.OTHER) {
+            return headerIds[index] == id;
+        }
+        int len = nameEnds[index] - nameStarts[index];
+        if (len != lowerName.length()) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (Character.toLowerCase((char) raw[nameStarts[index] + i]) != lowerName.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Header value with folding (CRLF + whitespace) collapsed to one space */
+    private String decodeValue(int index) {
+        if (!folded[index]) {
+            return decode(valueStarts[index], valueEnds[index]);
+        }
+        StringBuilder sb = new StringBuilder(valueEnds[index] - valueStarts[index]);
+        boolean inFold = false;
+        String text = decode(valueStarts[index], valueEnds[index]);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\r' || c == '\n') {
+                inFold = true;
+            } else if (inFold && (c == ' ' || c == '\t')) {
+                // swallow the rest of the fold
+            } else {
+                if (inFold) {
+                    sb.append(' ');
+                    inFold = false;
+                }
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Look a header up in the parsed spans. List headers (Via, Route...)
+     * spread over several lines are joined with commas; others return the
+     * first occurrence.
+     */
+    private String parsedHeader(String lowerName) {
+        int id = SipHeaders.lookup(lowerName);
+        String value = null;
+        StringBuilder joined = null;
+        for (int i = 0; i < headerCount; i++) {
+            if (!nameMatches(i, id, lowerName)) {
+                continue;
+            }
+            String v = decodeValue(i);
+            if (value == null) {
+                value = v;
+                if (!SipHeaders.isList(id)) {
+                    break;
+                }
+            } else {
+                if (joined == null) {
+                    joined = new StringBuilder(value);
+                }
+                joined.append(", ").append(v);
+            }
+        }
+        return joined != null ? joined.toString() : value;
+    }
+
+    /**
+     * Canonical (full-form, lower-case) name of a parsed header
+     */
+    private String parsedName(int index) {
+        int id = headerIds[index];
+        return id != SipHeaders.OTHER ? SipHeaders.NAMES[id]
+            : decode(nameStarts[index], nameEnds[index]).toLowerCase(Locale.US);
+    }
+
+    /**
+     * Decode every parsed header into the map (for serialization)
+     */
+    private void materializeHeaders() {
+        if (raw == null) {
+            return;
+        }
+        for (int i = 0; i < headerCount; i++) {
+            String name = parsedName(i);
+            if (!headers.containsKey(name)) {
+                headers.put(name, parsedHeader(name));
+            }
+        }
+    }
+
     // Getters
     public boolean isRequest() { return isRequest; }
     public String getMethod() { return method; }
-    public String getRequestUri() { return requestUri; }
+
+    public String getRequestUri() {
+        if (requestUri == null && raw != null && uriStart >= 0) {
+            requestUri = decode(uriStart, uriEnd);
+        }
+        return requestUri;
+    }
+
     public int getStatusCode() { return statusCode; }
-    public String getReasonPhrase() { return reasonPhrase; }
-    public String getHeader(String name) { return headers.get(name.toLowerCase()); }
-    public String getBody() { return body; }
-    public Map<String, String> getHeaders() { return headers; }
+
+    public String getReasonPhrase() {
+        if (reasonPhrase == null && raw != null && reasonStart >= 0) {
+            reasonPhrase = decode(reasonStart, reasonEnd);
+        }
+        return reasonPhrase;
+    }
+
+    public String getHeader(String name) {
+        String key = name.toLowerCase(Locale.US);
+        String value = headers.get(key);
+        if (value == null && raw != null) {
+            int id = SipHeaders.lookup(key);
+            if (id != SipHeaders.OTHER) {
+                key = SipHeaders.NAMES[id];  // compact form asked for
+                value = headers.get(key);
+            }
+            if (value == null) {
+                value = parsedHeader(key);
+                if (value != null) {
+                    headers.put(key, value);
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Every value of a header, one entry per header line, in message order
+     */
+    public List<String> getHeaderValues(String name) {
+        List<String> values = new ArrayList<>();
+        String key = name.toLowerCase(Locale.US);
+        if (raw == null || headers.containsKey(key)) {
+            String value = headers.get(key);
+            if (value != null) {
+                values.add(value);
+            }
+            return values;
+        }
+        int id = SipHeaders.lookup(key);
+        for (int i = 0; i < headerCount; i++) {
+            if (nameMatches(i, id, key)) {
+                values.add(decodeValue(i));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Method named in the CSeq header, read straight from the parsed bytes
+     * when possible (used to dispatch responses)
+     */
+    public String getCSeqMethod() {
+        if (raw != null && !headers.containsKey("cseq")) {
+            for (int i = 0; i < headerCount; i++) {
+                if (headerIds[i] == SipHeaders.CSEQ) {
+                    int sp = SipParser.indexOf(raw, valueStarts[i], valueEnds[i], (byte) ' ');
+                    if (sp < 0) {
+                        return null;
+                    }
+                    int start = sp + 1;
+                    while (start < valueEnds[i] && raw[start] == ' ') {
+                        start++;
+                    }
+                    return SipParser.method(raw, start, valueEnds[i]);
+                }
+            }
+            return null;
+        }
+        String cseq = getHeader("cseq");
+        if (cseq == null) {
+            return null;
+        }
+        String[] parts = cseq.trim().split("\\s+");
+        return parts.length > 1 ? parts[1] : null;
+    }
+
+    public String getBody() {
+        if (body == null && raw != null && bodyLength > 0) {
+            body = decode(bodyStart, bodyStart + bodyLength);
+        }
+        return body;
+    }
+
+    public Map<String, String> getHeaders() {
+        materializeHeaders();
+        return headers;
+    }
+
+    /**
+     * First line, for logging
+     */
+    public String getStartLine() {
+        if (isRequest) {
+            return method + " " + getRequestUri() + " " + getSipVersion();
+        }
+        return getSipVersion() + " " + statusCode + " " + getReasonPhrase();
+    }
+
+    private String getSipVersion() {
+        if (raw != null && versionStart >= 0 && versionEnd > versionStart) {
+            sipVersion = decode(versionStart, versionEnd);
+            versionStart = -1;
+        }
+        return sipVersion;
+    }
 
     // Setters
     public void setHeader(String name, String value) { headers.put(name.toLowerCase(), value); }
     public void setBody(String body) { this.body = body; }
 
+    /**
+     * Stamp the transport a request we built goes out on into its top Via
+     * and Contact; the factories build for UDP
+     */
+    void setTransport(String transport) {
+        if (SipTransport.UDP.equals(transport)) {
+            return;
+        }
+        String via = getHeader("via");
+        String udp = "SIP/2.0/UDP ";
+        if (via != null && via.startsWith(udp)) {
+            setHeader("via", "SIP/2.0/" + transport + " " + via.substring(udp.length()));
+        }
+        String contact = getHeader("contact");
+        if (contact != null) {
+            setHeader("contact", contactWithTransport(contact, transport));
+        }
+    }
+
+    /**
+     * Add ;transport= to the URI of a Contact value, so the far end opens
+     * (or reuses) a stream to reach us
+     */
+    static String contactWithTransport(String contact, String transport) {
+        if (SipTransport.UDP.equals(transport) || contact.contains("transport=")) {
+            return contact;
+        }
+        int end = contact.indexOf('>');
+        String param = ";transport=" + transport.toLowerCase(Locale.US);
+        return end > 0 ? contact.substring(0, end) + param + contact.substring(end) : contact + param;
+    }
+
     /**
      * Extract the number being called from request URI
      */
     public String getDialedNumber() {
-        if (requestUri == null) return null;
+        String uri = getRequestUri();
+        if (uri == null) return null;
         // sip:1234567890@domain -> 1234567890
-        String uri = requestUri;
         if (uri.startsWith("sip:")) {
             uri = uri.substring(4);
         }
@@ -511,6 +852,47 @@ public class SIPMessage {
         return from.substring(tagIndex + 4, endIndex);
     }
 
+    /**
+     * First Via value (the hop that sent the request, or us for a response)
+     */
+    public String getTopVia() {
+        List<String> vias = getHeaderValues("via");
+        if (vias.isEmpty()) {
+            return null;
+        }
+        String via = vias.get(0);
+        int comma = via.indexOf(',');
+        return comma < 0 ? via.trim() : via.substring(0, comma).trim();
+    }
+
+    /**
+     * Branch parameter of the top Via, which identifies the transaction
+     */
+    public String getBranch() {
+        String via = getTopVia();
+        if (via == null) return null;
+        int index = via.indexOf(";branch=");
+        if (index < 0) return null;
+        int start = index + 8;
+        int end = via.indexOf(';', start);
+        return via.substring(start, end < 0 ? via.length() : end).trim();
+    }
+
+    /**
+     * Sequence number from the CSeq header, or -1
+     */
+    public long getCSeqNumber() {
+        String cseq = getHeader("cseq");
+        if (cseq == null) return -1;
+        cseq = cseq.trim();
+        int space = cseq.indexOf(' ');
+        try {
+            return Long.parseLong(space < 0 ? cseq : cseq.substring(0, space));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     /**
      * Get To tag
      */
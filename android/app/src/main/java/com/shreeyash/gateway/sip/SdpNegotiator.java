@@ -0,0 +1,324 @@
+package com.shreeyash.gateway.sip;
+
+import android.util.Log;
+
+import com.shreeyash.gateway.codec.G711Codec;
+import com.shreeyash.gateway.rtp.TelephoneEvent;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * SDP offer/answer (RFC 3264) for the gateway's single audio stream.
+ *
+ * We can bridge PCMU or PCMA plus RFC 4733 telephone-event over RTP/AVP or
+ * RTP/AVPF (no SRTP). When answering, the first offered G.711 codec wins
+ * (offerer's preference) and is the only codec in the answer,
+ * telephone-event keeps the offerer's payload type, the direction is
+ * mirrored and every other m= line is rejected with port 0.
+ *
+ * Our a=ptime is the trunk's configured packetization. We send at the
+ * remote's a=ptime when it names one we support (it is how the remote wants
+ * to receive), otherwise at ours, capped by the remote's a=maxptime.
+ */
+public class SdpNegotiator {
+    private static final String TAG = "SdpNegotiator";
+
+    private static final String TELEPHONE_EVENT = "telephone-event";
+    private static final String TELEPHONE_EVENT_FMTP = "0-16";
+    private static final String RTP_AVP = "RTP/AVP";
+    private static final String RTP_AVPF = "RTP/AVPF";
+    private static final String HOLD_ADDRESS = "0.0.0.0";
+
+    /**
+     * Outcome of a negotiation, from our side of the stream
+     */
+    public static class Result {
+        public final String remoteAddress;
+        public final int remotePort;
+        public final int payloadType;       // G.711 payload type to send and expect
+        public final int dtmfPayloadType;   // telephone-event payload type, -1 if not negotiated
+        public final int ptime;             // packetization we send at, ms
+        public final MediaDescription.Direction direction;  // what we may do on the stream
+        final int mediaIndex;
+
+        Result(String remoteAddress, int remotePort, int payloadType, int dtmfPayloadType,
+               int ptime, MediaDescription.Direction direction, int mediaIndex) {
+            this.remoteAddress = remoteAddress;
+            this.remotePort = remotePort;
+            this.payloadType = payloadType;
+            this.dtmfPayloadType = dtmfPayloadType;
+            this.ptime = ptime;
+            this.direction = direction;
+            this.mediaIndex = mediaIndex;
+        }
+
+        @Override
+        public String toString() {
+            return remoteAddress + ":" + remotePort + " PT " + payloadType +
+                   (dtmfPayloadType >= 0 ? " dtmf " + dtmfPayloadType : " no-dtmf") +
+                   " ptime " + ptime + " " + direction.getAttribute();
+        }
+    }
+
+    private final String localIp;
+    private final int ptime;
+
+    public SdpNegotiator(String localIp) {
+        this(localIp, G711Codec.DEFAULT_PTIME);
+    }
+
+    public SdpNegotiator(String localIp, int ptime) {
+        if (!G711Codec.isSupportedPtime(ptime)) {
+            Log.w(TAG, "Unsupported ptime " + ptime + "ms, using " + G711Codec.DEFAULT_PTIME + "ms");
+            ptime = G711Codec.DEFAULT_PTIME;
+        }
+        this.localIp = localIp;
+        this.ptime = ptime;
+    }
+
+    public int getPtime() {
+        return ptime;
+    }
+
+    /**
+     * Build our offer: PCMU, PCMA and telephone-event, sendrecv
+     */
+    public SessionDescription createOffer(int rtpPort) {
+        return createOffer(rtpPort, null);
+    }
+
+    /**
+     * Build a new offer in an existing session, e.g. for a re-INVITE that
+     * came without SDP: same o= session id as {@code previous}, next version
+     */
+    public SessionDescription createOffer(int rtpPort, SessionDescription previous) {
+        SessionDescription offer = newSession(previous);
+        MediaDescription audio = new MediaDescription("audio", rtpPort, RTP_AVP);
+        for (G711Codec codec : G711Codec.values()) {
+            audio.addFormat(codec.getPayloadType(), rtpmap(codec), null);
+        }
+        audio.addFormat(TelephoneEvent.PAYLOAD_TYPE, TELEPHONE_EVENT + "/8000", TELEPHONE_EVENT_FMTP);
+        audio.setPtime(ptime);
+        audio.setDirection(MediaDescription.Direction.SENDRECV);
+        offer.addMedia(audio);
+        return sameAs(previous, offer) ? previous : offer;
+    }
+
+    /**
+     * Pick the stream, codec and DTMF payload type we will use from a remote offer
+     *
+     * @return the result, or null if no audio stream is acceptable (reply 488)
+     */
+    public Result negotiateOffer(SessionDescription offer) {
+        List<MediaDescription> media = offer.getMedia();
+        for (int i = 0; i < media.size(); i++) {
+            MediaDescription m = media.get(i);
+            if (!isUsableAudio(m)) {
+                continue;
+            }
+            int payloadType = firstSupportedCodec(m, m);
+            if (payloadType < 0) {
+                Log.w(TAG, "No G.711 codec in offered " + m);
+                continue;
+            }
+            String address = offer.getConnectionAddress(m);
+            if (address == null) {
+                Log.w(TAG, "No connection address for offered " + m);
+                continue;
+            }
+            MediaDescription.Direction direction = offer.getDirection(m).reverse();
+            if (HOLD_ADDRESS.equals(address) && direction.canSend()) {
+                // RFC 2543 hold: c=0.0.0.0 means send nothing, whatever the direction says
+                direction = direction == MediaDescription.Direction.SENDRECV ?
+                    MediaDescription.Direction.RECVONLY : MediaDescription.Direction.INACTIVE;
+            }
+            Result result = new Result(address, m.getPort(), payloadType,
+                m.findPayloadType(TELEPHONE_EVENT, G711Codec.SAMPLE_RATE),
+                sendPtime(m), direction, i);
+            Log.i(TAG, "Offer negotiated: " + result);
+            return result;
+        }
+        Log.w(TAG, "No acceptable audio stream in offer");
+        return null;
+    }
+
+    /**
+     * Build the answer for an offer negotiated with {@link #negotiateOffer}
+     */
+    public SessionDescription createAnswer(SessionDescription offer, Result result, int rtpPort) {
+        return createAnswer(offer, result, rtpPort, null);
+    }
+
+    /**
+     * Answer a re-INVITE or UPDATE offer in an existing session: same o=
+     * session id as our {@code previous} SDP, next version
+     */
+    public SessionDescription createAnswer(SessionDescription offer, Result result, int rtpPort,
+                                           SessionDescription previous) {
+        SessionDescription answer = newSession(previous);
+        List<MediaDescription> media = offer.getMedia();
+        for (int i = 0; i < media.size(); i++) {
+            MediaDescription offered = media.get(i);
+            if (i != result.mediaIndex) {
+                answer.addMedia(rejected(offered));
+                continue;
+            }
+            MediaDescription audio = new MediaDescription("audio", rtpPort, offered.getProtocol());
+            audio.addFormat(result.payloadType, rtpmap(G711Codec.forPayloadType(result.payloadType)), null);
+            if (result.dtmfPayloadType >= 0) {
+                // Echo the offered event range; we only act on 0-15 anyway
+                String events = offered.getFmtp(result.dtmfPayloadType);
+                audio.addFormat(result.dtmfPayloadType, TELEPHONE_EVENT + "/8000",
+                    events != null ? events : TELEPHONE_EVENT_FMTP);
+            }
+            audio.setPtime(ptime);
+            audio.setDirection(result.direction);
+            answer.addMedia(audio);
+        }
+        return sameAs(previous, answer) ? previous : answer;
+    }
+
+    /**
+     * Check a remote answer against the offer we sent
+     *
+     * @return the result, or null if the answer accepts nothing we can use
+     */
+    public Result processAnswer(SessionDescription offer, SessionDescription answer) {
+        List<MediaDescription> offered = offer.getMedia();
+        List<MediaDescription> answered = answer.getMedia();
+        if (offered.size() != answered.size()) {
+            Log.w(TAG, "Answer has " + answered.size() + " m= lines, offer had " + offered.size());
+        }
+
+        for (int i = 0; i < Math.min(offered.size(), answered.size()); i++) {
+            MediaDescription o = offered.get(i);
+            MediaDescription a = answered.get(i);
+            if (!o.isAudio() || o.isRejected() || a.isRejected()) {
+                continue;
+            }
+            int payloadType = firstSupportedCodec(a, o);
+            if (payloadType < 0) {
+                Log.w(TAG, "Answer selected no codec we offered: " + a);
+                continue;
+            }
+            String address = answer.getConnectionAddress(a);
+            if (address == null) {
+                Log.w(TAG, "No connection address for answered " + a);
+                continue;
+            }
+
+            // The answerer may omit rtpmap for a payload type it took from our offer
+            int dtmfPayloadType = -1;
+            for (int pt : a.getPayloadTypes()) {
+                String rtpmap = a.getRtpmap(pt) != null ? a.getRtpmap(pt) : o.getRtpmap(pt);
+                if (rtpmap != null && rtpmap.toLowerCase(Locale.US).startsWith(TELEPHONE_EVENT + "/8000")) {
+                    dtmfPayloadType = pt;
+                    break;
+                }
+            }
+
+            Result result = new Result(address, a.getPort(), payloadType,
+                dtmfPayloadType, sendPtime(a), answer.getDirection(a).reverse(), i);
+            Log.i(TAG, "Answer accepted: " + result);
+            return result;
+        }
+        Log.w(TAG, "No usable audio stream in answer");
+        return null;
+    }
+
+    // ==================== Helpers ====================
+
+    /**
+     * A fresh session, or the next version of {@code previous} (RFC 3264 section 8)
+     */
+    private SessionDescription newSession(SessionDescription previous) {
+        SessionDescription sdp = previous != null ?
+            new SessionDescription(previous.getSessionId(), previous.getSessionVersion() + 1, localIp) :
+            new SessionDescription(String.valueOf(System.currentTimeMillis()), 1, localIp);
+        sdp.setConnectionAddress(localIp);
+        return sdp;
+    }
+
+    /**
+     * True if {@code next} says what {@code previous} said, in which case
+     * the session version must not change (RFC 3264 section 8)
+     */
+    private static boolean sameAs(SessionDescription previous, SessionDescription next) {
+        if (previous == null) {
+            return false;
+        }
+        String a = previous.toString();
+        String b = next.toString();
+        return a.substring(a.indexOf("\ns=")).equals(b.substring(b.indexOf("\ns=")));
+    }
+
+    /**
+     * Packetization to send at towards a remote stream description
+     */
+    private int sendPtime(MediaDescription remote) {
+        if (G711Codec.isSupportedPtime(remote.getPtime())) {
+            return remote.getPtime();
+        }
+        if (remote.getPtime() > 0) {
+            Log.w(TAG, "Remote ptime " + remote.getPtime() + "ms not supported, sending " + ptime + "ms");
+        }
+        if (remote.getMaxptime() > 0 && ptime > remote.getMaxptime()) {
+            return G711Codec.supportedPtimeAtMost(remote.getMaxptime());
+        }
+        return ptime;
+    }
+
+    /**
+     * Audio over plain RTP; SAVP/SAVPF would need SRTP keys we cannot
+     * provide, so those streams are rejected with port 0
+     */
+    private static boolean isUsableAudio(MediaDescription m) {
+        if (!m.isAudio() || m.isRejected()) {
+            return false;
+        }
+        String protocol = m.getProtocol().toUpperCase(Locale.US);
+        if (!protocol.equals(RTP_AVP) && !protocol.equals(RTP_AVPF)) {
+            Log.w(TAG, "Unsupported media protocol " + m.getProtocol());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * First payload type in m's order that is G.711 under the mapping of
+     * {@code mapping}, which is the offer when checking an answer
+     *
+     * @return payload type, or -1 if none
+     */
+    private static int firstSupportedCodec(MediaDescription m, MediaDescription mapping) {
+        List<Integer> allowed = mapping.getPayloadTypes();
+        for (int pt : m.getPayloadTypes()) {
+            G711Codec codec = G711Codec.forPayloadType(pt);
+            if (codec == null || !allowed.contains(pt)) {
+                continue;
+            }
+            // Static payload types may be remapped; only trust them if the rtpmap agrees
+            String map = m.getRtpmap(pt) != null ? m.getRtpmap(pt) : mapping.getRtpmap(pt);
+            if (map == null || map.toUpperCase(Locale.US).startsWith(codec.getEncodingName() + "/8000")) {
+                return pt;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Port-0 copy of a stream we do not accept (RFC 3264 section 6)
+     */
+    private static MediaDescription rejected(MediaDescription offered) {
+        MediaDescription m = new MediaDescription(offered.getMedia(), 0, offered.getProtocol());
+        if (!offered.getFormats().isEmpty()) {
+            m.addFormat(offered.getFormats().get(0));
+        }
+        return m;
+    }
+
+    private static String rtpmap(G711Codec codec) {
+        return codec.getEncodingName() + "/" + G711Codec.SAMPLE_RATE;
+    }
+}
@@ -0,0 +1,170 @@
+package com.shreeyash.gateway.sip;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Server transaction: a request we received (RFC 3261 section 17.2).
+ *
+ * Retransmitted requests are absorbed here and answered with the last
+ * response, so the transaction user sees each request once.
+ *
+ * INVITE: a non-2xx final is retransmitted on Timer G until the ACK
+ * arrives or Timer H (64*T1) expires; after the ACK, Timer I absorbs ACK
+ * retransmissions. A 2xx moves to Accepted (RFC 6026): it is retransmitted
+ * on the same schedule until the user reports the dialog's ACK, and Timer L
+ * ends the transaction, telling the user if no ACK ever came.
+ *
+ * Non-INVITE: the final response is kept for Timer J (64*T1).
+ *
+ * Over a reliable transport a non-2xx final is not retransmitted and
+ * Timers I and J are zero. The 2xx is still retransmitted: it is end to
+ * end and may cross UDP hops beyond the first (section 13.3.1.4).
+ */
+final class ServerTransaction extends SipTransaction {
+    private static final String TAG = "ServerTransaction";
+
+    private final String callId;
+    private byte[] lastResponse;
+    private int lastStatus;
+    private boolean acknowledged;
+
+    ServerTransaction(TransactionLayer layer, String key, SIPMessage request, SipTransport transport,
+                      InetAddress remoteAddress, int remotePort) {
+        super(layer, key, request.getMethod(), transport, remoteAddress, remotePort);
+        this.callId = request.getCallId();
+        this.state = invite ? State.PROCEEDING : State.TRYING;
+    }
+
+    String getCallId() {
+        return callId;
+    }
+
+    /**
+     * Send a response built as a message
+     */
+    void sendResponse(SIPMessage response) throws IOException {
+        sendResponse(response.getStatusCode(), response.toBytes());
+    }
+
+    /**
+     * Send a header-only response written straight from the request's
+     * bytes (see ResponseWriter); the request must still be in its buffer
+     * or retained
+     */
+    void sendResponse(SIPMessage request, int status, String reason) throws IOException {
+        sendResponse(request, status, reason, null);
+    }
+
+    /**
+     * Same, adding our To tag (responses to an INVITE that sets up a dialog)
+     */
+    void sendResponse(SIPMessage request, int status, String reason, String toTag) throws IOException {
+        sendResponse(status, ResponseWriter.local().begin(request, status, reason, toTag).finish());
+    }
+
+    void sendResponse(int status, String response) throws IOException {
+        sendResponse(status, response.getBytes());
+    }
+
+    /**
+     * Send a response; only the last one is kept for retransmission
+     */
+    void sendResponse(int status, byte[] data) throws IOException {
+        synchronized (this) {
+            if (state != State.TRYING && state != State.PROCEEDING) {
+                Log.w(TAG, "Dropping " + status + " for " + method + ": transaction " + state);
+                return;
+            }
+            lastResponse = data;
+            lastStatus = status;
+            send(data);
+
+            if (status < 200) {
+                state = State.PROCEEDING;
+            } else if (!invite) {
+                state = State.COMPLETED;
+                scheduleWait(TIMEOUT);  // Timer J
+            } else {
+                state = status < 300 ? State.ACCEPTED : State.COMPLETED;
+                interval = T1;
+                if (state == State.ACCEPTED || !reliable) {
+                    schedule(retransmitTimer, interval);  // Timer G (or 2xx retransmission)
+                }
+                schedule(timeoutTimer, TIMEOUT);      // Timer H (or L)
+            }
+        }
+    }
+
+    /**
+     * The request arrived again: re-send our last response, if any
+     */
+    synchronized void receiveRetransmission() {
+        if (lastResponse != null && (state == State.PROCEEDING || state == State.COMPLETED)) {
+            Log.d(TAG, "Retransmitted " + method + ", re-sending " + lastStatus);
+            resend(lastResponse);
+        }
+        // Trying: the user is still working on it. Accepted: Timer G covers it.
+    }
+
+    /**
+     * ACK with this INVITE's branch, i.e. for our non-2xx final
+     *
+     * @return true if absorbed
+     */
+    synchronized boolean receiveAck() {
+        if (state == State.COMPLETED) {
+            state = State.CONFIRMED;
+            retransmitTimer.cancel();
+            timeoutTimer.cancel();
+            scheduleWait(T4);  // Timer I
+            return true;
+        }
+        return state == State.CONFIRMED;
+    }
+
+    /**
+     * The dialog's ACK for our 2xx arrived: stop retransmitting it. The
+     * transaction stays until Timer L to absorb INVITE retransmissions.
+     */
+    synchronized void acknowledge() {
+        if (state == State.ACCEPTED && !acknowledged) {
+            acknowledged = true;
+            retransmitTimer.cancel();
+        }
+    }
+
+    @Override
+    void onRetransmit() {
+        synchronized (this) {
+            if (state != State.COMPLETED && !(state == State.ACCEPTED && !acknowledged)) {
+                return;
+            }
+            resend(lastResponse);
+            interval = Math.min(interval * 2, T2);
+            schedule(retransmitTimer, interval);
+        }
+    }
+
+    @Override
+    void onTimeout() {
+        boolean accepted;
+        boolean unacknowledged;
+        synchronized (this) {
+            if (state != State.COMPLETED && state != State.ACCEPTED) {
+                return;
+            }
+            accepted = state == State.ACCEPTED;
+            unacknowledged = !acknowledged;
+            if (unacknowledged) {
+                Log.w(TAG, "Timer " + (accepted ? "L" : "H") + " fired: no ACK for " + lastStatus + " to " + key);
+            }
+            terminate();
+        }
+        if (accepted && unacknowledged) {
+            layer.ackTimedOut(this);
+        }
+    }
+}
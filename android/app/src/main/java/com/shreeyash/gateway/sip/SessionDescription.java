@@ -0,0 +1,230 @@
+package com.shreeyash.gateway.sip;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SDP (RFC 4566) session description: origin, session-level connection and
+ * direction, and every m= section in order.
+ *
+ * Media sections are kept in order even when we only use the first audio
+ * stream, because an answer must have exactly one m= line per offered one.
+ */
+public class SessionDescription {
+    private static final String TAG = "SessionDescription";
+
+    private String originUser = "GSMGateway";
+    private String sessionId;
+    private long sessionVersion;
+    private String originAddress;
+    private String sessionName = "GSM Gateway Call";
+    private String connectionAddress;              // session-level c=, may be null
+    private MediaDescription.Direction direction;  // session-level a=, may be null
+    private final List<String> attributes = new ArrayList<>();
+    private final List<MediaDescription> media = new ArrayList<>();
+
+    public SessionDescription(String sessionId, long sessionVersion, String originAddress) {
+        this.sessionId = sessionId;
+        this.sessionVersion = sessionVersion;
+        this.originAddress = originAddress;
+    }
+
+    /**
+     * Parse an SDP body
+     *
+     * @return the description, or null if it has no valid m= line
+     */
+    public static SessionDescription parse(String sdp) {
+        if (sdp == null || sdp.trim().isEmpty()) {
+            Log.e(TAG, "Empty SDP body");
+            return null;
+        }
+
+        SessionDescription session = new SessionDescription(null, 0, null);
+        MediaDescription current = null;
+
+        for (String line : sdp.split("\r?\n")) {
+            line = line.trim();
+            if (line.length() < 2 || line.charAt(1) != '=') {
+                continue;
+            }
+            char type = line.charAt(0);
+            String value = line.substring(2);
+
+            switch (type) {
+                case 'o':
+                    session.parseOrigin(value);
+                    break;
+                case 's':
+                    session.sessionName = value;
+                    break;
+                case 'c': {
+                    String address = parseConnection(value);
+                    if (current != null) {
+                        current.setConnectionAddress(address);
+                    } else {
+                        session.connectionAddress = address;
+                    }
+                    break;
+                }
+                case 'm':
+                    current = MediaDescription.parse(value);
+                    if (current == null) {
+                        Log.e(TAG, "Malformed media line: " + line);
+                        return null;
+                    }
+                    session.media.add(current);
+                    break;
+                case 'a': {
+                    int colon = value.indexOf(':');
+                    String name = colon < 0 ? value : value.substring(0, colon);
+                    String attrValue = colon < 0 ? null : value.substring(colon + 1);
+                    if (current != null) {
+                        current.parseAttribute(name, attrValue);
+                    } else {
+                        MediaDescription.Direction d = MediaDescription.Direction.fromAttribute(name);
+                        if (d != null) {
+                            session.direction = d;
+                        } else {
+                            session.attributes.add(value);
+                        }
+                    }
+                    break;
+                }
+                default:
+                    // v=, t=, b= and others: not needed for negotiation
+                    break;
+            }
+        }
+
+        if (session.media.isEmpty()) {
+            Log.e(TAG, "SDP has no media lines");
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * o=<username> <sess-id> <sess-version> IN IP4 <address>
+     */
+    private void parseOrigin(String value) {
+        String[] parts = value.trim().split("\\s+");
+        if (parts.length < 6) {
+            Log.w(TAG, "Malformed origin: " + value);
+            return;
+        }
+        originUser = parts[0];
+        sessionId = parts[1];
+        try {
+            sessionVersion = Long.parseLong(parts[2]);
+        } catch (NumberFormatException e) {
+            sessionVersion = 0;
+        }
+        originAddress = parts[5];
+    }
+
+    /**
+     * c=IN IP4 192.168.1.100[/ttl]
+     */
+    private static String parseConnection(String value) {
+        String[] parts = value.trim().split("\\s+");
+        if (parts.length < 3 || !parts[0].equals("IN")) {
+            Log.w(TAG, "Unsupported connection line: " + value);
+            return null;
+        }
+        String address = parts[2];
+        int slash = address.indexOf('/');
+        return slash < 0 ? address : address.substring(0, slash);
+    }
+
+    static String addressType(String address) {
+        return address.indexOf(':') >= 0 ? "IP6" : "IP4";
+    }
+
+    // ==================== Accessors ====================
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public long getSessionVersion() {
+        return sessionVersion;
+    }
+
+    /**
+     * Bump the o= version; required whenever a new offer or answer in the
+     * same session differs from the previous one (RFC 3264 section 8)
+     */
+    public void incrementVersion() {
+        sessionVersion++;
+    }
+
+    public String getOriginAddress() {
+        return originAddress;
+    }
+
+    public String getConnectionAddress() {
+        return connectionAddress;
+    }
+
+    public void setConnectionAddress(String connectionAddress) {
+        this.connectionAddress = connectionAddress;
+    }
+
+    public MediaDescription.Direction getDirection() {
+        return direction;
+    }
+
+    public List<MediaDescription> getMedia() {
+        return media;
+    }
+
+    public void addMedia(MediaDescription m) {
+        media.add(m);
+    }
+
+    /**
+     * Effective connection address of a stream: media-level c= overrides session-level
+     */
+    public String getConnectionAddress(MediaDescription m) {
+        return m.getConnectionAddress() != null ? m.getConnectionAddress() : connectionAddress;
+    }
+
+    /**
+     * Effective direction of a stream: media-level, then session-level, then sendrecv
+     */
+    public MediaDescription.Direction getDirection(MediaDescription m) {
+        if (m.getDirection() != null) {
+            return m.getDirection();
+        }
+        return direction != null ? direction : MediaDescription.Direction.SENDRECV;
+    }
+
+    // ==================== Serialization ====================
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append("v=0\r\n");
+        sb.append("o=").append(originUser).append(' ').append(sessionId).append(' ').append(sessionVersion)
+          .append(" IN ").append(addressType(originAddress)).append(' ').append(originAddress).append("\r\n");
+        sb.append("s=").append(sessionName).append("\r\n");
+        if (connectionAddress != null) {
+            sb.append("c=IN ").append(addressType(connectionAddress)).append(' ')
+              .append(connectionAddress).append("\r\n");
+        }
+        sb.append("t=0 0\r\n");
+        for (String a : attributes) {
+            sb.append("a=").append(a).append("\r\n");
+        }
+        if (direction != null) {
+            sb.append("a=").append(direction.getAttribute()).append("\r\n");
+        }
+        for (MediaDescription m : media) {
+            m.appendTo(sb);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,230 @@
+package com.shreeyash.gateway.sip;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Dialog state (RFC 3261 section 12): Call-ID, both tags, the route set
+ * learnt from Record-Route, the remote target from Contact and the CSeq
+ * numbers in each direction.
+ *
+ * Created from the INVITE and the first response carrying a To tag (an
+ * early dialog for a 1xx, confirmed by the 2xx). Every in-dialog request
+ * is built from here, so BYE and ACK follow the proxy's Record-Route and
+ * any Contact update instead of the headers of the original INVITE.
+ */
+final class SipDialog {
+
+    final String callId;
+    final String localTag;
+    final String remoteTag;
+    final String localUri;   // our From in requests, with our tag
+    final String remoteUri;  // their To in requests, with their tag
+    final boolean caller;    // we sent the INVITE
+
+    private volatile String remoteTarget;
+    private volatile List<String> routeSet;
+    private boolean confirmed;
+    private long localCSeq;
+    private long remoteCSeq;  // -1 until they send a request in the dialog
+
+    private SipDialog(String callId, String localTag, String remoteTag, String localUri,
+                      String remoteUri, boolean caller, String remoteTarget,
+                      List<String> routeSet, long localCSeq, long remoteCSeq) {
+        this.callId = callId;
+        this.localTag = localTag;
+        this.remoteTag = remoteTag;
+        this.localUri = localUri;
+        this.remoteUri = remoteUri;
+        this.caller = caller;
+        this.remoteTarget = remoteTarget;
+        this.routeSet = routeSet;
+        this.localCSeq = localCSeq;
+        this.remoteCSeq = remoteCSeq;
+    }
+
+    /**
+     * UAC side: our INVITE and a 1xx or 2xx with a To tag (section 12.1.2).
+     * The route set is the response's Record-Route, reversed.
+     *
+     * @return the dialog, or null if the response has no To tag
+     */
+    static SipDialog asCaller(SIPMessage invite, SIPMessage response) {
+        String remoteTag = response.getToTag();
+        if (remoteTag == null) {
+            return null;
+        }
+        List<String> routes = recordRoutes(response);
+        Collections.reverse(routes);
+        SipDialog dialog = new SipDialog(invite.getCallId(), invite.getFromTag(), remoteTag,
+            invite.getHeader("from"), response.getHeader("to"), true,
+            contactUri(response, invite.getRequestUri()), routes, invite.getCSeqNumber(), -1);
+        dialog.confirmed = response.getStatusCode() >= 200;
+        return dialog;
+    }
+
+    /**
+     * UAS side: their INVITE and the tag we put in our To (section 12.1.1).
+     * The route set is the INVITE's Record-Route, in order.
+     */
+    static SipDialog asCallee(SIPMessage invite, String localTag) {
+        String to = invite.getHeader("to");
+        if (to != null && !to.contains("tag=")) {
+            to = to + ";tag=" + localTag;
+        }
+        return new SipDialog(invite.getCallId(), localTag, invite.getFromTag(), to,
+            invite.getHeader("from"), false, contactUri(invite, uriOf(invite.getHeader("from"))), recordRoutes(invite),
+            0, invite.getCSeqNumber());
+    }
+
+    // ==================== STATE ====================
+
+    synchronized boolean isConfirmed() {
+        return confirmed;
+    }
+
+    /**
+     * The 2xx arrived: the early dialog becomes confirmed and takes the
+     * 2xx's route set and target (section 13.2.2.4)
+     */
+    synchronized void confirm(SIPMessage response) {
+        if (caller && !confirmed) {
+            List<String> routes = recordRoutes(response);
+            Collections.reverse(routes);
+            routeSet = routes;
+        }
+        confirmed = true;
+        refreshTarget(response);
+    }
+
+    /**
+     * Our 2xx to their INVITE went out
+     */
+    synchronized void setConfirmed() {
+        confirmed = true;
+    }
+
+    /**
+     * Target refresh: a new Contact in a re-INVITE, UPDATE or their 2xx
+     */
+    void refreshTarget(SIPMessage msg) {
+        String target = contactUri(msg, null);
+        if (target != null) {
+            remoteTarget = target;
+        }
+    }
+
+    /**
+     * CSeq for our next request in the dialog
+     */
+    synchronized long nextLocalCSeq() {
+        return ++localCSeq;
+    }
+
+    /**
+     * Check a request from the remote side: its CSeq must not go backwards
+     * (section 12.2.2); retransmissions are absorbed by the transactions
+     *
+     * @return false if it is out of order and must get a 500
+     */
+    synchronized boolean acceptRemoteCSeq(SIPMessage request) {
+        long cseq = request.getCSeqNumber();
+        if (remoteCSeq >= 0 && cseq < remoteCSeq) {
+            return false;
+        }
+        remoteCSeq = cseq;
+        return true;
+    }
+
+    String getRemoteTarget() {
+        return remoteTarget;
+    }
+
+    List<String> getRouteSet() {
+        return routeSet;
+    }
+
+    /**
+     * Where the next request is sent (sections 8.1.2 and 12.2.1.1): the
+     * first route, or the remote target if the route set is empty
+     */
+    String nextHopUri() {
+        List<String> routes = routeSet;
+        return routes.isEmpty() ? remoteTarget : uriOf(routes.get(0));
+    }
+
+    /**
+     * Request-URI and Route header for the next request (section 12.2.1.1).
+     * A strict router (no ;lr) in the first route goes in the Request-URI
+     * and the remote target goes last in Route.
+     *
+     * @return {requestUri, route}; route is null for an empty route set
+     */
+    String[] requestUriAndRoute() {
+        List<String> routes = routeSet;
+        String target = remoteTarget;
+        if (routes.isEmpty()) {
+            return new String[] {target, null};
+        }
+        String first = routes.get(0);
+        if (first.contains(";lr")) {
+            return new String[] {target, String.join(", ", routes)};
+        }
+        List<String> rest = new ArrayList<>(routes.subList(1, routes.size()));
+        rest.add("<" + target + ">");
+        return new String[] {uriOf(first), String.join(", ", rest)};
+    }
+
+    // ==================== PARSING ====================
+
+    /**
+     * Every Record-Route entry, in message order (one header may hold several)
+     */
+    private static List<String> recordRoutes(SIPMessage msg) {
+        List<String> routes = new ArrayList<>();
+        for (String header : msg.getHeaderValues("record-route")) {
+            int depth = 0;
+            int start = 0;
+            for (int i = 0; i < header.length(); i++) {
+                char ch = header.charAt(i);
+                if (ch == '<') {
+                    depth++;
+                } else if (ch == '>') {
+                    depth--;
+                } else if (ch == ',' && depth == 0) {
+                    addRoute(routes, header.substring(start, i));
+                    start = i + 1;
+                }
+            }
+            addRoute(routes, header.substring(start));
+        }
+        return routes;
+    }
+
+    private static void addRoute(List<String> routes, String route) {
+        route = route.trim();
+        if (!route.isEmpty()) {
+            routes.add(route);
+        }
+    }
+
+    private static String contactUri(SIPMessage msg, String fallback) {
+        String contact = msg.getHeader("contact");
+        return contact != null ? uriOf(contact) : fallback;
+    }
+
+    /**
+     * The URI inside <>, or the value up to its first parameter
+     */
+    static String uriOf(String nameAddr) {
+        int open = nameAddr.indexOf('<');
+        int close = nameAddr.indexOf('>', open + 1);
+        if (open >= 0 && close > open) {
+            return nameAddr.substring(open + 1, close);
+        }
+        String value = nameAddr.trim();
+        int semi = value.indexOf(';');
+        return semi < 0 ? value : value.substring(0, semi);
+    }
+}
@@ -0,0 +1,146 @@
+package com.shreeyash.gateway.sip;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Well-known SIP header names, identified by a small integer so the parser
+ * can classify a header straight from the receive buffer without building
+ * a String. Compact forms (RFC 3261 section 7.3.3) map to the same id.
+ */
+final class SipHeaders {
+    static final int OTHER = -1;
+
+    static final int VIA = 0;
+    static final int FROM = 1;
+    static final int TO = 2;
+    static final int CALL_ID = 3;
+    static final int CSEQ = 4;
+    static final int CONTACT = 5;
+    static final int CONTENT_LENGTH = 6;
+    static final int CONTENT_TYPE = 7;
+    static final int MAX_FORWARDS = 8;
+    static final int EXPIRES = 9;
+    static final int ROUTE = 10;
+    static final int RECORD_ROUTE = 11;
+    static final int WWW_AUTHENTICATE = 12;
+    static final int PROXY_AUTHENTICATE = 13;
+    static final int AUTHORIZATION = 14;
+    static final int PROXY_AUTHORIZATION = 15;
+    static final int ALLOW = 16;
+    static final int SUPPORTED = 17;
+    static final int REQUIRE = 18;
+    static final int USER_AGENT = 19;
+    static final int SUBJECT = 20;
+    static final int EVENT = 21;
+    static final int REFER_TO = 22;
+    static final int CONTENT_ENCODING = 23;
+    static final int SESSION_EXPIRES = 24;
+
+    /** Canonical lower-case names, indexed by id */
+    static final String[] NAMES = {
+        "via", "from", "to", "call-id", "cseq", "contact", "content-length", "content-type",
+        "max-forwards", "expires", "route", "record-route", "www-authenticate",
+        "proxy-authenticate", "authorization", "proxy-authorization", "allow", "supported",
+        "require", "user-agent", "subject", "event", "refer-to", "content-encoding",
+        "session-expires"
+    };
+
+    private static final byte[][] NAME_BYTES = new byte[NAMES.length][];
+    private static final int[] COMPACT = new int[128];
+    private static final Map<String, Integer> BY_NAME = new HashMap<>();
+
+    static {
+        for (int i = 0; i < NAMES.length; i++) {
+            NAME_BYTES[i] = NAMES[i].getBytes(StandardCharsets.US_ASCII);
+            BY_NAME.put(NAMES[i], i);
+        }
+        for (int i = 0; i < COMPACT.length; i++) {
+            COMPACT[i] = OTHER;
+        }
+        compact('v', VIA);
+        compact('f', FROM);
+        compact('t', TO);
+        compact('i', CALL_ID);
+        compact('m', CONTACT);
+        compact('l', CONTENT_LENGTH);
+        compact('c', CONTENT_TYPE);
+        compact('k', SUPPORTED);
+        compact('s', SUBJECT);
+        compact('o', EVENT);
+        compact('r', REFER_TO);
+        compact('e', CONTENT_ENCODING);
+        compact('x', SESSION_EXPIRES);
+    }
+
+    private static void compact(char c, int id) {
+        COMPACT[c] = id;
+        BY_NAME.put(String.valueOf(c), id);
+    }
+
+    private SipHeaders() {}
+
+    /**
+     * Identify a header name in a byte range, case-insensitively
+     *
+     * @return header id, or {@link #OTHER}
+     */
+    static int lookup(byte[] b, int start, int end) {
+        int len = end - start;
+        if (len == 1) {
+            int c = toLower(b[start]);
+            return c < COMPACT.length ? COMPACT[c] : OTHER;
+        }
+        for (int id = 0; id < NAME_BYTES.length; id++) {
+            if (NAME_BYTES[id].length == len && equalsIgnoreCase(NAME_BYTES[id], b, start)) {
+                return id;
+            }
+        }
+        return OTHER;
+    }
+
+    /**
+     * Identify a lower-case header name (full or compact)
+     *
+     * @return header id, or {@link #OTHER}
+     */
+    static int lookup(String lowerName) {
+        Integer id = BY_NAME.get(lowerName);
+        return id != null ? id : OTHER;
+    }
+
+    /**
+     * Headers whose repeated lines form one comma-separated list (RFC 3261
+     * section 7.3.1), e.g. every Via a proxy stacked on a request
+     */
+    static boolean isList(int id) {
+        switch (id) {
+            case VIA:
+            case ROUTE:
+            case RECORD_ROUTE:
+            case ALLOW:
+            case SUPPORTED:
+            case REQUIRE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Compare a lower-case ASCII name against buffer bytes ignoring case
+     */
+    static boolean equalsIgnoreCase(byte[] lowerName, byte[] b, int start) {
+        for (int i = 0; i < lowerName.length; i++) {
+            if (toLower(b[start + i]) != lowerName[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLower(byte c) {
+        return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c & 0xFF;
+    }
+}
@@ -0,0 +1,224 @@
+package com.shreeyash.gateway.sip;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Byte-level SIP message parser.
+ *
+ * Works directly on the datagram receive buffer: the start line is decoded
+ * (method, status code) and each header line is only located and classified,
+ * recording spans into the buffer. Header values, the request URI, reason
+ * phrase and body become Strings the first time someone asks for them, so a
+ * message that is dispatched and answered from a few headers (OPTIONS
+ * keepalives) never decodes the rest.
+ *
+ * The returned message refers to the caller's buffer; call
+ * {@link SIPMessage#retain()} before keeping it past the next receive.
+ */
+final class SipParser {
+    private static final int INITIAL_HEADERS = 24;
+
+    private static final byte[] SIP_PREFIX = {'s', 'i', 'p', '/'};
+
+    /** Methods we dispatch on; returned as these constants instead of new Strings */
+    private static final String[] METHODS = {
+        "INVITE", "ACK", "BYE", "CANCEL", "OPTIONS", "REGISTER", "INFO", "UPDATE",
+        "PRACK", "REFER", "NOTIFY", "SUBSCRIBE", "MESSAGE"
+    };
+    private static final byte[][] METHOD_BYTES = new byte[METHODS.length][];
+
+    static {
+        for (int i = 0; i < METHODS.length; i++) {
+            METHOD_BYTES[i] = METHODS[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private SipParser() {}
+
+    /**
+     * Parse one message
+     *
+     * @return the message, or null for keepalives (CRLF only) and malformed input
+     */
+    static SIPMessage parse(byte[] buf, int offset, int length) {
+        int end = offset + length;
+        int pos = offset;
+
+        // Skip CRLF keepalives (RFC 5626) and leading whitespace
+        while (pos < end && isWhitespace(buf[pos])) {
+            pos++;
+        }
+        if (pos >= end) {
+            return null;
+        }
+
+        SIPMessage msg = new SIPMessage(buf, offset, length, INITIAL_HEADERS);
+
+        // Start line
+        int lineEnd = lineEnd(buf, pos, end);
+        int contentEnd = trimEnd(buf, pos, lineEnd);
+        if (!parseStartLine(msg, buf, pos, contentEnd)) {
+            return null;
+        }
+        pos = nextLine(buf, lineEnd, end);
+
+        // Header lines, up to the blank line
+        int contentLength = -1;
+        while (pos < end) {
+            lineEnd = lineEnd(buf, pos, end);
+            contentEnd = trimEnd(buf, pos, lineEnd);
+            int next = nextLine(buf, lineEnd, end);
+
+            if (contentEnd == pos) {
+                // Blank line: body follows
+                pos = next;
+                break;
+            }
+
+            if (buf[pos] == ' ' || buf[pos] == '\t') {
+                // Folded continuation of the previous header
+                if (msg.headerCount > 0) {
+                    int last = msg.headerCount - 1;
+                    msg.valueEnds[last] = contentEnd;
+                    msg.folded[last] = true;
+                }
+                pos = next;
+                continue;
+            }
+
+            int colon = indexOf(buf, pos, contentEnd, (byte) ':');
+            if (colon > pos) {
+                int nameEnd = trimEnd(buf, pos, colon);
+                int valueStart = colon + 1;
+                while (valueStart < contentEnd && (buf[valueStart] == ' ' || buf[valueStart] == '\t')) {
+                    valueStart++;
+                }
+                int id = SipHeaders.lookup(buf, pos, nameEnd);
+                msg.addHeaderSpan(id, pos, nameEnd, valueStart, contentEnd);
+                if (id == SipHeaders.CONTENT_LENGTH) {
+                    contentLength = parseInt(buf, valueStart, contentEnd);
+                }
+            }
+            pos = next;
+        }
+
+        // Body: the rest of the datagram, bounded by Content-Length if given
+        int bodyLength = Math.max(0, end - pos);
+        if (contentLength >= 0 && contentLength < bodyLength) {
+            bodyLength = contentLength;
+        }
+        msg.bodyStart = pos;
+        msg.bodyLength = bodyLength;
+        return msg;
+    }
+
+    /**
+     * "SIP/2.0 200 OK" or "INVITE sip:user@host SIP/2.0"
+     */
+    private static boolean parseStartLine(SIPMessage msg, byte[] buf, int start, int end) {
+        int sp1 = indexOf(buf, start, end, (byte) ' ');
+        if (sp1 < 0) {
+            return false;
+        }
+
+        if (sp1 - start > SIP_PREFIX.length && SipHeaders.equalsIgnoreCase(SIP_PREFIX, buf, start)) {
+            // Response
+            int codeStart = sp1 + 1;
+            int codeEnd = indexOf(buf, codeStart, end, (byte) ' ');
+            if (codeEnd < 0) {
+                codeEnd = end;
+            }
+            int status = parseInt(buf, codeStart, codeEnd);
+            if (status < 100 || status > 699) {
+                return false;
+            }
+            msg.setResponseLine(status, start, sp1, Math.min(codeEnd + 1, end), end);
+            return true;
+        }
+
+        // Request
+        int uriStart = sp1 + 1;
+        int uriEnd = indexOf(buf, uriStart, end, (byte) ' ');
+        int versionStart;
+        if (uriEnd < 0) {
+            uriEnd = end;
+            versionStart = end;
+        } else {
+            versionStart = uriEnd + 1;
+        }
+        if (uriEnd == uriStart) {
+            return false;
+        }
+        msg.setRequestLine(method(buf, start, sp1), uriStart, uriEnd, versionStart, end);
+        return true;
+    }
+
+    static String method(byte[] buf, int start, int end) {
+        int len = end - start;
+        for (int i = 0; i < METHOD_BYTES.length; i++) {
+            byte[] m = METHOD_BYTES[i];
+            if (m.length != len) {
+                continue;
+            }
+            boolean match = true;
+            for (int j = 0; j < len; j++) {
+                if (buf[start + j] != m[j]) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) {
+                return METHODS[i];
+            }
+        }
+        return new String(buf, start, len, StandardCharsets.US_ASCII);
+    }
+
+    // ==================== Scanning ====================
+
+    /** Index of the LF ending the line at pos, or end */
+    private static int lineEnd(byte[] buf, int pos, int end) {
+        int lf = indexOf(buf, pos, end, (byte) '\n');
+        return lf < 0 ? end : lf;
+    }
+
+    private static int nextLine(byte[] buf, int lineEnd, int end) {
+        return Math.min(lineEnd + 1, end);
+    }
+
+    /** Back up over trailing CR and whitespace */
+    private static int trimEnd(byte[] buf, int start, int end) {
+        while (end > start && isWhitespace(buf[end - 1])) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    static int indexOf(byte[] buf, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parse leading decimal digits
+     *
+     * @return value, or -1 if there are none
+     */
+    static int parseInt(byte[] buf, int start, int end) {
+        int value = 0;
+        int i = start;
+        while (i < end && buf[i] >= '0' && buf[i] <= '9' && value < 100_000_000) {
+            value = value * 10 + (buf[i] - '0');
+            i++;
+        }
+        return i == start ? -1 : value;
+    }
+}
@@ -0,0 +1,444 @@
+package com.shreeyash.gateway.sip;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Locates SIP servers (RFC 3263) and caches every DNS answer by its TTL.
+ *
+ * A host name goes NAPTR -> SRV -> A/AAAA: NAPTR picks the SRV name for
+ * the transport (SIP+D2U, SIP+D2T, SIPS+D2T), SRV lists the PBX nodes by
+ * priority and weight, and each node's addresses become targets in that
+ * order. Without NAPTR the SRV name is _sip._udp.host, _sip._tcp.host or
+ * _sips._tcp.host; without SRV the host's own addresses are used on the
+ * configured port. SRV is only consulted when the port is a default one
+ * (5060, or 5061 for TLS), since an explicit port means the host is a
+ * single server (section 4.2).
+ *
+ * Only the first lookup of a name blocks. After that, an expired entry is
+ * still returned while a background refresh replaces it, and a refresh
+ * that fails keeps the old answer for RETRY_MS, so REGISTER refreshes
+ * never wait on DNS. A first lookup that fails is not cached.
+ *
+ * Targets that timed out (markFailed) move to the back of the list for
+ * FAILED_HOLD_MS, so the next request fails over to the next SRV node.
+ */
+public final class SipResolver {
+    private static final String TAG = "SipResolver";
+
+    public static final int DEFAULT_PORT = 5060;
+    public static final int DEFAULT_TLS_PORT = 5061;
+
+    private static final long MIN_TTL_MS = 5_000;
+    private static final long MAX_TTL_MS = 3_600_000;
+    private static final long RETRY_MS = 30_000;         // after a failed refresh
+    private static final long FAILED_HOLD_MS = 60_000;
+
+    private static SipResolver shared;
+
+    /**
+     * A resolved SIP server: where to send, and the transport to use
+     */
+    public static final class Target {
+        public final InetAddress address;
+        public final int port;
+        public final String transport;
+
+        Target(InetAddress address, int port, String transport) {
+            this.address = address;
+            this.port = port;
+            this.transport = transport;
+        }
+
+        String key() {
+            return SipResolver.key(address, port);
+        }
+
+        @Override
+        public String toString() {
+            return key() + ";transport=" + transport;
+        }
+    }
+
+    private interface Lookup<T> {
+        DnsResolver.Answer<T> run(DnsResolver dns) throws IOException;
+    }
+
+    private static final class Entry {
+        final List<?> records;
+        final long expiresAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(List<?> records, long expiresAt) {
+            this.records = records;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private volatile DnsResolver dns;
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final Map<String, Long> failedUntil = new ConcurrentHashMap<>();
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "SIP-Resolver");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public SipResolver(DnsResolver dns) {
+        this.dns = dns;
+    }
+
+    /**
+     * Resolver shared by every SIP client and RTP session in the process
+     */
+    public static synchronized SipResolver shared() {
+        if (shared == null) {
+            shared = new SipResolver(new UdpDnsResolver(Collections.emptyList()));
+        }
+        return shared;
+    }
+
+    /**
+     * Replace the DNS backend (new network, or a fixed table in tests).
+     * Cached answers from the old one are dropped.
+     */
+    public void setDnsResolver(DnsResolver dns) {
+        this.dns = dns;
+        cache.clear();
+        failedUntil.clear();
+    }
+
+    // ==================== SIP SERVERS ====================
+
+    /**
+     * Every target for a SIP host, best first
+     *
+     * @throws UnknownHostException if the host has no usable address
+     */
+    public List<Target> resolve(String host, int port, String transport) throws IOException {
+        boolean tls = SipTransport.TLS.equals(transport);
+        boolean defaultPort = port == DEFAULT_PORT || port == DEFAULT_TLS_PORT;
+        if (tls && port == DEFAULT_PORT) {
+            port = DEFAULT_TLS_PORT;  // configured port left at the UDP default
+        }
+
+        List<Target> targets = new ArrayList<>();
+        if (isIpLiteral(host)) {
+            targets.add(new Target(InetAddress.getByName(host), port, transport));
+            return targets;
+        }
+
+        if (defaultPort) {
+            for (DnsResolver.Srv srv : locateSrv(host, transport)) {
+                try {
+                    for (InetAddress address : addresses(srv.target)) {
+                        targets.add(new Target(address, srv.port, transport));
+                    }
+                } catch (IOException e) {
+                    // One node that does not resolve must not hide the others
+                    Log.w(TAG, "SRV target " + srv.target + " unresolved: " + e.getMessage());
+                }
+            }
+        }
+        if (targets.isEmpty()) {
+            for (InetAddress address : addresses(host)) {
+                targets.add(new Target(address, port, transport));
+            }
+        }
+        if (targets.isEmpty()) {
+            throw new UnknownHostException(host);
+        }
+        return preferHealthy(targets);
+    }
+
+    /**
+     * The target the next request to a SIP host should go to
+     */
+    public Target resolveFirst(String host, int port, String transport) throws IOException {
+        return resolve(host, port, transport).get(0);
+    }
+
+    /**
+     * The target for a SIP URI such as a route or a dialog's remote target
+     * (RFC 3263 section 4): its ;transport= parameter, TLS for sips:, else
+     * the transport given; an absent port means SRV or the default port.
+     *
+     * @throws UnknownHostException if the URI has no host or it does not resolve
+     */
+    public Target resolveUri(String uri, String defaultTransport) throws IOException {
+        String rest = uri.trim();
+        boolean secure = rest.regionMatches(true, 0, "sips:", 0, 5);
+        int colon = rest.indexOf(':');
+        if (colon >= 0 && colon <= 4) {
+            rest = rest.substring(colon + 1);
+        }
+        int at = rest.indexOf('@');
+        if (at >= 0) {
+            rest = rest.substring(at + 1);
+        }
+
+        String transport = secure ? SipTransport.TLS : defaultTransport;
+        int semi = rest.indexOf(';');
+        if (semi >= 0) {
+            for (String param : rest.substring(semi + 1).split(";")) {
+                if (param.regionMatches(true, 0, "transport=", 0, 10)) {
+                    transport = param.substring(10).trim().toUpperCase(Locale.US);
+                }
+            }
+            rest = rest.substring(0, semi);
+        }
+        int query = rest.indexOf('?');
+        if (query >= 0) {
+            rest = rest.substring(0, query);
+        }
+
+        // host, host:port, [v6] or [v6]:port
+        String host = rest;
+        int port = SipTransport.TLS.equals(transport) ? DEFAULT_TLS_PORT : DEFAULT_PORT;
+        int portColon = rest.startsWith("[") ? rest.indexOf(':', rest.indexOf(']')) : rest.indexOf(':');
+        if (portColon >= 0) {
+            host = rest.substring(0, portColon);
+            try {
+                port = Integer.parseInt(rest.substring(portColon + 1));
+            } catch (NumberFormatException e) {
+                throw new UnknownHostException("Bad port in " + uri);
+            }
+        }
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        if (host.isEmpty()) {
+            throw new UnknownHostException("No host in " + uri);
+        }
+        return resolveFirst(host, port, transport);
+    }
+
+    /**
+     * A target did not answer (Timer B/F): try the others first for a while
+     */
+    public void markFailed(InetAddress address, int port) {
+        failedUntil.put(key(address, port), now() + FAILED_HOLD_MS);
+        Log.w(TAG, "Target " + key(address, port) + " failed, deprioritised for " + FAILED_HOLD_MS / 1000 + "s");
+    }
+
+    public boolean isFailed(Target target) {
+        Long until = failedUntil.get(target.key());
+        return until != null && now() < until;
+    }
+
+    // ==================== ADDRESSES ====================
+
+    /**
+     * Cached address lookup for any host (RTP peers included); IP literals
+     * never touch DNS
+     */
+    public InetAddress resolveAddress(String host) throws IOException {
+        if (isIpLiteral(host)) {
+            return InetAddress.getByName(host);
+        }
+        List<InetAddress> addresses = addresses(host);
+        if (addresses.isEmpty()) {
+            throw new UnknownHostException(host);
+        }
+        return addresses.get(0);
+    }
+
+    /**
+     * Addresses of a host, IPv4 first (our sockets are bound to IPv4)
+     */
+    private List<InetAddress> addresses(String host) throws IOException {
+        return cached("A " + host, d -> {
+            DnsResolver.Answer<InetAddress> answer = d.lookupAddress(host);
+            List<InetAddress> sorted = new ArrayList<>(answer.records);
+            Collections.sort(sorted, (a, b) ->
+                Boolean.compare(b instanceof Inet4Address, a instanceof Inet4Address));
+            return new DnsResolver.Answer<>(sorted, answer.ttlSeconds);
+        });
+    }
+
+    // ==================== NAPTR / SRV ====================
+
+    private List<DnsResolver.Srv> locateSrv(String domain, String transport) throws IOException {
+        String service;
+        String srvName;
+        if (SipTransport.TLS.equals(transport)) {
+            service = "SIPS+D2T";
+            srvName = "_sips._tcp." + domain;
+        } else if (SipTransport.TCP.equals(transport)) {
+            service = "SIP+D2T";
+            srvName = "_sip._tcp." + domain;
+        } else {
+            service = "SIP+D2U";
+            srvName = "_sip._udp." + domain;
+        }
+        for (DnsResolver.Naptr naptr : naptr(domain)) {
+            if ("s".equalsIgnoreCase(naptr.flags) && service.equalsIgnoreCase(naptr.service)) {
+                srvName = naptr.replacement;
+                break;
+            }
+        }
+        final String name = srvName;
+        return cached("SRV " + name, d -> {
+            DnsResolver.Answer<DnsResolver.Srv> answer = d.lookupSrv(name);
+            return new DnsResolver.Answer<>(orderSrv(answer.records), answer.ttlSeconds);
+        });
+    }
+
+    private List<DnsResolver.Naptr> naptr(String domain) throws IOException {
+        return cached("NAPTR " + domain, d -> {
+            DnsResolver.Answer<DnsResolver.Naptr> answer = d.lookupNaptr(domain);
+            List<DnsResolver.Naptr> sorted = new ArrayList<>(answer.records);
+            Collections.sort(sorted, (a, b) -> a.order != b.order
+                ? Integer.compare(a.order, b.order)
+                : Integer.compare(a.preference, b.preference));
+            return new DnsResolver.Answer<>(sorted, answer.ttlSeconds);
+        });
+    }
+
+    /**
+     * RFC 2782 order: ascending priority, weighted random within a priority.
+     * Done once per answer, so every request uses the same node until the
+     * record expires or the node fails.
+     */
+    static List<DnsResolver.Srv> orderSrv(List<DnsResolver.Srv> records) {
+        List<DnsResolver.Srv> pending = new ArrayList<>();
+        for (DnsResolver.Srv srv : records) {
+            if (!".".equals(srv.target) && !srv.target.isEmpty()) {  // "." = service not offered
+                pending.add(srv);
+            }
+        }
+        Collections.sort(pending, (a, b) -> Integer.compare(a.priority, b.priority));
+
+        List<DnsResolver.Srv> ordered = new ArrayList<>(pending.size());
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = 0;
+        while (i < pending.size()) {
+            int end = i;
+            while (end < pending.size() && pending.get(end).priority == pending.get(i).priority) {
+                end++;
+            }
+            List<DnsResolver.Srv> group = new ArrayList<>(pending.subList(i, end));
+            while (!group.isEmpty()) {
+                int total = 0;
+                for (DnsResolver.Srv srv : group) {
+                    total += srv.weight;
+                }
+                int pick = 0;
+                if (total > 0) {
+                    int r = random.nextInt(total + 1);
+                    int sum = 0;
+                    for (pick = 0; pick < group.size() - 1; pick++) {
+                        sum += group.get(pick).weight;
+                        if (sum >= r && group.get(pick).weight > 0) {
+                            break;
+                        }
+                    }
+                }
+                ordered.add(group.remove(pick));
+            }
+            i = end;
+        }
+        return ordered;
+    }
+
+    // ==================== CACHE ====================
+
+    @SuppressWarnings("unchecked")
+    private <T> List<T> cached(String key, Lookup<T> lookup) throws IOException {
+        Entry entry = cache.get(key);
+        if (entry == null) {
+            return refresh(key, lookup);  // first use of this name: must wait
+        }
+        if (now() >= entry.expiresAt && entry.refreshing.compareAndSet(false, true)) {
+            refresher.execute(() -> {
+                try {
+                    refresh(key, lookup);
+                } catch (IOException e) {
+                    Log.w(TAG, "Refresh of " + key + " failed, keeping old answer: " + e.getMessage());
+                }
+            });
+        }
+        return (List<T>) entry.records;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> List<T> refresh(String key, Lookup<T> lookup) throws IOException {
+        try {
+            DnsResolver.Answer<T> answer = lookup.run(dns);
+            long ttl = Math.max(MIN_TTL_MS, Math.min(MAX_TTL_MS, answer.ttlSeconds * 1000));
+            cache.put(key, new Entry(answer.records, now() + ttl));
+            return answer.records;
+        } catch (IOException e) {
+            Entry old = cache.get(key);
+            if (old == null) {
+                throw e;
+            }
+            // Server unreachable: serve the old answer and try again later
+            cache.put(key, new Entry(old.records, now() + RETRY_MS));
+            return (List<T>) old.records;
+        }
+    }
+
+    private List<Target> preferHealthy(List<Target> targets) {
+        if (failedUntil.isEmpty()) {
+            return targets;
+        }
+        long now = now();
+        List<Target> healthy = new ArrayList<>(targets.size());
+        List<Target> failed = new ArrayList<>();
+        for (Target target : targets) {
+            Long until = failedUntil.get(target.key());
+            if (until == null) {
+                healthy.add(target);
+            } else if (now >= until) {
+                failedUntil.remove(target.key(), until);
+                healthy.add(target);
+            } else {
+                failed.add(target);
+            }
+        }
+        healthy.addAll(failed);
+        return healthy;
+    }
+
+    private static String key(InetAddress address, int port) {
+        return address.getHostAddress() + ":" + port;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    /**
+     * Dotted IPv4 or any IPv6 literal: resolving these never queries DNS
+     */
+    static boolean isIpLiteral(String host) {
+        if (host.indexOf(':') >= 0) {
+            return true;
+        }
+        int dots = 0;
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c == '.') {
+                dots++;
+            } else if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return dots == 3;
+    }
+}
@@ -0,0 +1,139 @@
+package com.shreeyash.gateway.sip;
+
+import android.util.Log;
+
+import com.shreeyash.gateway.TimingWheel;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * State shared by client and server transactions (RFC 3261 section 17).
+ *
+ * A transaction is one request and its responses, identified by the top Via
+ * branch plus method. It owns the retransmission and timeout timers for that
+ * exchange; all of them run on the layer's timing wheel. Each transaction
+ * keeps its three timers for its whole life and re-arms them, so a
+ * retransmission costs no allocation.
+ *
+ * Over TCP or TLS the transport is reliable: requests and non-2xx finals
+ * are not retransmitted, and the wait timers (D, I, J, K) are zero.
+ */
+abstract class SipTransaction {
+    private static final String TAG = "SipTransaction";
+
+    // Timer base values, RFC 3261 section 17.1.1.1 and table 4
+    static final long T1 = 500;           // RTT estimate
+    static final long T2 = 4000;          // maximum retransmit interval for non-INVITE / responses
+    static final long T4 = 5000;          // maximum time a message stays in the network
+    static final long TIMEOUT = 64 * T1;  // Timers B, F, H, J and L
+
+    enum State {
+        CALLING,     // INVITE client: request sent, nothing heard
+        TRYING,      // non-INVITE: request sent / received, no response yet
+        PROCEEDING,  // provisional response sent or received
+        COMPLETED,   // final response; absorbing retransmissions
+        CONFIRMED,   // INVITE server: ACK for our non-2xx received
+        ACCEPTED,    // INVITE server: 2xx sent, waiting for the ACK (RFC 6026)
+        TERMINATED
+    }
+
+    final TransactionLayer layer;
+    final String key;
+    final String method;
+    final boolean invite;
+    final SipTransport transport;
+    final boolean reliable;
+    final InetAddress remoteAddress;
+    final int remotePort;
+
+    State state;
+    long interval;  // current retransmit interval
+
+    // Retransmit (A, E, G), transaction timeout (B, F, H, J, L), wait (D, I, K)
+    final TimingWheel.Timeout retransmitTimer = new TimingWheel.Timeout(this::onRetransmit);
+    final TimingWheel.Timeout timeoutTimer = new TimingWheel.Timeout(this::onTimeout);
+    final TimingWheel.Timeout waitTimer = new TimingWheel.Timeout(this::onWaitExpired);
+
+    SipTransaction(TransactionLayer layer, String key, String method, SipTransport transport,
+                   InetAddress remoteAddress, int remotePort) {
+        this.layer = layer;
+        this.key = key;
+        this.method = method;
+        this.invite = "INVITE".equals(method);
+        this.transport = transport;
+        this.reliable = transport.isReliable();
+        this.remoteAddress = remoteAddress;
+        this.remotePort = remotePort;
+    }
+
+    abstract void onRetransmit();
+
+    abstract void onTimeout();
+
+    private void onWaitExpired() {
+        synchronized (this) {
+            if (state == State.TERMINATED) {
+                return;
+            }
+            terminate();
+        }
+    }
+
+    void send(byte[] data) throws IOException {
+        transport.send(data, remoteAddress, remotePort);
+    }
+
+    /**
+     * Retransmission from a timer: failures are logged, the timeout timer
+     * decides when to give up
+     */
+    void resend(byte[] data) {
+        try {
+            send(data);
+        } catch (IOException e) {
+            Log.w(TAG, "Retransmit failed for " + this + ": " + e.getMessage());
+        }
+    }
+
+    void schedule(TimingWheel.Timeout timer, long delayMs) {
+        layer.timers.schedule(timer, delayMs);
+    }
+
+    /**
+     * Start a wait timer (D, I, J, K): it only absorbs retransmissions, so
+     * over a reliable transport the transaction ends at once. Caller holds
+     * the lock.
+     */
+    void scheduleWait(long unreliableDelayMs) {
+        if (reliable) {
+            terminate();
+        } else {
+            schedule(waitTimer, unreliableDelayMs);
+        }
+    }
+
+    /**
+     * Stop every timer and forget the transaction. Caller holds the lock.
+     */
+    void terminate() {
+        state = State.TERMINATED;
+        retransmitTimer.cancel();
+        timeoutTimer.cancel();
+        waitTimer.cancel();
+        layer.remove(this);
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    String getMethod() {
+        return method;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + key + " " + state + "]";
+    }
+}
@@ -0,0 +1,39 @@
+package com.shreeyash.gateway.sip;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Carries SIP messages to and from one local port (RFC 3261 section 18).
+ *
+ * UDP sends each message as a datagram. TCP and TLS keep one connection per
+ * remote and reuse it both ways, so requests the PBX sends back on a
+ * connection we opened reach us through NAT. Transactions read
+ * isReliable() to drop the retransmissions a stream does not need.
+ */
+public interface SipTransport {
+
+    String UDP = "UDP";
+    String TCP = "TCP";
+    String TLS = "TLS";
+
+    /**
+     * Called with one complete message, on the transport's thread. The
+     * buffer is reused afterwards; anything kept must be copied.
+     */
+    interface Receiver {
+        void onMessage(SipTransport transport, byte[] data, int length, InetAddress from, int fromPort);
+    }
+
+    /** Via transport token: UDP, TCP or TLS */
+    String getName();
+
+    /** Stream transports: no SIP-level retransmissions (section 17.1.1.2) */
+    boolean isReliable();
+
+    void start(Receiver receiver) throws IOException;
+
+    void send(byte[] data, InetAddress address, int port) throws IOException;
+
+    void stop();
+}
@@ -0,0 +1,664 @@
+package com.shreeyash.gateway.sip;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * SIP over TCP or TLS on one NIO selector thread.
+ *
+ * Connections are pooled by remote address and used in both directions:
+ * a request to the PBX reuses the connection its REGISTER opened, and the
+ * PBX's INVITEs arrive back on it. Messages are framed by Content-Length
+ * (RFC 3261 section 18.3). Connections we opened send a CRLF keepalive
+ * after KEEPALIVE_MS of silence to hold NAT bindings (RFC 5626 section
+ * 3.5.1), and stay open while the PBX answers them with pongs; any other
+ * connection without a SIP message for IDLE_TIMEOUT_MS closes.
+ *
+ * send() only queues: the selector thread connects, runs the TLS
+ * handshake and writes. A connection that fails drops its queue, and the
+ * transaction's Timer B/F reports the loss.
+ */
+final class StreamTransport implements SipTransport {
+    private static final String TAG = "StreamTransport";
+
+    private static final int READ_BUFFER = 16 * 1024;
+    private static final int MAX_MESSAGE = 64 * 1024;
+    private static final long KEEPALIVE_MS = 30_000;
+    private static final long IDLE_TIMEOUT_MS = 10 * 60_000;
+    private static final long SWEEP_MS = 1000;
+
+    private static final byte[] PING = {'\r', '\n', '\r', '\n'};
+    private static final byte[] PONG = {'\r', '\n'};
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final String name;
+    private final int listenPort;         // 0: outbound connections only
+    private final SSLContext sslContext;  // null for TCP
+    private final String serverName;      // TLS: name the PBX certificate must carry
+
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread thread;
+    private volatile boolean running;
+    private Receiver receiver;
+
+    // Selector thread only
+    private final Map<InetSocketAddress, Connection> connections = new HashMap<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER);
+    private long lastSweep;
+
+    private final Queue<Outgoing> outbox = new ConcurrentLinkedQueue<>();
+
+    private StreamTransport(String name, int listenPort, SSLContext sslContext, String serverName) {
+        this.name = name;
+        this.listenPort = listenPort;
+        this.sslContext = sslContext;
+        this.serverName = serverName;
+    }
+
+    /**
+     * TCP, accepting connections on the SIP port as well as opening them
+     */
+    static StreamTransport tcp(int listenPort) {
+        return new StreamTransport(TCP, listenPort, null, null);
+    }
+
+    /**
+     * TLS client: we have no certificate, so the PBX is only reached on
+     * connections we open
+     */
+    static StreamTransport tls(SSLContext sslContext, String serverName) {
+        return new StreamTransport(TLS, 0, sslContext, serverName);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean isReliable() {
+        return true;
+    }
+
+    @Override
+    public void start(Receiver receiver) throws IOException {
+        this.receiver = receiver;
+        selector = Selector.open();
+        if (listenPort > 0) {
+            server = ServerSocketChannel.open();
+            server.configureBlocking(false);
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(InetAddress.getByName("0.0.0.0"), listenPort));
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        }
+        running = true;
+        thread = new Thread(this::selectLoop, "SIP-" + name);
+        thread.start();
+    }
+
+    @Override
+    public void send(byte[] data, InetAddress address, int port) throws IOException {
+        if (!running) {
+            throw new ClosedChannelException();
+        }
+        outbox.add(new Outgoing(new InetSocketAddress(address, port), ByteBuffer.wrap(data)));
+        selector.wakeup();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    // ==================== SELECTOR LOOP ====================
+
+    private static final class Outgoing {
+        final InetSocketAddress remote;
+        final ByteBuffer data;
+
+        Outgoing(InetSocketAddress remote, ByteBuffer data) {
+            this.remote = remote;
+            this.data = data;
+        }
+    }
+
+    private void selectLoop() {
+        while (running) {
+            try {
+                selector.select(SWEEP_MS);
+                drainOutbox();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection c = (Connection) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            finishConnect(c);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(c);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(c);
+                        }
+                    } catch (IOException e) {
+                        close(c, e.getMessage());
+                    }
+                }
+                sweep();
+            } catch (IOException e) {
+                if (running) {
+                    Log.e(TAG, name + " selector error: " + e.getMessage());
+                }
+            }
+        }
+        for (Connection c : new ArrayList<>(connections.values())) {
+            close(c, "transport stopped");
+        }
+        try {
+            if (server != null) {
+                server.close();
+            }
+            selector.close();
+        } catch (IOException ignored) {
+        }
+        outbox.clear();
+    }
+
+    private void drainOutbox() {
+        Outgoing out;
+        while ((out = outbox.poll()) != null) {
+            Connection c = connections.get(out.remote);
+            try {
+                if (c == null) {
+                    c = connect(out.remote);
+                }
+                c.writes.add(out.data);
+                flush(c);
+            } catch (IOException e) {
+                Log.w(TAG, name + " send to " + out.remote + " failed: " + e.getMessage());
+                if (c != null) {
+                    close(c, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep < SWEEP_MS) {
+            return;
+        }
+        lastSweep = now;
+        for (Connection c : new ArrayList<>(connections.values())) {
+            if (now - c.lastMessage > IDLE_TIMEOUT_MS) {
+                close(c, "idle");
+            } else if (c.outbound && c.connected && now - c.lastActivity > KEEPALIVE_MS) {
+                c.writes.add(ByteBuffer.wrap(PING));
+                try {
+                    flush(c);
+                } catch (IOException e) {
+                    close(c, e.getMessage());
+                }
+            }
+        }
+    }
+
+    // ==================== CONNECTIONS ====================
+
+    private final class Connection {
+        final SocketChannel channel;
+        final InetSocketAddress remote;
+        final boolean outbound;
+        final SSLEngine engine;
+        final Queue<ByteBuffer> writes = new ArrayDeque<>();
+        final Framer framer = new Framer();
+        SelectionKey key;
+        boolean connected;
+        long lastActivity = System.currentTimeMillis();
+        long lastMessage = lastActivity;  // or keepalive pong, on outbound connections
+
+        // TLS records in and out, and decrypted data
+        ByteBuffer netIn;
+        ByteBuffer netOut;
+        ByteBuffer appIn;
+
+        Connection(SocketChannel channel, InetSocketAddress remote, boolean outbound) throws SSLException {
+            this.channel = channel;
+            this.remote = remote;
+            this.outbound = outbound;
+            if (sslContext != null) {
+                engine = serverName != null
+                    ? sslContext.createSSLEngine(serverName, remote.getPort())
+                    : sslContext.createSSLEngine();
+                engine.setUseClientMode(true);
+                if (serverName != null) {
+                    SSLParameters params = engine.getSSLParameters();
+                    params.setEndpointIdentificationAlgorithm("HTTPS");
+                    engine.setSSLParameters(params);
+                }
+                int packetSize = engine.getSession().getPacketBufferSize();
+                netIn = ByteBuffer.allocate(packetSize);
+                netOut = ByteBuffer.allocate(packetSize);
+                appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+            } else {
+                engine = null;
+            }
+        }
+
+        void interest(int ops) {
+            if (key.isValid() && key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+    }
+
+    private Connection connect(InetSocketAddress remote) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(true);
+            Connection c = new Connection(channel, remote, true);
+            boolean done = channel.connect(remote);
+            c.key = channel.register(selector, done ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, c);
+            connections.put(remote, c);
+            Log.i(TAG, name + " connecting to " + remote);
+            if (done) {
+                connected(c);
+            }
+            return c;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+        Connection c = new Connection(channel, remote, false);
+        c.key = channel.register(selector, SelectionKey.OP_READ, c);
+        Connection old = connections.put(remote, c);
+        if (old != null) {
+            close(old, "replaced");
+            connections.put(remote, c);
+        }
+        connected(c);
+        Log.i(TAG, name + " accepted connection from " + remote);
+    }
+
+    private void finishConnect(Connection c) throws IOException {
+        if (c.channel.finishConnect()) {
+            Log.i(TAG, name + " connected to " + c.remote);
+            connected(c);
+        }
+    }
+
+    private void connected(Connection c) throws IOException {
+        c.connected = true;
+        c.interest(SelectionKey.OP_READ);
+        if (c.engine != null) {
+            c.engine.beginHandshake();
+        }
+        flush(c);
+    }
+
+    private void close(Connection c, String reason) {
+        connections.remove(c.remote, c);
+        if (c.key != null) {
+            c.key.cancel();
+        }
+        try {
+            c.channel.close();
+        } catch (IOException ignored) {
+        }
+        if (!c.writes.isEmpty()) {
+            Log.w(TAG, name + " dropped " + c.writes.size() + " queued messages for " + c.remote);
+        }
+        Log.i(TAG, name + " connection " + c.remote + " closed: " + reason);
+    }
+
+    // ==================== I/O ====================
+
+    private void read(Connection c) throws IOException {
+        ByteBuffer target = c.engine != null ? c.netIn : readBuffer;
+        int n = c.channel.read(target);
+        if (n < 0) {
+            throw new EOFException("closed by peer");
+        }
+        c.lastActivity = System.currentTimeMillis();
+        if (c.engine != null) {
+            processTls(c);
+        } else {
+            readBuffer.flip();
+            deliver(c, readBuffer);
+            readBuffer.clear();
+        }
+    }
+
+    private void flush(Connection c) throws IOException {
+        if (!c.connected) {
+            return;  // the queue goes out once connected
+        }
+        if (c.engine != null) {
+            processTls(c);
+            return;
+        }
+        while (!c.writes.isEmpty()) {
+            ByteBuffer data = c.writes.peek();
+            c.channel.write(data);
+            if (data.hasRemaining()) {
+                break;  // socket buffer full: wait for OP_WRITE
+            }
+            c.writes.poll();
+            c.lastActivity = System.currentTimeMillis();
+        }
+        c.interest(c.writes.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void deliver(Connection c, ByteBuffer data) throws IOException {
+        c.framer.feed(data, new Framer.Sink() {
+            @Override
+            public void onMessage(byte[] message, int length) {
+                c.lastMessage = System.currentTimeMillis();
+                receiver.onMessage(StreamTransport.this, message, length,
+                                   c.remote.getAddress(), c.remote.getPort());
+            }
+
+            @Override
+            public void onPing() {
+                c.writes.add(ByteBuffer.wrap(PONG));
+            }
+
+            @Override
+            public void onPong() {
+                if (c.outbound) {
+                    // The flow is alive, and still needed for requests to reach us
+                    c.lastMessage = System.currentTimeMillis();
+                }
+            }
+        });
+        if (!c.writes.isEmpty() && c.engine == null) {
+            flush(c);
+        }
+    }
+
+    // ==================== TLS ====================
+
+    /**
+     * Drive the engine as far as the buffered data allows: handshake steps,
+     * then decrypting what was read and encrypting what is queued
+     */
+    private void processTls(Connection c) throws IOException {
+        SSLEngine engine = c.engine;
+        while (true) {
+            SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+            if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                continue;
+            }
+            if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                if (!wrap(c, EMPTY)) {
+                    break;
+                }
+                continue;
+            }
+            if (hs == SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+                if (!unwrap(c)) {
+                    break;
+                }
+                continue;
+            }
+
+            // Handshake done: application data both ways
+            boolean progress = unwrap(c);
+            ByteBuffer next = c.writes.peek();
+            if (next != null) {
+                progress |= wrap(c, next);
+                if (!next.hasRemaining()) {
+                    c.writes.poll();
+                }
+            }
+            if (!progress) {
+                break;
+            }
+        }
+        boolean pending = !flushNet(c) ||
+            (!c.writes.isEmpty() && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING);
+        c.interest(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /**
+     * @return false if nothing could be done until the socket drains
+     */
+    private boolean wrap(Connection c, ByteBuffer source) throws IOException {
+        flushNet(c);
+        SSLEngineResult result = c.engine.wrap(source, c.netOut);
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                return false;
+            case CLOSED:
+                throw new EOFException("TLS session closed");
+            default:
+                flushNet(c);
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+    }
+
+    /**
+     * @return false if more data has to be read first
+     */
+    private boolean unwrap(Connection c) throws IOException {
+        if (c.netIn.position() == 0) {
+            return false;
+        }
+        c.netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = c.engine.unwrap(c.netIn, c.appIn);
+        } finally {
+            c.netIn.compact();
+        }
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                c.appIn = grow(c.appIn, c.engine.getSession().getApplicationBufferSize());
+                return true;
+            case BUFFER_UNDERFLOW:
+                if (!c.netIn.hasRemaining()) {
+                    c.netIn = grow(c.netIn, c.engine.getSession().getPacketBufferSize());
+                }
+                return false;
+            case CLOSED:
+                throw new EOFException("TLS session closed by peer");
+            default:
+                break;
+        }
+        if (c.appIn.position() > 0) {
+            c.appIn.flip();
+            deliver(c, c.appIn);
+            c.appIn.clear();
+        }
+        return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+    }
+
+    /**
+     * @return true if every encrypted byte reached the socket
+     */
+    private boolean flushNet(Connection c) throws IOException {
+        if (c.netOut.position() == 0) {
+            return true;
+        }
+        c.netOut.flip();
+        try {
+            c.channel.write(c.netOut);
+        } finally {
+            c.netOut.compact();
+        }
+        c.lastActivity = System.currentTimeMillis();
+        return c.netOut.position() == 0;
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int minSize) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, minSize));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    // ==================== FRAMING ====================
+
+    /**
+     * Splits a byte stream into SIP messages using Content-Length. Each
+     * message is handed over starting at offset 0 of the internal buffer.
+     */
+    static final class Framer {
+        interface Sink {
+            void onMessage(byte[] message, int length);
+
+            void onPing();
+
+            void onPong();
+        }
+
+        private byte[] buffer = new byte[4096];
+        private int length;
+
+        void feed(ByteBuffer data, Sink sink) throws IOException {
+            int n = data.remaining();
+            if (length + n > buffer.length) {
+                if (length + n > MAX_MESSAGE) {
+                    throw new IOException("SIP message exceeds " + MAX_MESSAGE + " bytes");
+                }
+                byte[] bigger = new byte[Math.max(buffer.length * 2, length + n)];
+                System.arraycopy(buffer, 0, bigger, 0, length);
+                buffer = bigger;
+            }
+            data.get(buffer, length, n);
+            length += n;
+
+            while (true) {
+                // Keepalives between messages: CRLFCRLF ping, CRLF pong
+                int skip = 0;
+                while (skip + 1 < length && buffer[skip] == '\r' && buffer[skip + 1] == '\n') {
+                    if (skip + 3 < length && buffer[skip + 2] == '\r' && buffer[skip + 3] == '\n') {
+                        sink.onPing();
+                        skip += 4;
+                    } else {
+                        sink.onPong();
+                        skip += 2;
+                    }
+                }
+                consume(skip);
+
+                int headerEnd = indexOfBlankLine();
+                if (headerEnd < 0) {
+                    return;
+                }
+                int total = headerEnd + 4 + contentLength(headerEnd);
+                if (total > MAX_MESSAGE) {
+                    throw new IOException("SIP message exceeds " + MAX_MESSAGE + " bytes");
+                }
+                if (length < total) {
+                    return;
+                }
+                sink.onMessage(buffer, total);
+                consume(total);
+            }
+        }
+
+        private void consume(int n) {
+            if (n > 0) {
+                System.arraycopy(buffer, n, buffer, 0, length - n);
+                length -= n;
+            }
+        }
+
+        private int indexOfBlankLine() {
+            for (int i = 0; i + 3 < length; i++) {
+                if (buffer[i] == '\r' && buffer[i + 1] == '\n' && buffer[i + 2] == '\r' && buffer[i + 3] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Content-Length (or compact "l") from the header block; 0 if absent
+         */
+        private int contentLength(int headerEnd) throws IOException {
+            int line = 0;
+            while (line < headerEnd) {
+                int eol = line;
+                while (eol < headerEnd && buffer[eol] != '\r') {
+                    eol++;
+                }
+                int colon = line;
+                while (colon < eol && buffer[colon] != ':') {
+                    colon++;
+                }
+                String name = new String(buffer, line, colon - line, StandardCharsets.US_ASCII).trim();
+                if (colon < eol && (name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("l"))) {
+                    String value = new String(buffer, colon + 1, eol - colon - 1, StandardCharsets.US_ASCII).trim();
+                    int n;
+                    try {
+                        n = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        n = -1;
+                    }
+                    if (n < 0) {
+                        throw new IOException("Bad Content-Length: " + value);
+                    }
+                    return n;
+                }
+                line = eol + 2;
+            }
+            return 0;
+        }
+    }
+}
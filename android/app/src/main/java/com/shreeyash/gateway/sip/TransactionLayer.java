@@ -0,0 +1,166 @@
+package com.shreeyash.gateway.sip;
+
+import android.util.Log;
+
+import com.shreeyash.gateway.TimingWheel;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * RFC 3261 transaction layer between the transport and SIPClient.
+ *
+ * Transactions are keyed by top Via branch plus method (ACK and CANCEL
+ * look up the INVITE they refer to). Requests from RFC 2543 peers, whose
+ * branch lacks the magic cookie, fall back to Call-ID, CSeq and From tag.
+ */
+final class TransactionLayer {
+    private static final String TAG = "TransactionLayer";
+
+    private static final String MAGIC_COOKIE = "z9hG4bK";
+
+    /**
+     * Transaction events that reach the transaction user (SIPClient)
+     */
+    interface User {
+        /** Timer B or F: no final response to one of our requests */
+        void onTransactionTimeout(ClientTransaction tx);
+
+        /** Timer L: our 2xx to an INVITE was never acknowledged */
+        void onAckTimeout(ServerTransaction tx);
+    }
+
+    final TimingWheel timers;
+    private final User user;
+    private final Map<String, SipTransaction> transactions = new ConcurrentHashMap<>();
+
+    TransactionLayer(TimingWheel timers, User user) {
+        this.timers = timers;
+        this.user = user;
+    }
+
+    // ==================== Client Side ====================
+
+    /**
+     * Send a request in a new client transaction
+     */
+    ClientTransaction sendRequest(SIPMessage request, SipTransport transport,
+                                  InetAddress address, int port) throws IOException {
+        String key = key(request, request.getMethod());
+        ClientTransaction tx = new ClientTransaction(this, key, request, transport, address, port);
+        transactions.put(key, tx);
+        try {
+            tx.start();
+        } catch (IOException e) {
+            transactions.remove(key);
+            throw e;
+        }
+        return tx;
+    }
+
+    /**
+     * Match a response to its client transaction
+     *
+     * @return true if the transaction user should handle it
+     */
+    boolean receiveResponse(SIPMessage response) {
+        String method = response.getCSeqMethod();
+        if (method == null) {
+            return false;
+        }
+        SipTransaction tx = transactions.get(key(response, method));
+        if (tx instanceof ClientTransaction) {
+            return ((ClientTransaction) tx).receiveResponse(response);
+        }
+        int status = response.getStatusCode();
+        if ("INVITE".equals(method) && status >= 200 && status < 300) {
+            // 2xx retransmission after the transaction ended: the dialog re-sends its ACK
+            return true;
+        }
+        Log.d(TAG, "No transaction for " + status + " " + method + ", dropped");
+        return false;
+    }
+
+    // ==================== Server Side ====================
+
+    /**
+     * Match a request (other than ACK) to a server transaction
+     *
+     * @return a new transaction for the user to respond on, or null if
+     *         this was a retransmission and has been absorbed
+     */
+    ServerTransaction receiveRequest(SIPMessage request, SipTransport transport, InetAddress address, int port) {
+        String key = key(request, request.getMethod());
+        SipTransaction existing = transactions.get(key);
+        if (existing instanceof ServerTransaction) {
+            ((ServerTransaction) existing).receiveRetransmission();
+            return null;
+        }
+        ServerTransaction tx = new ServerTransaction(this, key, request, transport, address, port);
+        transactions.put(key, tx);
+        return tx;
+    }
+
+    /**
+     * An ACK for a non-2xx final belongs to the INVITE transaction; an ACK
+     * for a 2xx has its own branch and goes to the dialog
+     *
+     * @return true if a transaction absorbed it
+     */
+    boolean receiveAck(SIPMessage ack) {
+        SipTransaction tx = transactions.get(key(ack, "INVITE"));
+        return tx instanceof ServerTransaction && ((ServerTransaction) tx).receiveAck();
+    }
+
+    /**
+     * The INVITE server transaction a CANCEL refers to, if still active
+     */
+    ServerTransaction findInvite(SIPMessage cancel) {
+        SipTransaction tx = transactions.get(key(cancel, "INVITE"));
+        return tx instanceof ServerTransaction ? (ServerTransaction) tx : null;
+    }
+
+    // ==================== Lifecycle ====================
+
+    void remove(SipTransaction tx) {
+        transactions.remove(tx.key, tx);
+    }
+
+    void clientTimedOut(ClientTransaction tx) {
+        user.onTransactionTimeout(tx);
+    }
+
+    void ackTimedOut(ServerTransaction tx) {
+        user.onAckTimeout(tx);
+    }
+
+    int size() {
+        return transactions.size();
+    }
+
+    /**
+     * Drop every transaction and its timers (client shutdown)
+     */
+    void clear() {
+        List<SipTransaction> all = new ArrayList<>(transactions.values());
+        for (SipTransaction tx : all) {
+            synchronized (tx) {
+                tx.terminate();
+            }
+        }
+        Log.d(TAG, "Cleared " + all.size() + " transactions");
+    }
+
+    static String key(SIPMessage msg, String method) {
+        String branch = msg.getBranch();
+        if (branch != null && branch.startsWith(MAGIC_COOKIE)) {
+            return branch + ' ' + method;
+        }
+        // RFC 2543 peer (RFC 3261 section 17.2.3)
+        return msg.getCallId() + ' ' + msg.getCSeqNumber() + ' ' + msg.getFromTag() + ' ' + method;
+    }
+}
@@ -0,0 +1,278 @@
+package com.shreeyash.gateway.sip;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Default DnsResolver.
+ *
+ * Addresses go through the platform resolver (InetAddress), which already
+ * honours the hosts file and Private DNS but does not report TTLs, so they
+ * get a fixed one. It cannot tell a missing name from an unreachable
+ * server either, so its failures are thrown rather than cached as an
+ * empty answer. The platform has no SRV or NAPTR API, so those are asked
+ * directly of the network's name servers with a minimal RFC 1035 client.
+ * Without known name servers, SRV and NAPTR come back empty and SipResolver
+ * falls back to plain address lookups.
+ */
+public final class UdpDnsResolver implements DnsResolver {
+    private static final String TAG = "UdpDnsResolver";
+
+    private static final int DNS_PORT = 53;
+    private static final int TIMEOUT_MS = 2000;
+    private static final int ATTEMPTS = 2;               // per server
+    private static final int MAX_RESPONSE = 1232;        // safe UDP payload size
+    private static final long ADDRESS_TTL_SECONDS = 60;
+    private static final long NEGATIVE_TTL_SECONDS = 300;
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+    private static final int TYPE_SRV = 33;
+    private static final int TYPE_NAPTR = 35;
+    private static final int CLASS_IN = 1;
+
+    private static final int RCODE_NXDOMAIN = 3;
+
+    private final List<InetAddress> servers;
+
+    /**
+     * @param servers name servers of the active network (may be empty)
+     */
+    public UdpDnsResolver(List<InetAddress> servers) {
+        this.servers = servers != null ? new ArrayList<>(servers) : Collections.emptyList();
+    }
+
+    @Override
+    public Answer<InetAddress> lookupAddress(String host) throws IOException {
+        // UnknownHostException propagates, so a cached answer outlives a network blip
+        return new Answer<>(Arrays.asList(InetAddress.getAllByName(host)), ADDRESS_TTL_SECONDS);
+    }
+
+    @Override
+    public Answer<Srv> lookupSrv(String name) throws IOException {
+        Response response = query(name, TYPE_SRV);
+        List<Srv> records = new ArrayList<>();
+        try {
+            for (Record r : response.records) {
+                int p = r.offset;
+                records.add(new Srv(u16(response.data, p), u16(response.data, p + 2),
+                                    u16(response.data, p + 4), readName(response.data, p + 6)));
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Malformed SRV record for " + name);
+        }
+        return new Answer<>(records, response.ttl);
+    }
+
+    @Override
+    public Answer<Naptr> lookupNaptr(String name) throws IOException {
+        Response response = query(name, TYPE_NAPTR);
+        List<Naptr> records = new ArrayList<>();
+        try {
+            for (Record r : response.records) {
+                byte[] d = response.data;
+                int p = r.offset;
+                int order = u16(d, p);
+                int preference = u16(d, p + 2);
+                p += 4;
+                String flags = characterString(d, p);
+                p += 1 + (d[p] & 0xff);
+                String service = characterString(d, p);
+                p += 1 + (d[p] & 0xff);
+                p += 1 + (d[p] & 0xff);  // regexp: unused by SIP (RFC 3263 section 4.1)
+                records.add(new Naptr(order, preference, flags, service, readName(d, p)));
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Malformed NAPTR record for " + name);
+        }
+        return new Answer<>(records, response.ttl);
+    }
+
+    // ==================== WIRE FORMAT ====================
+
+    private static final class Record {
+        final int offset;  // of RDATA in the response
+
+        Record(int offset) {
+            this.offset = offset;
+        }
+    }
+
+    private static final class Response {
+        final byte[] data;
+        final List<Record> records;
+        final long ttl;
+
+        Response(byte[] data, List<Record> records, long ttl) {
+            this.data = data;
+            this.records = records;
+            this.ttl = ttl;
+        }
+    }
+
+    private Response query(String name, int type) throws IOException {
+        if (servers.isEmpty()) {
+            return new Response(null, Collections.emptyList(), NEGATIVE_TTL_SECONDS);
+        }
+        int id = ThreadLocalRandom.current().nextInt(0x10000);
+        byte[] request = buildQuery(id, name, type);
+        IOException last = null;
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(TIMEOUT_MS);
+            byte[] buffer = new byte[MAX_RESPONSE];
+            for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+                for (InetAddress server : servers) {
+                    try {
+                        socket.send(new DatagramPacket(request, request.length, server, DNS_PORT));
+                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                        socket.receive(packet);
+                        if (packet.getLength() < 12 || u16(buffer, 0) != id) {
+                            continue;  // stray or late answer to an earlier attempt
+                        }
+                        try {
+                            return parse(Arrays.copyOf(buffer, packet.getLength()), type);
+                        } catch (IndexOutOfBoundsException e) {
+                            // Cut short mid-record (a truncated answer, say)
+                            throw new IOException("Malformed DNS answer for " + name);
+                        }
+                    } catch (SocketTimeoutException e) {
+                        last = e;
+                    }
+                }
+            }
+        }
+        throw last != null ? last : new IOException("No DNS answer for " + name);
+    }
+
+    private static byte[] buildQuery(int id, String name, int type) {
+        byte[] qname = name.getBytes(StandardCharsets.US_ASCII);
+        byte[] out = new byte[12 + qname.length + 2 + 4];
+        out[0] = (byte) (id >> 8);
+        out[1] = (byte) id;
+        out[2] = 0x01;  // RD
+        out[5] = 1;     // QDCOUNT
+
+        // QNAME: each dot-separated label prefixed by its length
+        int p = 12;
+        int start = 0;
+        for (int i = 0; i <= qname.length; i++) {
+            if (i == qname.length || qname[i] == '.') {
+                int len = i - start;
+                if (len > 0) {
+                    out[p++] = (byte) len;
+                    System.arraycopy(qname, start, out, p, len);
+                    p += len;
+                }
+                start = i + 1;
+            }
+        }
+        out[p++] = 0;
+        out[p++] = (byte) (type >> 8);
+        out[p++] = (byte) type;
+        out[p++] = 0;
+        out[p] = CLASS_IN;
+        return Arrays.copyOf(out, p + 1);
+    }
+
+    private static Response parse(byte[] d, int type) throws IOException {
+        int flags = u16(d, 2);
+        int rcode = flags & 0x0f;
+        if (rcode == RCODE_NXDOMAIN) {
+            return new Response(d, Collections.emptyList(), NEGATIVE_TTL_SECONDS);
+        }
+        if (rcode != 0) {
+            throw new IOException("DNS error rcode " + rcode);
+        }
+        if ((flags & 0x0200) != 0) {
+            Log.w(TAG, "Truncated DNS answer, using the records that fit");
+        }
+
+        int qdcount = u16(d, 4);
+        int ancount = u16(d, 6);
+        int p = 12;
+        for (int i = 0; i < qdcount; i++) {
+            p = skipName(d, p) + 4;
+        }
+
+        List<Record> records = new ArrayList<>();
+        long ttl = Long.MAX_VALUE;
+        for (int i = 0; i < ancount && p < d.length; i++) {
+            p = skipName(d, p);
+            int rtype = u16(d, p);
+            long rttl = ((long) u16(d, p + 4) << 16) | u16(d, p + 6);
+            int rdlength = u16(d, p + 8);
+            p += 10;
+            if (p + rdlength > d.length) {
+                break;
+            }
+            // CNAMEs come first in the answer; only the requested type matters
+            if (rtype == type) {
+                records.add(new Record(p));
+                ttl = Math.min(ttl, rttl);
+            }
+            p += rdlength;
+        }
+        return new Response(d, records, records.isEmpty() ? NEGATIVE_TTL_SECONDS : ttl);
+    }
+
+    private static int skipName(byte[] d, int p) {
+        while (p < d.length) {
+            int len = d[p] & 0xff;
+            if (len == 0) {
+                return p + 1;
+            }
+            if ((len & 0xc0) == 0xc0) {
+                return p + 2;  // compression pointer ends the name
+            }
+            p += 1 + len;
+        }
+        return p;
+    }
+
+    private static String readName(byte[] d, int p) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int jumps = 0;
+        while (true) {
+            if (p >= d.length) {
+                throw new IOException("Malformed DNS name");
+            }
+            int len = d[p] & 0xff;
+            if (len == 0) {
+                break;
+            }
+            if ((len & 0xc0) == 0xc0) {
+                if (++jumps > 16) {
+                    throw new IOException("DNS name compression loop");
+                }
+                p = ((len & 0x3f) << 8) | (d[p + 1] & 0xff);
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            sb.append(new String(d, p + 1, len, StandardCharsets.US_ASCII));
+            p += 1 + len;
+        }
+        return sb.toString();
+    }
+
+    private static String characterString(byte[] d, int p) {
+        return new String(d, p + 1, d[p] & 0xff, StandardCharsets.US_ASCII);
+    }
+
+    private static int u16(byte[] d, int p) {
+        return ((d[p] & 0xff) << 8) | (d[p + 1] & 0xff);
+    }
+}
@@ -0,0 +1,83 @@
+package com.shreeyash.gateway.sip;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+
+/**
+ * SIP over UDP: one socket, one receive thread, one reused buffer
+ */
+final class UdpTransport implements SipTransport {
+    private static final String TAG = "UdpTransport";
+
+    private static final int MAX_DATAGRAM = 65535;
+
+    private final int localPort;
+    private DatagramSocket socket;
+    private Thread receiverThread;
+    private volatile boolean running;
+
+    UdpTransport(int localPort) {
+        this.localPort = localPort;
+    }
+
+    @Override
+    public String getName() {
+        return UDP;
+    }
+
+    @Override
+    public boolean isReliable() {
+        return false;
+    }
+
+    @Override
+    public void start(Receiver receiver) throws IOException {
+        // Bind to IPv4 explicitly (0.0.0.0) to ensure we can receive from IPv4 PBX
+        // Without this, Java/Android defaults to IPv6 if available
+        socket = new DatagramSocket(localPort, InetAddress.getByName("0.0.0.0"));
+        socket.setSoTimeout(5000);  // 5 second timeout for receive
+        running = true;
+        receiverThread = new Thread(() -> receiveLoop(receiver), "SIP-Receiver");
+        receiverThread.start();
+    }
+
+    private void receiveLoop(Receiver receiver) {
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+        while (running && !Thread.interrupted()) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                receiver.onMessage(this, buffer, packet.getLength(), packet.getAddress(), packet.getPort());
+            } catch (SocketTimeoutException e) {
+                // Expected - continue loop (allows periodic checks)
+            } catch (Exception e) {
+                if (running) {
+                    Log.e(TAG, "Receive error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void send(byte[] data, InetAddress address, int port) throws IOException {
+        socket.send(new DatagramPacket(data, data.length, address, port));
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (receiverThread != null) {
+            receiverThread.interrupt();
+        }
+        if (socket != null && !socket.isClosed()) {
+            socket.close();
+        }
+    }
+}
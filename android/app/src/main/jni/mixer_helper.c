@@ -0,0 +1,430 @@
+/*
+ * Root mixer helper for the GSM gateway
+ *
+ * Runs as root (started through su by AlsaMixer.java) and keeps the ALSA
+ * control device open, so a mixer change is one line over a local socket
+ * instead of forking tinymix. Talks to the kernel with the same control
+ * ioctls tinyalsa's mixer.c uses; libtinyalsa itself is a platform-private
+ * library that apps cannot link against.
+ *
+ * Usage: libmixerhelper.so <abstract socket name> <client uid> [card]
+ *
+ * Protocol, one request per line, one reply per request:
+ *   LIST             -> "<id>\t<type>\t<count>\t<name>" per control, then "END"
+ *   GET <id>         -> "OK <value>" or "ERR <reason>"
+ *   SET <id> <value> -> "OK <value read back>" or "ERR <reason>"
+ *   QUIT             -> helper exits
+ *
+ * Ids are positions in the kernel's control list, the same numbering
+ * tinymix prints. Only the given uid (and root) may connect.
+ */
+
+#include <errno.h>
+#include <fcntl.h>
+#include <signal.h>
+#include <stddef.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <strings.h>
+#include <sys/ioctl.h>
+#include <sys/socket.h>
+#include <sys/types.h>
+#include <sys/un.h>
+#include <unistd.h>
+
+#include <sound/asound.h>
+#include <android/log.h>
+
+#define TAG "MixerHelper"
+#define LOGI(...) __android_log_print(ANDROID_LOG_INFO, TAG, __VA_ARGS__)
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, TAG, __VA_ARGS__)
+
+#define MAX_LINE 512
+#define MAX_VALUE 1024
+
+struct ctl {
+    struct snd_ctl_elem_info info;
+    char **enum_names;
+};
+
+static int mixer_fd = -1;
+static struct ctl *ctls;
+static unsigned int num_ctls;
+
+/* ==================== CONTROLS ==================== */
+
+static int load_controls(unsigned int card) {
+    char path[32];
+    snprintf(path, sizeof(path), "/dev/snd/controlC%u", card);
+    mixer_fd = open(path, O_RDWR | O_CLOEXEC);
+    if (mixer_fd < 0) {
+        LOGE("open %s: %s", path, strerror(errno));
+        return -1;
+    }
+
+    struct snd_ctl_elem_list list;
+    memset(&list, 0, sizeof(list));
+    if (ioctl(mixer_fd, SNDRV_CTL_IOCTL_ELEM_LIST, &list) < 0) {
+        LOGE("ELEM_LIST: %s", strerror(errno));
+        return -1;
+    }
+
+    struct snd_ctl_elem_id *ids = calloc(list.count, sizeof(*ids));
+    ctls = calloc(list.count, sizeof(*ctls));
+    if (ids == NULL || ctls == NULL) {
+        return -1;
+    }
+    list.space = list.count;
+    list.pids = ids;
+    if (ioctl(mixer_fd, SNDRV_CTL_IOCTL_ELEM_LIST, &list) < 0) {
+        LOGE("ELEM_LIST: %s", strerror(errno));
+        return -1;
+    }
+    num_ctls = list.used;
+
+    for (unsigned int i = 0; i < num_ctls; i++) {
+        struct ctl *c = &ctls[i];
+        c->info.id.numid = ids[i].numid;
+        if (ioctl(mixer_fd, SNDRV_CTL_IOCTL_ELEM_INFO, &c->info) < 0) {
+            continue;
+        }
+        if (c->info.type != SNDRV_CTL_ELEM_TYPE_ENUMERATED) {
+            continue;
+        }
+        unsigned int items = c->info.value.enumerated.items;
+        c->enum_names = calloc(items, sizeof(char *));
+        for (unsigned int j = 0; c->enum_names != NULL && j < items; j++) {
+            struct snd_ctl_elem_info item = c->info;
+            item.value.enumerated.item = j;
+            if (ioctl(mixer_fd, SNDRV_CTL_IOCTL_ELEM_INFO, &item) == 0) {
+                c->enum_names[j] = strdup(item.value.enumerated.name);
+            }
+        }
+    }
+
+    free(ids);
+    LOGI("card %u: %u controls", card, num_ctls);
+    return 0;
+}
+
+static const char *type_name(const struct ctl *c) {
+    switch (c->info.type) {
+        case SNDRV_CTL_ELEM_TYPE_BOOLEAN:    return "BOOL";
+        case SNDRV_CTL_ELEM_TYPE_INTEGER:    return "INT";
+        case SNDRV_CTL_ELEM_TYPE_ENUMERATED: return "ENUM";
+        case SNDRV_CTL_ELEM_TYPE_BYTES:      return "BYTE";
+        case SNDRV_CTL_ELEM_TYPE_IEC958:     return "IEC958";
+        case SNDRV_CTL_ELEM_TYPE_INTEGER64:  return "INT64";
+        default:                             return "UNKNOWN";
+    }
+}
+
+/* Number of values the value struct can carry for this control */
+static unsigned int value_count(const struct ctl *c) {
+    unsigned int max;
+    switch (c->info.type) {
+        case SNDRV_CTL_ELEM_TYPE_INTEGER64: max = 64; break;
+        case SNDRV_CTL_ELEM_TYPE_BYTES:     max = 512; break;
+        default:                            max = 128; break;
+    }
+    return c->info.count < max ? c->info.count : max;
+}
+
+static int read_value(const struct ctl *c, char *out, size_t len) {
+    struct snd_ctl_elem_value ev;
+    memset(&ev, 0, sizeof(ev));
+    ev.id.numid = c->info.id.numid;
+    if (ioctl(mixer_fd, SNDRV_CTL_IOCTL_ELEM_READ, &ev) < 0) {
+        return -errno;
+    }
+
+    size_t pos = 0;
+    out[0] = '\0';
+    unsigned int count = value_count(c);
+    for (unsigned int i = 0; i < count && pos < len; i++) {
+        const char *sep = i > 0 ? " " : "";
+        switch (c->info.type) {
+            case SNDRV_CTL_ELEM_TYPE_BOOLEAN:
+            case SNDRV_CTL_ELEM_TYPE_INTEGER:
+                pos += snprintf(out + pos, len - pos, "%s%ld", sep, ev.value.integer.value[i]);
+                break;
+            case SNDRV_CTL_ELEM_TYPE_INTEGER64:
+                pos += snprintf(out + pos, len - pos, "%s%lld", sep,
+                                (long long) ev.value.integer64.value[i]);
+                break;
+            case SNDRV_CTL_ELEM_TYPE_ENUMERATED: {
+                /* Enum names may hold spaces, so only the first value is shown, as tinymix does */
+                unsigned int item = ev.value.enumerated.item[0];
+                const char *name = c->enum_names != NULL && item < c->info.value.enumerated.items
+                                   ? c->enum_names[item] : NULL;
+                if (name != NULL) {
+                    snprintf(out, len, "%s", name);
+                } else {
+                    snprintf(out, len, "%u", item);
+                }
+                return 0;
+            }
+            case SNDRV_CTL_ELEM_TYPE_BYTES:
+                pos += snprintf(out + pos, len - pos, "%s%02x", sep, ev.value.bytes.data[i]);
+                break;
+            default:
+                snprintf(out, len, "?");
+                return 0;
+        }
+    }
+    return 0;
+}
+
+static int parse_number(const struct ctl *c, const char *token, long long *value) {
+    if (strcasecmp(token, "on") == 0) {
+        *value = 1;
+        return 0;
+    }
+    if (strcasecmp(token, "off") == 0) {
+        *value = 0;
+        return 0;
+    }
+    char *end;
+    errno = 0;
+    long long v = strtoll(token, &end, 0);
+    if (errno != 0 || end == token || *end != '\0') {
+        return -EINVAL;
+    }
+    if (c->info.type == SNDRV_CTL_ELEM_TYPE_INTEGER &&
+        (v < c->info.value.integer.min || v > c->info.value.integer.max)) {
+        return -ERANGE;
+    }
+    *value = v;
+    return 0;
+}
+
+/*
+ * One value is applied to every channel; several are applied in order,
+ * leaving the remaining channels as they were
+ */
+static int write_value(const struct ctl *c, char *value) {
+    struct snd_ctl_elem_value ev;
+    memset(&ev, 0, sizeof(ev));
+    ev.id.numid = c->info.id.numid;
+    if (ioctl(mixer_fd, SNDRV_CTL_IOCTL_ELEM_READ, &ev) < 0) {
+        return -errno;
+    }
+    unsigned int count = value_count(c);
+
+    if (c->info.type == SNDRV_CTL_ELEM_TYPE_ENUMERATED) {
+        unsigned int items = c->info.value.enumerated.items;
+        unsigned int item = items;
+        for (unsigned int j = 0; c->enum_names != NULL && j < items; j++) {
+            if (c->enum_names[j] != NULL && strcmp(c->enum_names[j], value) == 0) {
+                item = j;
+                break;
+            }
+        }
+        if (item == items) {
+            char *end;
+            unsigned long v = strtoul(value, &end, 0);
+            if (end == value || *end != '\0' || v >= items) {
+                return -EINVAL;
+            }
+            item = (unsigned int) v;
+        }
+        for (unsigned int i = 0; i < count; i++) {
+            ev.value.enumerated.item[i] = item;
+        }
+    } else if (c->info.type == SNDRV_CTL_ELEM_TYPE_BOOLEAN ||
+               c->info.type == SNDRV_CTL_ELEM_TYPE_INTEGER ||
+               c->info.type == SNDRV_CTL_ELEM_TYPE_INTEGER64) {
+        long long values[128];
+        unsigned int n = 0;
+        char *save;
+        for (char *tok = strtok_r(value, " \t", &save); tok != NULL && n < count;
+             tok = strtok_r(NULL, " \t", &save)) {
+            int err = parse_number(c, tok, &values[n]);
+            if (err < 0) {
+                return err;
+            }
+            n++;
+        }
+        if (n == 0) {
+            return -EINVAL;
+        }
+        unsigned int last = n == 1 ? count : n;
+        for (unsigned int i = 0; i < last; i++) {
+            long long v = values[n == 1 ? 0 : i];
+            if (c->info.type == SNDRV_CTL_ELEM_TYPE_INTEGER64) {
+                ev.value.integer64.value[i] = v;
+            } else {
+                ev.value.integer.value[i] = (long) v;
+            }
+        }
+    } else {
+        return -EOPNOTSUPP;
+    }
+
+    if (ioctl(mixer_fd, SNDRV_CTL_IOCTL_ELEM_WRITE, &ev) < 0) {
+        return -errno;
+    }
+    return 0;
+}
+
+/* ==================== REQUESTS ==================== */
+
+static const struct ctl *lookup(char **args) {
+    char *end;
+    char *id = strtok_r(NULL, " ", args);
+    if (id == NULL) {
+        return NULL;
+    }
+    unsigned long n = strtoul(id, &end, 10);
+    if (end == id || *end != '\0' || n >= num_ctls) {
+        return NULL;
+    }
+    return &ctls[n];
+}
+
+static int handle(char *line, FILE *out) {
+    char value[MAX_VALUE];
+    char *args;
+    char *cmd = strtok_r(line, " ", &args);
+    if (cmd == NULL) {
+        return 0;
+    }
+
+    if (strcmp(cmd, "LIST") == 0) {
+        for (unsigned int i = 0; i < num_ctls; i++) {
+            fprintf(out, "%u\t%s\t%u\t%s\n", i, type_name(&ctls[i]), ctls[i].info.count,
+                    (const char *) ctls[i].info.id.name);
+        }
+        fputs("END\n", out);
+    } else if (strcmp(cmd, "GET") == 0 || strcmp(cmd, "SET") == 0) {
+        const struct ctl *c = lookup(&args);
+        int err = 0;
+        if (c == NULL) {
+            fputs("ERR no such control\n", out);
+            return 0;
+        }
+        if (cmd[0] == 'S') {
+            /* The rest of the line is the value, spaces included */
+            err = args != NULL && *args != '\0' ? write_value(c, args) : -EINVAL;
+        }
+        if (err == 0) {
+            err = read_value(c, value, sizeof(value));
+        }
+        if (err < 0) {
+            fprintf(out, "ERR %s\n", strerror(-err));
+        } else {
+            fprintf(out, "OK %s\n", value);
+        }
+    } else if (strcmp(cmd, "QUIT") == 0) {
+        return -1;
+    } else {
+        fputs("ERR unknown request\n", out);
+    }
+    return 0;
+}
+
+/* @return -1 if the client asked the helper to exit */
+static int serve(int fd) {
+    FILE *out = fdopen(fd, "w");
+    if (out == NULL) {
+        close(fd);
+        return 0;
+    }
+
+    char buf[4 * MAX_LINE];
+    size_t used = 0;
+    int result = 0;
+    while (result == 0) {
+        ssize_t n = read(fd, buf + used, sizeof(buf) - used - 1);
+        if (n <= 0) {
+            break;
+        }
+        used += (size_t) n;
+        buf[used] = '\0';
+
+        /* Answer every complete line received, then flush once, so a
+           pipelined batch costs the client a single round trip */
+        char *line = buf;
+        char *nl;
+        while (result == 0 && (nl = strchr(line, '\n')) != NULL) {
+            *nl = '\0';
+            if (nl > line && nl[-1] == '\r') {
+                nl[-1] = '\0';
+            }
+            result = handle(line, out);
+            line = nl + 1;
+        }
+        fflush(out);
+
+        used -= (size_t) (line - buf);
+        memmove(buf, line, used);
+        if (used == sizeof(buf) - 1) {
+            break;  /* request line too long */
+        }
+    }
+    fclose(out);
+    return result;
+}
+
+/* ==================== MAIN ==================== */
+
+int main(int argc, char **argv) {
+    if (argc < 3) {
+        fprintf(stderr, "usage: %s <socket name> <client uid> [card]\n", argv[0]);
+        return 2;
+    }
+    const char *name = argv[1];
+    uid_t client_uid = (uid_t) strtoul(argv[2], NULL, 10);
+    unsigned int card = argc > 3 ? (unsigned int) strtoul(argv[3], NULL, 10) : 0;
+
+    signal(SIGPIPE, SIG_IGN);
+
+    size_t name_len = strlen(name);
+    struct sockaddr_un addr;
+    if (name_len + 1 > sizeof(addr.sun_path)) {
+        return 2;
+    }
+    memset(&addr, 0, sizeof(addr));
+    addr.sun_family = AF_UNIX;
+    memcpy(addr.sun_path + 1, name, name_len);  /* abstract namespace, like LocalSocketAddress */
+    socklen_t addr_len = (socklen_t) (offsetof(struct sockaddr_un, sun_path) + 1 + name_len);
+
+    int server = socket(AF_UNIX, SOCK_STREAM | SOCK_CLOEXEC, 0);
+    if (server < 0 || bind(server, (struct sockaddr *) &addr, addr_len) < 0 ||
+        listen(server, 2) < 0) {
+        /* Most likely another helper already owns the name */
+        LOGE("bind @%s: %s", name, strerror(errno));
+        return 1;
+    }
+    if (load_controls(card) < 0) {
+        return 1;
+    }
+    LOGI("listening on @%s for uid %u", name, (unsigned int) client_uid);
+
+    for (;;) {
+        int fd = accept4(server, NULL, NULL, SOCK_CLOEXEC);
+        if (fd < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            LOGE("accept: %s", strerror(errno));
+            return 1;
+        }
+
+        struct ucred cred;
+        socklen_t cred_len = sizeof(cred);
+        if (getsockopt(fd, SOL_SOCKET, SO_PEERCRED, &cred, &cred_len) < 0 ||
+            (cred.uid != client_uid && cred.uid != 0)) {
+            LOGE("rejected client uid %u", (unsigned int) cred.uid);
+            close(fd);
+            continue;
+        }
+        if (serve(fd) < 0) {
+            break;
+        }
+    }
+
+    LOGI("exiting");
+    return 0;
+}
@@ -0,0 +1,560 @@
+/*
+ * Root PCM helper for the GSM gateway
+ *
+ * Runs as root for one call (started through su by PcmHelper.java), opens
+ * the voice capture and injection PCM devices of the sound card with an
+ * explicit period size and count, and moves audio between them and two
+ * shared-memory rings the app maps (pcm_ring.h). This replaces piping
+ * through tinycap and tinyplay: no WAV headers, no pipe buffering, and the
+ * period size is ours rather than tinycap's default. The devices are
+ * driven with the PCM ioctls behind tinyalsa's pcm_readi()/pcm_writei();
+ * libtinyalsa itself is a platform-private library that apps cannot link
+ * against.
+ *
+ * Usage: libpcmhelper.so <abstract socket name> <client uid> [card]
+ *
+ * Protocol, one request per line:
+ *   OPEN <capture dev> <playback dev> <rate> <period frames> <capture periods> <playback periods>
+ *                    -> "OK <ring bytes> <capture 0|1> <playback 0|1>" with the
+ *                       ring memfd attached (SCM_RIGHTS), or "ERR <reason>";
+ *                       a device of -1 is not opened
+ *   STOP capture|playback -> that stream is stopped and its device closed
+ *   QUIT             -> helper exits, as it does when the client goes away
+ *
+ * Audio is 16-bit little-endian mono. Only the given uid (and root) may
+ * connect, and only one client is served.
+ */
+
+#include <errno.h>
+#include <fcntl.h>
+#include <limits.h>
+#include <pthread.h>
+#include <sched.h>
+#include <signal.h>
+#include <stddef.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/ioctl.h>
+#include <sys/mman.h>
+#include <sys/socket.h>
+#include <sys/syscall.h>
+#include <sys/types.h>
+#include <sys/un.h>
+#include <unistd.h>
+
+#include <sound/asound.h>
+#include <android/log.h>
+
+#include "pcm_ring.h"
+
+#define TAG "PcmHelper"
+#define LOGI(...) __android_log_print(ANDROID_LOG_INFO, TAG, __VA_ARGS__)
+#define LOGW(...) __android_log_print(ANDROID_LOG_WARN, TAG, __VA_ARGS__)
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, TAG, __VA_ARGS__)
+
+#define MAX_LINE 256
+#define FRAME_BYTES 2            /* S16_LE mono */
+#define RING_PERIODS 16          /* ring capacity, in periods (rounded up) */
+#define MAX_QUEUED_PERIODS 4     /* playback beyond this is dropped to bound latency */
+#define RT_PRIORITY 2            /* SCHED_FIFO, below the audio HAL's threads */
+
+#ifndef MFD_CLOEXEC
+#define MFD_CLOEXEC 0x0001U
+#endif
+
+struct stream {
+    int dir;                     /* PCM_RING_CAPTURE or PCM_RING_PLAYBACK */
+    int fd;
+    unsigned int device;
+    unsigned int period_frames;  /* as granted by the driver */
+    unsigned int periods;
+    pthread_t thread;
+    int running;
+    atomic_int stop;
+};
+
+static struct pcm_shm *shm;
+static struct stream streams[2];
+
+/* ==================== PCM DEVICE ==================== */
+
+static struct snd_mask *param_mask(struct snd_pcm_hw_params *p, int n) {
+    return &p->masks[n - SNDRV_PCM_HW_PARAM_FIRST_MASK];
+}
+
+static struct snd_interval *param_interval(struct snd_pcm_hw_params *p, int n) {
+    return &p->intervals[n - SNDRV_PCM_HW_PARAM_FIRST_INTERVAL];
+}
+
+static void param_init(struct snd_pcm_hw_params *p) {
+    memset(p, 0, sizeof(*p));
+    for (int n = SNDRV_PCM_HW_PARAM_FIRST_MASK; n <= SNDRV_PCM_HW_PARAM_LAST_MASK; n++) {
+        struct snd_mask *m = param_mask(p, n);
+        m->bits[0] = ~0U;
+        m->bits[1] = ~0U;
+    }
+    for (int n = SNDRV_PCM_HW_PARAM_FIRST_INTERVAL; n <= SNDRV_PCM_HW_PARAM_LAST_INTERVAL; n++) {
+        struct snd_interval *i = param_interval(p, n);
+        i->min = 0;
+        i->max = ~0U;
+    }
+    p->rmask = ~0U;
+    p->info = ~0U;
+}
+
+static void param_set_mask(struct snd_pcm_hw_params *p, int n, unsigned int bit) {
+    struct snd_mask *m = param_mask(p, n);
+    memset(m->bits, 0, sizeof(m->bits));
+    m->bits[bit >> 5] |= 1U << (bit & 31);
+}
+
+static void param_set_min(struct snd_pcm_hw_params *p, int n, unsigned int value) {
+    param_interval(p, n)->min = value;
+}
+
+static void param_set_int(struct snd_pcm_hw_params *p, int n, unsigned int value) {
+    struct snd_interval *i = param_interval(p, n);
+    i->min = value;
+    i->max = value;
+    i->integer = 1;
+}
+
+/*
+ * Open and prepare a PCM the way tinyalsa's pcm_open() does, asking for
+ * at least period_frames per period
+ *
+ * @return 0, or -errno
+ */
+static int pcm_open(struct stream *s, unsigned int card, unsigned int rate,
+                    unsigned int period_frames, unsigned int periods) {
+    char path[32];
+    snprintf(path, sizeof(path), "/dev/snd/pcmC%uD%u%c", card, s->device,
+             s->dir == PCM_RING_CAPTURE ? 'c' : 'p');
+    s->fd = open(path, O_RDWR | O_CLOEXEC);
+    if (s->fd < 0) {
+        int err = -errno;
+        LOGE("open %s: %s", path, strerror(errno));
+        return err;
+    }
+
+    struct snd_pcm_hw_params hw;
+    param_init(&hw);
+    param_set_mask(&hw, SNDRV_PCM_HW_PARAM_ACCESS, SNDRV_PCM_ACCESS_RW_INTERLEAVED);
+    param_set_mask(&hw, SNDRV_PCM_HW_PARAM_FORMAT, SNDRV_PCM_FORMAT_S16_LE);
+    param_set_mask(&hw, SNDRV_PCM_HW_PARAM_SUBFORMAT, SNDRV_PCM_SUBFORMAT_STD);
+    param_set_min(&hw, SNDRV_PCM_HW_PARAM_PERIOD_SIZE, period_frames);
+    param_set_int(&hw, SNDRV_PCM_HW_PARAM_SAMPLE_BITS, 16);
+    param_set_int(&hw, SNDRV_PCM_HW_PARAM_FRAME_BITS, 16);
+    param_set_int(&hw, SNDRV_PCM_HW_PARAM_CHANNELS, 1);
+    param_set_int(&hw, SNDRV_PCM_HW_PARAM_PERIODS, periods);
+    param_set_int(&hw, SNDRV_PCM_HW_PARAM_RATE, rate);
+    if (ioctl(s->fd, SNDRV_PCM_IOCTL_HW_PARAMS, &hw) < 0) {
+        int err = -errno;
+        LOGE("%s HW_PARAMS (%u Hz, %u x %u frames): %s", path, rate, periods, period_frames,
+             strerror(errno));
+        return err;
+    }
+    s->period_frames = param_interval(&hw, SNDRV_PCM_HW_PARAM_PERIOD_SIZE)->min;
+    s->periods = param_interval(&hw, SNDRV_PCM_HW_PARAM_PERIODS)->min;
+    unsigned int buffer_frames = s->period_frames * s->periods;
+
+    struct snd_pcm_sw_params sw;
+    memset(&sw, 0, sizeof(sw));
+    sw.tstamp_mode = SNDRV_PCM_TSTAMP_NONE;
+    sw.period_step = 1;
+    sw.avail_min = s->period_frames;
+    /* Capture starts on the first read; playback once the buffer is primed */
+    sw.start_threshold = s->dir == PCM_RING_CAPTURE ? 1 : buffer_frames;
+    sw.stop_threshold = buffer_frames;
+    sw.boundary = buffer_frames;
+    while (sw.boundary * 2 <= INT_MAX - buffer_frames) {
+        sw.boundary *= 2;
+    }
+    if (ioctl(s->fd, SNDRV_PCM_IOCTL_SW_PARAMS, &sw) < 0) {
+        int err = -errno;
+        LOGE("%s SW_PARAMS: %s", path, strerror(errno));
+        return err;
+    }
+    if (ioctl(s->fd, SNDRV_PCM_IOCTL_PREPARE) < 0) {
+        int err = -errno;
+        LOGE("%s PREPARE: %s", path, strerror(errno));
+        return err;
+    }
+
+    LOGI("%s: %u Hz, %u periods of %u frames", path, rate, s->periods, s->period_frames);
+    return 0;
+}
+
+/*
+ * Transfer one period, recovering from over/underruns as pcm_readi() and
+ * pcm_writei() do
+ *
+ * @return 0, or -errno for an error the stream cannot continue after
+ */
+static int pcm_transfer(struct stream *s, void *buf) {
+    for (;;) {
+        struct snd_xferi x;
+        x.result = 0;
+        x.buf = buf;
+        x.frames = s->period_frames;
+        unsigned long request = s->dir == PCM_RING_CAPTURE
+                                ? SNDRV_PCM_IOCTL_READI_FRAMES : SNDRV_PCM_IOCTL_WRITEI_FRAMES;
+        if (ioctl(s->fd, request, &x) == 0) {
+            return 0;
+        }
+        if (errno == EINTR) {
+            continue;
+        }
+        if (errno != EPIPE && errno != ESTRPIPE) {
+            return -errno;
+        }
+        atomic_fetch_add_explicit(&shm->xruns[s->dir], 1, memory_order_relaxed);
+        if (ioctl(s->fd, SNDRV_PCM_IOCTL_PREPARE) < 0) {
+            return -errno;
+        }
+    }
+}
+
+/* ==================== STREAMS ==================== */
+
+static void *capture_loop(void *arg) {
+    struct stream *s = arg;
+    uint32_t bytes = s->period_frames * FRAME_BYTES;
+    uint8_t *period = calloc(1, bytes);
+    int err = period != NULL ? 0 : -ENOMEM;
+
+    while (err == 0 && !atomic_load(&s->stop)) {
+        err = pcm_transfer(s, period);
+        if (err < 0) {
+            break;
+        }
+        if (pcm_ring_space(shm, PCM_RING_CAPTURE) < bytes) {
+            /* The app is not reading; newest audio is dropped, never torn */
+            atomic_fetch_add_explicit(&shm->xruns[PCM_RING_CAPTURE], 1, memory_order_relaxed);
+            continue;
+        }
+        pcm_ring_put(shm, PCM_RING_CAPTURE, period, bytes);
+    }
+
+    if (err < 0 && !atomic_load(&s->stop)) {
+        LOGE("capture stopped: %s", strerror(-err));
+    }
+    free(period);
+    atomic_store_explicit(&shm->stopped[PCM_RING_CAPTURE], 1, memory_order_release);
+    return NULL;
+}
+
+static void *playback_loop(void *arg) {
+    struct stream *s = arg;
+    uint32_t bytes = s->period_frames * FRAME_BYTES;
+    uint8_t *period = calloc(1, bytes);
+    int err = period != NULL ? 0 : -ENOMEM;
+
+    while (err == 0 && !atomic_load(&s->stop)) {
+        uint32_t avail = pcm_ring_avail(shm, PCM_RING_PLAYBACK);
+        if (avail > bytes * MAX_QUEUED_PERIODS) {
+            /* The app ran ahead of the device clock: drop the oldest audio */
+            uint32_t excess = avail - bytes * MAX_QUEUED_PERIODS;
+            pcm_ring_skip(shm, PCM_RING_PLAYBACK, excess - excess % FRAME_BYTES);
+            avail -= excess - excess % FRAME_BYTES;
+        }
+        if (avail >= bytes) {
+            pcm_ring_get(shm, PCM_RING_PLAYBACK, period, bytes);
+        } else {
+            /* Nothing due yet: keep the device fed so it never underruns */
+            memset(period, 0, bytes);
+            atomic_fetch_add_explicit(&shm->xruns[PCM_RING_PLAYBACK], 1, memory_order_relaxed);
+        }
+        err = pcm_transfer(s, period);
+    }
+
+    if (err < 0 && !atomic_load(&s->stop)) {
+        LOGE("playback stopped: %s", strerror(-err));
+    }
+    free(period);
+    atomic_store_explicit(&shm->stopped[PCM_RING_PLAYBACK], 1, memory_order_release);
+    return NULL;
+}
+
+static int start_stream(struct stream *s) {
+    pthread_attr_t attr;
+    pthread_attr_init(&attr);
+    pthread_attr_setinheritsched(&attr, PTHREAD_EXPLICIT_SCHED);
+    pthread_attr_setschedpolicy(&attr, SCHED_FIFO);
+    struct sched_param param = { .sched_priority = RT_PRIORITY };
+    pthread_attr_setschedparam(&attr, &param);
+
+    void *(*loop)(void *) = s->dir == PCM_RING_CAPTURE ? capture_loop : playback_loop;
+    int err = pthread_create(&s->thread, &attr, loop, s);
+    if (err != 0) {
+        LOGW("no realtime priority (%s), running at normal priority", strerror(err));
+        err = pthread_create(&s->thread, NULL, loop, s);
+    }
+    pthread_attr_destroy(&attr);
+    if (err != 0) {
+        return -err;
+    }
+    s->running = 1;
+    return 0;
+}
+
+static void stop_stream(struct stream *s) {
+    if (s->running) {
+        atomic_store(&s->stop, 1);
+        ioctl(s->fd, SNDRV_PCM_IOCTL_DROP);  /* wakes a blocked read or write */
+        pthread_join(s->thread, NULL);
+        s->running = 0;
+    }
+    if (s->fd >= 0) {
+        close(s->fd);
+        s->fd = -1;
+        LOGI("%s stream closed", s->dir == PCM_RING_CAPTURE ? "capture" : "playback");
+    }
+}
+
+/* ==================== REQUESTS ==================== */
+
+static int create_rings(uint32_t size) {
+    int fd = (int) syscall(__NR_memfd_create, "pcm_ring", MFD_CLOEXEC);
+    if (fd < 0) {
+        LOGE("memfd_create: %s", strerror(errno));
+        return -1;
+    }
+    size_t length = pcm_shm_length(size);
+    if (ftruncate(fd, (off_t) length) < 0) {
+        LOGE("ftruncate: %s", strerror(errno));
+        close(fd);
+        return -1;
+    }
+    void *mem = mmap(NULL, length, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+    if (mem == MAP_FAILED) {
+        LOGE("mmap: %s", strerror(errno));
+        close(fd);
+        return -1;
+    }
+    shm = mem;
+    shm->size = size;
+    shm->magic = PCM_RING_MAGIC;
+    return fd;
+}
+
+static void reply(int fd, const char *text, int ring_fd) {
+    struct iovec iov = { .iov_base = (void *) text, .iov_len = strlen(text) };
+    struct msghdr msg;
+    memset(&msg, 0, sizeof(msg));
+    msg.msg_iov = &iov;
+    msg.msg_iovlen = 1;
+
+    char control[CMSG_SPACE(sizeof(int))];
+    if (ring_fd >= 0) {
+        memset(control, 0, sizeof(control));
+        msg.msg_control = control;
+        msg.msg_controllen = sizeof(control);
+        struct cmsghdr *cmsg = CMSG_FIRSTHDR(&msg);
+        cmsg->cmsg_level = SOL_SOCKET;
+        cmsg->cmsg_type = SCM_RIGHTS;
+        cmsg->cmsg_len = CMSG_LEN(sizeof(int));
+        memcpy(CMSG_DATA(cmsg), &ring_fd, sizeof(int));
+    }
+    if (sendmsg(fd, &msg, MSG_NOSIGNAL) < 0) {
+        LOGE("sendmsg: %s", strerror(errno));
+    }
+}
+
+static void handle_open(int fd, char *args, unsigned int card) {
+    int cap_dev, play_dev;
+    unsigned int rate, period_frames, cap_periods, play_periods;
+    char text[MAX_LINE];
+    if (shm != NULL) {
+        reply(fd, "ERR already open\n", -1);
+        return;
+    }
+    if (sscanf(args, "%d %d %u %u %u %u", &cap_dev, &play_dev, &rate, &period_frames,
+               &cap_periods, &play_periods) != 6 ||
+        rate == 0 || period_frames == 0 || cap_periods < 2 || play_periods < 2) {
+        reply(fd, "ERR bad request\n", -1);
+        return;
+    }
+
+    int devices[2] = { cap_dev, play_dev };
+    unsigned int periods[2] = { cap_periods, play_periods };
+    int err = -ENODEV;
+    int opened = 0;
+    for (int dir = 0; dir < 2; dir++) {
+        if (devices[dir] < 0) {
+            continue;
+        }
+        streams[dir].device = (unsigned int) devices[dir];
+        int e = pcm_open(&streams[dir], card, rate, period_frames, periods[dir]);
+        if (e < 0) {
+            err = e;
+            if (streams[dir].fd >= 0) {
+                close(streams[dir].fd);
+                streams[dir].fd = -1;
+            }
+        } else {
+            opened++;
+        }
+    }
+    if (opened == 0) {
+        snprintf(text, sizeof(text), "ERR %s\n", strerror(-err));
+        reply(fd, text, -1);
+        return;
+    }
+
+    /* Room for RING_PERIODS of the larger granted period, as a power of two */
+    unsigned int granted = 0;
+    for (int dir = 0; dir < 2; dir++) {
+        if (streams[dir].fd >= 0 && streams[dir].period_frames > granted) {
+            granted = streams[dir].period_frames;
+        }
+    }
+    uint32_t size = 4096;
+    while (size < granted * FRAME_BYTES * RING_PERIODS) {
+        size <<= 1;
+    }
+    int ring_fd = create_rings(size);
+    if (ring_fd < 0) {
+        reply(fd, "ERR no shared memory\n", -1);
+        return;
+    }
+    for (int dir = 0; dir < 2; dir++) {
+        if (streams[dir].fd < 0) {
+            atomic_store(&shm->stopped[dir], 1);
+        } else if (start_stream(&streams[dir]) < 0) {
+            atomic_store(&shm->stopped[dir], 1);
+            stop_stream(&streams[dir]);
+        }
+    }
+
+    snprintf(text, sizeof(text), "OK %u %d %d\n", size, streams[PCM_RING_CAPTURE].running,
+             streams[PCM_RING_PLAYBACK].running);
+    reply(fd, text, ring_fd);
+    close(ring_fd);  /* the mapping and the client's copy keep it alive */
+}
+
+/* @return -1 if the helper should exit */
+static int handle(int fd, char *line, unsigned int card) {
+    char *args;
+    char *cmd = strtok_r(line, " ", &args);
+    if (cmd == NULL) {
+        return 0;
+    }
+
+    if (strcmp(cmd, "OPEN") == 0) {
+        handle_open(fd, args != NULL ? args : "", card);
+    } else if (strcmp(cmd, "STOP") == 0) {
+        if (args != NULL && strcmp(args, "capture") == 0) {
+            stop_stream(&streams[PCM_RING_CAPTURE]);
+        } else if (args != NULL && strcmp(args, "playback") == 0) {
+            stop_stream(&streams[PCM_RING_PLAYBACK]);
+        }
+    } else if (strcmp(cmd, "QUIT") == 0) {
+        return -1;
+    } else {
+        reply(fd, "ERR unknown request\n", -1);
+    }
+    return 0;
+}
+
+static void serve(int fd, unsigned int card) {
+    char buf[4 * MAX_LINE];
+    size_t used = 0;
+    int result = 0;
+    while (result == 0) {
+        ssize_t n = read(fd, buf + used, sizeof(buf) - used - 1);
+        if (n < 0 && errno == EINTR) {
+            continue;
+        }
+        if (n <= 0) {
+            break;
+        }
+        used += (size_t) n;
+        buf[used] = '\0';
+
+        char *line = buf;
+        char *nl;
+        while (result == 0 && (nl = strchr(line, '\n')) != NULL) {
+            *nl = '\0';
+            if (nl > line && nl[-1] == '\r') {
+                nl[-1] = '\0';
+            }
+            result = handle(fd, line, card);
+            line = nl + 1;
+        }
+
+        used -= (size_t) (line - buf);
+        memmove(buf, line, used);
+        if (used == sizeof(buf) - 1) {
+            break;  /* request line too long */
+        }
+    }
+    close(fd);
+}
+
+/* ==================== MAIN ==================== */
+
+int main(int argc, char **argv) {
+    if (argc < 3) {
+        fprintf(stderr, "usage: %s <socket name> <client uid> [card]\n", argv[0]);
+        return 2;
+    }
+    const char *name = argv[1];
+    uid_t client_uid = (uid_t) strtoul(argv[2], NULL, 10);
+    unsigned int card = argc > 3 ? (unsigned int) strtoul(argv[3], NULL, 10) : 0;
+
+    signal(SIGPIPE, SIG_IGN);
+    for (int dir = 0; dir < 2; dir++) {
+        streams[dir].dir = dir;
+        streams[dir].fd = -1;
+    }
+
+    size_t name_len = strlen(name);
+    struct sockaddr_un addr;
+    if (name_len + 1 > sizeof(addr.sun_path)) {
+        return 2;
+    }
+    memset(&addr, 0, sizeof(addr));
+    addr.sun_family = AF_UNIX;
+    memcpy(addr.sun_path + 1, name, name_len);  /* abstract namespace, like LocalSocketAddress */
+    socklen_t addr_len = (socklen_t) (offsetof(struct sockaddr_un, sun_path) + 1 + name_len);
+
+    int server = socket(AF_UNIX, SOCK_STREAM | SOCK_CLOEXEC, 0);
+    if (server < 0 || bind(server, (struct sockaddr *) &addr, addr_len) < 0 ||
+        listen(server, 1) < 0) {
+        /* Most likely another helper already owns the name */
+        LOGE("bind @%s: %s", name, strerror(errno));
+        return 1;
+    }
+    LOGI("listening on @%s for uid %u", name, (unsigned int) client_uid);
+
+    for (;;) {
+        int fd = accept4(server, NULL, NULL, SOCK_CLOEXEC);
+        if (fd < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            LOGE("accept: %s", strerror(errno));
+            return 1;
+        }
+
+        struct ucred cred;
+        socklen_t cred_len = sizeof(cred);
+        if (getsockopt(fd, SOL_SOCKET, SO_PEERCRED, &cred, &cred_len) < 0 ||
+            (cred.uid != client_uid && cred.uid != 0)) {
+            LOGE("rejected client uid %u", (unsigned int) cred.uid);
+            close(fd);
+            continue;
+        }
+        /* One call per helper: the name is released for the next one */
+        close(server);
+        serve(fd, card);
+        break;
+    }
+
+    stop_stream(&streams[PCM_RING_CAPTURE]);
+    stop_stream(&streams[PCM_RING_PLAYBACK]);
+    LOGI("exiting");
+    return 0;
+}
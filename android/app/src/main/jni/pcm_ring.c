@@ -0,0 +1,128 @@
+/*
+ * App side of the PCM helper's shared-memory rings (see pcm_ring.h)
+ *
+ * Native only so the ring positions get acquire/release ordering: plain
+ * Java accesses to a MappedByteBuffer do not order the PCM bytes against
+ * the position that publishes them on ARM.
+ */
+
+#include <errno.h>
+#include <jni.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#include <android/log.h>
+
+#include "pcm_ring.h"
+
+#define TAG "PcmRing"
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, TAG, __VA_ARGS__)
+
+static inline struct pcm_shm *shm_of(jlong handle) {
+    return (struct pcm_shm *) (intptr_t) handle;
+}
+
+/* Map the ring memfd and take ownership of fd; 0 on failure */
+JNIEXPORT jlong JNICALL
+Java_com_shreeyash_gateway_PcmHelper_nativeMap(JNIEnv *env, jclass clazz, jint fd, jint size) {
+    (void) env;
+    (void) clazz;
+    if (size <= 0 || (size & (size - 1)) != 0) {
+        close(fd);
+        return 0;
+    }
+    size_t length = pcm_shm_length((uint32_t) size);
+    /* Mapping past the end of the file would SIGBUS on first touch */
+    struct stat st;
+    if (fstat(fd, &st) != 0 || st.st_size < 0 || (size_t) st.st_size < length) {
+        LOGE("ring fd too small for %d-byte rings", size);
+        close(fd);
+        return 0;
+    }
+    void *mem = mmap(NULL, length, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+    close(fd);
+    if (mem == MAP_FAILED) {
+        LOGE("mmap: %s", strerror(errno));
+        return 0;
+    }
+    struct pcm_shm *shm = mem;
+    if (shm->magic != PCM_RING_MAGIC || shm->size != (uint32_t) size) {
+        LOGE("not a PCM ring");
+        munmap(mem, length);
+        return 0;
+    }
+    return (jlong) (intptr_t) shm;
+}
+
+JNIEXPORT void JNICALL
+Java_com_shreeyash_gateway_PcmHelper_nativeUnmap(JNIEnv *env, jclass clazz, jlong handle) {
+    (void) env;
+    (void) clazz;
+    struct pcm_shm *shm = shm_of(handle);
+    munmap(shm, pcm_shm_length(shm->size));
+}
+
+/* Read capture bytes, whole samples only; -1 once the helper stopped and the ring is empty */
+JNIEXPORT jint JNICALL
+Java_com_shreeyash_gateway_PcmHelper_nativeRead(JNIEnv *env, jclass clazz, jlong handle,
+                                                jbyteArray buffer, jint offset, jint length) {
+    (void) clazz;
+    struct pcm_shm *shm = shm_of(handle);
+    uint32_t n = pcm_ring_avail(shm, PCM_RING_CAPTURE);
+    if (n == 0) {
+        return atomic_load_explicit(&shm->stopped[PCM_RING_CAPTURE], memory_order_acquire) ? -1 : 0;
+    }
+    if (n > (uint32_t) length) {
+        n = (uint32_t) length;
+    }
+    n &= ~1u;
+    if (n == 0) {
+        return 0;
+    }
+
+    jbyte *dst = (*env)->GetPrimitiveArrayCritical(env, buffer, NULL);
+    if (dst == NULL) {
+        return 0;
+    }
+    pcm_ring_get(shm, PCM_RING_CAPTURE, (uint8_t *) dst + offset, n);
+    (*env)->ReleasePrimitiveArrayCritical(env, buffer, dst, 0);
+    return (jint) n;
+}
+
+/* Queue playback bytes, as many whole samples as fit; -1 once the helper stopped */
+JNIEXPORT jint JNICALL
+Java_com_shreeyash_gateway_PcmHelper_nativeWrite(JNIEnv *env, jclass clazz, jlong handle,
+                                                 jbyteArray buffer, jint offset, jint length) {
+    (void) clazz;
+    struct pcm_shm *shm = shm_of(handle);
+    if (atomic_load_explicit(&shm->stopped[PCM_RING_PLAYBACK], memory_order_acquire)) {
+        return -1;
+    }
+    uint32_t n = pcm_ring_space(shm, PCM_RING_PLAYBACK);
+    if (n > (uint32_t) length) {
+        n = (uint32_t) length;
+    }
+    n &= ~1u;
+    if (n == 0) {
+        return 0;
+    }
+
+    jbyte *src = (*env)->GetPrimitiveArrayCritical(env, buffer, NULL);
+    if (src == NULL) {
+        return 0;
+    }
+    pcm_ring_put(shm, PCM_RING_PLAYBACK, (const uint8_t *) src + offset, n);
+    (*env)->ReleasePrimitiveArrayCritical(env, buffer, src, JNI_ABORT);
+    return (jint) n;
+}
+
+/* Capture periods dropped or playback periods of silence, for the stats */
+JNIEXPORT jint JNICALL
+Java_com_shreeyash_gateway_PcmHelper_nativeXruns(JNIEnv *env, jclass clazz, jlong handle,
+                                                 jint direction) {
+    (void) env;
+    (void) clazz;
+    return (jint) atomic_load_explicit(&shm_of(handle)->xruns[direction & 1], memory_order_relaxed);
+}
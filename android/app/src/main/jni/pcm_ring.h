@@ -0,0 +1,94 @@
+/*
+ * Shared-memory PCM rings between the root PCM helper (pcm_helper.c) and
+ * the app (pcm_ring.c, used by PcmHelper.java)
+ *
+ * One memfd holds a header and two single-producer, single-consumer byte
+ * rings: capture (helper writes, app reads) and playback (app writes,
+ * helper reads). Positions are free-running byte counters; each side only
+ * stores its own and publishes it with release ordering after the data,
+ * and loads the other's with acquire ordering before touching the data.
+ */
+
+#ifndef PCM_RING_H
+#define PCM_RING_H
+
+#include <stdatomic.h>
+#include <stdint.h>
+
+#define PCM_RING_MAGIC 0x524d4350u   /* "PCMR" */
+
+#define PCM_RING_CAPTURE  0
+#define PCM_RING_PLAYBACK 1
+
+/* Kept on separate cache lines so the two sides do not contend */
+struct pcm_ring {
+    _Atomic uint32_t head;      /* bytes produced */
+    uint8_t pad0[60];
+    _Atomic uint32_t tail;      /* bytes consumed */
+    uint8_t pad1[60];
+};
+
+struct pcm_shm {
+    uint32_t magic;
+    uint32_t size;                  /* data bytes per ring, a power of two */
+    _Atomic uint32_t stopped[2];    /* set by the helper when a stream ends */
+    _Atomic uint32_t xruns[2];      /* capture: periods dropped, playback: silence written */
+    uint8_t pad[40];
+    struct pcm_ring ring[2];
+    /* capture data, then playback data */
+};
+
+static inline uint8_t *pcm_ring_data(struct pcm_shm *shm, int dir) {
+    return (uint8_t *) (shm + 1) + (size_t) dir * shm->size;
+}
+
+static inline size_t pcm_shm_length(uint32_t size) {
+    return sizeof(struct pcm_shm) + 2 * (size_t) size;
+}
+
+/* Bytes the consumer may read */
+static inline uint32_t pcm_ring_avail(struct pcm_shm *shm, int dir) {
+    struct pcm_ring *r = &shm->ring[dir];
+    return atomic_load_explicit(&r->head, memory_order_acquire) -
+           atomic_load_explicit(&r->tail, memory_order_relaxed);
+}
+
+/* Bytes the producer may write */
+static inline uint32_t pcm_ring_space(struct pcm_shm *shm, int dir) {
+    struct pcm_ring *r = &shm->ring[dir];
+    return shm->size - (atomic_load_explicit(&r->head, memory_order_relaxed) -
+                        atomic_load_explicit(&r->tail, memory_order_acquire));
+}
+
+/* Producer side; the caller checked pcm_ring_space() */
+static inline void pcm_ring_put(struct pcm_shm *shm, int dir, const uint8_t *src, uint32_t len) {
+    struct pcm_ring *r = &shm->ring[dir];
+    uint8_t *data = pcm_ring_data(shm, dir);
+    uint32_t head = atomic_load_explicit(&r->head, memory_order_relaxed);
+    uint32_t idx = head & (shm->size - 1);
+    uint32_t first = shm->size - idx < len ? shm->size - idx : len;
+    __builtin_memcpy(data + idx, src, first);
+    __builtin_memcpy(data, src + first, len - first);
+    atomic_store_explicit(&r->head, head + len, memory_order_release);
+}
+
+/* Consumer side; the caller checked pcm_ring_avail() */
+static inline void pcm_ring_get(struct pcm_shm *shm, int dir, uint8_t *dst, uint32_t len) {
+    struct pcm_ring *r = &shm->ring[dir];
+    uint8_t *data = pcm_ring_data(shm, dir);
+    uint32_t tail = atomic_load_explicit(&r->tail, memory_order_relaxed);
+    uint32_t idx = tail & (shm->size - 1);
+    uint32_t first = shm->size - idx < len ? shm->size - idx : len;
+    __builtin_memcpy(dst, data + idx, first);
+    __builtin_memcpy(dst + first, data, len - first);
+    atomic_store_explicit(&r->tail, tail + len, memory_order_release);
+}
+
+/* Consumer side: drop len bytes unread */
+static inline void pcm_ring_skip(struct pcm_shm *shm, int dir, uint32_t len) {
+    struct pcm_ring *r = &shm->ring[dir];
+    uint32_t tail = atomic_load_explicit(&r->tail, memory_order_relaxed);
+    atomic_store_explicit(&r->tail, tail + len, memory_order_release);
+}
+
+#endif